@@ -38,7 +38,7 @@ CREATE TABLE `TB_PARA_SERVICE_ID_GEN` (
 #max_id自增值9999后后重置为0
 INSERT INTO `TB_PARA_SERVICE_ID_GEN` VALUES (0, 0, 26, 10000);
 
-#annotation
+#annotation，已有库升级新增的timestampUs、trace.durationUs见upgradeTimestampUs.sql
 CREATE TABLE `annotation` (
   `id` int(11) NOT NULL AUTO_INCREMENT,
   `k` varchar(128) DEFAULT NULL,
@@ -46,6 +46,7 @@ CREATE TABLE `annotation` (
   `ip` varchar(45) DEFAULT NULL,
   `port` varchar(11) DEFAULT NULL,
   `timestamp` bigint(20) DEFAULT NULL,
+  `timestampUs` bigint(20) DEFAULT NULL,
   `duration` int(11) DEFAULT NULL,
   `spanId` bigint(128) DEFAULT NULL,
   `traceId` bigint(128) DEFAULT NULL,
@@ -69,7 +70,23 @@ CREATE TABLE `trace` (
   `id` int(11) NOT NULL AUTO_INCREMENT,
   `traceId` bigint(128) DEFAULT NULL,
   `duration` int(11) DEFAULT NULL,
+  `durationUs` bigint(20) DEFAULT NULL,
   `service` varchar(1024) CHARACTER SET utf8 DEFAULT NULL,
   `time` bigint(20) DEFAULT NULL,
   PRIMARY KEY (`id`)
-) ENGINE=InnoDB AUTO_INCREMENT=16924 DEFAULT CHARSET=utf8;
\ No newline at end of file
+) ENGINE=InnoDB AUTO_INCREMENT=16924 DEFAULT CHARSET=utf8;
+
+#span_metrics collector按分钟汇总的服务端指标，耗时单位us，histogram为LatencySketch编码
+CREATE TABLE `span_metrics` (
+  `id` int(11) NOT NULL AUTO_INCREMENT,
+  `service` varchar(128) DEFAULT NULL,
+  `name` varchar(128) DEFAULT NULL,
+  `time` bigint(20) DEFAULT NULL,
+  `count` bigint(20) DEFAULT NULL,
+  `errorCount` bigint(20) DEFAULT NULL,
+  `durationSumUs` bigint(20) DEFAULT NULL,
+  `durationMaxUs` bigint(20) DEFAULT NULL,
+  `histogram` varbinary(4096) DEFAULT NULL,
+  PRIMARY KEY (`id`),
+  KEY `idx_service_time` (`service`,`time`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
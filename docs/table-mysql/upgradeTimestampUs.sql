@@ -0,0 +1,4 @@
+#已有库升级(在目标库中执行)：annotation、trace增加微秒时间列，collector升级前执行
+#老数据的微秒列为NULL，查询时按原来的毫秒列处理
+ALTER TABLE `annotation` ADD COLUMN `timestampUs` bigint(20) DEFAULT NULL AFTER `timestamp`;
+ALTER TABLE `trace` ADD COLUMN `durationUs` bigint(20) DEFAULT NULL AFTER `duration`;
@@ -0,0 +1,24 @@
+package com.jd.bdp.hydra.sidecar;
+
+import org.springframework.context.support.ClassPathXmlApplicationContext;
+
+/**
+ * Date: 26-10-17
+ * 本机span发送进程：读取业务进程写入的内存映射环，发送到collector
+ */
+public class HydraSidecar {
+    public static void main(String[] strings) {
+        ClassPathXmlApplicationContext context = new ClassPathXmlApplicationContext(new String[]{
+                "classpath*:hydra-sidecar.xml"
+        });
+        context.registerShutdownHook();//退出前把已读出的span发送完
+        context.start();
+        while (true) {
+            try {
+                Thread.sleep(Long.MAX_VALUE);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
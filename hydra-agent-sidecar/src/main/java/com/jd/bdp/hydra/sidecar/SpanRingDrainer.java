@@ -0,0 +1,251 @@
+package com.jd.bdp.hydra.sidecar;
+
+import com.jd.bdp.hydra.Span;
+import com.jd.bdp.hydra.agent.CollectorService;
+import com.jd.bdp.hydra.agent.support.MmapSpanRing;
+import com.jd.bdp.hydra.codec.SpanCodec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Date: 26-10-17
+ * 定期扫描目录下的*.ring文件，单线程轮流读取各个环(每个环只有这一个消费者)，
+ * 解码后重新攒批交给collectorService(通常是TraceService，带重试、落盘和压缩)
+ */
+public class SpanRingDrainer {
+
+    private static final Logger logger = LoggerFactory.getLogger(SpanRingDrainer.class);
+
+    private static final String SUFFIX = ".ring";
+    //空闲时最长挂起时间
+    private static final long MAX_IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final File dir;
+    private CollectorService collectorService;
+    private int flushSize = 1024;//一批最多多少条span
+    private long delayTime = 1000L;//一批从第一条span算起最多等多久(ms)
+    private long scanInterval = 5000L;//扫描新环文件的间隔(ms)
+    private int maxRecords = 64;//每轮从一个环最多读多少条记录，避免一个环占满
+
+    //文件名 -> 环
+    private final Map<String, MmapSpanRing> rings = new LinkedHashMap<String, MmapSpanRing>();
+    private long lastScan;
+    private List<Span> batch = new ArrayList<Span>();
+    private long batchStart;
+
+    private volatile boolean running;
+    private Thread thread;
+
+    private final AtomicLong recordCount = new AtomicLong();
+    private final AtomicLong spanCount = new AtomicLong();
+    private final AtomicLong brokenCount = new AtomicLong();
+
+    public SpanRingDrainer(String dir) {
+        this.dir = new File(dir);
+    }
+
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        if (collectorService == null) {
+            throw new IllegalStateException("collectorService is null, can't start SpanRingDrainer");
+        }
+        running = true;
+        thread = new Thread("SpanRingDrainer-Thread") {
+            @Override
+            public void run() {
+                int idle = 0;
+                while (running) {
+                    try {
+                        if (drainOnce() > 0) {
+                            idle = 0;
+                        } else {
+                            idle = idle(idle);
+                        }
+                    } catch (Throwable e) {
+                        logger.warn("[Hydra] drain span ring failure", e);
+                        idle = idle(idle);
+                    }
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public synchronized void stop() throws InterruptedException {
+        if (thread != null) {
+            running = false;
+            thread.join(TimeUnit.SECONDS.toMillis(10));
+            thread = null;
+        }
+        flush();
+        for (MmapSpanRing ring : rings.values()) {
+            ring.close();
+        }
+        rings.clear();
+    }
+
+    /**
+     * 一轮：到期时扫描新文件，再从每个环读取一部分记录，返回本轮读到的记录数。
+     * 只允许一个线程调用
+     */
+    int drainOnce() {
+        long now = System.currentTimeMillis();
+        if (now - lastScan >= scanInterval) {
+            lastScan = now;
+            scan();
+        }
+        int n = 0;
+        for (MmapSpanRing ring : rings.values()) {
+            for (int i = 0; i < maxRecords; i++) {
+                byte[] bytes;
+                try {
+                    bytes = ring.poll();
+                } catch (IOException e) {//环的数据损坏，未读部分已被丢弃
+                    brokenCount.incrementAndGet();
+                    logger.warn("[Hydra] span ring broken, skip unread data", e);
+                    break;
+                }
+                if (bytes == null) {
+                    break;
+                }
+                n++;
+                recordCount.incrementAndGet();
+                add(bytes);
+            }
+        }
+        if (!batch.isEmpty() && System.nanoTime() - batchStart >= TimeUnit.MILLISECONDS.toNanos(delayTime)) {
+            flush();
+        }
+        return n;
+    }
+
+    private void add(byte[] bytes) {
+        List<Span> spans;
+        try {
+            spans = SpanCodec.decode(bytes);
+        } catch (IOException e) {
+            brokenCount.incrementAndGet();
+            logger.warn("[Hydra] broken span batch in ring", e);
+            return;
+        }
+        if (batch.isEmpty()) {
+            batchStart = System.nanoTime();
+        }
+        batch.addAll(spans);
+        spanCount.addAndGet(spans.size());
+        if (batch.size() >= flushSize) {
+            flush();
+        }
+    }
+
+    private void flush() {
+        if (batch.isEmpty()) {
+            return;
+        }
+        //异步发送，发出的批次不能复用
+        collectorService.sendSpan(batch);
+        batch = new ArrayList<Span>();
+    }
+
+    private void scan() {
+        File[] files = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SUFFIX);
+            }
+        });
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            if (rings.containsKey(file.getName())) {
+                continue;
+            }
+            try {
+                rings.put(file.getName(), MmapSpanRing.open(file.getPath()));
+                logger.info("[Hydra] drain span ring " + file);
+            } catch (IOException e) {//写端可能还没创建完，下次扫描再试
+                logger.info("[Hydra] cannot open span ring " + file + " : " + e.getMessage());
+            }
+        }
+    }
+
+    //没有数据时先让出CPU，再逐步加长挂起时间
+    private static int idle(int idle) {
+        if (idle < 64) {
+            Thread.yield();
+        } else {
+            long nanos = TimeUnit.MICROSECONDS.toNanos(100) << Math.min(idle - 64, 7);
+            LockSupport.parkNanos(Math.min(nanos, MAX_IDLE_PARK_NANOS));
+        }
+        return idle < Integer.MAX_VALUE ? idle + 1 : idle;
+    }
+
+    public void setCollectorService(CollectorService collectorService) {
+        this.collectorService = collectorService;
+    }
+
+    public int getFlushSize() {
+        return flushSize;
+    }
+
+    public void setFlushSize(int flushSize) {
+        this.flushSize = flushSize;
+    }
+
+    public long getDelayTime() {
+        return delayTime;
+    }
+
+    public void setDelayTime(long delayTime) {
+        this.delayTime = delayTime;
+    }
+
+    public long getScanInterval() {
+        return scanInterval;
+    }
+
+    public void setScanInterval(long scanInterval) {
+        this.scanInterval = scanInterval;
+    }
+
+    public int getMaxRecords() {
+        return maxRecords;
+    }
+
+    public void setMaxRecords(int maxRecords) {
+        this.maxRecords = maxRecords;
+    }
+
+    public int getRingCount() {
+        return rings.size();
+    }
+
+    public long getRecordCount() {
+        return recordCount.get();
+    }
+
+    public long getSpanCount() {
+        return spanCount.get();
+    }
+
+    public long getBrokenCount() {
+        return brokenCount.get();
+    }
+}
@@ -0,0 +1,118 @@
+package com.jd.bdp.hydra.sidecar;
+
+import com.jd.bdp.hydra.Span;
+import com.jd.bdp.hydra.agent.CollectorService;
+import com.jd.bdp.hydra.agent.support.MmapSpanRing;
+import com.jd.bdp.hydra.codec.SpanCodec;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Date: 26-10-17
+ */
+public class SpanRingDrainerTest {
+
+    private File dir;
+    private final List<List<Span>> sent = new ArrayList<List<Span>>();
+
+    @Before
+    public void setUp() {
+        dir = new File(System.getProperty("java.io.tmpdir"), "hydra-sidecar-" + System.nanoTime());
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    /**
+     * 读取目录下所有环，解码后按flushSize重新攒批
+     */
+    @Test
+    public void testDrain_Rebatch() throws Exception {
+        MmapSpanRing a = new MmapSpanRing(new File(dir, "a.ring").getPath(), 64 * 1024);
+        MmapSpanRing b = new MmapSpanRing(new File(dir, "b.ring").getPath(), 64 * 1024);
+        new File(dir, "other.txt").createNewFile();
+        SpanRingDrainer drainer = newDrainer();
+        drainer.setFlushSize(10);
+        drainer.setMaxRecords(1);//两个环交替读取
+        try {
+            for (long i = 0; i < 4; i++) {
+                a.offer(SpanCodec.encode(newBatch(i, 3)));
+                b.offer(SpanCodec.encode(newBatch(100 + i, 2)));
+            }
+            while (drainer.drainOnce() > 0) {
+            }
+            Assert.assertEquals(2, drainer.getRingCount());
+            Assert.assertEquals(8, drainer.getRecordCount());
+            Assert.assertEquals(20, drainer.getSpanCount());
+            Assert.assertEquals(2, sent.size());
+            Assert.assertEquals(10, sent.get(0).size());
+            Assert.assertEquals(0L, sent.get(0).get(0).getTraceId().longValue());
+            Assert.assertEquals(100L, sent.get(0).get(3).getTraceId().longValue());
+        } finally {
+            a.close();
+            b.close();
+            drainer.stop();
+        }
+    }
+
+    /**
+     * 不足一批时按delayTime发送，后创建的环在下次扫描时加入
+     */
+    @Test
+    public void testDrain_DelayAndScan() throws Exception {
+        dir.mkdirs();
+        SpanRingDrainer drainer = newDrainer();
+        drainer.setDelayTime(0);
+        try {
+            Assert.assertEquals(0, drainer.drainOnce());
+            MmapSpanRing ring = new MmapSpanRing(new File(dir, "late.ring").getPath(), 4096);
+            ring.offer(SpanCodec.encode(newBatch(7L, 2)));
+            ring.offer(new byte[]{1, 2, 3});//不是SpanCodec格式
+            Thread.sleep(20);
+            Assert.assertEquals(2, drainer.drainOnce());
+            Assert.assertEquals(1, drainer.getBrokenCount());
+            Assert.assertEquals(1, sent.size());
+            Assert.assertEquals(7L, sent.get(0).get(1).getTraceId().longValue());
+            ring.close();
+        } finally {
+            drainer.stop();
+        }
+    }
+
+    private SpanRingDrainer newDrainer() {
+        SpanRingDrainer drainer = new SpanRingDrainer(dir.getPath());
+        drainer.setScanInterval(10);
+        drainer.setCollectorService(new CollectorService() {
+            @Override
+            public void sendSpan(List<Span> spanList) {
+                sent.add(spanList);
+            }
+        });
+        return drainer;
+    }
+
+    private List<Span> newBatch(long traceId, int size) {
+        List<Span> list = new ArrayList<Span>();
+        for (int i = 0; i < size; i++) {
+            Span span = new Span();
+            span.setTraceId(traceId);
+            span.setId((long) i);
+            list.add(span);
+        }
+        return list;
+    }
+}
@@ -0,0 +1,17 @@
+package com.jd.bdp.hydra.agent;
+
+import com.jd.bdp.hydra.Span;
+
+/**
+ * Date: 26-10-17
+ * 当前span的存放方式，默认放在ThreadLocal中，可以通过Tracer.setContextStorage替换
+ * (例如运行在虚拟线程上时换成基于ScopedValue的实现，见ScopedContextStorage)。只在Tracer启动前设置
+ */
+public interface ContextStorage {
+
+    //当前线程的span，没有时返回null
+    Span get();
+
+    //换成span(null表示清除)，返回原来的值，用于之后恢复
+    Span swap(Span span);
+}
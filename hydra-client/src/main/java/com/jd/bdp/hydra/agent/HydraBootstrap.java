@@ -0,0 +1,321 @@
+package com.jd.bdp.hydra.agent;
+
+import com.alibaba.dubbo.config.ApplicationConfig;
+import com.alibaba.dubbo.config.MethodConfig;
+import com.alibaba.dubbo.config.ReferenceConfig;
+import com.alibaba.dubbo.config.RegistryConfig;
+import com.jd.bdp.hydra.agent.metrics.AgentMetrics;
+import com.jd.bdp.hydra.agent.support.Configuration;
+import com.jd.bdp.hydra.agent.support.DefaultSyncTransfer;
+import com.jd.bdp.hydra.agent.support.RateLimitSampler;
+import com.jd.bdp.hydra.agent.support.SpanJournal;
+import com.jd.bdp.hydra.agent.support.SpanTimeoutWheel;
+import com.jd.bdp.hydra.agent.support.TraceIdLoadBalance;
+import com.jd.bdp.hydra.agent.support.TraceService;
+import com.jd.bdp.hydra.dubbomonitor.HydraService;
+import com.jd.bdp.hydra.dubbomonitor.LeaderService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.support.ClassPathXmlApplicationContext;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Date: 26-10-17
+ * 不依赖spring的agent启动：按hydra.properties组装traceService、transfer、sampler并设置到Tracer，
+ * 在后台线程里创建dubbo引用、启动发送线程，调用方不等待；注册完成前Tracer取不到serviceId，请求直接放过不跟踪。
+ * 应用启动时调用HydraBootstrap.startDefault()，HydraFilter、HydraServletFilter加载时也会调用，只生效一次：
+ * classpath下有hydra.properties时按它启动，否则有hydra-config.xml时由spring加载(原有配置方式)。
+ * 配置项(hydra.前缀)：
+ * <pre>
+ * hydra.application   dubbo应用名，不配置时用dubbo.properties的dubbo.application.name
+ * hydra.registry      注册中心地址，不配置时用dubbo.properties的dubbo.registry.address
+ * hydra.timeout       leaderService、hydraService调用超时(ms)，默认20000
+ * hydra.queueSize     缓冲队列大小，默认1024
+ * hydra.flushSize     一批的条数，默认1024
+ * hydra.delayTime     攒批最长等待(ms)，默认60000
+ * hydra.batchBytes    一批的最大字节数
+ * hydra.nodeId        id生成器节点号(0~16383)，各agent不同；不配置时用leader下发的seed
+ * hydra.maxInFlight   在途批次上限，默认4
+ * hydra.retryTimes    失败重试次数，默认2
+ * hydra.retryDelay    重试、回放的间隔(ms)，默认1000
+ * hydra.encoded       是否以紧凑格式发送，默认false
+ * hydra.compression   紧凑格式之上的块压缩，按顺序与collector协商，如snappy,deflate
+ * hydra.dictionarySamples deflate训练预置字典用的批次数
+ * hydra.journal.dir   collector不可用时落盘的目录，不配置时不落盘
+ * hydra.journal.segmentSize 单个日志段大小(byte)，默认16777216
+ * hydra.journal.quota 日志占用的磁盘配额(byte)，默认268435456
+ * hydra.contextStorage 当前span的存放方式，com.jd.bdp.hydra.agent.ContextStorage实现类名，需有无参构造，默认ThreadLocal
+ * hydra.routeByTraceId 是否按traceId把span路由到固定collector，collector开启尾部采样时需要，默认false
+ * hydra.sampleRate    每个服务每秒采样数，默认100
+ * hydra.spanTimeout   超过该时间(ms)未结束的span作为未完成发送，0表示不跟踪(默认)
+ * </pre>
+ * 交给sidecar发送(MmapSyncTransfer)、按方法配置采样率、指标定时输出只能用hydra-config.xml配置，
+ * 其他不认识的hydra.配置项启动时打warn日志
+ */
+public class HydraBootstrap {
+
+    private static final Logger logger = LoggerFactory.getLogger(HydraBootstrap.class);
+
+    public static final String PROPERTIES_FILE = "hydra.properties";
+    public static final String SPRING_FILE = "hydra-config.xml";
+
+    private static final AtomicBoolean defaultStarted = new AtomicBoolean(false);
+    //支持的配置项，不含hydra.前缀
+    private static final Set<String> KEYS = new HashSet<String>(Arrays.asList(
+            "application", "registry", "timeout", "queueSize", "flushSize", "delayTime", "batchBytes", "nodeId",
+            "maxInFlight", "retryTimes", "retryDelay", "encoded", "compression", "dictionarySamples",
+            "journal.dir", "journal.segmentSize", "journal.quota", "contextStorage",
+            "routeByTraceId", "sampleRate", "spanTimeout"));
+
+    private final Properties properties;
+    private final AtomicBoolean started = new AtomicBoolean(false);
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    private LeaderService leaderService;
+    private HydraService hydraService;
+    private DefaultSyncTransfer transfer;
+    private SpanTimeoutWheel spanTimeouts;
+    private SpanJournal journal;
+    private TraceService traceService;
+
+    public HydraBootstrap(Properties properties) {
+        this.properties = properties;
+    }
+
+    /**
+     * 按classpath下的配置启动默认agent，只有第一次调用生效，不阻塞调用线程
+     */
+    public static void startDefault() {
+        if (!defaultStarted.compareAndSet(false, true)) {
+            return;
+        }
+        ClassLoader loader = HydraBootstrap.class.getClassLoader();
+        URL url = loader.getResource(PROPERTIES_FILE);
+        if (url != null) {
+            Properties p = new Properties();
+            try {
+                InputStream in = url.openStream();
+                try {
+                    p.load(in);
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                logger.error("[Hydra] cannot read " + url, e);
+                return;
+            }
+            new HydraBootstrap(p).start();
+        } else if (loader.getResource(SPRING_FILE) != null) {
+            startAsync(new Runnable() {
+                @Override
+                public void run() {
+                    SpringAdapter.start();
+                }
+            });
+        } else {
+            logger.warn("[Hydra] neither " + PROPERTIES_FILE + " nor " + SPRING_FILE + " found, tracing is disabled");
+        }
+    }
+
+    /**
+     * 在后台线程里启动，立即返回
+     */
+    public void start() {
+        if (!started.compareAndSet(false, true)) {
+            return;
+        }
+        startAsync(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    init();
+                } catch (Exception e) {
+                    logger.error("[Hydra] agent bootstrap failure, tracing is disabled", e);
+                } finally {
+                    done.countDown();
+                }
+            }
+        });
+    }
+
+    //等待后台启动完成(不含向leader注册)，返回是否已完成
+    public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        return done.await(timeout, unit);
+    }
+
+    public void stop() {
+        if (spanTimeouts != null) {
+            spanTimeouts.stop();
+        }
+        if (transfer != null) {
+            transfer.cancel();
+        }
+        if (journal != null) {
+            journal.close();
+        }
+        Tracer.getTracer().stop();
+        AgentMetrics.getInstance().stop();
+    }
+
+    void init() throws Exception {
+        for (String name : properties.stringPropertyNames()) {
+            if (name.startsWith("hydra.") && !KEYS.contains(name.substring("hydra.".length()))) {
+                logger.warn("[Hydra] " + name + " is not supported in " + PROPERTIES_FILE
+                        + ", ignored; use " + SPRING_FILE + " instead");
+            }
+        }
+        Configuration c = new Configuration();
+        c.setQueueSize(getInt("queueSize", 1024));
+        c.setFlushSize(getLong("flushSize", 1024));
+        c.setDelayTime(getLong("delayTime", 60000));
+        if (get("batchBytes") != null) {
+            c.setBatchBytes(getLong("batchBytes", 0));
+        }
+        if (get("nodeId") != null) {
+            c.setNodeId(getInt("nodeId", 0));
+        }
+        if (leaderService == null) {
+            leaderService = reference(LeaderService.class, null);
+        }
+        boolean routeByTraceId = Boolean.parseBoolean(get("routeByTraceId"));
+        if (hydraService == null) {
+            hydraService = reference(HydraService.class, routeByTraceId ? TraceIdLoadBalance.NAME : null,
+                    "push", "pushEncoded");
+        }
+
+        traceService = new TraceService();
+        traceService.setLeaderService(leaderService);
+        traceService.setHydraService(hydraService);
+        traceService.setMaxInFlight(getInt("maxInFlight", 4));
+        traceService.setRetryTimes(getInt("retryTimes", 2));
+        traceService.setRetryDelay(getLong("retryDelay", 1000));
+        traceService.setEncoded(Boolean.parseBoolean(get("encoded")));
+        traceService.setCompression(get("compression"));
+        traceService.setDictionarySamples(getInt("dictionarySamples", 0));
+        traceService.setRouteByTraceId(routeByTraceId);
+        if (get("journal.dir") != null) {
+            journal = new SpanJournal(get("journal.dir"), getInt("journal.segmentSize", 16 * 1024 * 1024),
+                    getLong("journal.quota", 256L * 1024 * 1024));
+            traceService.setJournal(journal);
+        }
+
+        transfer = new DefaultSyncTransfer(c);
+        transfer.setTraceService(traceService);
+
+        long timeout = getLong("spanTimeout", 0);
+        if (timeout > 0) {
+            spanTimeouts = new SpanTimeoutWheel(timeout);
+            spanTimeouts.setTransfer(transfer);
+            spanTimeouts.start();
+        }
+
+        Tracer tracer = Tracer.getTracer();
+        if (get("contextStorage") != null) {
+            tracer.setContextStorage((ContextStorage) Class.forName(get("contextStorage"), true,
+                    HydraBootstrap.class.getClassLoader()).newInstance());
+        }
+        tracer.setTraceService(traceService);
+        tracer.setSampler(new RateLimitSampler(getInt("sampleRate", 100)));
+        tracer.setSpanTimeouts(spanTimeouts);
+        tracer.setTransfer(transfer);
+
+        AgentMetrics metrics = AgentMetrics.getInstance();
+        metrics.setTransfer(transfer);
+        metrics.setTraceService(traceService);
+        metrics.start();
+
+        tracer.start();
+        logger.info("[Hydra] agent started");
+    }
+
+    //span不能经过hydra自己的filter，hydraService异步调用的方法由traceService处理回调
+    private <T> T reference(Class<T> type, String loadbalance, String... asyncMethods) {
+        ReferenceConfig<T> reference = new ReferenceConfig<T>();
+        if (get("application") != null) {
+            reference.setApplication(new ApplicationConfig(get("application")));
+        }
+        if (get("registry") != null) {
+            reference.setRegistry(new RegistryConfig(get("registry")));
+        }
+        reference.setInterface(type);
+        reference.setCheck(false);
+        reference.setFilter("-hydra");
+        reference.setTimeout(getInt("timeout", 20000));
+        if (loadbalance != null) {
+            reference.setLoadbalance(loadbalance);
+        }
+        if (asyncMethods.length > 0) {
+            List<MethodConfig> methods = new ArrayList<MethodConfig>();
+            for (String name : asyncMethods) {
+                MethodConfig method = new MethodConfig();
+                method.setName(name);
+                method.setAsync(true);
+                methods.add(method);
+            }
+            reference.setMethods(methods);
+        }
+        return reference.get();
+    }
+
+    private static void startAsync(Runnable runnable) {
+        Thread thread = new Thread(runnable, "HydraBootstrap");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private String get(String key) {
+        String value = properties.getProperty("hydra." + key);
+        return value == null ? null : value.trim();
+    }
+
+    private int getInt(String key, int defaultValue) {
+        String value = get(key);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    private long getLong(String key, long defaultValue) {
+        String value = get(key);
+        return value == null ? defaultValue : Long.parseLong(value);
+    }
+
+    //测试或已有实例时直接使用，不创建dubbo引用
+    public void setLeaderService(LeaderService leaderService) {
+        this.leaderService = leaderService;
+    }
+
+    public void setHydraService(HydraService hydraService) {
+        this.hydraService = hydraService;
+    }
+
+    TraceService getTraceService() {
+        return traceService;
+    }
+
+    //spring配置方式，只在使用时加载spring的类
+    private static class SpringAdapter {
+        static void start() {
+            try {
+                String resourceName = "classpath*:" + SPRING_FILE;
+                logger.info("Hydra is loading config file " + resourceName);
+                ClassPathXmlApplicationContext context = new ClassPathXmlApplicationContext(resourceName);
+                context.start();
+                Tracer.getTracer().start();
+                logger.info("[Hydra] agent started");
+            } catch (Exception e) {
+                logger.error("[Hydra] agent bootstrap failure, tracing is disabled", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package com.jd.bdp.hydra.agent;
+
+import com.jd.bdp.hydra.Annotation;
+import com.jd.bdp.hydra.BinaryAnnotation;
+import com.jd.bdp.hydra.Endpoint;
+import com.jd.bdp.hydra.Span;
+import com.jd.bdp.hydra.agent.support.TracerUtils;
+
+/**
+ * Date: 26-10-17
+ * 请求内的本地调用(查库、查缓存等)，由Tracer.startLocalSpan开始，配合try-with-resources使用：
+ * <pre>
+ * try (LocalSpan local = tracer.startLocalSpan("queryOrder")) {
+ *     ...
+ * }
+ * </pre>
+ * 每个线程一个实例，开始、结束时只在数组里记下名字和nanoTime，不生成Span对象；
+ * 外层是本线程的服务端span时，在serverSendRecord时一起生成子span发送，否则在最外层的本地span结束时发送。
+ * 嵌套的本地span以外层的本地span为parent。当前没有已采样的span时返回空实现，什么都不记录。
+ * 只能在开始它的线程上关闭
+ */
+public final class LocalSpan implements AutoCloseable {
+
+    //一个线程上未发送的本地span最多记录的个数，超出的丢弃
+    static final int CAPACITY = 128;
+    //同一线程上嵌套的服务端span(injvm调用)最多记录的层数，超出的按非本线程处理
+    private static final int MAX_SERVERS = 8;
+
+    static final LocalSpan NOOP = new LocalSpan(0);
+
+    private static final ThreadLocal<LocalSpan> LOCAL = new ThreadLocal<LocalSpan>() {
+        @Override
+        protected LocalSpan initialValue() {
+            return new LocalSpan(CAPACITY);
+        }
+    };
+
+    //第i个本地span：名字、外层span(发送或丢弃后为null)、外层是否为本线程的服务端span、
+    //同一外层span内的父本地span下标(-1表示外层span)、开始结束的nanoTime、id(发送时才生成)
+    private final String[] names;
+    private final Span[] owners;
+    private final boolean[] bound;
+    private final int[] parents;
+    private final long[] starts;
+    private final long[] ends;
+    private final long[] ids;
+    private int size;
+    //未发送的个数
+    private int pending;
+    //外层不是本线程服务端span的未发送个数
+    private int unbound;
+    //未结束的本地span下标
+    private final int[] stack;
+    private int depth;
+    //记录已满后开始的本地span个数，结束时直接跳过
+    private int overflow;
+    //本线程上进行中的服务端span
+    private final Span[] servers;
+    private int serverCount;
+    private Tracer tracer;
+
+    private LocalSpan(int capacity) {
+        names = new String[capacity];
+        owners = new Span[capacity];
+        bound = new boolean[capacity];
+        parents = new int[capacity];
+        starts = new long[capacity];
+        ends = new long[capacity];
+        ids = new long[capacity];
+        stack = new int[capacity];
+        servers = new Span[capacity == 0 ? 0 : MAX_SERVERS];
+    }
+
+    static LocalSpan current() {
+        return LOCAL.get();
+    }
+
+    LocalSpan start(Tracer tracer, Span owner, String name) {
+        if (size == names.length) {
+            overflow++;
+            return this;
+        }
+        this.tracer = tracer;
+        int index = size++;
+        int parent = depth == 0 ? -1 : stack[depth - 1];
+        names[index] = name;
+        owners[index] = owner;
+        bound[index] = isServer(owner);
+        parents[index] = parent >= 0 && owners[parent] == owner ? parent : -1;
+        ends[index] = 0;
+        ids[index] = 0;
+        pending++;
+        if (!bound[index]) {
+            unbound++;
+        }
+        stack[depth++] = index;
+        starts[index] = System.nanoTime();
+        return this;
+    }
+
+    @Override
+    public void close() {
+        if (overflow > 0) {
+            overflow--;
+            return;
+        }
+        if (depth == 0) {//空实现，或者已随外层span发送
+            return;
+        }
+        ends[stack[--depth]] = System.nanoTime();
+        if (depth == 0) {
+            if (unbound > 0) {
+                for (int i = 0; i < size; i++) {
+                    if (owners[i] != null && !bound[i]) {
+                        send(i, owners[i].getRecordHost());
+                    }
+                }
+            }
+            clearIfDone();
+        }
+    }
+
+    //服务端span开始(serverReceiveRecord)，没有进行中的本地span时先把遗留的发出去，防止跨线程结束的请求一直占着位置
+    void bind(Span server) {
+        if (depth == 0) {
+            for (int i = 0; i < size; i++) {
+                if (owners[i] != null) {
+                    send(i, owners[i].getRecordHost());
+                }
+            }
+            serverCount = 0;
+            clearIfDone();
+        }
+        if (serverCount < servers.length) {
+            servers[serverCount++] = server;
+        }
+    }
+
+    //服务端span结束(serverSendRecord)，发送属于它的本地span，未结束的丢弃
+    void flush(Span server, Endpoint endpoint) {
+        int k = serverCount - 1;
+        while (k >= 0 && servers[k] != server) {
+            k--;
+        }
+        if (k < 0) {
+            return;
+        }
+        System.arraycopy(servers, k + 1, servers, k, serverCount - k - 1);
+        servers[--serverCount] = null;
+        for (int i = 0; i < size; i++) {
+            if (owners[i] == server) {
+                send(i, endpoint);
+            }
+        }
+        clearIfDone();
+    }
+
+    private boolean isServer(Span span) {
+        for (int i = serverCount - 1; i >= 0; i--) {
+            if (servers[i] == span) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void clearIfDone() {
+        if (depth == 0 && pending == 0) {
+            for (int i = 0; i < size; i++) {
+                names[i] = null;
+            }
+            size = 0;
+        }
+    }
+
+    private void send(int i, Endpoint host) {
+        Span owner = owners[i];
+        owners[i] = null;
+        pending--;
+        if (!bound[i]) {
+            unbound--;
+        }
+        if (ends[i] == 0) {//未结束
+            return;
+        }
+        Span span = new Span();
+        span.setTraceId(owner.getTraceId());
+        span.setId(id(i));
+        span.setParentId(parents[i] < 0 ? owner.getId() : id(parents[i]));
+        span.setSpanName(names[i]);
+        span.setServiceId(owner.getServiceId());
+        span.setSample(true);
+        span.addAnnotation(annotation(Annotation.CLIENT_SEND, timestampUs(owner, starts[i]), host));
+        span.addAnnotation(annotation(Annotation.CLIENT_RECEIVE, timestampUs(owner, ends[i]), host));
+        BinaryAnnotation local = new BinaryAnnotation();
+        local.setKey(TracerUtils.LOCAL_COMPONENT);
+        local.setValue(names[i]);
+        local.setType("string");
+        local.setHost(host);
+        span.addBinaryAnnotation(local);
+        tracer.send(span);
+    }
+
+    //父本地span可能先于子span被丢弃，id用到时才生成
+    private long id(int i) {
+        if (ids[i] == 0) {
+            ids[i] = tracer.genSpanId();
+        }
+        return ids[i];
+    }
+
+    //与外层span使用同一个时间基准，外层span的开始时间不是由nanoTime记录时按当前时间推算
+    private static long timestampUs(Span owner, long nanoTime) {
+        long us = owner.toTimestampUs(nanoTime);
+        if (us < 0) {
+            us = System.currentTimeMillis() * 1000 - (System.nanoTime() - nanoTime) / 1000;
+        }
+        return us;
+    }
+
+    private static Annotation annotation(String value, long us, Endpoint host) {
+        Annotation annotation = new Annotation(us / 1000, value, host);
+        annotation.setTimestampUs(us);
+        return annotation;
+    }
+}
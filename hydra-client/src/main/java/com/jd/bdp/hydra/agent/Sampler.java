@@ -7,4 +7,7 @@ package com.jd.bdp.hydra.agent;
  */
 public interface Sampler {
     boolean isSample();
+
+    //按服务、方法决定是否采样
+    boolean isSample(String serviceId, String method);
 }
@@ -0,0 +1,33 @@
+package com.jd.bdp.hydra.agent;
+
+import com.jd.bdp.hydra.Span;
+
+/**
+ * Date: 26-10-17
+ * Tracer.withSpan返回的作用域，关闭时恢复进入前的span，配合try-with-resources使用：
+ * <pre>
+ * try (Scope scope = tracer.withSpan(span)) {
+ *     ...
+ * }
+ * </pre>
+ * 只能在打开它的线程上关闭，重复关闭无效
+ */
+public final class Scope implements AutoCloseable {
+
+    private final ContextStorage storage;
+    private final Span previous;
+    private boolean closed;
+
+    Scope(ContextStorage storage, Span previous) {
+        this.storage = storage;
+        this.previous = previous;
+    }
+
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            storage.swap(previous);
+        }
+    }
+}
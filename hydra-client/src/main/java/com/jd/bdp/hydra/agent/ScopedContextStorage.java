@@ -0,0 +1,21 @@
+package com.jd.bdp.hydra.agent;
+
+import com.jd.bdp.hydra.Span;
+
+import java.util.concurrent.Callable;
+
+/**
+ * Date: 26-10-17
+ * 只能"绑定后执行"的存放方式，对应JDK 21的ScopedValue：值只在call执行期间可见，结束后自动失效，
+ * 不需要也不能手动清除。Tracer.runWith遇到这种实现时交给call，其余实现用swap换上再换回。
+ * 基于ScopedValue的实现一般绑定一个可写的holder：
+ * <pre>
+ * ScopedValue.where(KEY, new Span[]{span}).call(task);
+ * </pre>
+ * get读holder，swap只改当前绑定内的holder，绑定之外(例如请求入口)退回到ThreadLocal
+ */
+public interface ScopedContextStorage extends ContextStorage {
+
+    //绑定span后执行task，返回task的结果
+    <T> T call(Span span, Callable<T> task) throws Exception;
+}
@@ -2,14 +2,20 @@ package com.jd.bdp.hydra.agent;
 
 import com.alibaba.dubbo.common.logger.Logger;
 import com.alibaba.dubbo.common.logger.LoggerFactory;
-import com.jd.bdp.hydra.Annotation;
+import com.alibaba.dubbo.common.utils.NetUtils;
 import com.jd.bdp.hydra.BinaryAnnotation;
 import com.jd.bdp.hydra.Endpoint;
 import com.jd.bdp.hydra.Span;
+import com.jd.bdp.hydra.agent.metrics.AgentMetrics;
 import com.jd.bdp.hydra.agent.support.*;
 import com.jd.bdp.hydra.dubbomonitor.HydraService;
 import com.jd.bdp.hydra.dubbomonitor.LeaderService;
 
+import java.net.InetSocketAddress;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 /**
  * Date: 13-3-19
  * Time: 下午4:14
@@ -22,28 +28,77 @@ public class Tracer {
 
     private static Tracer tracer = null;
 
-    private Sampler sampler = new SampleImp();
+    private Sampler sampler = new RateLimitSampler();
+
+    //由HydraBootstrap在后台线程设置，设置前取不到serviceId，请求不跟踪
+    private volatile SyncTransfer transfer = null;
+
+    private final AtomicBoolean started = new AtomicBoolean(false);
+
+    private final AgentMetrics metrics = AgentMetrics.getInstance();
+
+    private static final int MAX_ENDPOINTS = 1024;
+    private final ConcurrentHashMap<InetSocketAddress, Endpoint> endpoints = new ConcurrentHashMap<InetSocketAddress, Endpoint>();
 
-    private SyncTransfer transfer = null;
+    //未采样请求在线程内传递的共享span，不能修改
+    public static final Span NOT_SAMPLED = new Span();
 
     //传递parentSpan
-    private ThreadLocal<Span> spanThreadLocal = new ThreadLocal<Span>();
+    private ContextStorage contextStorage = new ThreadLocalContextStorage();
 
     TraceService traceService=null;
 
+    //可选：跟踪超时未结束的span
+    private SpanTimeoutWheel spanTimeouts = null;
+
     private Tracer() {
     }
 
     public void removeParentSpan() {
-        spanThreadLocal.remove();
+        contextStorage.swap(null);
     }
 
     public Span getParentSpan() {
-        return spanThreadLocal.get();
+        return contextStorage.get();
     }
 
     public void setParentSpan(Span span) {
-        spanThreadLocal.set(span);
+        contextStorage.swap(span);
+    }
+
+    //把当前线程的parentSpan换成span(null表示清除)，返回原来的值，任务执行完后用它恢复
+    public Span swapParentSpan(Span span) {
+        return contextStorage.swap(span);
+    }
+
+    //换上span，返回的Scope关闭时自动恢复原来的parentSpan
+    public Scope withSpan(Span span) {
+        return new Scope(contextStorage, contextStorage.swap(span));
+    }
+
+    //在span下执行task，结束后恢复原来的parentSpan；ScopedContextStorage按绑定后执行的方式处理
+    public <T> T runWith(Span span, Callable<T> task) throws Exception {
+        if (contextStorage instanceof ScopedContextStorage) {
+            return ((ScopedContextStorage) contextStorage).call(span, task);
+        }
+        Span previous = contextStorage.swap(span);
+        try {
+            return task.call();
+        } finally {
+            contextStorage.swap(previous);
+        }
+    }
+
+    /**
+     * 开始一个本地span，作为当前span的子span，结束时调用close。
+     * 当前没有已采样的span时返回的空实现什么都不记录
+     */
+    public LocalSpan startLocalSpan(String name) {
+        Span parent = contextStorage.get();
+        if (parent == null || !parent.isSample() || transfer == null) {
+            return LocalSpan.NOOP;
+        }
+        return LocalSpan.current().start(this, parent, name);
     }
 
     //构件Span，参数通过上游接口传递过来
@@ -58,9 +113,20 @@ public class Tracer {
         return span;
     }
 
+    //构件已确定采样的rootSpan
+    public Span newSampledSpan(String spanname, String serviceId) {
+        Span span = new Span();
+        span.setTraceId(genTracerId());
+        span.setId(genSpanId());
+        span.setSpanName(spanname);
+        span.setServiceId(serviceId);
+        span.setSample(true);
+        return span;
+    }
+
     //构件rootSpan,是否采样
     public Span newSpan(String spanname, Endpoint endpoint, String serviceId) {
-        boolean s = isSample();
+        boolean s = isSample(serviceId, spanname);
         Span span = new Span();
         span.setTraceId(s ? genTracerId() : null);
         span.setId(s ? genSpanId() : null);
@@ -82,6 +148,29 @@ public class Tracer {
         return new Endpoint();
     }
 
+    /**
+     * 按本地地址缓存的Endpoint，同一地址的span共用一个实例，调用方不能修改
+     * ip格式与RpcContext.getLocalAddressString()一致
+     */
+    public Endpoint getEndpoint(InetSocketAddress address) {
+        Endpoint endpoint = endpoints.get(address);
+        if (endpoint == null) {
+            if (endpoints.size() >= MAX_ENDPOINTS) {//消费端本地端口随连接变化，防止无限增长
+                endpoints.clear();
+            }
+            String host = address.getAddress() == null ? address.getHostName()
+                    : NetUtils.filterLocalHost(address.getAddress().getHostAddress());
+            endpoint = newEndPoint();
+            endpoint.setIp(host + ":" + address.getPort());
+            endpoint.setPort(address.getPort());
+            Endpoint old = endpoints.putIfAbsent(address, endpoint);
+            if (old != null) {
+                endpoint = old;
+            }
+        }
+        return endpoint;
+    }
+
     private static class  TraceHolder{
         static Tracer instance=new Tracer();
     }
@@ -89,11 +178,28 @@ public class Tracer {
        return TraceHolder.instance;
     }
 
+    //启动后台消息发送线程，只有第一次调用生效
     public void start() throws Exception {
-        transfer.start();
+        if (!started.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            transfer.start();
+        } catch (Exception e) {
+            started.set(false);
+            throw e;
+        }
     }
 
-    //启动后台消息发送线程
+    //发送线程已由HydraBootstrap停止，之后可以用新的transfer重新start
+    void stop() {
+        started.set(false);
+    }
+
+    /**
+     * @deprecated 由HydraBootstrap启动时调用一次，不需要在请求中调用
+     */
+    @Deprecated
     public static void startTraceWork() {
         try {
             getTracer().start();
@@ -103,54 +209,119 @@ public class Tracer {
     }
 
 
+    //只统计注册完成后的采样决定，得到的比例即实际生效的采样率
     public boolean isSample() {
-        return sampler.isSample() && (transfer != null && transfer.isReady());
+        if (transfer == null || !transfer.isReady()) {
+            return false;
+        }
+        boolean s = sampler.isSample();
+        metrics.onSampleDecision(s);
+        return s;
+    }
+
+    public boolean isSample(String serviceId, String method) {
+        if (transfer == null || !transfer.isReady()) {
+            return false;
+        }
+        boolean s = sampler.isSample(serviceId, method);
+        metrics.onSampleDecision(s);
+        return s;
+    }
+
+    public Sampler getSampler() {
+        return sampler;
+    }
+
+    public void setSampler(Sampler sampler) {
+        this.sampler = sampler;
     }
 
     public void addBinaryAnntation(BinaryAnnotation b) {
-        Span span = spanThreadLocal.get();
-        if (span != null) {
+        Span span = contextStorage.get();
+        if (span != null && span.isSample()) {
             span.addBinaryAnnotation(b);
         }
     }
 
+    //构件cs annotation，时间精确到us
+    public void clientSendRecord(Span span, Endpoint endpoint) {
+        span.recordStart(true, endpoint);
+        track(span);
+    }
+
+    //构件cr annotation，时间精确到us
+    public void clientReceiveRecord(Span span, Endpoint endpoint) {
+        if (!untrack(span)) {
+            return;
+        }
+        span.recordEnd();
+        transfer.syncSend(span);
+    }
+
+    //构件sr annotation，时间精确到us
+    public void serverReceiveRecord(Span span, Endpoint endpoint) {
+        span.recordStart(false, endpoint);
+        track(span);
+        contextStorage.swap(span);
+        LocalSpan.current().bind(span);
+    }
+
+    //构件ss annotation，时间精确到us，期间记录的本地span一起发送
+    public void serverSendRecord(Span span, Endpoint endpoint) {
+        if (!untrack(span)) {
+            return;
+        }
+        span.recordEnd();
+        LocalSpan.current().flush(span, endpoint);
+        transfer.syncSend(span);
+    }
+
     //构件cs annotation
     public void clientSendRecord(Span span, Endpoint endpoint, long start) {
-        Annotation annotation = new Annotation();
-        annotation.setValue(Annotation.CLIENT_SEND);
-        annotation.setTimestamp(start);
-        annotation.setHost(endpoint);
-        span.addAnnotation(annotation);
+        span.recordStart(true, start, endpoint);
+        track(span);
     }
 
 
     //构件cr annotation
     public void clientReceiveRecord(Span span, Endpoint endpoint, long end) {
-        Annotation annotation = new Annotation();
-        annotation.setValue(Annotation.CLIENT_RECEIVE);
-        annotation.setHost(endpoint);
-        annotation.setTimestamp(end);
-        span.addAnnotation(annotation);
+        if (!untrack(span)) {
+            return;
+        }
+        span.recordEnd(end);
         transfer.syncSend(span);
     }
 
     //构件sr annotation
     public void serverReceiveRecord(Span span, Endpoint endpoint, long start) {
-        Annotation annotation = new Annotation();
-        annotation.setValue(Annotation.SERVER_RECEIVE);
-        annotation.setHost(endpoint);
-        annotation.setTimestamp(start);
-        span.addAnnotation(annotation);
-        spanThreadLocal.set(span);
+        span.recordStart(false, start, endpoint);
+        track(span);
+        contextStorage.swap(span);
+        LocalSpan.current().bind(span);
     }
 
     //构件 ss annotation
     public void serverSendRecord(Span span, Endpoint endpoint, long end) {
-        Annotation annotation = new Annotation();
-        annotation.setTimestamp(end);
-        annotation.setHost(endpoint);
-        annotation.setValue(Annotation.SERVER_SEND);
-        span.addAnnotation(annotation);
+        if (!untrack(span)) {
+            return;
+        }
+        span.recordEnd(end);
+        LocalSpan.current().flush(span, endpoint);
+        transfer.syncSend(span);
+    }
+
+    private void track(Span span) {
+        if (spanTimeouts != null) {
+            spanTimeouts.add(span);
+        }
+    }
+
+    //span已超时并作为未完成发送过时返回false
+    private boolean untrack(Span span) {
+        return spanTimeouts == null || spanTimeouts.finish(span);
+    }
+
+    void send(Span span) {
         transfer.syncSend(span);
     }
 
@@ -170,6 +341,19 @@ public class Tracer {
         return transfer.getSpanId();
     }
 
+    public ContextStorage getContextStorage() {
+        return contextStorage;
+    }
+
+    //只在启动前设置，已经放入原实现的span不会迁移
+    public void setContextStorage(ContextStorage contextStorage) {
+        this.contextStorage = contextStorage;
+    }
+
+    public void setSpanTimeouts(SpanTimeoutWheel spanTimeouts) {
+        this.spanTimeouts = spanTimeouts;
+    }
+
     public void setTraceService(TraceService traceService) {
         this.traceService = traceService;
     }
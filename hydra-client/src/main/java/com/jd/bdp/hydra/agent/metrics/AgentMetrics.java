@@ -0,0 +1,357 @@
+package com.jd.bdp.hydra.agent.metrics;
+
+import com.alibaba.dubbo.common.utils.NamedThreadFactory;
+import com.jd.bdp.hydra.agent.support.DefaultSyncTransfer;
+import com.jd.bdp.hydra.agent.support.TraceService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Date: 26-10-17
+ * agent自身的指标(单例)：发送队列、入队/丢弃/发送的span数、批次大小、push耗时、注册状态、实际采样比例。
+ * 业务线程上的计数用StripedCounter，不增加线程间争用；队列、在途数等从transfer、traceService现取。
+ * start时注册为JMX MBean，配置了reporter时按reportInterval定时输出
+ */
+public class AgentMetrics implements AgentMetricsMBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(AgentMetrics.class);
+
+    public static final String OBJECT_NAME = "com.jd.bdp.hydra:type=AgentMetrics";
+
+    private final StripedCounter enqueued = new StripedCounter();
+    private final StripedCounter queueFull = new StripedCounter();
+    private final StripedCounter decisions = new StripedCounter();
+    private final StripedCounter sampled = new StripedCounter();
+    private final StripedCounter sent = new StripedCounter();
+    private final StripedCounter dropped = new StripedCounter();
+    private final StripedCounter retried = new StripedCounter();
+    private final StripedCounter spilled = new StripedCounter();
+    private final StripedCounter replayed = new StripedCounter();
+    private final StripedCounter transferErrors = new StripedCounter();
+    private final StripedCounter incomplete = new StripedCounter();
+    private final Histogram batchSizes = new Histogram();
+    private final Histogram pushLatency = new Histogram();
+
+    private DefaultSyncTransfer transfer;
+    private TraceService traceService;
+    private List<MetricsReporter> reporters = new ArrayList<MetricsReporter>();
+    private long reportInterval = 60000L;
+    private ScheduledExecutorService reportExecutor;
+    private ObjectName objectName;
+
+    private static class MetricsHolder {
+        static AgentMetrics instance = new AgentMetrics();
+    }
+
+    public static AgentMetrics getInstance() {
+        return MetricsHolder.instance;
+    }
+
+    //正常使用getInstance，单独创建只用于测试
+    public AgentMetrics() {
+    }
+
+    public synchronized void start() {
+        if (objectName == null) {
+            try {
+                MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                ObjectName name = new ObjectName(OBJECT_NAME);
+                if (!server.isRegistered(name)) {
+                    server.registerMBean(this, name);
+                    objectName = name;
+                }
+            } catch (Exception e) {
+                logger.warn("[Hydra] register agent metrics mbean failure", e);
+            }
+        }
+        if (reportExecutor == null && !reporters.isEmpty() && reportInterval > 0) {
+            reportExecutor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("HydraMetricsReporter", true));
+            reportExecutor.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    report();
+                }
+            }, reportInterval, reportInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public synchronized void stop() {
+        if (reportExecutor != null) {
+            reportExecutor.shutdown();
+            reportExecutor = null;
+        }
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (Exception e) {
+                logger.warn("[Hydra] unregister agent metrics mbean failure", e);
+            }
+            objectName = null;
+        }
+    }
+
+    void report() {
+        Map<String, Object> metrics = snapshot();
+        for (MetricsReporter reporter : reporters) {
+            try {
+                reporter.report(metrics);
+            } catch (Exception e) {
+                logger.warn("[Hydra] metrics reporter failure", e);
+            }
+        }
+    }
+
+    public Map<String, Object> snapshot() {
+        Map<String, Object> m = new LinkedHashMap<String, Object>();
+        m.put("QueueSize", getQueueSize());
+        m.put("QueueCapacity", getQueueCapacity());
+        m.put("EnqueuedCount", getEnqueuedCount());
+        m.put("QueueFullCount", getQueueFullCount());
+        m.put("SentCount", getSentCount());
+        m.put("DropCount", getDropCount());
+        m.put("RetryCount", getRetryCount());
+        m.put("SpillCount", getSpillCount());
+        m.put("ReplayCount", getReplayCount());
+        m.put("InFlightCount", getInFlightCount());
+        m.put("TransferErrorCount", getTransferErrorCount());
+        m.put("IncompleteCount", getIncompleteCount());
+        m.put("BatchCount", getBatchCount());
+        m.put("BatchSizeMean", getBatchSizeMean());
+        m.put("BatchSizeMax", getBatchSizeMax());
+        m.put("PushLatencyP50", getPushLatencyP50());
+        m.put("PushLatencyP99", getPushLatencyP99());
+        m.put("PushLatencyP999", getPushLatencyP999());
+        m.put("PushLatencyMax", getPushLatencyMax());
+        m.put("Registered", isRegistered());
+        m.put("RegisteredServiceCount", getRegisteredServiceCount());
+        m.put("UnregisteredServiceCount", getUnregisteredServiceCount());
+        m.put("SampleDecisionCount", getSampleDecisionCount());
+        m.put("SampledCount", getSampledCount());
+        m.put("SampleRatio", getSampleRatio());
+        return m;
+    }
+
+    //---------------------------记录-------------------------------
+
+    public void onEnqueue() {
+        enqueued.increment();
+    }
+
+    public void onQueueFull() {
+        queueFull.increment();
+    }
+
+    public void onSampleDecision(boolean isSample) {
+        decisions.increment();
+        if (isSample) {
+            sampled.increment();
+        }
+    }
+
+    //一批span交给发送途径
+    public void onBatch(int size) {
+        batchSizes.record(size);
+    }
+
+    //一次push完成(成功或失败)的耗时
+    public void onPush(long nanos) {
+        pushLatency.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    public void onSent(int spans) {
+        sent.add(spans);
+    }
+
+    public void onDropped(int spans) {
+        dropped.add(spans);
+    }
+
+    //一批失败后重试
+    public void onRetry() {
+        retried.increment();
+    }
+
+    //落盘到磁盘日志的span数
+    public void onSpilled(int spans) {
+        spilled.add(spans);
+    }
+
+    //从磁盘日志回放的span数
+    public void onReplayed(int spans) {
+        replayed.add(spans);
+    }
+
+    public void onTransferError() {
+        transferErrors.increment();
+    }
+
+    public void onIncomplete() {
+        incomplete.increment();
+    }
+
+    //---------------------------读取-------------------------------
+
+    @Override
+    public int getQueueSize() {
+        return transfer == null ? 0 : transfer.getQueueSize();
+    }
+
+    @Override
+    public int getQueueCapacity() {
+        return transfer == null ? 0 : transfer.getQueueCapacity();
+    }
+
+    @Override
+    public long getEnqueuedCount() {
+        return enqueued.sum();
+    }
+
+    @Override
+    public long getQueueFullCount() {
+        return queueFull.sum();
+    }
+
+    @Override
+    public long getSentCount() {
+        return sent.sum();
+    }
+
+    @Override
+    public long getDropCount() {
+        return dropped.sum();
+    }
+
+    @Override
+    public long getRetryCount() {
+        return retried.sum();
+    }
+
+    @Override
+    public long getSpillCount() {
+        return spilled.sum();
+    }
+
+    @Override
+    public long getReplayCount() {
+        return replayed.sum();
+    }
+
+    @Override
+    public int getInFlightCount() {
+        return traceService == null ? 0 : traceService.getInFlightCount();
+    }
+
+    @Override
+    public long getTransferErrorCount() {
+        return transferErrors.sum();
+    }
+
+    @Override
+    public long getIncompleteCount() {
+        return incomplete.sum();
+    }
+
+    @Override
+    public long getBatchCount() {
+        return batchSizes.getCount();
+    }
+
+    @Override
+    public double getBatchSizeMean() {
+        return batchSizes.getMean();
+    }
+
+    @Override
+    public long getBatchSizeMax() {
+        return batchSizes.getMax();
+    }
+
+    @Override
+    public long getPushLatencyP50() {
+        return pushLatency.getValueAtPercentile(50);
+    }
+
+    @Override
+    public long getPushLatencyP99() {
+        return pushLatency.getValueAtPercentile(99);
+    }
+
+    @Override
+    public long getPushLatencyP999() {
+        return pushLatency.getValueAtPercentile(99.9);
+    }
+
+    @Override
+    public long getPushLatencyMax() {
+        return pushLatency.getMax();
+    }
+
+    @Override
+    public boolean isRegistered() {
+        return transfer != null && transfer.isReady();
+    }
+
+    @Override
+    public int getRegisteredServiceCount() {
+        return transfer == null ? 0 : transfer.getServiceCount(true);
+    }
+
+    @Override
+    public int getUnregisteredServiceCount() {
+        return transfer == null ? 0 : transfer.getServiceCount(false);
+    }
+
+    @Override
+    public long getSampleDecisionCount() {
+        return decisions.sum();
+    }
+
+    @Override
+    public long getSampledCount() {
+        return sampled.sum();
+    }
+
+    @Override
+    public double getSampleRatio() {
+        long d = decisions.sum();
+        return d == 0 ? 0 : (double) sampled.sum() / d;
+    }
+
+    //---------------------------配置-------------------------------
+
+    public void setTransfer(DefaultSyncTransfer transfer) {
+        this.transfer = transfer;
+    }
+
+    public void setTraceService(TraceService traceService) {
+        this.traceService = traceService;
+    }
+
+    public List<MetricsReporter> getReporters() {
+        return reporters;
+    }
+
+    public void setReporters(List<MetricsReporter> reporters) {
+        this.reporters = reporters;
+    }
+
+    public long getReportInterval() {
+        return reportInterval;
+    }
+
+    //输出间隔(ms)，start前设置
+    public void setReportInterval(long reportInterval) {
+        this.reportInterval = reportInterval;
+    }
+}
@@ -0,0 +1,67 @@
+package com.jd.bdp.hydra.agent.metrics;
+
+/**
+ * Date: 26-10-17
+ * agent自身指标的JMX接口，ObjectName为com.jd.bdp.hydra:type=AgentMetrics
+ * 计数均为启动以来的累计值，耗时单位为us
+ */
+public interface AgentMetricsMBean {
+
+    //发送队列
+    int getQueueSize();
+
+    int getQueueCapacity();
+
+    long getEnqueuedCount();
+
+    //队列满被丢弃的span数
+    long getQueueFullCount();
+
+    //发送
+    long getSentCount();
+
+    //发送失败、重试耗尽后丢弃的span数
+    long getDropCount();
+
+    long getRetryCount();
+
+    long getSpillCount();
+
+    long getReplayCount();
+
+    int getInFlightCount();
+
+    long getTransferErrorCount();
+
+    //超时作为未完成发送的span数
+    long getIncompleteCount();
+
+    //批次
+    long getBatchCount();
+
+    double getBatchSizeMean();
+
+    long getBatchSizeMax();
+
+    long getPushLatencyP50();
+
+    long getPushLatencyP99();
+
+    long getPushLatencyP999();
+
+    long getPushLatencyMax();
+
+    //注册
+    boolean isRegistered();
+
+    int getRegisteredServiceCount();
+
+    int getUnregisteredServiceCount();
+
+    //采样
+    long getSampleDecisionCount();
+
+    long getSampledCount();
+
+    double getSampleRatio();
+}
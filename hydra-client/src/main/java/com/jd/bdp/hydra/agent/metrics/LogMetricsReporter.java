@@ -0,0 +1,20 @@
+package com.jd.bdp.hydra.agent.metrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+
+/**
+ * Date: 26-10-17
+ * 把指标输出到日志，每次一行
+ */
+public class LogMetricsReporter implements MetricsReporter {
+
+    private static final Logger logger = LoggerFactory.getLogger(LogMetricsReporter.class);
+
+    @Override
+    public void report(Map<String, Object> metrics) {
+        logger.info("[Hydra] agent metrics " + metrics);
+    }
+}
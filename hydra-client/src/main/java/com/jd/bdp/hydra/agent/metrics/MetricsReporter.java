@@ -0,0 +1,15 @@
+package com.jd.bdp.hydra.agent.metrics;
+
+import java.util.Map;
+
+/**
+ * Date: 26-10-17
+ * 定时输出agent指标，由AgentMetrics按reportInterval调用，实现可以写日志或推送到监控系统
+ */
+public interface MetricsReporter {
+
+    /**
+     * @param metrics 指标名(与AgentMetricsMBean的属性名一致) -> 值，按固定顺序
+     */
+    void report(Map<String, Object> metrics);
+}
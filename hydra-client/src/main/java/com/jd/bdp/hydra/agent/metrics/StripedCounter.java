@@ -0,0 +1,49 @@
+package com.jd.bdp.hydra.agent.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Date: 26-10-17
+ * 分段计数器(同jdk8的LongAdder)：按线程id散列到不同的槽，各槽独占一个缓存行，
+ * 多个业务线程同时计数时互不争用；读取时把各槽相加，不保证是某一时刻的精确值
+ */
+public class StripedCounter {
+
+    //槽数：不小于cpu数的2倍的2的幂，最多64
+    private static final int STRIPES;
+    //每个槽占8个long(64字节)，避免伪共享
+    private static final int PAD = 8;
+
+    static {
+        int n = 1;
+        int want = Math.min(64, Runtime.getRuntime().availableProcessors() * 2);
+        while (n < want) {
+            n <<= 1;
+        }
+        STRIPES = n;
+    }
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PAD);
+
+    public void increment() {
+        add(1);
+    }
+
+    public void add(long x) {
+        cells.getAndAdd(index(), x);
+    }
+
+    public long sum() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += cells.get(i * PAD);
+        }
+        return sum;
+    }
+
+    private static int index() {
+        long id = Thread.currentThread().getId();
+        int h = (int) (id * 0x9E3779B97F4A7C15L >>> 32);//线程id通常连续，打散后取低位
+        return (h & (STRIPES - 1)) * PAD;
+    }
+}
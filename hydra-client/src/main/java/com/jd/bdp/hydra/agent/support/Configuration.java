@@ -11,9 +11,11 @@ public class Configuration {
 
     private String applicationName;
     private List<String> services;
-    private Long delayTime; //保留字段，延迟多久发送一批到收集端
-    private Long flushSize;//保留字段，一批发送多少条消息到收集端
+    private Long delayTime; //延迟多久发送一批到收集端(ms)，从一批的第一条span算起
+    private Long flushSize;//一批发送多少条消息到收集端
+    private Long batchBytes;//一批发送的最大字节数(估算值)
     private Integer queueSize;//缓冲队列大小，可以访问量设置。
+    private Integer nodeId;//id生成器的节点号(0~1023)，不配置时用leader下发的seed，没有seed时随机生成
 
     public String getApplicationName() {
         return applicationName;
@@ -54,6 +56,14 @@ public class Configuration {
         this.flushSize = flushSize;
     }
 
+    public Long getBatchBytes() {
+        return batchBytes;
+    }
+
+    public void setBatchBytes(Long batchBytes) {
+        this.batchBytes = batchBytes;
+    }
+
     public Integer getQueueSize() {
         return queueSize;
     }
@@ -61,4 +71,12 @@ public class Configuration {
     public void setQueueSize(Integer queueSize) {
         this.queueSize = queueSize;
     }
+
+    public Integer getNodeId() {
+        return nodeId;
+    }
+
+    public void setNodeId(Integer nodeId) {
+        this.nodeId = nodeId;
+    }
 }
@@ -2,6 +2,7 @@ package com.jd.bdp.hydra.agent.support;
 
 import com.jd.bdp.hydra.Span;
 import com.jd.bdp.hydra.agent.SyncTransfer;
+import com.jd.bdp.hydra.agent.metrics.AgentMetrics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -9,6 +10,7 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.*;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Date: 13-3-19
@@ -19,18 +21,26 @@ public class DefaultSyncTransfer implements SyncTransfer {
 
     private static Logger logger = LoggerFactory.getLogger(DefaultSyncTransfer.class);
 
-    private ArrayBlockingQueue<Span> queue;
+    //空闲时消费线程最长挂起时间
+    private static final long MAX_IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    //cancel时等待发送线程发完剩余span的最长时间(ms)
+    private static final long CANCEL_TIMEOUT = 5000;
+
+    private MpscRingBuffer<Span> queue;
 
     private ScheduledExecutorService executors = null;
     private List<Span> spansCache;
 
 
     //serviceName isReady
-    private volatile boolean isReady = false; //是否获得种子等全局注册信息
+    private volatile boolean isReady = false; //是否获得全局注册信息
 
     private ConcurrentHashMap<String, Boolean> isServiceReady = new ConcurrentHashMap<String, Boolean>();
 
-    private GenerateTraceId generateTraceId = new GenerateTraceId(0L);
+    //traceId和spanId各用一个生成器，互不争用；没有配置节点号时先随机生成，注册后改用leader下发的seed
+    private final Integer nodeId;
+    private volatile GenerateTraceId traceIds;
+    private volatile GenerateTraceId spanIds;
 
     private TraceService traceService;
 
@@ -38,8 +48,12 @@ public class DefaultSyncTransfer implements SyncTransfer {
 
     private Long waitTime;
 
+    private Long batchBytes;
+
     private TransferTask task;
 
+    private final AgentMetrics metrics = AgentMetrics.getInstance();
+
 
     @Override
     public void setTraceService(TraceService traceService) {
@@ -49,7 +63,16 @@ public class DefaultSyncTransfer implements SyncTransfer {
     public DefaultSyncTransfer(Configuration c) {
         this.flushSize = c.getFlushSize() == null ? 1024L : c.getFlushSize();
         this.waitTime = c.getDelayTime() == null ? 60000L : c.getDelayTime();
-        this.queue = new ArrayBlockingQueue<Span>(c.getQueueSize());
+        this.batchBytes = c.getBatchBytes() == null ? 4L * 1024 * 1024 : c.getBatchBytes();
+        this.queue = new MpscRingBuffer<Span>(c.getQueueSize());
+        this.nodeId = c.getNodeId();
+        if (nodeId != null) {
+            this.traceIds = new GenerateTraceId(nodeId);
+            this.spanIds = new GenerateTraceId(nodeId);
+        } else {
+            this.traceIds = new GenerateTraceId();
+            this.spanIds = new GenerateTraceId();
+        }
         this.spansCache = new ArrayList<Span>();
         this.executors = Executors.newSingleThreadScheduledExecutor();
         this.task = new TransferTask();
@@ -62,19 +85,33 @@ public class DefaultSyncTransfer implements SyncTransfer {
     }
 
     private class TransferTask extends Thread {
+        private final long delayNanos = TimeUnit.MILLISECONDS.toNanos(waitTime);
+        private long batchStart;//当前批次第一条span入批的时间
+        private long batchSize;//当前批次估算的字节数
+        private Span carry;//超出字节上限、留给下一批的span
+
         TransferTask() {
             this.setName("TransferTask-Thread");
         }
 
         @Override
         public void run() {
-            for (; ; ) {
+            try {
+                loop();
+            } finally {
+                drain();
+            }
+        }
+
+        private void loop() {
+            int idle = 0;
+            while (!isInterrupted()) {//cancel后退出
                 try {
                     if (!isReady()) {//重试直到注册成功
-                        //全局信息网络注册，输入流：应用名 @ 输出流：包含种子的Map对象
+                        //全局信息网络注册，输入流：应用名 @ 输出流：注册信息的Map对象
                         boolean r = traceService.registerService(appName(), new ArrayList<String>());
                         if (r) {
-                            generateTraceId = new GenerateTraceId(traceService.getSeed());
+                            initIdGenerator();
                             isReady = true;
                         } else {
                             synchronized (this) {
@@ -93,21 +130,105 @@ public class DefaultSyncTransfer implements SyncTransfer {
                                 }
                             }
                             //-----------------------------
-                            Span first = queue.take();
-                            spansCache.add(first);
-                            queue.drainTo(spansCache);
-                            traceService.sendSpan(spansCache);
-                            spansCache.clear();
+                            if (fill()) {
+                                idle = 0;
+                                metrics.onBatch(spansCache.size());
+                                //异步发送，发出的批次不能复用
+                                send(spansCache);
+                                spansCache = new ArrayList<Span>();
+                                batchSize = 0;
+                            } else {
+                                idle = idle(idle);
+                            }
                         }
                     }
 
+                } catch (InterruptedException e) {
+                    return;
                 } catch (Throwable e) {
-                    e.printStackTrace();
-                    logger.info(e.getMessage());
+                    metrics.onTransferError();
+                    logger.error("[Hydra] transfer task failure", e);
+                }
+            }
+        }
+
+        //退出前把缓存中的批次、carry及队列里剩余的span按批发出
+        private void drain() {
+            Thread.interrupted();//清除中断标志，发送时不会因中断直接丢弃
+            try {
+                for (; ; ) {
+                    fill();
+                    if (spansCache.isEmpty()) {
+                        break;
+                    }
+                    metrics.onBatch(spansCache.size());
+                    send(spansCache);
+                    spansCache = new ArrayList<Span>();
+                    batchSize = 0;
+                }
+            } catch (Throwable e) {
+                logger.error("[Hydra] transfer task flush failure on cancel", e);
+            }
+        }
+
+        //攒批：条数达到flushSize、字节数达到batchBytes或距第一条入批超过delayTime，三者先到先发，返回是否可以发送
+        private boolean fill() {
+            Span span;
+            while (spansCache.size() < flushSize && batchSize < batchBytes) {
+                if (carry != null) {
+                    span = carry;
+                    carry = null;
+                } else if ((span = queue.poll()) == null) {
+                    break;
                 }
+                long size = TracerUtils.estimateSize(span);
+                if (spansCache.isEmpty()) {
+                    batchStart = System.nanoTime();
+                } else if (batchSize + size > batchBytes) {
+                    carry = span;
+                    return true;
+                }
+                spansCache.add(span);
+                batchSize += size;
+            }
+            if (spansCache.isEmpty()) {
+                return false;
             }
+            return spansCache.size() >= flushSize || batchSize >= batchBytes
+                    || System.nanoTime() - batchStart >= delayNanos;
         }
 
+        //队列为空时先自旋、让出CPU，再逐步加长挂起时间，生产者入队时不需要唤醒消费线程
+        private int idle(int idle) {
+            if (idle < 64) {
+                Thread.yield();
+            } else {
+                long nanos = TimeUnit.MICROSECONDS.toNanos(100) << Math.min(idle - 64, 7);
+                LockSupport.parkNanos(Math.min(nanos, MAX_IDLE_PARK_NANOS));
+            }
+            return idle < Integer.MAX_VALUE ? idle + 1 : idle;
+        }
+
+    }
+
+    //没有配置节点号时用leader下发的seed作节点号，没有seed时继续随机生成
+    private void initIdGenerator() {
+        if (nodeId != null) {
+            return;
+        }
+        Long seed = traceService.getSeed();
+        if (seed == null) {
+            logger.warn("[Hydra] no nodeId or seed, generate random trace ids");
+            return;
+        }
+        traceIds = new GenerateTraceId(seed);
+        spanIds = new GenerateTraceId(seed);
+        logger.info("[Hydra] id generator node : " + traceIds.getNode() + " (seed " + seed + ")");
+    }
+
+    //发送攒好的一批span，子类可以改为其他途径
+    protected void send(List<Span> spanList) {
+        traceService.sendSpan(spanList);
     }
 
     @Override
@@ -125,13 +246,33 @@ public class DefaultSyncTransfer implements SyncTransfer {
 
     @Override
     public void syncSend(Span span) {
-        try {
-            queue.add(span);
-        } catch (Exception e) {
-            logger.info(" span : ignore ..");
+        //队列满时直接丢弃，只计数不打日志，避免在业务线程上放大压力
+        if (queue.offer(span)) {
+            metrics.onEnqueue();
+        } else {
+            metrics.onQueueFull();
         }
     }
 
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    public int getQueueCapacity() {
+        return queue.capacity();
+    }
+
+    //registered为true时返回已注册的服务数，否则返回等待注册的服务数
+    public int getServiceCount(boolean registered) {
+        int n = 0;
+        for (Boolean r : isServiceReady.values()) {
+            if (r == registered) {
+                n++;
+            }
+        }
+        return n;
+    }
+
     @Override
     public void start() throws Exception {
         if (traceService != null && !task.isAlive()) {
@@ -146,8 +287,16 @@ public class DefaultSyncTransfer implements SyncTransfer {
         }
     }
 
+    //停止发送线程，等待它把未发出的span发完
     public void cancel() {
         task.interrupt();
+        if (task.isAlive() && Thread.currentThread() != task) {
+            try {
+                task.join(CANCEL_TIMEOUT);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
     }
 
     @Override
@@ -163,10 +312,10 @@ public class DefaultSyncTransfer implements SyncTransfer {
 
     @Override
     public Long getTraceId() {
-        return generateTraceId.getTraceId();
+        return traceIds.getTraceId();
     }
     @Override
     public Long getSpanId() {
-        return generateTraceId.getTraceId();
+        return spanIds.getTraceId();
     }
 }
@@ -3,33 +3,69 @@ package com.jd.bdp.hydra.agent.support;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Date: 13-3-27
  * Time: 下午6:02
+ * 本地生成64位id
+ * 有节点号时格式为：[1位符号0][41位时间戳(ms，从EPOCH起)][14位节点][8位序列]
+ * 同一节点内id严格递增不重复；每ms超过256个时向后借用时间戳，时钟回拨时沿用上次的时间戳
+ * 节点号取配置的nodeId，或注册时leader下发的seed(按注册顺序递增)的低14位；
+ * 都没有时用随机的63位正数，不按本机信息哈希节点号(哈希在上百个agent时几乎必然冲突)
+ * 唯一性只在节点号不同的agent之间有保证：seed相差16384整数倍的两个agent同时在线时共用节点号，
+ * 同一ms的id可能重复，这时只是概率上不冲突。长期运行的集群应配置nodeId
  */
 public class GenerateTraceId {
     private static Logger logger = LoggerFactory.getLogger(GenerateTraceId.class);
-    private Long seed;
-    private Long MAX_STEP = 0xffffffL;
-    private AtomicLong plusId = new AtomicLong(0L);
-    private AtomicLong index = new AtomicLong(0L);
 
-    public GenerateTraceId(Long seed) {
-        this.seed = seed;
-    }
+    //2013-01-01 00:00:00 UTC
+    static final long EPOCH = 1356998400000L;
+    static final int NODE_BITS = 14;
+    static final int SEQUENCE_BITS = 8;
+    static final long MAX_NODE = (1L << NODE_BITS) - 1;
 
-    public Long getTraceId() {
-        return (seed << 40) | getPlusId();
+    //随机生成时为-1
+    private final long node;
+    //(时间戳 << SEQUENCE_BITS) | 序列
+    private final AtomicLong last = new AtomicLong(0L);
+
+    //没有节点号，生成随机id
+    public GenerateTraceId() {
+        this.node = -1;
     }
 
+    public GenerateTraceId(long node) {
+        this.node = node & MAX_NODE;
+    }
 
-    private long getPlusId() {
-        if (plusId.get() >= MAX_STEP) {
-            plusId.set(0L);
+    public Long getTraceId() {
+        if (node < 0) {
+            long id;
+            do {
+                id = ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE;
+            } while (id == 0);
+            return id;
         }
-        return plusId.incrementAndGet();
+        long now = (System.currentTimeMillis() - EPOCH) << SEQUENCE_BITS;
+        for (; ; ) {
+            long prev = last.get();
+            long next = now > prev ? now : prev + 1;
+            if (last.compareAndSet(prev, next)) {
+                return ((next >>> SEQUENCE_BITS) << (NODE_BITS + SEQUENCE_BITS))
+                        | (node << SEQUENCE_BITS)
+                        | (next & ((1L << SEQUENCE_BITS) - 1));
+            }
+        }
+    }
+
+    //节点号，随机生成时为-1
+    public long getNode() {
+        return node;
     }
 
+    public boolean isRandom() {
+        return node < 0;
+    }
 }
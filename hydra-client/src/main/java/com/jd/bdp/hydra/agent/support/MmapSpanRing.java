@@ -0,0 +1,201 @@
+package com.jd.bdp.hydra.agent.support;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Date: 26-10-17
+ * 内存映射文件上的单生产者、单消费者环形缓冲区，用于业务进程与本机sidecar进程之间传递span批次。
+ * 两端各自只写自己的位置(写位置/读位置)，不加锁，跨进程也成立。
+ * <pre>
+ * 文件头：magic(4) version(4) capacity(4) ... 写位置(long, 偏移64) ... 读位置(long, 偏移128)
+ * 数据区(偏移192)：{len(4) bytes 补齐到4字节}...，放不下时写入WRAP标记回到数据区开头
+ * </pre>
+ * 位置只增不减，对capacity取模得到数据区下标。先写数据再发布位置，中间有内存屏障，
+ * 对端读到新位置时数据一定完整；进程崩溃时未发布的记录直接丢弃，不会读到半条
+ */
+public class MmapSpanRing {
+
+    private static final int MAGIC = 0x48595247;//HYRG
+    private static final int VERSION = 1;
+    private static final int CAPACITY_OFFSET = 8;
+    //读写位置各占一个缓存行
+    private static final int WRITE_OFFSET = 64;
+    private static final int READ_OFFSET = 128;
+    private static final int DATA_OFFSET = 192;
+    private static final int WRAP = -1;
+
+    //volatile写+读相当于一次完整的内存屏障，映射内存的读写不会越过它重排
+    private static volatile int fence;
+
+    private final File file;
+    private final int capacity;
+    private final MappedByteBuffer buffer;
+    //生产者、消费者各用一个视图，position互不影响
+    private final ByteBuffer writer;
+    private final ByteBuffer reader;
+    private long writePos;
+    private long readPos;
+
+    /**
+     * 业务进程以写方式打开，文件不存在时创建；已存在时沿用其中的数据和容量
+     *
+     * @param capacity 数据区字节数
+     */
+    public MmapSpanRing(String path, int capacity) throws IOException {
+        this(new File(path), capacity, true);
+    }
+
+    /**
+     * sidecar以读方式打开已有的环，文件头不完整(写端还在创建)时抛IOException
+     */
+    public static MmapSpanRing open(String path) throws IOException {
+        return new MmapSpanRing(new File(path), 0, false);
+    }
+
+    private MmapSpanRing(File file, int capacity, boolean create) throws IOException {
+        this.file = file;
+        boolean exists = file.exists() && file.length() > DATA_OFFSET;
+        if (!exists && !create) {
+            throw new IOException("span ring not found : " + file);
+        }
+        if (!exists) {
+            if (capacity <= 0 || capacity % 8 != 0) {
+                throw new IllegalArgumentException("span ring capacity must be a positive multiple of 8 : " + capacity);
+            }
+            File dir = file.getAbsoluteFile().getParentFile();
+            if (dir != null && !dir.exists() && !dir.mkdirs()) {
+                throw new IOException("cannot create span ring dir : " + dir);
+            }
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (!exists) {
+                raf.setLength(DATA_OFFSET + capacity);
+            }
+            FileChannel channel = raf.getChannel();
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+        } finally {
+            raf.close();//映射建立后可以关闭文件
+        }
+        if (!exists) {
+            buffer.putInt(4, VERSION);
+            buffer.putInt(CAPACITY_OFFSET, capacity);
+            fence();
+            buffer.putInt(0, MAGIC);//magic最后写，读端据此判断文件头是否完整
+        } else if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            SpanJournal.unmap(buffer);
+            throw new IOException("not a span ring : " + file);
+        }
+        this.capacity = buffer.getInt(CAPACITY_OFFSET);
+        if (this.capacity <= 0 || DATA_OFFSET + (long) this.capacity > buffer.capacity()) {
+            SpanJournal.unmap(buffer);
+            throw new IOException("broken span ring : " + file);
+        }
+        this.writer = buffer.duplicate();
+        this.reader = buffer.duplicate();
+        this.writePos = buffer.getLong(WRITE_OFFSET);
+        this.readPos = buffer.getLong(READ_OFFSET);
+    }
+
+    /**
+     * 写入一条记录，只允许一个线程调用。空间不足时立即返回false，不等待消费端
+     * 单条记录不超过容量的一半，保证回绕时空环一定放得下
+     */
+    public boolean offer(byte[] bytes) {
+        int need = align(4 + bytes.length);
+        if (need > capacity / 2) {
+            return false;
+        }
+        long read = buffer.getLong(READ_OFFSET);
+        fence();//先看到读位置，再覆盖消费端已读走的数据
+        int index = (int) (writePos % capacity);
+        int tailRoom = capacity - index;
+        long total = need <= tailRoom ? need : tailRoom + need;
+        if (writePos + total - read > capacity) {
+            return false;
+        }
+        long write = writePos;
+        if (need > tailRoom) {//数据区尾部放不下，回到开头
+            writer.putInt(DATA_OFFSET + index, WRAP);
+            write += tailRoom;
+            index = 0;
+        }
+        writer.putInt(DATA_OFFSET + index, bytes.length);
+        writer.position(DATA_OFFSET + index + 4);
+        writer.put(bytes);
+        write += need;
+        fence();//数据写完后再发布写位置
+        buffer.putLong(WRITE_OFFSET, write);
+        writePos = write;
+        return true;
+    }
+
+    /**
+     * 取出一条记录，只允许一个线程调用。没有数据时返回null
+     */
+    public byte[] poll() throws IOException {
+        long write = buffer.getLong(WRITE_OFFSET);
+        fence();//先看到写位置，再读数据
+        long read = readPos;
+        try {
+            while (read < write) {
+                int index = (int) (read % capacity);
+                int len = reader.getInt(DATA_OFFSET + index);
+                if (len == WRAP) {
+                    read += capacity - index;
+                    continue;
+                }
+                if (len < 0 || len > capacity - index - 4 || read + align(4 + len) > write) {
+                    read = write;//数据已损坏，丢弃未读部分
+                    throw new IOException("broken span ring : " + file);
+                }
+                byte[] bytes = new byte[len];
+                reader.position(DATA_OFFSET + index + 4);
+                reader.get(bytes);
+                read += align(4 + len);
+                return bytes;
+            }
+            return null;
+        } finally {
+            if (read != readPos) {
+                fence();//数据读完后再发布读位置
+                buffer.putLong(READ_OFFSET, read);
+                readPos = read;
+            }
+        }
+    }
+
+    //未读的字节数(含记录头和对齐)
+    public long pending() {
+        long size = buffer.getLong(WRITE_OFFSET) - buffer.getLong(READ_OFFSET);
+        return size < 0 ? 0 : size;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public void close() {
+        SpanJournal.unmap(buffer);
+    }
+
+    private static int align(int n) {
+        return (n + 3) & ~3;
+    }
+
+    private static void fence() {
+        fence = 0;
+        if (fence != 0) {
+            throw new IllegalStateException();
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package com.jd.bdp.hydra.agent.support;
+
+import com.jd.bdp.hydra.Span;
+import com.jd.bdp.hydra.agent.metrics.AgentMetrics;
+import com.jd.bdp.hydra.codec.SpanCodec;
+
+import java.util.List;
+
+/**
+ * Date: 26-10-17
+ * 攒好的批次编码后写入本机的内存映射环，由hydra-agent-sidecar进程读出并发送到collector，
+ * 业务进程内不再做span的dubbo序列化和网络发送。服务注册仍通过traceService完成
+ */
+public class MmapSyncTransfer extends DefaultSyncTransfer {
+
+    private final MmapSpanRing ring;
+    private final AgentMetrics metrics = AgentMetrics.getInstance();
+
+    public MmapSyncTransfer(Configuration c, MmapSpanRing ring) {
+        super(c);
+        this.ring = ring;
+    }
+
+    //只在发送线程调用，写满时不等待
+    @Override
+    protected void send(List<Span> spanList) {
+        if (ring.offer(SpanCodec.encode(spanList))) {
+            metrics.onSent(spanList.size());
+        } else {//sidecar未启动或处理不过来
+            metrics.onDropped(spanList.size());
+        }
+    }
+
+    public MmapSpanRing getRing() {
+        return ring;
+    }
+
+    //与TraceService相同，从AgentMetrics读取
+    public long getSentCount() {
+        return metrics.getSentCount();
+    }
+
+    public long getDropCount() {
+        return metrics.getDropCount();
+    }
+}
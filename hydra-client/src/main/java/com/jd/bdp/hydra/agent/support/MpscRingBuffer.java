@@ -0,0 +1,118 @@
+package com.jd.bdp.hydra.agent.support;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Date: 26-10-17
+ * 多生产者、单消费者的无锁环形缓冲区(参考Disruptor的序号设计)
+ * 生产者通过CAS抢占写序号，每个槽位记录自身序号用于判断是否可读/可写，
+ * 入队出队均不分配对象，用于替代ArrayBlockingQueue的全局锁
+ */
+public class MpscRingBuffer<E> {
+
+    private final int capacity;
+    private final int mask;
+    private final AtomicReferenceArray<E> buffer;
+    //槽位序号：等于写序号表示可写，等于写序号+1表示已发布可读
+    private final AtomicLongArray sequences;
+    //生产者写序号
+    private final PaddedAtomicLong tail = new PaddedAtomicLong();
+    //消费者读序号，只有消费线程修改
+    private final PaddedAtomicLong head = new PaddedAtomicLong();
+
+    public MpscRingBuffer(int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("ring buffer size must be positive : " + size);
+        }
+        this.capacity = roundToPowerOfTwo(size);
+        this.mask = capacity - 1;
+        this.buffer = new AtomicReferenceArray<E>(capacity);
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    //多线程安全，队列满时立即返回false
+    public boolean offer(E e) {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+        for (; ; ) {
+            long pos = tail.get();
+            int index = (int) (pos & mask);
+            long diff = sequences.get(index) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    buffer.lazySet(index, e);
+                    sequences.lazySet(index, pos + 1);//发布
+                    return true;
+                }
+            } else if (diff < 0) {//消费者还没有读走上一圈的数据
+                return false;
+            }
+            //其他生产者已经抢走该序号，重试
+        }
+    }
+
+    //只允许消费线程调用
+    public E poll() {
+        long pos = head.get();
+        int index = (int) (pos & mask);
+        if (sequences.get(index) != pos + 1) {//为空或生产者还未发布
+            return null;
+        }
+        E e = buffer.get(index);
+        buffer.lazySet(index, null);
+        sequences.lazySet(index, pos + capacity);//下一圈可写
+        head.lazySet(pos + 1);
+        return e;
+    }
+
+    //只允许消费线程调用，一次最多取出max个元素，返回取出的数量
+    public int drainTo(Collection<? super E> c, int max) {
+        int n = 0;
+        while (n < max) {
+            E e = poll();
+            if (e == null) {
+                break;
+            }
+            c.add(e);
+            n++;
+        }
+        return n;
+    }
+
+    public int size() {
+        long size = tail.get() - head.get();
+        if (size < 0) {
+            return 0;
+        }
+        return size > capacity ? capacity : (int) size;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    private static int roundToPowerOfTwo(int size) {
+        int n = 1;
+        while (n < size) {
+            n <<= 1;
+        }
+        return n;
+    }
+
+    //填充缓存行，避免读写序号之间伪共享
+    @SuppressWarnings("unused")
+    private static class PaddedAtomicLong extends AtomicLong {
+        public volatile long p1, p2, p3, p4, p5, p6 = 7L;
+    }
+}
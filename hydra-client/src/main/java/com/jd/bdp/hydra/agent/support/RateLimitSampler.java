@@ -0,0 +1,148 @@
+package com.jd.bdp.hydra.agent.support;
+
+import com.jd.bdp.hydra.agent.Sampler;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Date: 26-10-17
+ * 按服务、方法限速的采样率实现，目标是每秒采样的span数而不是固定比例
+ * 每个服务(可按方法单独配置)一个令牌桶，用GCRA算法实现：
+ * 只保存"理论到达时间"一个AtomicLong，拒绝时只读不写，接受时一次CAS，
+ * 热点服务在高QPS下绝大多数调用走只读路径，无锁且不产生竞争写
+ * 速率可以在运行时通过setRates/setDefaultRate重新加载
+ */
+public class RateLimitSampler implements Sampler {
+
+    //方法级配置的key：serviceId#method
+    public static final String SEPARATOR = "#";
+
+    private volatile int defaultRate = 100;
+    private volatile Map<String, Integer> rates = Collections.emptyMap();
+    private volatile Config config = new Config(defaultRate, rates);
+
+    public RateLimitSampler() {
+    }
+
+    public RateLimitSampler(int defaultRate) {
+        setDefaultRate(defaultRate);
+    }
+
+    public boolean isSample() {
+        return isSample(null, null);
+    }
+
+    public boolean isSample(String serviceId, String method) {
+        Config c = config;
+        Bucket bucket = null;
+        if (serviceId == null) {
+            bucket = c.global;
+        } else {
+            if (method != null && !c.methods.isEmpty()) {
+                Map<String, Bucket> m = c.methods.get(serviceId);
+                if (m != null) {
+                    bucket = m.get(method);
+                }
+            }
+            if (bucket == null) {
+                bucket = c.services.get(serviceId);
+                if (bucket == null) {//未配置的服务使用默认速率
+                    bucket = new Bucket(c.defaultRate);
+                    Bucket old = c.services.putIfAbsent(serviceId, bucket);
+                    if (old != null) {
+                        bucket = old;
+                    }
+                }
+            }
+        }
+        return bucket.tryAcquire(System.nanoTime());
+    }
+
+    public int getDefaultRate() {
+        return defaultRate;
+    }
+
+    //每个服务每秒默认采样数
+    public synchronized void setDefaultRate(int defaultRate) {
+        this.defaultRate = defaultRate;
+        this.config = new Config(defaultRate, rates);
+    }
+
+    public Map<String, Integer> getRates() {
+        return rates;
+    }
+
+    /**
+     * 重新加载速率配置，key为serviceId或serviceId#method，value为每秒采样数
+     */
+    public synchronized void setRates(Map<String, Integer> rates) {
+        this.rates = Collections.unmodifiableMap(new HashMap<String, Integer>(rates));
+        this.config = new Config(defaultRate, this.rates);
+    }
+
+    //一次配置的快照，重新加载时整体替换
+    private static class Config {
+        final int defaultRate;
+        final Bucket global;
+        final ConcurrentMap<String, Bucket> services = new ConcurrentHashMap<String, Bucket>();
+        final Map<String, Map<String, Bucket>> methods = new HashMap<String, Map<String, Bucket>>();
+
+        Config(int defaultRate, Map<String, Integer> rates) {
+            this.defaultRate = defaultRate;
+            this.global = new Bucket(defaultRate);
+            for (Map.Entry<String, Integer> entry : rates.entrySet()) {
+                String key = entry.getKey();
+                int i = key.indexOf(SEPARATOR);
+                if (i < 0) {
+                    services.put(key, new Bucket(entry.getValue()));
+                } else {
+                    String serviceId = key.substring(0, i);
+                    Map<String, Bucket> m = methods.get(serviceId);
+                    if (m == null) {
+                        m = new HashMap<String, Bucket>();
+                        methods.put(serviceId, m);
+                    }
+                    m.put(key.substring(i + 1), new Bucket(entry.getValue()));
+                }
+            }
+        }
+    }
+
+    //令牌桶，容量为一秒的配额
+    static class Bucket {
+        private static final long SECOND = 1000000000L;
+        //产生一个令牌的间隔(ns)
+        private final long interval;
+        //允许超前的时间，即桶容量
+        private final long limit;
+        //理论到达时间
+        private final AtomicLong tat;
+
+        Bucket(int rate) {
+            this.interval = rate > 0 ? Math.max(1, SECOND / rate) : 0;
+            this.limit = SECOND;
+            this.tat = new AtomicLong(System.nanoTime() - SECOND);
+        }
+
+        boolean tryAcquire(long now) {
+            if (interval == 0) {
+                return false;
+            }
+            for (; ; ) {
+                long t = tat.get();
+                long next = (t - now > 0 ? t : now) + interval;
+                if (next - now > limit) {
+                    return false;
+                }
+                if (tat.compareAndSet(t, next)) {
+                    return true;
+                }
+            }
+        }
+    }
+}
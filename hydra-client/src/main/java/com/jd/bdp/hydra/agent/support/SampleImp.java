@@ -35,4 +35,8 @@ public class SampleImp implements Sampler{
        }
        return isSample;
     }
+
+    public boolean isSample(String serviceId, String method) {
+        return isSample();
+    }
 }
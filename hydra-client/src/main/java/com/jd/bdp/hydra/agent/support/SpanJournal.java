@@ -0,0 +1,280 @@
+package com.jd.bdp.hydra.agent.support;
+
+import com.jd.bdp.hydra.Span;
+import com.jd.bdp.hydra.codec.SpanCodec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Date: 26-10-17
+ * 本地磁盘span日志：collector不可用时，发送失败或溢出的批次顺序写入内存映射文件，
+ * collector恢复后按写入顺序回放(至少一次)。
+ * 按段滚动，超过磁盘配额时淘汰最老的段。
+ * 段格式：[int 已读位置][int len][bytes]...，len为0表示段内数据结束，bytes为SpanCodec编码的批次
+ */
+public class SpanJournal {
+
+    private static final Logger logger = LoggerFactory.getLogger(SpanJournal.class);
+
+    private static final String SUFFIX = ".journal";
+    private static final int HEADER = 4;
+
+    private final File dir;
+    private final int segmentSize;
+    private final long quota;
+    //从老到新
+    private final LinkedList<Segment> segments = new LinkedList<Segment>();
+    private long nextSegmentId;
+    //最近一次peek出的记录的结束位置，commit时使用
+    private int peekEnd = -1;
+    private long evictCount;
+
+    public SpanJournal(String dir, int segmentSize, long quota) throws IOException {
+        this.dir = new File(dir);
+        this.segmentSize = segmentSize;
+        this.quota = quota;
+        if (!this.dir.exists() && !this.dir.mkdirs()) {
+            throw new IOException("cannot create journal dir : " + dir);
+        }
+        load();
+    }
+
+    /**
+     * 追加一个批次，一次顺序写
+     */
+    public synchronized boolean append(List<Span> spanList) {
+        byte[] bytes;
+        try {
+            bytes = encode(spanList);
+        } catch (IOException e) {
+            logger.warn("[Hydra] journal encode failure", e);
+            return false;
+        }
+        if (HEADER + 4 + bytes.length + 4 > segmentSize) {
+            logger.warn("[Hydra] batch too large for journal segment : " + bytes.length);
+            return false;
+        }
+        try {
+            Segment tail = segments.isEmpty() ? null : segments.getLast();
+            if (tail == null || tail.writePos + 4 + bytes.length + 4 > segmentSize) {
+                tail = roll();
+            }
+            MappedByteBuffer buf = tail.buffer;
+            //先写数据再写长度，长度非0即表示记录完整
+            buf.position(tail.writePos + 4);
+            buf.put(bytes);
+            buf.putInt(tail.writePos, bytes.length);
+            tail.writePos += 4 + bytes.length;
+            return true;
+        } catch (IOException e) {
+            logger.warn("[Hydra] journal append failure", e);
+            return false;
+        }
+    }
+
+    /**
+     * 读出最老的一个批次但不移除，回放成功后调用commit
+     */
+    public synchronized List<Span> peek() {
+        while (!segments.isEmpty()) {
+            Segment head = segments.getFirst();
+            int readPos = head.buffer.getInt(0);
+            int len = readPos + 4 <= segmentSize ? head.buffer.getInt(readPos) : 0;
+            if (len > 0) {
+                byte[] bytes = new byte[len];
+                head.buffer.position(readPos + 4);
+                head.buffer.get(bytes);
+                peekEnd = readPos + 4 + len;
+                try {
+                    return decode(bytes);
+                } catch (Exception e) {//损坏的记录直接跳过
+                    logger.warn("[Hydra] journal record broken, skip", e);
+                    head.buffer.putInt(0, peekEnd);
+                    peekEnd = -1;
+                    continue;
+                }
+            }
+            if (head == segments.getLast()) {//写段读完
+                return null;
+            }
+            remove(segments.removeFirst());
+        }
+        return null;
+    }
+
+    /**
+     * 确认最近一次peek出的批次已回放
+     */
+    public synchronized void commit() {
+        if (peekEnd < 0 || segments.isEmpty()) {
+            return;
+        }
+        segments.getFirst().buffer.putInt(0, peekEnd);
+        peekEnd = -1;
+    }
+
+    public synchronized boolean isEmpty() {
+        for (Segment segment : segments) {
+            int readPos = segment.buffer.getInt(0);
+            if (readPos < segment.writePos) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //因超过配额被淘汰的段数
+    public synchronized long getEvictCount() {
+        return evictCount;
+    }
+
+    public synchronized void close() {
+        for (Segment segment : segments) {
+            segment.buffer.force();
+            unmap(segment.buffer);
+        }
+        segments.clear();
+    }
+
+    private Segment roll() throws IOException {
+        while (!segments.isEmpty() && (long) (segments.size() + 1) * segmentSize > quota) {
+            Segment oldest = segments.removeFirst();
+            peekEnd = -1;
+            evictCount++;
+            logger.warn("[Hydra] journal quota exceeded, evict " + oldest.file.getName());
+            remove(oldest);
+        }
+        File file = new File(dir, String.format("%020d", nextSegmentId++) + SUFFIX);
+        Segment segment = open(file);
+        segment.buffer.putInt(0, HEADER);
+        segment.writePos = HEADER;
+        segments.addLast(segment);
+        return segment;
+    }
+
+    private void load() throws IOException {
+        File[] files = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File d, String name) {
+                return name.endsWith(SUFFIX);
+            }
+        });
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            Segment segment = open(file);
+            //扫描出写位置
+            int pos = HEADER;
+            while (pos + 4 <= segmentSize) {
+                int len = segment.buffer.getInt(pos);
+                if (len <= 0 || pos + 4 + len > segmentSize) {
+                    break;
+                }
+                pos += 4 + len;
+            }
+            segment.writePos = pos;
+            int readPos = segment.buffer.getInt(0);
+            if (readPos < HEADER || readPos > pos) {
+                segment.buffer.putInt(0, HEADER);
+            }
+            segments.addLast(segment);
+            String name = file.getName();
+            nextSegmentId = Math.max(nextSegmentId, Long.parseLong(name.substring(0, name.length() - SUFFIX.length())) + 1);
+        }
+    }
+
+    private Segment open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            return new Segment(file, channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize));
+        } finally {
+            raf.close();//映射建立后可以关闭文件
+        }
+    }
+
+    private void remove(Segment segment) {
+        unmap(segment.buffer);
+        if (!segment.file.delete()) {
+            logger.warn("[Hydra] cannot delete journal segment " + segment.file);
+        }
+    }
+
+    //JDK9+用Unsafe.invokeCleaner释放映射，JDK8及以下调用DirectByteBuffer.cleaner().clean()
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            Class<?> c = Class.forName("sun.misc.Unsafe");
+            invokeCleaner = c.getMethod("invokeCleaner", java.nio.ByteBuffer.class);
+            Field f = c.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            unsafe = f.get(null);
+        } catch (Throwable ignore) {//JDK8及以下没有invokeCleaner
+            invokeCleaner = null;
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    private static volatile boolean unmapWarned = false;
+
+    //尽量及时释放映射；都不可用时只打一次日志，映射交给GC回收，段文件照常删除或复用
+    static void unmap(MappedByteBuffer buffer) {
+        try {
+            if (INVOKE_CLEANER != null) {
+                INVOKE_CLEANER.invoke(UNSAFE, buffer);
+            } else {
+                Method cleaner = buffer.getClass().getMethod("cleaner");
+                cleaner.setAccessible(true);
+                Object c = cleaner.invoke(buffer);
+                if (c != null) {
+                    Method clean = c.getClass().getMethod("clean");
+                    clean.setAccessible(true);
+                    clean.invoke(c);
+                }
+            }
+        } catch (Throwable e) {
+            if (!unmapWarned) {
+                unmapWarned = true;
+                logger.warn("[Hydra] cannot unmap journal buffer, mapping is released by GC", e);
+            }
+        }
+    }
+
+    static byte[] encode(List<Span> spanList) throws IOException {
+        return SpanCodec.encode(spanList);
+    }
+
+    static List<Span> decode(byte[] bytes) throws IOException {
+        return SpanCodec.decode(bytes);
+    }
+
+    private static class Segment {
+        final File file;
+        final MappedByteBuffer buffer;
+        int writePos;
+
+        Segment(File file, MappedByteBuffer buffer) {
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+}
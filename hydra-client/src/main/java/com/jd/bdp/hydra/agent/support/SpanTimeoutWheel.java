@@ -0,0 +1,260 @@
+package com.jd.bdp.hydra.agent.support;
+
+import com.jd.bdp.hydra.BinaryAnnotation;
+import com.jd.bdp.hydra.Span;
+import com.jd.bdp.hydra.agent.SyncTransfer;
+import com.jd.bdp.hydra.agent.metrics.AgentMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Date: 26-10-17
+ * 跟踪已开始(cs/sr)但还没结束(cr/ss)的span，超时后把已记录的部分标记为未完成先发送出去，
+ * 线程异常退出、调用卡住时也能看到这些span。
+ * 哈希时间轮：每个格子一个双向链表，所有span共用一个线程按tick推进，不为每个span建定时任务。
+ * 业务线程只把新开始的span放进无锁队列，链表只由时间轮线程修改；超过一圈的用剩余圈数表示。
+ * span结束时只改状态并释放对span的引用，节点留在链表里，时间轮走到该格子时再摘除，
+ * 结束时不需要再入队，也不与其他线程争用
+ */
+public class SpanTimeoutWheel {
+
+    private static final Logger logger = LoggerFactory.getLogger(SpanTimeoutWheel.class);
+
+    private static final int OPEN = 0;
+    private static final int DONE = 1;
+    private static final int EXPIRED = 2;
+
+    private final long timeoutNanos;
+    private final long tickNanos;
+    private final Entry[] buckets;
+    private final int mask;
+    //新开始的span
+    private final MpscRingBuffer<Entry> added;
+    private final AtomicLong expiredCount = new AtomicLong();
+    private SyncTransfer transfer;
+    private Thread worker;
+    private volatile boolean running;
+    private final long startNanos;
+    private long tick;
+    //链表中的个数，只由时间轮线程读写
+    private int size;
+
+    public SpanTimeoutWheel(long timeoutMillis) {
+        this(timeoutMillis, 100, 512, 65536);
+    }
+
+    /**
+     * @param timeoutMillis span开始后多久未结束算超时
+     * @param tickMillis    时间轮推进的间隔，超时的检测精度
+     * @param wheelSize     格子数，2的幂
+     * @param queueSize     新开始span队列的长度，队列满时不跟踪该span
+     */
+    public SpanTimeoutWheel(long timeoutMillis, long tickMillis, int wheelSize, int queueSize) {
+        if (timeoutMillis <= 0 || tickMillis <= 0) {
+            throw new IllegalArgumentException("timeout and tick must be positive");
+        }
+        if (wheelSize <= 0 || (wheelSize & (wheelSize - 1)) != 0) {
+            throw new IllegalArgumentException("wheelSize must be a power of 2 : " + wheelSize);
+        }
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        this.buckets = new Entry[wheelSize];
+        this.mask = wheelSize - 1;
+        this.added = new MpscRingBuffer<Entry>(queueSize);
+        this.startNanos = System.nanoTime();
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                work();
+            }
+        }, "hydra-span-timeout");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    public synchronized void stop() {
+        running = false;
+        if (worker != null) {
+            worker.interrupt();
+            try {
+                worker.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            worker = null;
+        }
+    }
+
+    /**
+     * span开始时调用
+     */
+    public void add(Span span) {
+        Entry entry = new Entry(span, System.nanoTime() + timeoutNanos);
+        if (added.offer(entry)) {
+            span.setTimeoutHandle(entry);
+        }
+    }
+
+    /**
+     * span结束时调用
+     *
+     * @return false表示span已超时并作为未完成发送，调用方不要再记录和发送
+     */
+    public boolean finish(Span span) {
+        Object handle = span.getTimeoutHandle();
+        if (!(handle instanceof Entry)) {
+            return true;
+        }
+        Entry entry = (Entry) handle;
+        span.setTimeoutHandle(null);
+        if (!STATE.compareAndSet(entry, OPEN, DONE)) {
+            return false;
+        }
+        entry.span = null;
+        return true;
+    }
+
+    private void work() {
+        while (running) {
+            long deadline = startNanos + (tick + 1) * tickNanos;
+            long sleep = deadline - System.nanoTime();
+            if (sleep > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (InterruptedException e) {
+                    if (!running) {
+                        break;
+                    }
+                }
+                continue;
+            }
+            try {
+                advance(System.nanoTime());
+            } catch (Exception e) {
+                logger.error("span timeout wheel error", e);
+            }
+        }
+    }
+
+    //推进一格，供时间轮线程和测试调用
+    void advance(long now) {
+        Entry entry;
+        while ((entry = added.poll()) != null) {
+            if (entry.state == OPEN) {
+                link(entry);
+            }
+        }
+        int index = (int) (tick & mask);
+        entry = buckets[index];
+        while (entry != null) {
+            Entry next = entry.next;
+            if (entry.state != OPEN) {
+                unlink(entry);
+            } else if (entry.rounds > 0) {
+                entry.rounds--;
+            } else if (entry.deadline - now <= 0) {
+                unlink(entry);
+                expire(entry);
+            }
+            entry = next;
+        }
+        tick++;
+    }
+
+    private void link(Entry entry) {
+        long target = (entry.deadline - startNanos) / tickNanos;
+        if (target < tick) {
+            target = tick;
+        }
+        entry.rounds = (target - tick) / buckets.length;
+        entry.bucket = (int) (target & mask);
+        Entry head = buckets[entry.bucket];
+        entry.next = head;
+        if (head != null) {
+            head.prev = entry;
+        }
+        buckets[entry.bucket] = entry;
+        size++;
+    }
+
+    private void unlink(Entry entry) {
+        if (entry.bucket < 0) {
+            return;
+        }
+        if (entry.prev != null) {
+            entry.prev.next = entry.next;
+        } else {
+            buckets[entry.bucket] = entry.next;
+        }
+        if (entry.next != null) {
+            entry.next.prev = entry.prev;
+        }
+        entry.prev = null;
+        entry.next = null;
+        entry.bucket = -1;
+        size--;
+    }
+
+    private void expire(Entry entry) {
+        Span span = entry.span;
+        if (!STATE.compareAndSet(entry, OPEN, EXPIRED)) {
+            return;
+        }
+        entry.span = null;
+        expiredCount.incrementAndGet();
+        AgentMetrics.getInstance().onIncomplete();
+        //业务线程可能还在添加注解，snapshot在span的锁内复制
+        Span snapshot = span.snapshot();
+        BinaryAnnotation incomplete = new BinaryAnnotation();
+        incomplete.setKey(TracerUtils.INCOMPLETE);
+        incomplete.setValue("timeout " + TimeUnit.NANOSECONDS.toMillis(timeoutNanos) + "ms");
+        incomplete.setType("string");
+        incomplete.setHost(span.getRecordHost());
+        snapshot.addBinaryAnnotation(incomplete);
+        if (transfer != null) {
+            transfer.syncSend(snapshot);
+        }
+    }
+
+    //链表中的节点数(含已结束未摘除的)，只在时间轮线程上或停止后读取准确
+    int size() {
+        return size;
+    }
+
+    public long getExpiredCount() {
+        return expiredCount.get();
+    }
+
+    public void setTransfer(SyncTransfer transfer) {
+        this.transfer = transfer;
+    }
+
+    private static final AtomicIntegerFieldUpdater<Entry> STATE = AtomicIntegerFieldUpdater.newUpdater(Entry.class, "state");
+
+    private static class Entry {
+        volatile int state;
+        //结束或超时后置null，不再引用span
+        volatile Span span;
+        final long deadline;
+        long rounds;
+        int bucket = -1;
+        Entry prev;
+        Entry next;
+
+        Entry(Span span, long deadline) {
+            this.span = span;
+            this.deadline = deadline;
+        }
+    }
+}
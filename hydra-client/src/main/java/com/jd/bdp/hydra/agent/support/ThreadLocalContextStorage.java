@@ -0,0 +1,33 @@
+package com.jd.bdp.hydra.agent.support;
+
+import com.jd.bdp.hydra.Span;
+import com.jd.bdp.hydra.agent.ContextStorage;
+
+/**
+ * Date: 26-10-17
+ * 默认实现：每个线程一个长度为1的holder，换span只改数组元素。
+ * 清除时置null而不是ThreadLocal.remove，避免每次请求都删除、重建ThreadLocalMap的entry；
+ * 线程上只留下空的holder，不会引用已结束的span
+ */
+public class ThreadLocalContextStorage implements ContextStorage {
+
+    private final ThreadLocal<Span[]> local = new ThreadLocal<Span[]>() {
+        @Override
+        protected Span[] initialValue() {
+            return new Span[1];
+        }
+    };
+
+    @Override
+    public Span get() {
+        return local.get()[0];
+    }
+
+    @Override
+    public Span swap(Span span) {
+        Span[] holder = local.get();
+        Span old = holder[0];
+        holder[0] = span;
+        return old;
+    }
+}
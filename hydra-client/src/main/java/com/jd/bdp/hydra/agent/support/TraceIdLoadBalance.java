@@ -0,0 +1,137 @@
+package com.jd.bdp.hydra.agent.support;
+
+import com.alibaba.dubbo.common.URL;
+import com.alibaba.dubbo.rpc.Invocation;
+import com.alibaba.dubbo.rpc.Invoker;
+import com.alibaba.dubbo.rpc.RpcContext;
+import com.alibaba.dubbo.rpc.cluster.loadbalance.AbstractLoadBalance;
+import com.jd.bdp.hydra.Span;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Date: 26-10-17
+ * 按traceId把span路由到固定collector的负载均衡(loadbalance="traceid")。
+ * collector地址按一致性哈希排成环，所有agent看到相同的collector列表时，同一trace的span都落到同一个collector，
+ * collector上的尾部采样才能看到完整的trace。
+ * TraceService先用route按当前环把一批span拆成每个collector一组，再带上目标地址发送；
+ * 目标collector已下线或调用失败重选时退化为随机选择
+ */
+public class TraceIdLoadBalance extends AbstractLoadBalance {
+
+    public static final String NAME = "traceid";
+    //调用附带的目标collector地址
+    public static final String ROUTE_KEY = "hydra.collector";
+
+    //每个collector在环上的虚拟节点数
+    private static final int REPLICAS = 160;
+
+    private final Random random = new Random();
+    private volatile Ring ring;
+
+    @Override
+    protected <T> Invoker<T> doSelect(List<Invoker<T>> invokers, URL url, Invocation invocation) {
+        List<String> addresses = new ArrayList<String>(invokers.size());
+        for (Invoker<T> invoker : invokers) {
+            addresses.add(invoker.getUrl().getAddress());
+        }
+        Collections.sort(addresses);
+        Ring r = ring;
+        if (r == null || !r.addresses.equals(addresses)) {//collector上下线后重建
+            ring = new Ring(addresses);
+        }
+        String address = invocation.getAttachment(ROUTE_KEY);
+        if (address == null) {
+            address = RpcContext.getContext().getAttachment(ROUTE_KEY);
+        }
+        if (address != null) {
+            for (Invoker<T> invoker : invokers) {
+                if (address.equals(invoker.getUrl().getAddress())) {
+                    return invoker;
+                }
+            }
+        }
+        return invokers.get(random.nextInt(invokers.size()));
+    }
+
+    /**
+     * 按最近一次选择时看到的collector列表，把span按traceId分组，key为collector地址，保持原有顺序；
+     * 还没有发生过调用、不知道collector列表时不分组，key为null
+     */
+    public Map<String, List<Span>> route(List<Span> spanList) {
+        Map<String, List<Span>> groups = new LinkedHashMap<String, List<Span>>();
+        Ring r = ring;
+        if (r == null || r.addresses.isEmpty()) {
+            groups.put(null, spanList);
+            return groups;
+        }
+        for (Span span : spanList) {
+            String address = r.get(span.getTraceId() == null ? 0L : span.getTraceId());
+            List<Span> group = groups.get(address);
+            if (group == null) {
+                group = new ArrayList<Span>();
+                groups.put(address, group);
+            }
+            group.add(span);
+        }
+        return groups;
+    }
+
+    private static class Ring {
+        final List<String> addresses;
+        final TreeMap<Long, String> nodes = new TreeMap<Long, String>();
+
+        Ring(List<String> addresses) {
+            this.addresses = addresses;
+            for (String address : addresses) {
+                for (int i = 0; i < REPLICAS / 4; i++) {
+                    byte[] digest = md5(address + "-" + i);
+                    //一个md5摘要切成4个虚拟节点
+                    for (int h = 0; h < 4; h++) {
+                        long m = ((long) (digest[3 + h * 4] & 0xFF) << 24)
+                                | ((long) (digest[2 + h * 4] & 0xFF) << 16)
+                                | ((long) (digest[1 + h * 4] & 0xFF) << 8)
+                                | (digest[h * 4] & 0xFF);
+                        nodes.put(m, address);
+                    }
+                }
+            }
+        }
+
+        String get(long traceId) {
+            long hash = mix(traceId) & 0xFFFFFFFFL;
+            Map.Entry<Long, String> e = nodes.ceilingEntry(hash);
+            return (e == null ? nodes.firstEntry() : e).getValue();
+        }
+    }
+
+    //打散traceId，相邻的traceId落到环上不同位置
+    static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static byte[] md5(String value) {
+        try {
+            MessageDigest md5 = MessageDigest.getInstance("MD5");
+            return md5.digest(value.getBytes("UTF-8"));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -1,17 +1,37 @@
 package com.jd.bdp.hydra.agent.support;
 
 
+import com.alibaba.dubbo.common.extension.ExtensionLoader;
+import com.alibaba.dubbo.common.utils.NamedThreadFactory;
+import com.alibaba.dubbo.remoting.exchange.ResponseCallback;
+import com.alibaba.dubbo.rpc.Result;
+import com.alibaba.dubbo.rpc.RpcContext;
+import com.alibaba.dubbo.rpc.cluster.LoadBalance;
+import com.alibaba.dubbo.rpc.protocol.dubbo.FutureAdapter;
 import com.jd.bdp.hydra.Span;
 import com.jd.bdp.hydra.agent.CollectorService;
 import com.jd.bdp.hydra.agent.RegisterService;
+import com.jd.bdp.hydra.agent.metrics.AgentMetrics;
+import com.jd.bdp.hydra.codec.SpanCodec;
+import com.jd.bdp.hydra.codec.SpanCompressor;
+import com.jd.bdp.hydra.codec.SpanDictionary;
 import com.jd.bdp.hydra.dubbomonitor.HydraService;
 import com.jd.bdp.hydra.dubbomonitor.LeaderService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
 
 /**
  * Date: 13-3-27
@@ -28,17 +48,378 @@ public class TraceService implements RegisterService, CollectorService {
     public static final String SEED = "seed";
     private boolean isRegister = false;
 
+    //同时在途(已发出未返回)的批次数，超过后发送线程阻塞等待，由缓冲队列承接压力
+    private int maxInFlight = 4;
+    private Semaphore inFlight = new Semaphore(maxInFlight);
+    //单批失败后的重试次数及重试间隔(ms)，间隔按重试次数递增
+    private int retryTimes = 2;
+    private long retryDelay = 1000L;
+    private ScheduledExecutorService retryExecutor;
+
+    //是否以SpanCodec的紧凑格式发送，需要collector支持pushEncoded
+    private boolean encoded = false;
+    //紧凑格式之上的块压缩，按优先顺序与collector协商，为空时不压缩
+    private volatile List<String> compression;
+    //用前多少批训练deflate字典，0表示不用字典
+    private int dictionarySamples = 0;
+    //协商结果，为null时需要(重新)协商，协商在重试线程上进行，完成前不压缩
+    private volatile SpanCompressor compressor;
+    private volatile byte[] dictionary;
+    private final AtomicBoolean negotiating = new AtomicBoolean(false);
+    //每次要求重新协商时加1，协商期间有变化时再协商一次
+    private final AtomicInteger negotiateVersion = new AtomicInteger();
+    private final Object sampleLock = new Object();
+    //正在收集的样本，收集完成后交给协商任务训练字典
+    private List<byte[]> samples;
+    private List<byte[]> trainSamples;
+    private boolean sampled;
+
+    //可选的磁盘日志，collector不可用时落盘，恢复后回放
+    private SpanJournal journal;
+    private final AtomicBoolean replaying = new AtomicBoolean(false);
+
+    //按traceId路由到固定collector，collector上开启尾部采样时需要，hydraService需配置loadbalance="traceid"
+    private TraceIdLoadBalance router;
+
+    //发送、重试、落盘、丢弃等计数都记在agent指标里
+    private AgentMetrics metrics = AgentMetrics.getInstance();
+
     public boolean isRegister() {
         return isRegister;
     }
 
+    /**
+     * 异步发送一批span，hydraService需配置为异步调用(async="true")，
+     * 同步配置时退化为同步发送。调用方不能再修改spanList
+     */
     @Override
     public void sendSpan(List<Span> spanList) {
-        //fixme try-catch性能影响？
+        //在发送线程上生成延迟记录的注解，不依赖序列化方式
+        for (int i = 0; i < spanList.size(); i++) {
+            spanList.get(i).materialize();
+        }
+        if (router == null) {
+            sendBatch(new Batch(spanList, false, null));
+            return;
+        }
+        //按traceId拆成每个collector一组
+        for (Map.Entry<String, List<Span>> group : router.route(spanList).entrySet()) {
+            sendBatch(new Batch(group.getValue(), false, group.getKey()));
+        }
+    }
+
+    private void sendBatch(Batch batch) {
+        if (journal != null) {
+            //开启磁盘日志时不阻塞，在途已满的批次直接落盘
+            if (!inFlight.tryAcquire()) {
+                spill(batch.spanList);
+                return;
+            }
+        } else {
+            try {
+                inFlight.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                drop(batch.spanList);
+                return;
+            }
+        }
+        push(batch, 0);
+    }
+
+    private void push(Batch batch, int attempt) {
+        Future<?> future;
+        batch.pushStart = System.nanoTime();
         try {
-            hydraService.push(spanList);
+            RpcContext.getContext().setFuture(null);
+            if (batch.collector != null) {
+                RpcContext.getContext().setAttachment(TraceIdLoadBalance.ROUTE_KEY, batch.collector);
+            }
+            boolean r = encoded ? hydraService.pushEncoded(compress(batch)) : hydraService.push(batch.spanList);
+            future = RpcContext.getContext().getFuture();
+            if (future == null) {//同步调用
+                if (r) {
+                    onSuccess(batch);
+                } else {
+                    onFailure(batch, attempt, null);
+                }
+                return;
+            }
         } catch (Exception e) {
-            logger.warn("Trace data push failure~");
+            onFailure(batch, attempt, e);
+            return;
+        }
+        if (future instanceof FutureAdapter) {
+            ((FutureAdapter<?>) future).getFuture().setCallback(new PushCallback(batch, attempt));
+        } else {
+            onSuccess(batch);
+        }
+    }
+
+    private void onSuccess(Batch batch) {
+        metrics.onPush(System.nanoTime() - batch.pushStart);
+        metrics.onSent(batch.spanList.size());
+        inFlight.release();
+        if (journal == null) {
+            return;
+        }
+        if (batch.replay) {
+            journal.commit();
+            //可能在dubbo回调线程上，同步调用时还会递归，下一批交给重试线程回放
+            getRetryExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    replayNext();
+                }
+            });
+        } else if (!journal.isEmpty()) {//collector已恢复，开始回放
+            startReplay();
+        }
+    }
+
+    private void onFailure(final Batch batch, final int attempt, Throwable e) {
+        metrics.onPush(System.nanoTime() - batch.pushStart);
+        if (isUnknownDictionary(e) && !batch.embedDictionary) {
+            //collector没有该字典(负载均衡到别的collector、collector重启或字典被淘汰)，帧里带上字典立即重发，不计重试次数
+            batch.embedDictionary = true;
+            getRetryExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    push(batch, attempt);
+                }
+            });
+            return;
+        }
+        if (e != null) {//collector可能已切换，下次发送前重新协商
+            resetCompressor();
+        }
+        if (batch.replay) {//回放失败，记录留在日志中，等待下次恢复
+            inFlight.release();
+            replaying.set(false);
+            return;
+        }
+        if (attempt < retryTimes) {
+            metrics.onRetry();
+            //重试沿用原来的在途名额
+            getRetryExecutor().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    push(batch, attempt + 1);
+                }
+            }, retryDelay * (attempt + 1), TimeUnit.MILLISECONDS);
+        } else {
+            logger.warn("Trace data push failure~", e);
+            inFlight.release();
+            spill(batch.spanList);
+        }
+    }
+
+    private void spill(List<Span> spanList) {
+        if (journal != null && journal.append(spanList)) {
+            metrics.onSpilled(spanList.size());
+        } else {
+            drop(spanList);
+        }
+    }
+
+    private void drop(List<Span> spanList) {
+        metrics.onDropped(spanList.size());
+    }
+
+    private void startReplay() {
+        if (replaying.compareAndSet(false, true)) {
+            getRetryExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    replayNext();
+                }
+            });
+        }
+    }
+
+    //同一时刻只有一个批次在回放，保证按写入顺序
+    private void replayNext() {
+        List<Span> spanList = journal.peek();
+        if (spanList == null) {
+            replaying.set(false);
+            return;
+        }
+        if (!inFlight.tryAcquire()) {//让出在途名额给实时数据
+            getRetryExecutor().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    replayNext();
+                }
+            }, retryDelay, TimeUnit.MILLISECONDS);
+            return;
+        }
+        metrics.onReplayed(spanList.size());
+        //回放按批提交，不拆分路由
+        push(new Batch(spanList, true, null), retryTimes);
+    }
+
+    private byte[] compress(Batch batch) {
+        byte[] bytes = batch.encode();
+        if (compression == null) {
+            return bytes;
+        }
+        sample(bytes);
+        SpanCompressor c = compressor;
+        if (c == null) {
+            negotiate();
+            return bytes;
+        }
+        return SpanCompressor.NONE.equals(c.getCodec()) ? bytes : c.compress(bytes, batch.embedDictionary);
+    }
+
+    //收集样本，够数后重新协商，由协商任务训练字典
+    private void sample(byte[] bytes) {
+        if (dictionarySamples <= 0) {
+            return;
+        }
+        synchronized (sampleLock) {
+            if (sampled) {
+                return;
+            }
+            if (samples == null) {
+                samples = new ArrayList<byte[]>(dictionarySamples);
+            }
+            samples.add(bytes);
+            if (samples.size() < dictionarySamples) {
+                return;
+            }
+            trainSamples = samples;
+            samples = null;
+            sampled = true;
+        }
+        resetCompressor();
+        negotiate();
+    }
+
+    //协商是同步调用，交给重试线程，发送线程和dubbo回调线程都不等待
+    private void negotiate() {
+        if (!negotiating.compareAndSet(false, true)) {
+            return;
+        }
+        getRetryExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    int version;
+                    do {
+                        version = negotiateVersion.get();
+                        doNegotiate();
+                    } while (version != negotiateVersion.get());
+                } finally {
+                    negotiating.set(false);
+                }
+            }
+        });
+    }
+
+    private void doNegotiate() {
+        List<byte[]> toTrain;
+        synchronized (sampleLock) {
+            toTrain = trainSamples;
+            trainSamples = null;
+        }
+        if (toTrain != null) {
+            dictionary = SpanDictionary.train(toTrain, SpanDictionary.MAX_SIZE);
+        }
+        List<String> codecs = compression;
+        if (codecs == null) {
+            return;
+        }
+        byte[] d = dictionary;
+        String codec;
+        try {
+            //字典也随帧发送，这里登记只是省去第一次被拒
+            codec = hydraService.negotiate(codecs, d);
+        } catch (Exception e) {//collector不支持协商，按不压缩发送，发送失败后再重新协商
+            logger.warn("[Hydra] span compression negotiate failure, send uncompressed", e);
+            codec = SpanCompressor.NONE;
+        }
+        compressor = SpanCompressor.DEFLATE.equals(codec)
+                ? new SpanCompressor(codec, d, Deflater.BEST_SPEED) : new SpanCompressor(codec);
+    }
+
+    private void resetCompressor() {
+        negotiateVersion.incrementAndGet();
+        compressor = null;
+    }
+
+    private static boolean isUnknownDictionary(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof SpanCompressor.UnknownDictionaryException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private synchronized ScheduledExecutorService getRetryExecutor() {
+        if (retryExecutor == null) {
+            retryExecutor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("HydraPushRetry", true));
+        }
+        return retryExecutor;
+    }
+
+    private static class Batch {
+        final List<Span> spanList;
+        //是否来自磁盘日志的回放
+        final boolean replay;
+        //按traceId路由时的目标collector地址
+        final String collector;
+        //编码结果，重试时复用
+        private byte[] bytes;
+        //本次push的开始时间，用于统计push耗时
+        volatile long pushStart;
+        //collector没有字典时，重发的帧里带上字典
+        volatile boolean embedDictionary;
+
+        Batch(List<Span> spanList, boolean replay, String collector) {
+            this.spanList = spanList;
+            this.replay = replay;
+            this.collector = collector;
+        }
+
+        byte[] encode() {
+            if (bytes == null) {
+                bytes = SpanCodec.encode(spanList);
+            }
+            return bytes;
+        }
+    }
+
+    //批次回调，在dubbo的回调线程里执行，不能有阻塞操作
+    private class PushCallback implements ResponseCallback {
+        private final Batch batch;
+        private final int attempt;
+
+        PushCallback(Batch batch, int attempt) {
+            this.batch = batch;
+            this.attempt = attempt;
+        }
+
+        @Override
+        public void done(Object response) {
+            if (response instanceof Result) {
+                Result result = (Result) response;
+                if (result.hasException()) {
+                    onFailure(batch, attempt, result.getException());
+                    return;
+                }
+                if (Boolean.FALSE.equals(result.getValue())) {
+                    onFailure(batch, attempt, null);
+                    return;
+                }
+            }
+            onSuccess(batch);
+        }
+
+        @Override
+        public void caught(Throwable exception) {
+            onFailure(batch, attempt, exception);
         }
     }
 
@@ -75,6 +456,130 @@ public class TraceService implements RegisterService, CollectorService {
             return false;
     }
 
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    public void setMaxInFlight(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+        this.inFlight = new Semaphore(maxInFlight);
+    }
+
+    public int getRetryTimes() {
+        return retryTimes;
+    }
+
+    public void setRetryTimes(int retryTimes) {
+        this.retryTimes = retryTimes;
+    }
+
+    public long getRetryDelay() {
+        return retryDelay;
+    }
+
+    public void setRetryDelay(long retryDelay) {
+        this.retryDelay = retryDelay;
+    }
+
+    //当前在途批次数
+    public int getInFlightCount() {
+        return maxInFlight - inFlight.availablePermits();
+    }
+
+    public long getSentCount() {
+        return metrics.getSentCount();
+    }
+
+    public long getRetryCount() {
+        return metrics.getRetryCount();
+    }
+
+    public long getDropCount() {
+        return metrics.getDropCount();
+    }
+
+    public long getSpillCount() {
+        return metrics.getSpillCount();
+    }
+
+    public long getReplayCount() {
+        return metrics.getReplayCount();
+    }
+
+    public AgentMetrics getMetrics() {
+        return metrics;
+    }
+
+    public void setMetrics(AgentMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public boolean isEncoded() {
+        return encoded;
+    }
+
+    public void setEncoded(boolean encoded) {
+        this.encoded = encoded;
+    }
+
+    public String getCompression() {
+        if (compression == null) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (String codec : compression) {
+            sb.append(sb.length() == 0 ? "" : ",").append(codec);
+        }
+        return sb.toString();
+    }
+
+    //如"snappy,deflate"
+    public void setCompression(String compression) {
+        this.compression = compression == null || compression.trim().length() == 0
+                ? null : Arrays.asList(compression.trim().split("\\s*,\\s*"));
+        resetCompressor();
+    }
+
+    public int getDictionarySamples() {
+        return dictionarySamples;
+    }
+
+    public void setDictionarySamples(int dictionarySamples) {
+        this.dictionarySamples = dictionarySamples;
+    }
+
+    //当前协商结果，尚未协商时为null
+    public String getNegotiatedCompression() {
+        SpanCompressor c = compressor;
+        return c == null ? null : c.getCodec();
+    }
+
+    public boolean isRouteByTraceId() {
+        return router != null;
+    }
+
+    public void setRouteByTraceId(boolean routeByTraceId) {
+        setRouter(routeByTraceId ? (TraceIdLoadBalance) ExtensionLoader.getExtensionLoader(LoadBalance.class)
+                .getExtension(TraceIdLoadBalance.NAME) : null);
+    }
+
+    void setRouter(TraceIdLoadBalance router) {
+        this.router = router;
+    }
+
+    //是否正在后台协商
+    boolean isNegotiating() {
+        return negotiating.get();
+    }
+
+    public SpanJournal getJournal() {
+        return journal;
+    }
+
+    public void setJournal(SpanJournal journal) {
+        this.journal = journal;
+    }
+
     public LeaderService getLeaderService() {
         return leaderService;
     }
@@ -102,7 +607,7 @@ public class TraceService implements RegisterService, CollectorService {
         String s = null;
         if (isRegister) {
             s = registerInfo.get(SEED);
-            return Long.valueOf(s);
+            return s == null ? null : Long.valueOf(s);
         }
         return null;
     }
@@ -1,6 +1,12 @@
 package com.jd.bdp.hydra.agent.support;
 
 import com.alibaba.dubbo.common.utils.StringUtils;
+import com.jd.bdp.hydra.Annotation;
+import com.jd.bdp.hydra.BinaryAnnotation;
+import com.jd.bdp.hydra.Endpoint;
+import com.jd.bdp.hydra.Span;
+
+import java.util.List;
 
 /**
 
@@ -12,8 +18,20 @@ public class TracerUtils {
     public static final String SID = "spanId";
     public static final String PID = "parentId";
     public static final String SAMPLE = "isSample";
+    //上游未采样时只向下游传递该标志
+    public static final String SAMPLE_FALSE = "0";
 
     public static final String EXCEPTION = "dubbo.exception";
+    //本地span的标记，值为本地调用的名字
+    public static final String LOCAL_COMPONENT = "lc";
+
+    //超时未结束、先行发送的span的标记
+    public static final String INCOMPLETE = "hydra.incomplete";
+
+    //http传递用的头，值为traceId、spanId、parentId(可选)各16位十六进制拼接，上游未采样时为SAMPLE_FALSE
+    public static final String HTTP_HEADER = "X-Hydra-Trace";
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
 
     public static Long getAttachmentLong(String value){
         if(StringUtils.isBlank(value)){
@@ -22,10 +40,94 @@ public class TracerUtils {
         return Long.valueOf(value);
     }
 
+    //生成HTTP_HEADER的值，span需已采样
+    public static String toHexHeader(Span span) {
+        Long parentId = span.getParentId();
+        char[] chars = new char[parentId == null ? 32 : 48];
+        writeHex(chars, 0, span.getTraceId());
+        writeHex(chars, 16, span.getId());
+        if (parentId != null) {
+            writeHex(chars, 32, parentId);
+        }
+        return new String(chars);
+    }
+
+    /**
+     * 解析HTTP_HEADER的值
+     *
+     * @return {traceId, spanId, parentId}，没有parentId时只有前两项；未采样标志或格式不对时返回null
+     */
+    public static long[] parseHexHeader(String value) {
+        if (value == null || (value.length() != 32 && value.length() != 48)) {
+            return null;
+        }
+        long[] ids = new long[value.length() / 16];
+        for (int i = 0; i < ids.length; i++) {
+            long v = 0;
+            for (int j = i * 16, end = j + 16; j < end; j++) {
+                int d = hexDigit(value.charAt(j));
+                if (d < 0) {
+                    return null;
+                }
+                v = (v << 4) | d;
+            }
+            ids[i] = v;
+        }
+        return ids;
+    }
+
+    private static void writeHex(char[] chars, int offset, long v) {
+        for (int i = offset + 15; i >= offset; i--) {
+            chars[i] = HEX[(int) (v & 0xf)];
+            v >>>= 4;
+        }
+    }
+
+    private static int hexDigit(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        return -1;
+    }
+
     public static Boolean getAttachmentBoolean(String value){
         if(value == null){
             return false;
         }
         return Boolean.valueOf(value);
     }
+
+    //估算span序列化后的字节数，只用于攒批时控制一批的大小，不追求精确
+    public static long estimateSize(Span span) {
+        long size = 64 + length(span.getSpanName()) + length(span.getServiceId());
+        List<Annotation> annotations = span.getAnnotations();
+        if (annotations != null) {
+            for (int i = 0; i < annotations.size(); i++) {
+                Annotation a = annotations.get(i);
+                size += 32 + length(a.getValue()) + estimateSize(a.getHost());
+            }
+        }
+        List<BinaryAnnotation> binaryAnnotations = span.getBinaryAnnotations();
+        if (binaryAnnotations != null) {
+            for (int i = 0; i < binaryAnnotations.size(); i++) {
+                BinaryAnnotation b = binaryAnnotations.get(i);
+                size += 32 + length(b.getKey()) + length(b.getValue()) + length(b.getType()) + estimateSize(b.getHost());
+            }
+        }
+        return size;
+    }
+
+    private static long estimateSize(Endpoint endpoint) {
+        return endpoint == null ? 0 : 16 + length(endpoint.getIp());
+    }
+
+    private static int length(String s) {
+        return s == null ? 0 : s.length();
+    }
 }
@@ -23,11 +23,13 @@ import com.alibaba.fastjson.JSON;
 import com.jd.bdp.hydra.BinaryAnnotation;
 import com.jd.bdp.hydra.Endpoint;
 import com.jd.bdp.hydra.Span;
+import com.jd.bdp.hydra.agent.HydraBootstrap;
 import com.jd.bdp.hydra.agent.Tracer;
 import com.jd.bdp.hydra.agent.support.TracerUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.context.support.ClassPathXmlApplicationContext;
+
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  *
@@ -36,17 +38,14 @@ import org.springframework.context.support.ClassPathXmlApplicationContext;
 public class HydraFilter implements Filter {
 
     private static Logger logger = LoggerFactory.getLogger(HydraFilter.class);
-    private Tracer tracer = null;
+    private static final int MAX_SERVICE_IDS = 4096;
+    private Tracer tracer = Tracer.getTracer();
+    //按invoker缓存serviceId，只缓存已注册的
+    private final ConcurrentHashMap<Invoker<?>, String> serviceIds = new ConcurrentHashMap<Invoker<?>, String>();
 
-    /*加载Filter的时候加载hydra配置上下文*/
+    /*加载Filter的时候在后台启动agent，应用已调用过HydraBootstrap时不重复启动*/
     static {
-        logger.info("Hydra filter is loading hydra-config file...");
-        String resourceName = "classpath*:hydra-config.xml";
-        ClassPathXmlApplicationContext context = new ClassPathXmlApplicationContext(new String[]{
-                resourceName
-        });
-        logger.info("Hydra config context is starting,config file path is:" + resourceName);
-        context.start();
+        HydraBootstrap.startDefault();
     }
 
 
@@ -54,28 +53,45 @@ public class HydraFilter implements Filter {
     // 调用过程拦截
     @Override
     public Result invoke(Invoker<?> invoker, Invocation invocation) throws RpcException {
-        logger.info("拦截");
         //异步获取serviceId，没获取到不进行采样
-        String serviceId = tracer.getServiceId(RpcContext.getContext().getUrl().getServiceInterface());
+        String serviceId = getServiceId(invoker);
         if (serviceId == null) {
-            Tracer.startTraceWork();
             return invoker.invoke(invocation);
         }
-
-        long start = System.currentTimeMillis();
+        //未采样的请求在分配任何对象之前返回
         RpcContext context = RpcContext.getContext();
+        if (context.isConsumerSide()) {
+            Span parent = tracer.getParentSpan();
+            if (parent == null ? !tracer.isSample(serviceId, invocation.getMethodName()) : !parent.isSample()) {
+                ((RpcInvocation) invocation).setAttachment(TracerUtils.SAMPLE, TracerUtils.SAMPLE_FALSE);
+                return invoker.invoke(invocation);
+            }
+        } else if (invocation.getAttachment(TracerUtils.TID) == null) {
+            //上游未采样，本线程内发起的调用也不采样
+            Span previous = tracer.swapParentSpan(Tracer.NOT_SAMPLED);
+            try {
+                return invoker.invoke(invocation);
+            } finally {
+                tracer.swapParentSpan(previous);
+            }
+        }
+
         boolean isConsumerSide = context.isConsumerSide();
         Span span = null;
+        Span previous = null;//提供端进入前线程上的span，调用结束后恢复
         Endpoint endpoint = null;
         try {
-            endpoint = tracer.newEndPoint();
-                        //endpoint.setServiceName(serviceId);
-            endpoint.setIp(context.getLocalAddressString());
-            endpoint.setPort(context.getLocalPort());
+            if (context.getLocalAddress() != null) {
+                endpoint = tracer.getEndpoint(context.getLocalAddress());
+            } else {
+                endpoint = tracer.newEndPoint();
+                endpoint.setIp(context.getLocalAddressString());
+                endpoint.setPort(context.getLocalPort());
+            }
             if (context.isConsumerSide()) { //是否是消费者
                 Span span1 = tracer.getParentSpan();
-                if (span1 == null) { //为rootSpan
-                    span = tracer.newSpan(context.getMethodName(), endpoint, serviceId);//生成root Span
+                if (span1 == null) { //为rootSpan，已确定采样
+                    span = tracer.newSampledSpan(context.getMethodName(), serviceId);//生成root Span
                 } else {
                     span = tracer.genSpan(span1.getTraceId(), span1.getId(), tracer.genSpanId(), context.getMethodName(), span1.isSample(), null);
                 }
@@ -84,12 +100,12 @@ public class HydraFilter implements Filter {
                 traceId = TracerUtils.getAttachmentLong(invocation.getAttachment(TracerUtils.TID));
                 parentId = TracerUtils.getAttachmentLong(invocation.getAttachment(TracerUtils.PID));
                 spanId = TracerUtils.getAttachmentLong(invocation.getAttachment(TracerUtils.SID));
-                boolean isSample = (traceId != null);
-                span = tracer.genSpan(traceId, parentId, spanId, context.getMethodName(), isSample, serviceId);
+                span = tracer.genSpan(traceId, parentId, spanId, context.getMethodName(), true, serviceId);
+            }
+            previous = invokerBefore(invocation, span, endpoint);//记录annotation
+            if (isConsumerSide) {
+                setAttachment(span, (RpcInvocation) invocation);//设置需要向下游传递的参数
             }
-            invokerBefore(invocation, span, endpoint, start);//记录annotation
-            RpcInvocation invocation1 = (RpcInvocation) invocation;
-            setAttachment(span, invocation1);//设置需要向下游传递的参数
             Result result = invoker.invoke(invocation);
             if (result.getException() != null) {
                 catchException(result.getException(), endpoint);
@@ -104,29 +120,47 @@ public class HydraFilter implements Filter {
             throw e;
         } finally {
             if (span != null) {
-                long end = System.currentTimeMillis();
-                invokerAfter(invocation, endpoint, span, end, isConsumerSide);//调用后记录annotation
+                invokerAfter(invocation, endpoint, span, isConsumerSide, previous);//调用后记录annotation
+            }
+        }
+    }
+
+    private String getServiceId(Invoker<?> invoker) {
+        String serviceId = serviceIds.get(invoker);
+        if (serviceId == null) {
+            serviceId = tracer.getServiceId(invoker.getUrl().getServiceInterface());
+            if (serviceId != null) {
+                if (serviceIds.size() >= MAX_SERVICE_IDS) {//invoker随提供者上下线变化，防止无限增长
+                    serviceIds.clear();
+                }
+                serviceIds.put(invoker, serviceId);
             }
         }
+        return serviceId;
     }
 
-    private void invokerBefore(Invocation invocation, Span span, Endpoint endpoint, long start) {
+    //返回提供端换上span之前的parentSpan
+    private Span invokerBefore(Invocation invocation, Span span, Endpoint endpoint) {
         RpcContext context = RpcContext.getContext();
+        Span previous = null;
         if (context.isConsumerSide() && span.isSample()) {
-            tracer.clientSendRecord(span, endpoint, start);
+            tracer.clientSendRecord(span, endpoint);
         } else if (context.isProviderSide()) {
+            previous = tracer.swapParentSpan(span);
             if (span.isSample()) {
-                tracer.serverReceiveRecord(span, endpoint, start);
+                tracer.serverReceiveRecord(span, endpoint);
             }
-            tracer.setParentSpan(span);
         }
+        return previous;
     }
 
     private void setAttachment(Span span, RpcInvocation invocation) {
         if (span.isSample()) {
-            invocation.setAttachment(TracerUtils.PID, span.getParentId() != null ? String.valueOf(span.getParentId()) : null);
-            invocation.setAttachment(TracerUtils.SID, span.getId() != null ? String.valueOf(span.getId()) : null);
-            invocation.setAttachment(TracerUtils.TID, span.getTraceId() != null ? String.valueOf(span.getTraceId()) : null);
+            if (span.getParentId() != null) {
+                invocation.setAttachment(TracerUtils.PID, Long.toString(span.getParentId()));
+            }
+            invocation.setAttachment(TracerUtils.SID, span.getId() != null ? Long.toString(span.getId()) : null);
+            invocation.setAttachment(TracerUtils.TID, span.getTraceId() != null ? Long.toString(span.getTraceId()) : null);
         }
     }
 
@@ -148,14 +182,14 @@ public class HydraFilter implements Filter {
         tracer.addBinaryAnntation(exAnnotation);
     }
 
-    private void invokerAfter(Invocation invocation, Endpoint endpoint, Span span, long end, boolean isConsumerSide) {
+    private void invokerAfter(Invocation invocation, Endpoint endpoint, Span span, boolean isConsumerSide, Span previous) {
         if (isConsumerSide && span.isSample()) {
-            tracer.clientReceiveRecord(span, endpoint, end);
+            tracer.clientReceiveRecord(span, endpoint);
         } else {
             if (span.isSample()) {
-                tracer.serverSendRecord(span, endpoint, end);
+                tracer.serverSendRecord(span, endpoint);
             }
-            tracer.removeParentSpan();
+            tracer.swapParentSpan(previous);
         }
     }
 
@@ -0,0 +1,138 @@
+package com.jd.bdp.hydra.http;
+
+import com.jd.bdp.hydra.BinaryAnnotation;
+import com.jd.bdp.hydra.Endpoint;
+import com.jd.bdp.hydra.Span;
+import com.jd.bdp.hydra.agent.HydraBootstrap;
+import com.jd.bdp.hydra.agent.Tracer;
+import com.jd.bdp.hydra.agent.support.TracerUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+/**
+ * Date: 26-10-17
+ * http入口的跟踪，web.xml中配置：
+ * <pre>
+ * &lt;filter&gt;
+ *     &lt;filter-name&gt;hydra&lt;/filter-name&gt;
+ *     &lt;filter-class&gt;com.jd.bdp.hydra.http.HydraServletFilter&lt;/filter-class&gt;
+ *     &lt;init-param&gt;
+ *         &lt;param-name&gt;serviceName&lt;/param-name&gt;
+ *         &lt;param-value&gt;order-web&lt;/param-value&gt;
+ *     &lt;/init-param&gt;
+ * &lt;/filter&gt;
+ * </pre>
+ * 请求带有TracerUtils.HTTP_HEADER时接着上游的trace记录服务端span，否则作为root按采样率决定是否开始新的trace。
+ * 请求处理期间span放在当前线程上，其中发起的dubbo、http调用都作为它的子span。
+ * spanName为servletPath，serviceName未配置时用"http:"+contextPath
+ */
+public class HydraServletFilter implements Filter {
+
+    private static final Logger logger = LoggerFactory.getLogger(HydraServletFilter.class);
+
+    private Tracer tracer = Tracer.getTracer();
+    private String serviceName;
+    //注册成功后缓存
+    private volatile String serviceId;
+
+    @Override
+    public void init(FilterConfig filterConfig) throws ServletException {
+        serviceName = filterConfig.getInitParameter("serviceName");
+        if (serviceName == null) {
+            serviceName = "http:" + filterConfig.getServletContext().getContextPath();
+        }
+        //后台启动agent，与dubbo共用时也只启动一次
+        HydraBootstrap.startDefault();
+        logger.info("Hydra servlet filter is tracing service " + serviceName);
+    }
+
+    @Override
+    public void doFilter(ServletRequest req, ServletResponse resp, FilterChain chain) throws IOException, ServletException {
+        String serviceId = getServiceId();
+        if (serviceId == null || !(req instanceof HttpServletRequest)) {
+            chain.doFilter(req, resp);
+            return;
+        }
+        HttpServletRequest request = (HttpServletRequest) req;
+        String header = request.getHeader(TracerUtils.HTTP_HEADER);
+        String name = request.getServletPath();
+        Span span = null;
+        if (!TracerUtils.SAMPLE_FALSE.equals(header)) {
+            long[] ids = TracerUtils.parseHexHeader(header);
+            if (ids != null) {
+                span = tracer.genSpan(ids[0], ids.length > 2 ? ids[2] : null, ids[1], name, true, serviceId);
+            } else if (tracer.isSample(serviceId, name)) {//没有上游，作为root
+                span = tracer.newSampledSpan(name, serviceId);
+            }
+        }
+        if (span == null) {
+            //未采样，本线程内发起的调用也不采样
+            Span previous = tracer.swapParentSpan(Tracer.NOT_SAMPLED);
+            try {
+                chain.doFilter(req, resp);
+            } finally {
+                tracer.swapParentSpan(previous);
+            }
+            return;
+        }
+
+        Endpoint endpoint = tracer.getEndpoint(InetSocketAddress.createUnresolved(request.getLocalAddr(), request.getLocalPort()));
+        Span previous = tracer.swapParentSpan(span);
+        tracer.serverReceiveRecord(span, endpoint);
+        try {
+            chain.doFilter(req, resp);
+        } catch (IOException e) {
+            catchException(span, e, endpoint);
+            throw e;
+        } catch (ServletException e) {
+            catchException(span, e, endpoint);
+            throw e;
+        } catch (RuntimeException e) {
+            catchException(span, e, endpoint);
+            throw e;
+        } finally {
+            tracer.serverSendRecord(span, endpoint);
+            tracer.swapParentSpan(previous);
+        }
+    }
+
+    private String getServiceId() {
+        String id = serviceId;
+        if (id == null) {
+            id = tracer.getServiceId(serviceName);
+            serviceId = id;
+        }
+        return id;
+    }
+
+    private void catchException(Span span, Throwable e, Endpoint endpoint) {
+        BinaryAnnotation exAnnotation = new BinaryAnnotation();
+        exAnnotation.setKey(TracerUtils.EXCEPTION);
+        exAnnotation.setValue(e.getMessage());
+        exAnnotation.setType("ex");
+        exAnnotation.setHost(endpoint);
+        span.addBinaryAnnotation(exAnnotation);
+    }
+
+    @Override
+    public void destroy() {
+    }
+
+    public void setServiceName(String serviceName) {
+        this.serviceName = serviceName;
+    }
+
+    public void setTracer(Tracer tracer) {
+        this.tracer = tracer;
+    }
+}
@@ -0,0 +1,88 @@
+package com.jd.bdp.hydra.http;
+
+import com.alibaba.dubbo.common.utils.NetUtils;
+import com.jd.bdp.hydra.BinaryAnnotation;
+import com.jd.bdp.hydra.Endpoint;
+import com.jd.bdp.hydra.Span;
+import com.jd.bdp.hydra.agent.Tracer;
+import com.jd.bdp.hydra.agent.support.TracerUtils;
+
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+
+/**
+ * Date: 26-10-17
+ * HttpURLConnection发起调用时向下游传递trace，在连接之前调用clientSend：
+ * <pre>
+ * Span span = TraceHttpURLConnection.clientSend(connection);
+ * Throwable error = null;
+ * try {
+ *     connection.getResponseCode();
+ *     ...
+ * } catch (IOException e) {
+ *     error = e;
+ *     throw e;
+ * } finally {
+ *     TraceHttpURLConnection.clientReceive(span, error);
+ * }
+ * </pre>
+ * 只在当前线程已有span时传递，不单独开始trace。spanName为url的path
+ */
+public class TraceHttpURLConnection {
+
+    private static final Tracer tracer = Tracer.getTracer();
+
+    private static volatile Endpoint localEndpoint;
+
+    /**
+     * 设置请求头并记录cs
+     *
+     * @return 客户端span，不需要记录时返回null
+     */
+    public static Span clientSend(HttpURLConnection connection) {
+        Span parent = tracer.getParentSpan();
+        if (parent == null) {
+            return null;
+        }
+        if (!parent.isSample()) {
+            connection.setRequestProperty(TracerUtils.HTTP_HEADER, TracerUtils.SAMPLE_FALSE);
+            return null;
+        }
+        Span span = tracer.genSpan(parent.getTraceId(), parent.getId(), tracer.genSpanId(),
+                connection.getURL().getPath(), true, null);
+        connection.setRequestProperty(TracerUtils.HTTP_HEADER, TracerUtils.toHexHeader(span));
+        tracer.clientSendRecord(span, getLocalEndpoint());
+        return span;
+    }
+
+    /**
+     * 记录cr并发送，span为null时什么都不做
+     *
+     * @param error 调用失败时的异常，可以为null
+     */
+    public static void clientReceive(Span span, Throwable error) {
+        if (span == null) {
+            return;
+        }
+        Endpoint endpoint = span.getRecordHost();
+        if (error != null) {
+            BinaryAnnotation exAnnotation = new BinaryAnnotation();
+            exAnnotation.setKey(TracerUtils.EXCEPTION);
+            exAnnotation.setValue(error.getMessage());
+            exAnnotation.setType("ex");
+            exAnnotation.setHost(endpoint);
+            span.addBinaryAnnotation(exAnnotation);
+        }
+        tracer.clientReceiveRecord(span, endpoint);
+    }
+
+    //HttpURLConnection拿不到本地端口，统一用本机地址
+    private static Endpoint getLocalEndpoint() {
+        Endpoint endpoint = localEndpoint;
+        if (endpoint == null) {
+            endpoint = tracer.getEndpoint(InetSocketAddress.createUnresolved(NetUtils.getLocalHost(), 0));
+            localEndpoint = endpoint;
+        }
+        return endpoint;
+    }
+}
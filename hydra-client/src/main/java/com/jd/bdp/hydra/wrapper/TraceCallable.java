@@ -8,12 +8,14 @@ import java.util.concurrent.Callable;
 /**
  * Date: 13-5-29
  * Time: 上午9:44
+ * 与TraceRunnable相同，执行完恢复线程原来的parentSpan
  */
 public class TraceCallable<V> implements Callable<V> {
 
+    private static final Tracer tracer = Tracer.getTracer();
+
     private final Callable<V> impl;
     private final Span parent;
-    private final Tracer tracer = Tracer.getTracer();
 
     public TraceCallable(Callable<V> impl) {
         this.parent = tracer.getParentSpan();
@@ -25,12 +27,19 @@ public class TraceCallable<V> implements Callable<V> {
         this.parent = parent;
     }
 
+    //已经包装过的不再包装
+    public static <V> Callable<V> wrap(Callable<V> c) {
+        return c instanceof TraceCallable ? c : new TraceCallable<V>(c);
+    }
+
     @Override
     public V call() throws Exception {
-        if (parent != null) {
-            tracer.setParentSpan(parent);
+        Span previous = tracer.swapParentSpan(parent);
+        try {
+            return impl.call();
+        } finally {
+            tracer.swapParentSpan(previous);
         }
-        return impl.call();
     }
 
     public Callable<V> getImpl() {
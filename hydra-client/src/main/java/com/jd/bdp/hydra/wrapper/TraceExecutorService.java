@@ -32,7 +32,7 @@ public class TraceExecutorService implements ExecutorService {
 
   @Override
   public void execute(Runnable command) {
-    impl.execute(new TraceRunnable(command));
+    impl.execute(TraceRunnable.wrap(command));
   }
 
   @Override
@@ -63,24 +63,24 @@ public class TraceExecutorService implements ExecutorService {
 
   @Override
   public <T> Future<T> submit(Callable<T> task) {
-    return impl.submit(new TraceCallable<T>(task));
+    return impl.submit(TraceCallable.wrap(task));
   }
 
   @Override
   public <T> Future<T> submit(Runnable task, T result) {
-    return impl.submit(new TraceRunnable(task), result);
+    return impl.submit(TraceRunnable.wrap(task), result);
   }
 
   @Override
   public Future<?> submit(Runnable task) {
-    return impl.submit(new TraceRunnable(task));
+    return impl.submit(TraceRunnable.wrap(task));
   }
 
   private <T> Collection<? extends Callable<T>> wrapCollection(
       Collection<? extends Callable<T>> tasks) {
     List<Callable<T>> result = new ArrayList<Callable<T>>();
     for (Callable<T> task : tasks) {
-      result.add(new TraceCallable<T>(task));
+      result.add(TraceCallable.wrap(task));
     }
     return result;
   }
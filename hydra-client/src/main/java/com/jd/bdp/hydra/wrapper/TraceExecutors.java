@@ -0,0 +1,128 @@
+package com.jd.bdp.hydra.wrapper;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Date: 26-10-17
+ * 线程池包装的工厂方法。
+ * CompletableFuture的*Async方法需要传入wrap后的executor(默认的commonPool无法包装)，
+ * 例如CompletableFuture.supplyAsync(supplier, TraceExecutors.wrap(executor))，
+ * 或者用这里的supplyAsync/runAsync，在提交时带上parentSpan
+ */
+public class TraceExecutors {
+
+    //客户端按1.7编译，CompletableFuture只能在运行时取
+    private static final Class<?> COMPLETABLE_FUTURE;
+    private static final Method COMPLETE;
+    private static final Method COMPLETE_EXCEPTIONALLY;
+
+    static {
+        Class<?> c = null;
+        Method complete = null;
+        Method completeExceptionally = null;
+        try {
+            c = Class.forName("java.util.concurrent.CompletableFuture");
+            complete = c.getMethod("complete", Object.class);
+            completeExceptionally = c.getMethod("completeExceptionally", Throwable.class);
+        } catch (Exception e) {
+            c = null;
+        }
+        COMPLETABLE_FUTURE = c;
+        COMPLETE = complete;
+        COMPLETE_EXCEPTIONALLY = completeExceptionally;
+    }
+
+    private TraceExecutors() {
+    }
+
+    /**
+     * 在executor上执行task，带上调用线程的parentSpan，对应CompletableFuture.supplyAsync(supplier, executor)。
+     * JDK 8及以上返回CompletableFuture，可以强转后继续thenApply等；之后的*Async阶段仍需传入wrap后的executor
+     */
+    public static <T> Future<T> supplyAsync(Callable<T> task, Executor executor) {
+        final Callable<T> traced = TraceCallable.wrap(task);
+        if (COMPLETABLE_FUTURE == null) {
+            FutureTask<T> future = new FutureTask<T>(traced);
+            executor.execute(future);
+            return future;
+        }
+        final Future<T> future = newCompletableFuture();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                T result;
+                try {
+                    result = traced.call();
+                } catch (Throwable e) {
+                    complete(COMPLETE_EXCEPTIONALLY, future, e);
+                    return;
+                }
+                complete(COMPLETE, future, result);
+            }
+        });
+        return future;
+    }
+
+    //对应CompletableFuture.runAsync(runnable, executor)
+    public static Future<Object> runAsync(Runnable task, Executor executor) {
+        return supplyAsync(Executors.callable(task), executor);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> Future<T> newCompletableFuture() {
+        try {
+            return (Future<T>) COMPLETABLE_FUTURE.newInstance();
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void complete(Method method, Future<?> future, Object value) {
+        try {
+            method.invoke(future, value);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static Executor wrap(Executor executor) {
+        if (executor instanceof TraceExecutor || executor instanceof TraceExecutorService
+                || executor instanceof TraceForkJoinPool) {
+            return executor;
+        }
+        return new TraceExecutor(executor);
+    }
+
+    public static ExecutorService wrap(ExecutorService executor) {
+        return executor instanceof TraceExecutorService ? executor : new TraceExecutorService(executor);
+    }
+
+    public static ScheduledExecutorService wrap(ScheduledExecutorService executor) {
+        return executor instanceof TraceScheduledExecutorService ? executor : new TraceScheduledExecutorService(executor);
+    }
+
+    public static ForkJoinPool newForkJoinPool(int parallelism) {
+        return new TraceForkJoinPool(parallelism);
+    }
+
+    private static class TraceExecutor implements Executor {
+        private final Executor impl;
+
+        TraceExecutor(Executor impl) {
+            this.impl = impl;
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            impl.execute(TraceRunnable.wrap(command));
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.jd.bdp.hydra.wrapper;
+
+import com.jd.bdp.hydra.Span;
+import com.jd.bdp.hydra.agent.Tracer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Date: 26-10-17
+ * 从外部提交到池里的任务带上提交时的parentSpan。
+ * 任务内部fork出的子任务不经过这里，需要继承TraceRecursiveTask/TraceRecursiveAction
+ */
+public class TraceForkJoinPool extends ForkJoinPool {
+
+    private static final Tracer tracer = Tracer.getTracer();
+
+    public TraceForkJoinPool() {
+        super();
+    }
+
+    public TraceForkJoinPool(int parallelism) {
+        super(parallelism);
+    }
+
+    @Override
+    public <T> T invoke(ForkJoinTask<T> task) {
+        return super.invoke(wrap(task));
+    }
+
+    @Override
+    public void execute(ForkJoinTask<?> task) {
+        super.execute(wrap(task));
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        super.execute(TraceRunnable.wrap(task));
+    }
+
+    @Override
+    public <T> ForkJoinTask<T> submit(ForkJoinTask<T> task) {
+        return super.submit(wrap(task));
+    }
+
+    @Override
+    public <T> ForkJoinTask<T> submit(Callable<T> task) {
+        return super.submit(TraceCallable.wrap(task));
+    }
+
+    @Override
+    public <T> ForkJoinTask<T> submit(Runnable task, T result) {
+        return super.submit(TraceRunnable.wrap(task), result);
+    }
+
+    @Override
+    public ForkJoinTask<?> submit(Runnable task) {
+        return super.submit(TraceRunnable.wrap(task));
+    }
+
+    @Override
+    public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> tasks) {
+        return super.invokeAll(wrapCollection(tasks));
+    }
+
+    @Override
+    public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> tasks, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        return super.invokeAll(wrapCollection(tasks), timeout, unit);
+    }
+
+    @Override
+    public <T> T invokeAny(Collection<? extends Callable<T>> tasks) throws InterruptedException, ExecutionException {
+        return super.invokeAny(wrapCollection(tasks));
+    }
+
+    @Override
+    public <T> T invokeAny(Collection<? extends Callable<T>> tasks, long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        return super.invokeAny(wrapCollection(tasks), timeout, unit);
+    }
+
+    private static <T> List<Callable<T>> wrapCollection(Collection<? extends Callable<T>> tasks) {
+        List<Callable<T>> wrapped = new ArrayList<Callable<T>>(tasks.size());
+        for (Callable<T> task : tasks) {
+            wrapped.add(TraceCallable.wrap(task));
+        }
+        return wrapped;
+    }
+
+    //自带parentSpan的任务不再包装
+    private static <T> ForkJoinTask<T> wrap(ForkJoinTask<T> task) {
+        if (task instanceof TraceRecursiveTask || task instanceof TraceRecursiveAction || task instanceof TraceTask) {
+            return task;
+        }
+        return new TraceTask<T>(task, tracer.getParentSpan());
+    }
+
+    //在提交时的parentSpan下执行原任务，原任务随之完成，调用方join原任务也可以
+    private static class TraceTask<T> extends ForkJoinTask<T> {
+        private final ForkJoinTask<T> task;
+        private final Span parent;
+        private T result;
+
+        TraceTask(ForkJoinTask<T> task, Span parent) {
+            this.task = task;
+            this.parent = parent;
+        }
+
+        @Override
+        public T getRawResult() {
+            return result;
+        }
+
+        @Override
+        protected void setRawResult(T value) {
+            this.result = value;
+        }
+
+        @Override
+        protected boolean exec() {
+            Span previous = tracer.swapParentSpan(parent);
+            try {
+                result = task.invoke();
+            } finally {
+                tracer.swapParentSpan(previous);
+            }
+            return true;
+        }
+    }
+}
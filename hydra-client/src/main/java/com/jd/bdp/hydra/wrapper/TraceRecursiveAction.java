@@ -0,0 +1,37 @@
+package com.jd.bdp.hydra.wrapper;
+
+import com.jd.bdp.hydra.Span;
+import com.jd.bdp.hydra.agent.Tracer;
+
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Date: 26-10-17
+ * 创建时记录parentSpan，fork到其他工作线程执行时也在该span下，子类实现doCompute
+ */
+public abstract class TraceRecursiveAction extends RecursiveAction {
+
+    private static final Tracer tracer = Tracer.getTracer();
+
+    private final Span parent;
+
+    protected TraceRecursiveAction() {
+        this.parent = tracer.getParentSpan();
+    }
+
+    protected TraceRecursiveAction(Span parent) {
+        this.parent = parent;
+    }
+
+    @Override
+    protected final void compute() {
+        Span previous = tracer.swapParentSpan(parent);
+        try {
+            doCompute();
+        } finally {
+            tracer.swapParentSpan(previous);
+        }
+    }
+
+    protected abstract void doCompute();
+}
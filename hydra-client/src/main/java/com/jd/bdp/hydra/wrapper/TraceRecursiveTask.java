@@ -0,0 +1,37 @@
+package com.jd.bdp.hydra.wrapper;
+
+import com.jd.bdp.hydra.Span;
+import com.jd.bdp.hydra.agent.Tracer;
+
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Date: 26-10-17
+ * 创建时记录parentSpan，fork到其他工作线程执行时也在该span下，子类实现doCompute
+ */
+public abstract class TraceRecursiveTask<V> extends RecursiveTask<V> {
+
+    private static final Tracer tracer = Tracer.getTracer();
+
+    private final Span parent;
+
+    protected TraceRecursiveTask() {
+        this.parent = tracer.getParentSpan();
+    }
+
+    protected TraceRecursiveTask(Span parent) {
+        this.parent = parent;
+    }
+
+    @Override
+    protected final V compute() {
+        Span previous = tracer.swapParentSpan(parent);
+        try {
+            return doCompute();
+        } finally {
+            tracer.swapParentSpan(previous);
+        }
+    }
+
+    protected abstract V doCompute();
+}
@@ -6,11 +6,13 @@ import com.jd.bdp.hydra.agent.Tracer;
 /**
  * Date: 13-5-29
  * Time: 上午9:50
+ * 创建时记录当前线程的parentSpan，执行时换上，执行完恢复线程原来的值，不会残留在线程池的线程里
  */
 public class TraceRunnable implements Runnable{
+    private static final Tracer tracer = Tracer.getTracer();
+
     private final Span parent;
     private final Runnable runnable;
-    private Tracer tracer = Tracer.getTracer();
 
 
     public TraceRunnable(Runnable r){
@@ -22,11 +24,23 @@ public class TraceRunnable implements Runnable{
         this.runnable = r;
         this.parent = p;
     }
+
+    //已经包装过的不再包装
+    public static Runnable wrap(Runnable r) {
+        return r instanceof TraceRunnable ? r : new TraceRunnable(r);
+    }
+
     @Override
     public void run() {
-        if(parent != null){
-            tracer.setParentSpan(parent);
+        Span previous = tracer.swapParentSpan(parent);
+        try {
+            runnable.run();
+        } finally {
+            tracer.swapParentSpan(previous);
         }
-        runnable.run();
+    }
+
+    public Runnable getImpl() {
+        return runnable;
     }
 }
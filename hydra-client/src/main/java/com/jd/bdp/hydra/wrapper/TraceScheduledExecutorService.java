@@ -0,0 +1,40 @@
+package com.jd.bdp.hydra.wrapper;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Date: 26-10-17
+ * 定时任务在提交时记录parentSpan，周期任务每次执行都使用提交时的parentSpan
+ */
+public class TraceScheduledExecutorService extends TraceExecutorService implements ScheduledExecutorService {
+
+    private final ScheduledExecutorService impl;
+
+    public TraceScheduledExecutorService(ScheduledExecutorService impl) {
+        super(impl);
+        this.impl = impl;
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+        return impl.schedule(TraceRunnable.wrap(command), delay, unit);
+    }
+
+    @Override
+    public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+        return impl.schedule(TraceCallable.wrap(callable), delay, unit);
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit) {
+        return impl.scheduleAtFixedRate(TraceRunnable.wrap(command), initialDelay, period, unit);
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay, TimeUnit unit) {
+        return impl.scheduleWithFixedDelay(TraceRunnable.wrap(command), initialDelay, delay, unit);
+    }
+}
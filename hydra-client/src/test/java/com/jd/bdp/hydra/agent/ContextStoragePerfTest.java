@@ -0,0 +1,97 @@
+package com.jd.bdp.hydra.agent;
+
+import com.jd.bdp.hydra.Span;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Date: 26-10-17
+ * 1. 换上/恢复一次span(一次请求进出)的耗时
+ * 2. 大量线程同时持有span时，每个线程多占用的堆内存(ThreadLocalMap及其表)
+ * 当前jdk没有虚拟线程，用小栈的平台线程模拟大量并发线程
+ */
+public class ContextStoragePerfTest {
+
+    private final Tracer tracer = Tracer.getTracer();
+    private long sink;
+
+    @Test
+    public void testSwap_Performance() {
+        Span span = new Span();
+        int times = 10000000;
+        System.out.println("方式\tns/次");
+        for (int round = 0; round < 3; round++) {//前几轮用于预热
+            long start = System.nanoTime();
+            for (int i = 0; i < times; i++) {
+                Span previous = tracer.swapParentSpan(span);
+                sink += tracer.getParentSpan() == null ? 0 : 1;
+                tracer.swapParentSpan(previous);
+            }
+            long swap = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < times; i++) {
+                Scope scope = tracer.withSpan(span);
+                try {
+                    sink += tracer.getParentSpan() == null ? 0 : 1;
+                } finally {
+                    scope.close();
+                }
+            }
+            long scoped = System.nanoTime() - start;
+            System.out.printf("swap\t%.1f\n", swap * 1.0 / times);
+            System.out.printf("scope\t%.1f\n", scoped * 1.0 / times);
+        }
+        System.out.println("------------------------" + (sink == 0 ? "" : " "));
+    }
+
+    @Test
+    public void testFootprint() throws Exception {
+        int threads = 10000;
+        long base = footprint(threads, false);
+        long used = footprint(threads, true);
+        System.out.printf("线程数\t%d\tbyte/线程\t%.1f\n", threads, (used - base) * 1.0 / threads);
+    }
+
+    //所有线程都进入作用域后统计堆占用
+    private long footprint(int threads, final boolean attach) throws Exception {
+        final CountDownLatch ready = new CountDownLatch(threads);
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread[] list = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            list[i] = new Thread(null, new Runnable() {
+                @Override
+                public void run() {
+                    Scope scope = attach ? tracer.withSpan(new Span()) : null;
+                    ready.countDown();
+                    try {
+                        done.await();
+                    } catch (InterruptedException e) {
+                        //ig
+                    } finally {
+                        if (scope != null) {
+                            scope.close();
+                        }
+                    }
+                }
+            }, "footprint-" + i, 64 * 1024);
+            list[i].start();
+        }
+        ready.await();
+        long used = usedHeap();
+        done.countDown();
+        for (Thread thread : list) {
+            thread.join();
+        }
+        return used;
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
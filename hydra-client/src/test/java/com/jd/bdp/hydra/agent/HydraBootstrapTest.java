@@ -0,0 +1,155 @@
+package com.jd.bdp.hydra.agent;
+
+import com.jd.bdp.hydra.Span;
+import com.jd.bdp.hydra.agent.support.RateLimitSampler;
+import com.jd.bdp.hydra.agent.support.ThreadLocalContextStorage;
+import com.jd.bdp.hydra.agent.support.TraceService;
+import com.jd.bdp.hydra.codec.SpanCompressor;
+import com.jd.bdp.hydra.dubbomonitor.HydraService;
+import com.jd.bdp.hydra.dubbomonitor.LeaderService;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Date: 26-10-17
+ */
+public class HydraBootstrapTest {
+
+    private final Tracer tracer = Tracer.getTracer();
+    private HydraBootstrap bootstrap;
+    private File dir;
+
+    @After
+    public void tearDown() {
+        if (bootstrap != null) {
+            bootstrap.stop();
+        }
+        tracer.setTransfer(null);
+        tracer.setSpanTimeouts(null);
+        tracer.setSampler(new RateLimitSampler());
+        tracer.setContextStorage(new ThreadLocalContextStorage());
+        if (dir != null) {
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void testStartWithoutBlocking() throws Exception {
+        final CountDownLatch registered = new CountDownLatch(1);
+        Properties p = new Properties();
+        p.setProperty("hydra.flushSize", "1");
+        p.setProperty("hydra.delayTime", "10");
+        p.setProperty("hydra.sampleRate", "1000");
+        bootstrap = new HydraBootstrap(p);
+        bootstrap.setLeaderService(new LeaderService() {
+            public Map<String, String> registerClient(String name, List<String> services) {
+                try {//注册慢时不影响调用方
+                    registered.await();
+                } catch (InterruptedException e) {
+                    return null;
+                }
+                Map<String, String> info = new HashMap<String, String>();
+                info.put("seed", "10");
+                info.put("order", "101");
+                return info;
+            }
+
+            public String registerClient(String name, String service) {
+                return null;
+            }
+        });
+        bootstrap.setHydraService(hydraService());
+        bootstrap.start();
+        assertTrue(bootstrap.await(5, TimeUnit.SECONDS));
+        //注册完成前不跟踪
+        assertNull(tracer.getServiceId("order"));
+        assertTrue(!tracer.isSample("101", "get"));
+
+        registered.countDown();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (tracer.getServiceId("order") == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals("101", tracer.getServiceId("order"));
+        assertTrue(tracer.isSample("101", "get"));
+        //重复启动无效
+        tracer.start();
+        bootstrap.start();
+    }
+
+    /**
+     * 压缩、落盘、contextStorage等traceService和Tracer的可选项也能用hydra.properties配置
+     */
+    @Test
+    public void testOptionalKeys() throws Exception {
+        dir = new File(System.getProperty("java.io.tmpdir"), "hydra-bootstrap-" + System.nanoTime());
+        Properties p = new Properties();
+        p.setProperty("hydra.encoded", "true");
+        p.setProperty("hydra.compression", "snappy, deflate");
+        p.setProperty("hydra.dictionarySamples", "8");
+        p.setProperty("hydra.retryDelay", "50");
+        p.setProperty("hydra.journal.dir", dir.getPath());
+        p.setProperty("hydra.journal.segmentSize", "4096");
+        p.setProperty("hydra.contextStorage", ThreadLocalContextStorage.class.getName());
+        p.setProperty("hydra.reportInterval", "60000");//不支持，只打日志
+        ContextStorage before = tracer.getContextStorage();
+        bootstrap = new HydraBootstrap(p);
+        bootstrap.setLeaderService(new LeaderService() {
+            public Map<String, String> registerClient(String name, List<String> services) {
+                return null;
+            }
+
+            public String registerClient(String name, String service) {
+                return null;
+            }
+        });
+        bootstrap.setHydraService(hydraService());
+        bootstrap.start();
+        assertTrue(bootstrap.await(5, TimeUnit.SECONDS));
+
+        TraceService traceService = bootstrap.getTraceService();
+        assertEquals("snappy,deflate", traceService.getCompression());
+        assertEquals(8, traceService.getDictionarySamples());
+        assertEquals(50, traceService.getRetryDelay());
+        assertNotNull(traceService.getJournal());
+        assertTrue(dir.isDirectory());
+        assertTrue(tracer.getContextStorage() instanceof ThreadLocalContextStorage);
+        assertNotSame(before, tracer.getContextStorage());
+    }
+
+    private static HydraService hydraService() {
+        return new HydraService() {
+            public boolean push(List<Span> span) {
+                return true;
+            }
+
+            public boolean pushEncoded(byte[] spans) {
+                return true;
+            }
+
+            public String negotiate(List<String> codecs, byte[] dictionary) {
+                return SpanCompressor.NONE;
+            }
+        };
+    }
+}
@@ -0,0 +1,108 @@
+package com.jd.bdp.hydra.agent;
+
+import com.jd.bdp.hydra.Endpoint;
+import com.jd.bdp.hydra.Span;
+import com.jd.bdp.hydra.agent.support.TraceService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+
+/**
+ * Date: 26-10-17
+ * 本地span的开销：
+ * 1. 未采样时一次startLocalSpan+close
+ * 2. 采样时一次startLocalSpan+close(只记录)
+ * 3. 采样时服务端span结束时生成并发送一个本地span
+ */
+public class LocalSpanPerfTest {
+
+    private final Tracer tracer = Tracer.getTracer();
+    private long ids;
+    private long sink;
+
+    @Before
+    public void setUp() {
+        tracer.setTransfer(new SyncTransfer() {
+            public Long getTraceId() {
+                return ++ids;
+            }
+
+            public Long getSpanId() {
+                return ++ids;
+            }
+
+            public boolean isReady() {
+                return true;
+            }
+
+            public boolean isServiceReady(String serviceName) {
+                return true;
+            }
+
+            public void start() throws Exception {
+            }
+
+            public String getServiceId(String service) {
+                return "10101";
+            }
+
+            public void cancel() {
+            }
+
+            public void syncSend(Span span) {
+                sink += span.getId();
+            }
+
+            public void setTraceService(TraceService traceService) {
+            }
+
+            public String appName() {
+                return "test";
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        tracer.setTransfer(null);
+        tracer.removeParentSpan();
+    }
+
+    @Test
+    public void testLocalSpan_Performance() {
+        Endpoint endpoint = tracer.getEndpoint(new InetSocketAddress("127.0.0.1", 20880));
+        int times = 10000000;
+        int perRequest = 10;
+        System.out.println("场景\tns/个");
+        for (int round = 0; round < 3; round++) {//前几轮用于预热
+            tracer.setParentSpan(Tracer.NOT_SAMPLED);
+            long start = System.nanoTime();
+            for (int i = 0; i < times; i++) {
+                tracer.startLocalSpan("queryDb").close();
+            }
+            long notSampled = System.nanoTime() - start;
+
+            long record = 0;
+            long flush = 0;
+            for (int i = 0; i < times / perRequest; i++) {
+                Span server = tracer.genSpan(1L, 2L, 3L, "getOrder", true, "10101");
+                tracer.serverReceiveRecord(server, endpoint);
+                start = System.nanoTime();
+                for (int j = 0; j < perRequest; j++) {
+                    tracer.startLocalSpan("queryDb").close();
+                }
+                long end = System.nanoTime();
+                record += end - start;
+                tracer.serverSendRecord(server, endpoint);
+                flush += System.nanoTime() - end;
+                tracer.removeParentSpan();
+            }
+            System.out.printf("未采样\t%.1f\n", notSampled * 1.0 / times);
+            System.out.printf("采样记录\t%.1f\n", record * 1.0 / times);
+            System.out.printf("采样发送\t%.1f\n", flush * 1.0 / times);
+        }
+        System.out.println("------------------------" + (sink == 0 ? "" : " "));
+    }
+}
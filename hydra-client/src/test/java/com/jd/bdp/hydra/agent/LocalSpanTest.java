@@ -0,0 +1,236 @@
+package com.jd.bdp.hydra.agent;
+
+import com.jd.bdp.hydra.Annotation;
+import com.jd.bdp.hydra.Endpoint;
+import com.jd.bdp.hydra.Span;
+import com.jd.bdp.hydra.agent.support.TraceService;
+import com.jd.bdp.hydra.agent.support.TracerUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Date: 26-10-17
+ */
+public class LocalSpanTest {
+
+    private final Tracer tracer = Tracer.getTracer();
+    private final List<Span> sent = new ArrayList<Span>();
+    private final AtomicLong ids = new AtomicLong(100);
+    private Endpoint endpoint;
+
+    @Before
+    public void setUp() {
+        tracer.setTransfer(new TestSyncTransfer());
+        endpoint = tracer.getEndpoint(new InetSocketAddress("127.0.0.1", 20880));
+    }
+
+    @After
+    public void tearDown() {
+        tracer.setTransfer(null);
+        tracer.removeParentSpan();
+    }
+
+    /**
+     * 本地span随服务端span一起发送，嵌套的以外层本地span为parent，时间在sr和ss之间
+     */
+    @Test
+    public void testLocalSpan_FlushWithServerSpan() throws Exception {
+        Span server = tracer.genSpan(1L, 2L, 3L, "getOrder", true, "10101");
+        tracer.serverReceiveRecord(server, endpoint);
+        LocalSpan outer = tracer.startLocalSpan("loadOrder");
+        try {
+            LocalSpan inner = tracer.startLocalSpan("queryDb");
+            try {
+                Thread.sleep(2);
+            } finally {
+                inner.close();
+            }
+            LocalSpan cache = tracer.startLocalSpan("queryCache");
+            cache.close();
+        } finally {
+            outer.close();
+        }
+        Assert.assertTrue(sent.isEmpty());
+        tracer.serverSendRecord(server, endpoint);
+
+        Assert.assertEquals(4, sent.size());
+        Span load = find("loadOrder");
+        Span db = find("queryDb");
+        Span cache = find("queryCache");
+        Assert.assertSame(server, sent.get(3));
+        Assert.assertEquals(Long.valueOf(3), load.getParentId());
+        Assert.assertEquals(load.getId(), db.getParentId());
+        Assert.assertEquals(load.getId(), cache.getParentId());
+        Assert.assertNotEquals(db.getId(), cache.getId());
+        for (Span span : new Span[]{load, db, cache}) {
+            Assert.assertEquals(Long.valueOf(1), span.getTraceId());
+            Assert.assertEquals("10101", span.getServiceId());
+            Assert.assertTrue(span.isSample());
+            Assert.assertEquals(TracerUtils.LOCAL_COMPONENT, span.getBinaryAnnotations().get(0).getKey());
+            List<Annotation> annotations = span.getAnnotations();
+            Assert.assertEquals(Annotation.CLIENT_SEND, annotations.get(0).getValue());
+            Assert.assertEquals(Annotation.CLIENT_RECEIVE, annotations.get(1).getValue());
+            Assert.assertSame(endpoint, annotations.get(0).getHost());
+            Assert.assertTrue(annotations.get(0).getTimestampUs() >= us(server, Annotation.SERVER_RECEIVE));
+            Assert.assertTrue(annotations.get(1).getTimestampUs() <= us(server, Annotation.SERVER_SEND));
+        }
+        Assert.assertTrue(us(db, Annotation.CLIENT_RECEIVE) - us(db, Annotation.CLIENT_SEND) >= 2000);
+    }
+
+    /**
+     * 没有span或未采样时不记录
+     */
+    @Test
+    public void testLocalSpan_NotSampled() {
+        LocalSpan local = tracer.startLocalSpan("queryDb");
+        Assert.assertSame(LocalSpan.NOOP, local);
+        local.close();
+        tracer.setParentSpan(Tracer.NOT_SAMPLED);
+        local = tracer.startLocalSpan("queryDb");
+        Assert.assertSame(LocalSpan.NOOP, local);
+        local.close();
+        Assert.assertTrue(sent.isEmpty());
+    }
+
+    /**
+     * 外层span不是本线程的服务端span(如传给线程池的任务)时，最外层的本地span结束就发送
+     */
+    @Test
+    public void testLocalSpan_FlushOnOutermostClose() throws Exception {
+        final Span server = tracer.genSpan(1L, 2L, 3L, "getOrder", true, "10101");
+        tracer.serverReceiveRecord(server, endpoint);
+        Thread worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Scope scope = tracer.withSpan(server);
+                try {
+                    LocalSpan outer = tracer.startLocalSpan("async");
+                    LocalSpan inner = tracer.startLocalSpan("queryDb");
+                    inner.close();
+                    synchronized (sent) {
+                        Assert.assertTrue(sent.isEmpty());
+                    }
+                    outer.close();
+                } finally {
+                    scope.close();
+                }
+            }
+        });
+        worker.start();
+        worker.join();
+        Assert.assertEquals(2, sent.size());
+        Assert.assertEquals(find("async").getId(), find("queryDb").getParentId());
+        Assert.assertSame(endpoint, find("async").getAnnotations().get(0).getHost());
+        tracer.serverSendRecord(server, endpoint);
+        Assert.assertEquals(3, sent.size());
+    }
+
+    /**
+     * 超出容量的本地span丢弃，开始结束仍然配对
+     */
+    @Test
+    public void testLocalSpan_Overflow() {
+        Span server = tracer.genSpan(1L, 2L, 3L, "getOrder", true, "10101");
+        tracer.serverReceiveRecord(server, endpoint);
+        for (int i = 0; i < LocalSpan.CAPACITY + 10; i++) {
+            LocalSpan outer = tracer.startLocalSpan("outer");
+            LocalSpan inner = tracer.startLocalSpan("inner");
+            inner.close();
+            outer.close();
+        }
+        tracer.serverSendRecord(server, endpoint);
+        Assert.assertEquals(LocalSpan.CAPACITY + 1, sent.size());
+
+        sent.clear();
+        server = tracer.genSpan(1L, 2L, 4L, "getOrder", true, "10101");
+        tracer.serverReceiveRecord(server, endpoint);
+        tracer.startLocalSpan("next").close();
+        tracer.serverSendRecord(server, endpoint);
+        Assert.assertEquals(2, sent.size());
+        Assert.assertEquals(Long.valueOf(4), find("next").getParentId());
+    }
+
+    /**
+     * 上一个请求的服务端span没有在本线程结束，下一个请求开始时把遗留的本地span发出去
+     */
+    @Test
+    public void testLocalSpan_Abandoned() {
+        Span first = tracer.genSpan(1L, 2L, 3L, "getOrder", true, "10101");
+        tracer.serverReceiveRecord(first, endpoint);
+        tracer.startLocalSpan("queryDb").close();
+        Span second = tracer.genSpan(5L, 6L, 7L, "getOrder", true, "10101");
+        tracer.serverReceiveRecord(second, endpoint);
+        Assert.assertEquals(1, sent.size());
+        Assert.assertEquals(Long.valueOf(3), sent.get(0).getParentId());
+        tracer.serverSendRecord(second, endpoint);
+        Assert.assertEquals(2, sent.size());
+    }
+
+    private Span find(String name) {
+        synchronized (sent) {
+            for (Span span : sent) {
+                if (name.equals(span.getSpanName())) {
+                    return span;
+                }
+            }
+        }
+        throw new AssertionError(name);
+    }
+
+    private static long us(Span span, String value) {
+        for (Annotation a : span.getAnnotations()) {
+            if (value.equals(a.getValue())) {
+                return a.getTimestampUs();
+            }
+        }
+        throw new AssertionError(value);
+    }
+
+    private class TestSyncTransfer implements SyncTransfer {
+        public Long getTraceId() {
+            return ids.incrementAndGet();
+        }
+
+        public Long getSpanId() {
+            return ids.incrementAndGet();
+        }
+
+        public boolean isReady() {
+            return true;
+        }
+
+        public boolean isServiceReady(String serviceName) {
+            return true;
+        }
+
+        public void start() throws Exception {
+        }
+
+        public String getServiceId(String service) {
+            return "10101";
+        }
+
+        public void cancel() {
+        }
+
+        public void syncSend(Span span) {
+            synchronized (sent) {
+                sent.add(span);
+            }
+        }
+
+        public void setTraceService(TraceService traceService) {
+        }
+
+        public String appName() {
+            return "test";
+        }
+    }
+}
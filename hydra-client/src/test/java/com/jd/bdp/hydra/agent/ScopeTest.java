@@ -0,0 +1,204 @@
+package com.jd.bdp.hydra.agent;
+
+import com.jd.bdp.hydra.Span;
+import com.jd.bdp.hydra.agent.support.ThreadLocalContextStorage;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Date: 26-10-17
+ */
+public class ScopeTest {
+
+    private final Tracer tracer = Tracer.getTracer();
+
+    @After
+    public void tearDown() {
+        tracer.setContextStorage(new ThreadLocalContextStorage());
+    }
+
+    /**
+     * 嵌套作用域按相反顺序恢复，重复关闭无效
+     */
+    @Test
+    public void testWithSpan_Nested() {
+        Span a = new Span();
+        Span b = new Span();
+        Scope outer = tracer.withSpan(a);
+        try {
+            Assert.assertSame(a, tracer.getParentSpan());
+            Scope inner = tracer.withSpan(b);
+            try {
+                Assert.assertSame(b, tracer.getParentSpan());
+            } finally {
+                inner.close();
+            }
+            inner.close();
+            Assert.assertSame(a, tracer.getParentSpan());
+            Scope cleared = tracer.withSpan(null);
+            try {
+                Assert.assertNull(tracer.getParentSpan());
+            } finally {
+                cleared.close();
+            }
+            Assert.assertSame(a, tracer.getParentSpan());
+        } finally {
+            outer.close();
+        }
+        Assert.assertNull(tracer.getParentSpan());
+    }
+
+    /**
+     * 替换存放方式后，Tracer的读写都经过它
+     */
+    @Test
+    public void testContextStorage_Pluggable() {
+        final AtomicInteger swaps = new AtomicInteger();
+        tracer.setContextStorage(new ContextStorage() {
+            private Span current;
+
+            @Override
+            public Span get() {
+                return current;
+            }
+
+            @Override
+            public Span swap(Span span) {
+                swaps.incrementAndGet();
+                Span old = current;
+                current = span;
+                return old;
+            }
+        });
+        Span span = new Span();
+        tracer.setParentSpan(span);
+        Assert.assertSame(span, tracer.getParentSpan());
+        tracer.removeParentSpan();
+        Assert.assertNull(tracer.getParentSpan());
+        Assert.assertEquals(2, swaps.get());
+    }
+
+    /**
+     * runWith在默认实现上用swap换上再换回，异常时也恢复
+     */
+    @Test
+    public void testRunWith_ThreadLocal() throws Exception {
+        final Span span = new Span();
+        Span result = tracer.runWith(span, new Callable<Span>() {
+            @Override
+            public Span call() throws Exception {
+                return tracer.getParentSpan();
+            }
+        });
+        Assert.assertSame(span, result);
+        Assert.assertNull(tracer.getParentSpan());
+        try {
+            tracer.runWith(span, new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    throw new IllegalStateException("fail");
+                }
+            });
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            Assert.assertNull(tracer.getParentSpan());
+        }
+    }
+
+    /**
+     * 按ScopedValue方式绑定：span只在call内可见，call内的swap(HydraFilter等)只改当前绑定，
+     * 结束后绑定失效，不需要换回
+     */
+    @Test
+    public void testRunWith_Scoped() throws Exception {
+        final BindingContextStorage storage = new BindingContextStorage();
+        tracer.setContextStorage(storage);
+        final Span outer = new Span();
+        final Span inner = new Span();
+        final Span nested = new Span();
+        final List<Span> seen = new ArrayList<Span>();
+        tracer.runWith(outer, new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                seen.add(tracer.getParentSpan());
+                tracer.runWith(inner, new Callable<Object>() {
+                    @Override
+                    public Object call() throws Exception {
+                        seen.add(tracer.getParentSpan());
+                        Span previous = tracer.swapParentSpan(nested);
+                        seen.add(tracer.getParentSpan());
+                        seen.add(previous);
+                        return null;
+                    }
+                });
+                seen.add(tracer.getParentSpan());
+                return null;
+            }
+        });
+        Assert.assertEquals(5, seen.size());
+        Assert.assertSame(outer, seen.get(0));
+        Assert.assertSame(inner, seen.get(1));
+        Assert.assertSame(nested, seen.get(2));
+        Assert.assertSame(inner, seen.get(3));
+        Assert.assertSame(outer, seen.get(4));
+        Assert.assertNull(tracer.getParentSpan());
+        Assert.assertEquals(0, storage.depth());
+    }
+
+    /**
+     * 模拟ScopedValue.where(KEY, holder).call(task)：绑定只能在call中建立，结束时自动失效
+     */
+    private static class BindingContextStorage implements ScopedContextStorage {
+
+        private final ThreadLocal<List<Span[]>> bindings = new ThreadLocal<List<Span[]>>() {
+            @Override
+            protected List<Span[]> initialValue() {
+                return new ArrayList<Span[]>();
+            }
+        };
+        private final ThreadLocalContextStorage unbound = new ThreadLocalContextStorage();
+
+        @Override
+        public <T> T call(Span span, Callable<T> task) throws Exception {
+            List<Span[]> stack = bindings.get();
+            stack.add(new Span[]{span});
+            try {
+                return task.call();
+            } finally {
+                stack.remove(stack.size() - 1);
+            }
+        }
+
+        @Override
+        public Span get() {
+            Span[] holder = current();
+            return holder == null ? unbound.get() : holder[0];
+        }
+
+        @Override
+        public Span swap(Span span) {
+            Span[] holder = current();
+            if (holder == null) {
+                return unbound.swap(span);
+            }
+            Span old = holder[0];
+            holder[0] = span;
+            return old;
+        }
+
+        int depth() {
+            return bindings.get().size();
+        }
+
+        private Span[] current() {
+            List<Span[]> stack = bindings.get();
+            return stack.isEmpty() ? null : stack.get(stack.size() - 1);
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package com.jd.bdp.hydra.agent;
 
 import com.jd.bdp.hydra.Span;
+import com.jd.bdp.hydra.codec.SpanCompressor;
 import com.jd.bdp.hydra.dubbomonitor.HydraService;
 
 import java.util.List;
@@ -16,4 +17,15 @@ public class TestHydraService implements HydraService{
         System.out.println("span size:"+span.size());
         return false;
     }
+
+    @Override
+    public boolean pushEncoded(byte[] spans) {
+        System.out.println("bytes:"+spans.length);
+        return false;
+    }
+
+    @Override
+    public String negotiate(List<String> codecs, byte[] dictionary) {
+        return SpanCompressor.negotiate(codecs);
+    }
 }
@@ -0,0 +1,213 @@
+package com.jd.bdp.hydra.agent;
+
+import com.alibaba.dubbo.rpc.RpcInvocation;
+import com.jd.bdp.hydra.Annotation;
+import com.jd.bdp.hydra.Endpoint;
+import com.jd.bdp.hydra.Span;
+import com.jd.bdp.hydra.agent.support.TraceService;
+import com.jd.bdp.hydra.agent.support.TracerUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Date: 26-10-17
+ * HydraFilter.invoke中记录span的开销(消费端root span + 提供端span)，分采样和不采样两种情况
+ * 其中RpcInvocation及其attachment的分配属于dubbo本身
+ * HydraFilter的静态初始化依赖完整的dubbo环境，这里直接按invoke的步骤调用Tracer
+ */
+public class TracerRecordPerfTest {
+
+    private final Tracer tracer = Tracer.getTracer();
+    private final InetSocketAddress address = new InetSocketAddress("127.0.0.1", 20880);
+    private final AtomicLong ids = new AtomicLong();
+    private Span last;
+    private boolean sample;
+    private Sampler oldSampler;
+
+    @Before
+    public void setUp() {
+        oldSampler = tracer.getSampler();
+        tracer.setSampler(new Sampler() {
+            public boolean isSample() {
+                return sample;
+            }
+
+            public boolean isSample(String serviceId, String method) {
+                return sample;
+            }
+        });
+        tracer.setTransfer(new TestSyncTransfer());
+    }
+
+    @After
+    public void tearDown() {
+        tracer.setSampler(oldSampler);
+        tracer.setTransfer(null);
+    }
+
+    /**
+     * 采样时生成的annotation与原来一致
+     */
+    @Test
+    public void testRecord_Annotations() {
+        sample = true;
+        invoke();
+        List<Annotation> annotations = last.getAnnotations();
+        Assert.assertEquals(2, annotations.size());
+        Assert.assertEquals(Annotation.CLIENT_SEND, annotations.get(0).getValue());
+        Assert.assertEquals(Annotation.CLIENT_RECEIVE, annotations.get(1).getValue());
+        Assert.assertTrue(annotations.get(0).getHost().getIp().endsWith(":20880"));
+        Assert.assertSame(annotations.get(0).getHost(), tracer.getEndpoint(address));
+    }
+
+    /**
+     * 时间戳精确到us，且结束时间不早于开始时间
+     */
+    @Test
+    public void testRecord_Microsecond() throws Exception {
+        sample = true;
+        Endpoint endpoint = tracer.getEndpoint(address);
+        Span span = tracer.newSampledSpan("sayHello", "10101");
+        long before = System.currentTimeMillis() * 1000;
+        tracer.clientSendRecord(span, endpoint);
+        Thread.sleep(3);
+        tracer.clientReceiveRecord(span, endpoint);
+        List<Annotation> annotations = last.getAnnotations();
+        Annotation cs = annotations.get(0);
+        Annotation cr = annotations.get(1);
+        Assert.assertTrue(cs.getTimestampUs() >= before);
+        Assert.assertEquals(cs.getTimestampUs() / 1000, cs.getTimestamp().longValue());
+        Assert.assertEquals(cr.getTimestampUs() / 1000, cr.getTimestamp().longValue());
+        long duration = cr.getTimestampUs() - cs.getTimestampUs();
+        Assert.assertTrue(duration >= 3000);
+        Assert.assertTrue(duration < 1000000);
+    }
+
+    /**
+     * 老版本annotation只有ms时间戳
+     */
+    @Test
+    public void testRecord_MillisecondCompatible() {
+        Span span = new Span();
+        span.recordStart(false, 1000L, tracer.getEndpoint(address));
+        span.recordEnd(1005L);
+        Assert.assertEquals(1000000L, span.getAnnotations().get(0).getTimestampUs().longValue());
+        Assert.assertEquals(1005L, span.getAnnotations().get(1).getTimestamp().longValue());
+        Annotation old = new Annotation(7L, Annotation.SERVER_SEND, null);
+        Assert.assertEquals(7000L, old.getTimestampUs().longValue());
+    }
+
+    @Test
+    public void testRecord_Performance() {
+        int times = 2000000;
+        System.out.println("采样\tns/次\tbyte/次");
+        for (int round = 0; round < 3; round++) {//前几轮用于预热
+            for (boolean s : new boolean[]{true, false}) {
+                sample = s;
+                long bytes = allocatedBytes();
+                long start = System.nanoTime();
+                for (int i = 0; i < times; i++) {
+                    invoke();
+                }
+                long cost = System.nanoTime() - start;
+                bytes = allocatedBytes() - bytes;
+                System.out.printf("%s\t%.1f\t%.1f\n", s, 1.0 * cost / times, 1.0 * bytes / times);
+            }
+        }
+        System.out.println("------------------------");
+    }
+
+    //与HydraFilter.invoke的步骤一致
+    private void invoke() {
+        //消费端
+        RpcInvocation invocation = new RpcInvocation();
+        Span parent = tracer.getParentSpan();
+        if (parent == null ? !tracer.isSample("10101", "sayHello") : !parent.isSample()) {
+            invocation.setAttachment(TracerUtils.SAMPLE, TracerUtils.SAMPLE_FALSE);
+            provider(invocation);
+            return;
+        }
+        Endpoint endpoint = tracer.getEndpoint(address);
+        Span span = tracer.newSampledSpan("sayHello", "10101");
+        tracer.clientSendRecord(span, endpoint);
+        invocation.setAttachment(TracerUtils.SID, Long.toString(span.getId()));
+        invocation.setAttachment(TracerUtils.TID, Long.toString(span.getTraceId()));
+        provider(invocation);
+        tracer.clientReceiveRecord(span, endpoint);
+    }
+
+    private void provider(RpcInvocation invocation) {
+        if (invocation.getAttachment(TracerUtils.TID) == null) {
+            tracer.setParentSpan(Tracer.NOT_SAMPLED);
+            try {
+                Assert.assertFalse(tracer.getParentSpan().isSample());
+            } finally {
+                tracer.removeParentSpan();
+            }
+            return;
+        }
+        Endpoint endpoint = tracer.getEndpoint(address);
+        Long traceId = TracerUtils.getAttachmentLong(invocation.getAttachment(TracerUtils.TID));
+        Long parentId = TracerUtils.getAttachmentLong(invocation.getAttachment(TracerUtils.PID));
+        Long spanId = TracerUtils.getAttachmentLong(invocation.getAttachment(TracerUtils.SID));
+        Span span = tracer.genSpan(traceId, parentId, spanId, "sayHello", true, "10101");
+        tracer.serverReceiveRecord(span, endpoint);
+        tracer.setParentSpan(span);
+        tracer.serverSendRecord(span, endpoint);
+        tracer.removeParentSpan();
+    }
+
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    private class TestSyncTransfer implements SyncTransfer {
+        public Long getTraceId() {
+            return ids.incrementAndGet();
+        }
+
+        public Long getSpanId() {
+            return ids.incrementAndGet();
+        }
+
+        public boolean isReady() {
+            return true;
+        }
+
+        public boolean isServiceReady(String serviceName) {
+            return true;
+        }
+
+        public void start() throws Exception {
+        }
+
+        public String getServiceId(String service) {
+            return "10101";
+        }
+
+        public void cancel() {
+        }
+
+        public void syncSend(Span span) {
+            last = span;
+        }
+
+        public void setTraceService(TraceService traceService) {
+        }
+
+        public String appName() {
+            return "test";
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.jd.bdp.hydra.agent.metrics;
+
+import org.junit.After;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Date: 26-10-17
+ */
+public class AgentMetricsTest {
+
+    private AgentMetrics metrics;
+
+    @After
+    public void tearDown() {
+        if (metrics != null) {
+            metrics.stop();
+        }
+    }
+
+    @Test
+    public void testStripedCounter() throws Exception {
+        final StripedCounter counter = new StripedCounter();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < 100000; i++) {
+                        counter.increment();
+                    }
+                    counter.add(10);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(8 * 100010L, counter.sum());
+    }
+
+    @Test
+    public void testHistogram() {
+        Histogram histogram = new Histogram();
+        assertEquals(0, histogram.getValueAtPercentile(99));
+        List<Long> values = new ArrayList<Long>();
+        Random random = new Random(17);
+        for (int i = 0; i < 100000; i++) {
+            long v = (long) Math.abs(random.nextGaussian() * 5000);
+            values.add(v);
+            histogram.record(v);
+        }
+        Collections.sort(values);
+        for (double p : new double[]{50, 90, 99, 99.9}) {
+            long exact = values.get((int) Math.ceil(p / 100 * values.size()) - 1);
+            long v = histogram.getValueAtPercentile(p);
+            //桶上界不小于真实值，相对误差不超过1/32
+            assertTrue(p + ": " + v + " < " + exact, v >= exact);
+            assertTrue(p + ": " + v + " > " + exact, v - exact <= exact / 32 + 1);
+        }
+        assertEquals(values.get(values.size() - 1).longValue(), histogram.getMax());
+        assertEquals(values.get(values.size() - 1).longValue(), histogram.getValueAtPercentile(100));
+        assertEquals(100000, histogram.getCount());
+        //小值精确
+        for (long v = 0; v < 64; v++) {
+            assertEquals(v, Histogram.highestEquivalentValue(Histogram.index(v)));
+        }
+        assertEquals(Long.MAX_VALUE, Histogram.highestEquivalentValue(Histogram.index(Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void testJmxAndSnapshot() throws Exception {
+        metrics = new AgentMetrics();
+        metrics.onEnqueue();
+        metrics.onEnqueue();
+        metrics.onQueueFull();
+        metrics.onSampleDecision(true);
+        metrics.onSampleDecision(false);
+        metrics.onBatch(10);
+        metrics.onBatch(30);
+        metrics.onPush(2000000);
+        metrics.onSent(40);
+        metrics.start();
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(AgentMetrics.OBJECT_NAME);
+        assertTrue(server.isRegistered(name));
+        assertEquals(2L, server.getAttribute(name, "EnqueuedCount"));
+        assertEquals(1L, server.getAttribute(name, "QueueFullCount"));
+        assertEquals(40L, server.getAttribute(name, "SentCount"));
+        assertEquals(2L, server.getAttribute(name, "BatchCount"));
+        assertEquals(20.0, (Double) server.getAttribute(name, "BatchSizeMean"), 0.001);
+        assertEquals(0.5, (Double) server.getAttribute(name, "SampleRatio"), 0.001);
+        assertEquals(2000L, server.getAttribute(name, "PushLatencyMax"));
+        assertEquals(false, server.getAttribute(name, "Registered"));
+
+        Map<String, Object> snapshot = metrics.snapshot();
+        assertEquals(2L, snapshot.get("EnqueuedCount"));
+        assertEquals(0, snapshot.get("QueueSize"));
+        //快照的键与MBean属性一一对应
+        assertEquals(server.getMBeanInfo(name).getAttributes().length, snapshot.size());
+
+        metrics.stop();
+        assertFalse(server.isRegistered(name));
+    }
+}
@@ -0,0 +1,64 @@
+package com.jd.bdp.hydra.agent.metrics;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Date: 26-10-17
+ * 多线程计数时AtomicLong与StripedCounter的耗时，单核机器上看不出争用的差别
+ */
+public class StripedCounterPerfTest {
+
+    private interface Counter {
+        void increment();
+    }
+
+    @Test
+    public void testCounter_Performance() throws Exception {
+        final AtomicLong atomic = new AtomicLong();
+        final StripedCounter striped = new StripedCounter();
+        Counter a = new Counter() {
+            public void increment() {
+                atomic.incrementAndGet();
+            }
+        };
+        Counter s = new Counter() {
+            public void increment() {
+                striped.increment();
+            }
+        };
+        int times = 5000000;
+        System.out.println("线程数\tAtomicLong(ns/次)\tStripedCounter(ns/次)");
+        for (int round = 0; round < 3; round++) {//前几轮用于预热
+            for (int threads : new int[]{1, 4}) {
+                long t1 = run(a, threads, times);
+                long t2 = run(s, threads, times);
+                System.out.printf("%d\t%.1f\t%.1f\n", threads, t1 * 1.0 / times / threads, t2 * 1.0 / times / threads);
+            }
+        }
+        System.out.println("------------------------");
+    }
+
+    //返回所有线程完成的总耗时
+    private long run(final Counter counter, int threads, final int times) throws Exception {
+        Thread[] list = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            list[t] = new Thread(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < times; i++) {
+                        counter.increment();
+                    }
+                }
+            });
+        }
+        long start = System.nanoTime();
+        for (Thread thread : list) {
+            thread.start();
+        }
+        for (Thread thread : list) {
+            thread.join();
+        }
+        return System.nanoTime() - start;
+    }
+}
@@ -0,0 +1,138 @@
+package com.jd.bdp.hydra.agent.support;
+
+import com.jd.bdp.hydra.Span;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Date: 26-10-17
+ */
+public class DefaultSyncTransferTest {
+
+    private DefaultSyncTransfer transfer;
+    private final List<Integer> batches = new CopyOnWriteArrayList<Integer>();
+
+    private DefaultSyncTransfer start(long flushSize, long delayTime, Long batchBytes) throws Exception {
+        Configuration c = new Configuration();
+        c.setFlushSize(flushSize);
+        c.setDelayTime(delayTime);
+        c.setBatchBytes(batchBytes);
+        c.setQueueSize(1024);
+        transfer = new DefaultSyncTransfer(c);
+        transfer.setTraceService(new TraceService() {
+            @Override
+            public boolean registerService(String name, List<String> services) {
+                return true;
+            }
+
+            @Override
+            public Long getSeed() {
+                return 1L;
+            }
+
+            @Override
+            public void sendSpan(List<Span> spanList) {
+                batches.add(spanList.size());
+            }
+        });
+        transfer.start();
+        while (!transfer.isReady()) {
+            Thread.sleep(1);
+        }
+        return transfer;
+    }
+
+    @After
+    public void tearDown() {
+        if (transfer != null) {
+            transfer.cancel();
+        }
+    }
+
+    /**
+     * 攒够flushSize条立即发送
+     */
+    @Test
+    public void testFlushBySize() throws Exception {
+        start(10, 60000, null);
+        for (int i = 0; i < 25; i++) {
+            transfer.syncSend(newSpan());
+        }
+        Thread.sleep(200);
+        Assert.assertEquals(2, batches.size());
+        Assert.assertEquals(Integer.valueOf(10), batches.get(0));
+        Assert.assertEquals(Integer.valueOf(10), batches.get(1));
+    }
+
+    /**
+     * 不满一批时，超过delayTime后发送
+     */
+    @Test
+    public void testFlushByDelay() throws Exception {
+        start(1000, 300, null);
+        for (int i = 0; i < 5; i++) {
+            transfer.syncSend(newSpan());
+        }
+        Thread.sleep(100);
+        Assert.assertTrue(batches.isEmpty());
+        Thread.sleep(500);
+        Assert.assertEquals(1, batches.size());
+        Assert.assertEquals(Integer.valueOf(5), batches.get(0));
+    }
+
+    /**
+     * 超过字节上限时拆成多批
+     */
+    @Test
+    public void testFlushByBytes() throws Exception {
+        Span span = newSpan();
+        start(1000, 60000, TracerUtils.estimateSize(span) * 3);
+        for (int i = 0; i < 7; i++) {
+            transfer.syncSend(newSpan());
+        }
+        Thread.sleep(200);
+        Assert.assertEquals(Arrays.asList(3, 3), new ArrayList<Integer>(batches));
+    }
+
+    /**
+     * 没有配置节点号时，注册后用leader下发的seed作节点号
+     */
+    @Test
+    public void testIdNodeFromSeed() throws Exception {
+        start(10, 60000, null);
+        long id = transfer.getTraceId();
+        Assert.assertEquals(1L, (id >>> GenerateTraceId.SEQUENCE_BITS) & GenerateTraceId.MAX_NODE);
+        id = transfer.getSpanId();
+        Assert.assertEquals(1L, (id >>> GenerateTraceId.SEQUENCE_BITS) & GenerateTraceId.MAX_NODE);
+    }
+
+    /**
+     * cancel时发出缓存中不满一批的span和队列里剩余的span
+     */
+    @Test
+    public void testFlushOnCancel() throws Exception {
+        start(4, 60000, null);
+        for (int i = 0; i < 6; i++) {
+            transfer.syncSend(newSpan());
+        }
+        Thread.sleep(100);
+        Assert.assertEquals(Arrays.asList(4), new ArrayList<Integer>(batches));
+        transfer.cancel();
+        Assert.assertEquals(Arrays.asList(4, 2), new ArrayList<Integer>(batches));
+    }
+
+    private Span newSpan() {
+        Span span = new Span();
+        span.setTraceId(1L);
+        span.setId(2L);
+        span.setSpanName("sayHello");
+        span.setServiceId("10101");
+        return span;
+    }
+}
@@ -4,7 +4,11 @@ import com.jd.bdp.hydra.agent.support.util.BinaryReadWrite;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
@@ -48,6 +52,56 @@ public class GenerateTraceIdTest {
         System.out.println("------------------------");
         Thread.sleep(10);
     }
+    /**
+     * id的组成：时间戳、节点号，并发生成不重复
+     */
+    @Test
+    public void testGetTraceId_Layout() throws Exception {
+        final GenerateTraceId g = new GenerateTraceId(5L);
+        long before = System.currentTimeMillis() - GenerateTraceId.EPOCH;
+        long id = g.getTraceId();
+        Assert.assertTrue(id > 0);
+        Assert.assertEquals(5L, (id >>> GenerateTraceId.SEQUENCE_BITS) & GenerateTraceId.MAX_NODE);
+        Assert.assertTrue((id >>> (GenerateTraceId.NODE_BITS + GenerateTraceId.SEQUENCE_BITS)) >= before);
+        Assert.assertEquals(1023L, new GenerateTraceId(1023L).getNode());
+        Assert.assertEquals(2047L, new GenerateTraceId(1023L + 1024L).getNode());//相差1024的seed不再共用节点号
+        Assert.assertEquals(5L, new GenerateTraceId(GenerateTraceId.MAX_NODE + 1 + 5L).getNode());
+
+        final Set<Long> ids = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    for (int j = 0; j < 50000; j++) {//超过每ms 256个时借用后面的时间戳
+                        ids.add(g.getTraceId());
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        Assert.assertEquals(4 * 50000, ids.size());
+    }
+
+    /**
+     * 没有节点号时随机生成63位正数
+     */
+    @Test
+    public void testGetTraceId_Random() throws Exception {
+        GenerateTraceId g = new GenerateTraceId();
+        Assert.assertTrue(g.isRandom());
+        Set<Long> ids = new HashSet<Long>();
+        for (int i = 0; i < 100000; i++) {
+            long id = g.getTraceId();
+            Assert.assertTrue(id > 0);
+            ids.add(id);
+        }
+        Assert.assertEquals(100000, ids.size());
+        Assert.assertFalse(new GenerateTraceId(0L).isRandom());
+    }
+
     /**
      * 单线程压力测试
      */
@@ -0,0 +1,157 @@
+package com.jd.bdp.hydra.agent.support;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Arrays;
+
+/**
+ * Date: 26-10-17
+ */
+public class MmapSpanRingTest {
+
+    private File file;
+
+    @Before
+    public void setUp() {
+        file = new File(System.getProperty("java.io.tmpdir"), "hydra-ring-" + System.nanoTime() + ".ring");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    /**
+     * 读写两端各自映射同一文件，多次回绕后仍按顺序读到完整记录
+     */
+    @Test
+    public void testOfferPoll_Wrap() throws Exception {
+        MmapSpanRing writer = new MmapSpanRing(file.getPath(), 1024);
+        MmapSpanRing reader = MmapSpanRing.open(file.getPath());
+        try {
+            Assert.assertNull(reader.poll());
+            for (int i = 0; i < 200; i++) {
+                byte[] record = record(i, 1 + i % 150);
+                Assert.assertTrue(writer.offer(record));
+                Assert.assertArrayEquals(record, reader.poll());
+                Assert.assertNull(reader.poll());
+            }
+            Assert.assertEquals(0, reader.pending());
+        } finally {
+            writer.close();
+            reader.close();
+        }
+    }
+
+    /**
+     * 写满后立即返回false，读走后可以继续写；超过容量一半的记录拒绝
+     */
+    @Test
+    public void testOffer_Full() throws Exception {
+        MmapSpanRing writer = new MmapSpanRing(file.getPath(), 1024);
+        MmapSpanRing reader = MmapSpanRing.open(file.getPath());
+        try {
+            Assert.assertFalse(writer.offer(new byte[520]));
+            int n = 0;
+            while (writer.offer(record(n, 100))) {
+                n++;
+            }
+            Assert.assertEquals(9, n);
+            Assert.assertArrayEquals(record(0, 100), reader.poll());
+            Assert.assertTrue(writer.offer(record(n, 100)));
+            for (int i = 1; i <= n; i++) {
+                Assert.assertArrayEquals(record(i, 100), reader.poll());
+            }
+            Assert.assertNull(reader.poll());
+        } finally {
+            writer.close();
+            reader.close();
+        }
+    }
+
+    /**
+     * 两端重启后从文件中记录的位置继续
+     */
+    @Test
+    public void testReopen() throws Exception {
+        MmapSpanRing writer = new MmapSpanRing(file.getPath(), 1024);
+        MmapSpanRing reader = MmapSpanRing.open(file.getPath());
+        for (int i = 0; i < 3; i++) {
+            writer.offer(record(i, 10));
+        }
+        reader.poll();
+        writer.close();
+        reader.close();
+
+        writer = new MmapSpanRing(file.getPath(), 4096);//沿用已有文件的容量
+        reader = MmapSpanRing.open(file.getPath());
+        try {
+            Assert.assertEquals(1024, writer.capacity());
+            writer.offer(record(3, 10));
+            for (int i = 1; i < 4; i++) {
+                Assert.assertArrayEquals(record(i, 10), reader.poll());
+            }
+            Assert.assertNull(reader.poll());
+        } finally {
+            writer.close();
+            reader.close();
+        }
+    }
+
+    /**
+     * 另起一个jvm进程写入，本进程同时读取
+     */
+    @Test
+    public void testCrossProcess() throws Exception {
+        int count = 20000;
+        MmapSpanRing reader = new MmapSpanRing(file.getPath(), 64 * 1024);
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                Writer.class.getName(), file.getPath(), String.valueOf(count)).redirectErrorStream(true).start();
+        try {
+            int n = 0;
+            long deadline = System.currentTimeMillis() + 30000;
+            while (n < count && System.currentTimeMillis() < deadline) {
+                byte[] bytes = reader.poll();
+                if (bytes == null) {
+                    Thread.yield();
+                    continue;
+                }
+                Assert.assertArrayEquals(record(n, 1 + n % 300), bytes);
+                n++;
+            }
+            Assert.assertEquals(count, n);
+            Assert.assertEquals(0, process.waitFor());
+        } finally {
+            process.destroy();
+            reader.close();
+        }
+    }
+
+    //内容由序号决定，便于校验
+    private static byte[] record(int seq, int size) {
+        byte[] bytes = new byte[size];
+        Arrays.fill(bytes, (byte) seq);
+        bytes[0] = (byte) (seq >>> 8);
+        return bytes;
+    }
+
+    //子进程：写满时等待读端
+    public static class Writer {
+        public static void main(String[] args) throws Exception {
+            MmapSpanRing ring = new MmapSpanRing(args[0], 0);
+            int count = Integer.parseInt(args[1]);
+            for (int i = 0; i < count; i++) {
+                byte[] record = record(i, 1 + i % 300);
+                while (!ring.offer(record)) {
+                    Thread.yield();
+                }
+            }
+            ring.close();
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.jd.bdp.hydra.agent.support;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Date: 26-10-17
+ */
+public class MpscRingBufferTest {
+
+    private static final Object ITEM = new Object();
+
+    /**
+     * 功能性测试
+     */
+    @Test
+    public void testOfferPoll_BasicFunction() {
+        MpscRingBuffer<Integer> ring = new MpscRingBuffer<Integer>(6);
+        Assert.assertEquals(8, ring.capacity());
+        Assert.assertNull(ring.poll());
+        for (int i = 0; i < 8; i++) {
+            Assert.assertTrue(ring.offer(i));
+        }
+        Assert.assertFalse(ring.offer(8));//满
+        Assert.assertEquals(8, ring.size());
+        Assert.assertEquals(Integer.valueOf(0), ring.poll());
+        Assert.assertTrue(ring.offer(8));
+        List<Integer> list = new ArrayList<Integer>();
+        Assert.assertEquals(5, ring.drainTo(list, 5));
+        Assert.assertEquals(3, ring.drainTo(list, 100));
+        for (int i = 0; i < 8; i++) {
+            Assert.assertEquals(Integer.valueOf(i + 1), list.get(i));
+        }
+        Assert.assertTrue(ring.isEmpty());
+    }
+
+    /**
+     * 多生产者数据完整性测试，每个元素被消费且只被消费一次，单生产者内部有序
+     */
+    @Test
+    public void testMultiProducer_CompleteFunction() throws Exception {
+        final int producers = 8;
+        final int perProducer = 200000;
+        final MpscRingBuffer<Long> ring = new MpscRingBuffer<Long>(1024);
+        final CountDownLatch latch = new CountDownLatch(producers);
+        for (int p = 0; p < producers; p++) {
+            final long base = (long) p << 32;
+            new Thread() {
+                public void run() {
+                    for (int i = 0; i < perProducer; i++) {
+                        while (!ring.offer(base | i)) {
+                            Thread.yield();
+                        }
+                    }
+                    latch.countDown();
+                }
+            }.start();
+        }
+        long[] next = new long[producers];
+        long total = 0;
+        List<Long> batch = new ArrayList<Long>();
+        while (total < (long) producers * perProducer) {
+            if (ring.drainTo(batch, 256) == 0) {
+                Thread.yield();
+                continue;
+            }
+            for (Long v : batch) {
+                int p = (int) (v >>> 32);
+                Assert.assertEquals(next[p], v & 0xffffffffL);
+                next[p]++;
+            }
+            total += batch.size();
+            batch.clear();
+        }
+        latch.await();
+        Assert.assertNull(ring.poll());
+    }
+
+    /**
+     * 与ArrayBlockingQueue的吞吐对比，生产者线程数 1、8、32、128
+     */
+    @Test
+    public void testThroughput_CompareWithArrayBlockingQueue() throws Exception {
+        long total = 2000000;
+        int[] threads = new int[]{1, 8, 32, 128};
+        System.out.println("生产者数\tArrayBlockingQueue(次/ms)\tMpscRingBuffer(次/ms)");
+        for (int t : threads) {
+            double abq = runQueue(t, total / t);
+            double ring = runRing(t, total / t);
+            System.out.printf("%d\t%.1f\t%.1f\n", t, abq, ring);
+        }
+        System.out.println("------------------------");
+    }
+
+    private double runQueue(int producers, final long perProducer) throws Exception {
+        final ArrayBlockingQueue<Object> queue = new ArrayBlockingQueue<Object>(1024);
+        final List<Object> cache = new ArrayList<Object>();
+        return run(producers, perProducer, new Op() {
+            public boolean offer() {
+                return queue.offer(ITEM);
+            }
+
+            public int drain() {
+                int n = queue.drainTo(cache);
+                cache.clear();
+                return n;
+            }
+        });
+    }
+
+    private double runRing(int producers, final long perProducer) throws Exception {
+        final MpscRingBuffer<Object> ring = new MpscRingBuffer<Object>(1024);
+        final List<Object> cache = new ArrayList<Object>();
+        return run(producers, perProducer, new Op() {
+            public boolean offer() {
+                return ring.offer(ITEM);
+            }
+
+            public int drain() {
+                int n = ring.drainTo(cache, 1024);
+                cache.clear();
+                return n;
+            }
+        });
+    }
+
+    //与DefaultSyncTransfer一致：队列满时生产者丢弃，统计的是生产者完成offer的速度
+    private double run(int producers, final long perProducer, final Op op) throws Exception {
+        final CyclicBarrier barrier = new CyclicBarrier(producers + 1);
+        final CountDownLatch latch = new CountDownLatch(producers);
+        final AtomicBoolean stop = new AtomicBoolean(false);
+        Thread consumer = new Thread() {
+            public void run() {
+                while (!stop.get()) {
+                    if (op.drain() == 0) {
+                        Thread.yield();
+                    }
+                }
+            }
+        };
+        consumer.start();
+        for (int i = 0; i < producers; i++) {
+            new Thread() {
+                public void run() {
+                    try {
+                        barrier.await();
+                        for (long j = 0; j < perProducer; j++) {
+                            op.offer();
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            }.start();
+        }
+        barrier.await();
+        long start = System.nanoTime();
+        latch.await();
+        long cost = System.nanoTime() - start;
+        stop.set(true);
+        consumer.join();
+        return 1.0 * producers * perProducer / (cost / 1000000.0);
+    }
+
+    interface Op {
+        boolean offer();
+
+        int drain();
+    }
+}
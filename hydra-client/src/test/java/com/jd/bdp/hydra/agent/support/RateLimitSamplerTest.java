@@ -0,0 +1,123 @@
+package com.jd.bdp.hydra.agent.support;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Date: 26-10-17
+ */
+public class RateLimitSamplerTest {
+
+    /**
+     * 突发调用只采样一秒的配额，服务之间互不影响
+     */
+    @Test
+    public void testBurst_PerService() {
+        RateLimitSampler sampler = new RateLimitSampler(100);
+        assertAbout(100, count(sampler, "10101", "sayHello", 10000));
+        assertAbout(100, count(sampler, "10102", "sayHello", 10000));
+        assertAbout(0, count(sampler, "10101", "sayHello", 10000));
+    }
+
+    /**
+     * 方法级配置优先于服务级配置，0表示不采样
+     */
+    @Test
+    public void testMethodRate() {
+        RateLimitSampler sampler = new RateLimitSampler(100);
+        Map<String, Integer> rates = new HashMap<String, Integer>();
+        rates.put("10101", 20);
+        rates.put("10101" + RateLimitSampler.SEPARATOR + "sayHello", 5);
+        rates.put("10102", 0);
+        sampler.setRates(rates);
+        assertAbout(5, count(sampler, "10101", "sayHello", 1000));
+        assertAbout(20, count(sampler, "10101", "sayBye", 1000));
+        Assert.assertEquals(0, count(sampler, "10102", "sayHello", 1000));
+        assertAbout(100, count(sampler, "10103", "sayHello", 1000));
+    }
+
+    /**
+     * 运行时重新加载速率
+     */
+    @Test
+    public void testReload() {
+        RateLimitSampler sampler = new RateLimitSampler(10);
+        assertAbout(10, count(sampler, "10101", "sayHello", 1000));
+        sampler.setDefaultRate(50);
+        assertAbout(50, count(sampler, "10101", "sayHello", 1000));
+    }
+
+    /**
+     * 持续调用时按速率补充
+     */
+    @Test
+    public void testRefill() throws Exception {
+        RateLimitSampler sampler = new RateLimitSampler(100);
+        count(sampler, "10101", "sayHello", 1000);
+        Thread.sleep(200);
+        long n = count(sampler, "10101", "sayHello", 1000);
+        Assert.assertTrue("refill " + n, n >= 15 && n <= 30);
+    }
+
+    /**
+     * 多线程下单次采样判断的耗时，线程数 1、8、32
+     */
+    @Test
+    public void testPerformance() throws Exception {
+        final RateLimitSampler sampler = new RateLimitSampler(100);
+        final int times = 1000000;
+        System.out.println("线程数\t采样数\tns/次");
+        for (final int t : new int[]{1, 8, 32}) {
+            final CyclicBarrier barrier = new CyclicBarrier(t + 1);
+            final CountDownLatch latch = new CountDownLatch(t);
+            final AtomicLong sampled = new AtomicLong();
+            for (int i = 0; i < t; i++) {
+                new Thread() {
+                    public void run() {
+                        try {
+                            barrier.await();
+                            long n = 0;
+                            for (int j = 0; j < times; j++) {
+                                if (sampler.isSample("10101", "sayHello")) {
+                                    n++;
+                                }
+                            }
+                            sampled.addAndGet(n);
+                        } catch (Exception e) {
+                            e.printStackTrace();
+                        } finally {
+                            latch.countDown();
+                        }
+                    }
+                }.start();
+            }
+            barrier.await();
+            long start = System.nanoTime();
+            latch.await();
+            long cost = System.nanoTime() - start;
+            System.out.printf("%d\t%d\t%.1f\n", t, sampled.get(), 1.0 * cost / ((long) t * times));
+        }
+        System.out.println("------------------------");
+    }
+
+    //循环本身耗时期间会补充少量令牌
+    private void assertAbout(long expected, long actual) {
+        Assert.assertTrue("expected " + expected + " but was " + actual, actual >= expected && actual <= expected + 3);
+    }
+
+    private long count(RateLimitSampler sampler, String serviceId, String method, int times) {
+        long n = 0;
+        for (int i = 0; i < times; i++) {
+            if (sampler.isSample(serviceId, method)) {
+                n++;
+            }
+        }
+        return n;
+    }
+}
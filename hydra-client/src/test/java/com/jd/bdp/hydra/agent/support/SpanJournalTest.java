@@ -0,0 +1,117 @@
+package com.jd.bdp.hydra.agent.support;
+
+import com.jd.bdp.hydra.Span;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Date: 26-10-17
+ */
+public class SpanJournalTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() {
+        dir = new File(System.getProperty("java.io.tmpdir"), "hydra-journal-" + System.nanoTime());
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    /**
+     * 按写入顺序回放，commit之前重复peek得到同一批次
+     */
+    @Test
+    public void testAppendPeekCommit_Order() throws Exception {
+        SpanJournal journal = new SpanJournal(dir.getPath(), 256, 1024 * 1024);
+        Assert.assertTrue(journal.isEmpty());
+        Assert.assertNull(journal.peek());
+        for (int i = 0; i < 20; i++) {
+            Assert.assertTrue(journal.append(newBatch(i, 3)));
+        }
+        Assert.assertTrue(dir.listFiles().length > 1);//已滚动
+        for (int i = 0; i < 20; i++) {
+            Assert.assertEquals(Long.valueOf(i), journal.peek().get(0).getTraceId());
+            Assert.assertEquals(Long.valueOf(i), journal.peek().get(0).getTraceId());
+            journal.commit();
+        }
+        Assert.assertNull(journal.peek());
+        Assert.assertTrue(journal.isEmpty());
+        journal.close();
+    }
+
+    /**
+     * 重启后从上次确认的位置继续回放
+     */
+    @Test
+    public void testReload() throws Exception {
+        SpanJournal journal = new SpanJournal(dir.getPath(), 4096, 1024 * 1024);
+        for (int i = 0; i < 10; i++) {
+            journal.append(newBatch(i, 2));
+        }
+        for (int i = 0; i < 4; i++) {
+            journal.peek();
+            journal.commit();
+        }
+        journal.close();
+        journal = new SpanJournal(dir.getPath(), 4096, 1024 * 1024);
+        for (int i = 4; i < 10; i++) {
+            Assert.assertEquals(Long.valueOf(i), journal.peek().get(0).getTraceId());
+            journal.commit();
+        }
+        Assert.assertNull(journal.peek());
+        journal.append(newBatch(10, 2));
+        Assert.assertEquals(Long.valueOf(10), journal.peek().get(0).getTraceId());
+        journal.close();
+    }
+
+    /**
+     * 超过配额时淘汰最老的段
+     */
+    @Test
+    public void testQuota_EvictOldest() throws Exception {
+        SpanJournal journal = new SpanJournal(dir.getPath(), 256, 256 * 3);
+        for (int i = 0; i < 200; i++) {
+            journal.append(newBatch(i, 3));
+        }
+        Assert.assertTrue(dir.listFiles().length <= 3);
+        Assert.assertTrue(journal.getEvictCount() > 0);
+        long last = -1;
+        List<Span> batch;
+        while ((batch = journal.peek()) != null) {
+            Assert.assertTrue(batch.get(0).getTraceId() > last);
+            last = batch.get(0).getTraceId();
+            journal.commit();
+        }
+        Assert.assertEquals(199, last);
+        journal.close();
+    }
+
+    private List<Span> newBatch(long traceId, int size) {
+        List<Span> list = new ArrayList<Span>();
+        for (int i = 0; i < size; i++) {
+            Span span = new Span();
+            span.setTraceId(traceId);
+            span.setId((long) i);
+            span.setSpanName("sayHello");
+            span.setServiceId("10101");
+            list.add(span);
+        }
+        return list;
+    }
+}
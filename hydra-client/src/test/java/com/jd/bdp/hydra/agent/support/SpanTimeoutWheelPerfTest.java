@@ -0,0 +1,117 @@
+package com.jd.bdp.hydra.agent.support;
+
+import com.jd.bdp.hydra.Endpoint;
+import com.jd.bdp.hydra.Span;
+import com.jd.bdp.hydra.agent.SyncTransfer;
+import com.jd.bdp.hydra.agent.Tracer;
+import org.junit.After;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Date: 26-10-17
+ * 一次cs+cr(含生成span)在不跟踪超时和时间轮跟踪超时下的耗时
+ * 单核机器上时间轮线程与业务线程争用CPU，它的开销也计算在内
+ */
+public class SpanTimeoutWheelPerfTest {
+
+    private final Tracer tracer = Tracer.getTracer();
+    private volatile long sink;
+
+    @After
+    public void tearDown() {
+        tracer.setSpanTimeouts(null);
+        tracer.setTransfer(null);
+    }
+
+    @Test
+    public void testWheel_Performance() throws Exception {
+        tracer.setTransfer(new SyncTransfer() {
+            private final AtomicLong ids = new AtomicLong();
+
+            public Long getTraceId() {
+                return ids.incrementAndGet();
+            }
+
+            public Long getSpanId() {
+                return ids.incrementAndGet();
+            }
+
+            public boolean isReady() {
+                return true;
+            }
+
+            public boolean isServiceReady(String serviceName) {
+                return true;
+            }
+
+            public void start() throws Exception {
+            }
+
+            public String getServiceId(String service) {
+                return "10101";
+            }
+
+            public void cancel() {
+            }
+
+            public void syncSend(Span span) {
+            }
+
+            public void setTraceService(TraceService traceService) {
+            }
+
+            public String appName() {
+                return "test";
+            }
+        });
+        SpanTimeoutWheel wheel = new SpanTimeoutWheel(1000, 10, 512, 65536);
+        wheel.start();
+        int threads = 1;
+        int times = 2000000;
+        System.out.println("方式\tns/次");
+        try {
+            for (int round = 0; round < 3; round++) {//前几轮用于预热
+                tracer.setSpanTimeouts(null);
+                long none = run(threads, times);
+                tracer.setSpanTimeouts(wheel);
+                long wheeled = run(threads, times);
+                System.out.printf("不跟踪\t%.1f\n", none * 1.0 / times);
+                System.out.printf("时间轮\t%.1f\n", wheeled * 1.0 / times);
+            }
+        } finally {
+            wheel.stop();
+        }
+        System.out.println("------------------------");
+    }
+
+    //返回所有线程完成的总耗时
+    private long run(int threads, final int times) throws Exception {
+        final Endpoint endpoint = tracer.getEndpoint(new InetSocketAddress("127.0.0.1", 20880));
+        Thread[] list = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            list[t] = new Thread(new Runnable() {
+                public void run() {
+                    long n = 0;
+                    for (int i = 0; i < times; i++) {
+                        Span span = tracer.newSampledSpan("sayHello", "10101");
+                        tracer.clientSendRecord(span, endpoint);
+                        tracer.clientReceiveRecord(span, endpoint);
+                        n += span.getId();
+                    }
+                    sink += n;
+                }
+            });
+        }
+        long start = System.nanoTime();
+        for (Thread thread : list) {
+            thread.start();
+        }
+        for (Thread thread : list) {
+            thread.join();
+        }
+        return System.nanoTime() - start;
+    }
+}
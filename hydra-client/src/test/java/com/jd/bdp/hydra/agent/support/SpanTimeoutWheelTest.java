@@ -0,0 +1,199 @@
+package com.jd.bdp.hydra.agent.support;
+
+import com.jd.bdp.hydra.Annotation;
+import com.jd.bdp.hydra.BinaryAnnotation;
+import com.jd.bdp.hydra.Endpoint;
+import com.jd.bdp.hydra.Span;
+import com.jd.bdp.hydra.agent.SyncTransfer;
+import com.jd.bdp.hydra.agent.Tracer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Date: 26-10-17
+ */
+public class SpanTimeoutWheelTest {
+
+    private final Tracer tracer = Tracer.getTracer();
+    private final List<Span> sent = new ArrayList<Span>();
+    private final AtomicLong ids = new AtomicLong(100);
+    private SpanTimeoutWheel wheel;
+    private Endpoint endpoint;
+
+    @Before
+    public void setUp() {
+        TestSyncTransfer transfer = new TestSyncTransfer();
+        //一圈80ms，超时需要转两圈多
+        wheel = new SpanTimeoutWheel(200, 10, 8, 1024);
+        wheel.setTransfer(transfer);
+        wheel.start();
+        tracer.setTransfer(transfer);
+        tracer.setSpanTimeouts(wheel);
+        endpoint = tracer.getEndpoint(new InetSocketAddress("127.0.0.1", 20880));
+    }
+
+    @After
+    public void tearDown() {
+        wheel.stop();
+        tracer.setSpanTimeouts(null);
+        tracer.setTransfer(null);
+        tracer.removeParentSpan();
+    }
+
+    /**
+     * 超时未结束的span带着cs和未完成标记发送，之后的cr不再发送
+     */
+    @Test
+    public void testTimeout_Client() throws Exception {
+        Span span = tracer.newSampledSpan("sayHello", "10101");
+        long start = System.currentTimeMillis();
+        tracer.clientSendRecord(span, endpoint);
+        Thread.sleep(100);
+        Assert.assertTrue(sent().isEmpty());
+        waitSent(1, 2000);
+        Assert.assertTrue(System.currentTimeMillis() - start >= 200);
+
+        Span incomplete = sent().get(0);
+        Assert.assertNotSame(span, incomplete);
+        Assert.assertEquals(span.getId(), incomplete.getId());
+        List<Annotation> annotations = incomplete.getAnnotations();
+        Assert.assertEquals(1, annotations.size());
+        Assert.assertEquals(Annotation.CLIENT_SEND, annotations.get(0).getValue());
+        BinaryAnnotation flag = incomplete.getBinaryAnnotations().get(0);
+        Assert.assertEquals(TracerUtils.INCOMPLETE, flag.getKey());
+        Assert.assertEquals("timeout 200ms", flag.getValue());
+        Assert.assertEquals(1, wheel.getExpiredCount());
+
+        tracer.clientReceiveRecord(span, endpoint);
+        Assert.assertEquals(1, sent().size());
+        Assert.assertEquals(0, span.getBinaryAnnotations().size());
+    }
+
+    /**
+     * 按时结束的span照常发送，到期时从时间轮中摘除
+     */
+    @Test
+    public void testFinished() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            Span span = tracer.genSpan(1L, 2L, (long) i, "sayHello", true, "10101");
+            tracer.serverReceiveRecord(span, endpoint);
+            tracer.serverSendRecord(span, endpoint);
+        }
+        Assert.assertEquals(100, sent().size());
+        Thread.sleep(400);
+        Assert.assertEquals(100, sent().size());
+        Assert.assertEquals(0, wheel.getExpiredCount());
+        wheel.stop();
+        Assert.assertEquals(0, wheel.size());
+    }
+
+    /**
+     * 提供端span超时(如线程卡住)，发送sr和处理中已记录的binaryAnnotation
+     */
+    @Test
+    public void testTimeout_Server() throws Exception {
+        Span span = tracer.genSpan(1L, 2L, 3L, "sayHello", true, "10101");
+        tracer.serverReceiveRecord(span, endpoint);
+        BinaryAnnotation b = new BinaryAnnotation();
+        b.setKey("sql");
+        b.setValue("select 1");
+        tracer.addBinaryAnntation(b);
+        waitSent(1, 2000);
+        Span incomplete = sent().get(0);
+        Assert.assertEquals(Annotation.SERVER_RECEIVE, incomplete.getAnnotations().get(0).getValue());
+        Assert.assertEquals("sql", incomplete.getBinaryAnnotations().get(0).getKey());
+        Assert.assertEquals(TracerUtils.INCOMPLETE, incomplete.getBinaryAnnotations().get(1).getKey());
+        tracer.serverSendRecord(span, endpoint);
+        Assert.assertEquals(1, sent().size());
+    }
+
+    /**
+     * 超时时业务线程还在添加binaryAnnotation，复制出的内容完整
+     */
+    @Test
+    public void testTimeout_ConcurrentAdd() throws Exception {
+        final Span span = tracer.genSpan(1L, 2L, 3L, "sayHello", true, "10101");
+        tracer.serverReceiveRecord(span, endpoint);
+        Thread adder = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 0; sent().isEmpty() && i < 1000000; i++) {
+                    BinaryAnnotation b = new BinaryAnnotation();
+                    b.setKey("k" + i);
+                    span.addBinaryAnnotation(b);
+                }
+            }
+        };
+        adder.start();
+        waitSent(1, 2000);
+        adder.join();
+        List<BinaryAnnotation> binaryAnnotations = sent().get(0).getBinaryAnnotations();
+        for (int i = 0; i < binaryAnnotations.size() - 1; i++) {
+            Assert.assertEquals("k" + i, binaryAnnotations.get(i).getKey());
+        }
+        Assert.assertEquals(TracerUtils.INCOMPLETE, binaryAnnotations.get(binaryAnnotations.size() - 1).getKey());
+        Assert.assertTrue(binaryAnnotations.size() <= span.getBinaryAnnotations().size() + 1);
+    }
+
+    private List<Span> sent() {
+        synchronized (sent) {
+            return new ArrayList<Span>(sent);
+        }
+    }
+
+    private void waitSent(int count, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (sent().size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        Assert.assertEquals(count, sent().size());
+    }
+
+    private class TestSyncTransfer implements SyncTransfer {
+        public Long getTraceId() {
+            return ids.incrementAndGet();
+        }
+
+        public Long getSpanId() {
+            return ids.incrementAndGet();
+        }
+
+        public boolean isReady() {
+            return true;
+        }
+
+        public boolean isServiceReady(String serviceName) {
+            return true;
+        }
+
+        public void start() throws Exception {
+        }
+
+        public String getServiceId(String service) {
+            return "10101";
+        }
+
+        public void cancel() {
+        }
+
+        public void syncSend(Span span) {
+            synchronized (sent) {
+                sent.add(span);
+            }
+        }
+
+        public void setTraceService(TraceService traceService) {
+        }
+
+        public String appName() {
+            return "test";
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.jd.bdp.hydra.agent.support;
+
+import com.alibaba.dubbo.common.URL;
+import com.alibaba.dubbo.common.extension.ExtensionLoader;
+import com.alibaba.dubbo.rpc.Invocation;
+import com.alibaba.dubbo.rpc.Invoker;
+import com.alibaba.dubbo.rpc.Result;
+import com.alibaba.dubbo.rpc.RpcException;
+import com.alibaba.dubbo.rpc.RpcInvocation;
+import com.alibaba.dubbo.rpc.cluster.LoadBalance;
+import com.jd.bdp.hydra.Span;
+import com.jd.bdp.hydra.dubbomonitor.HydraService;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Date: 26-10-17
+ */
+public class TraceIdLoadBalanceTest {
+
+    private static final URL SERVICE_URL = URL.valueOf("dubbo://127.0.0.1:20880/" + HydraService.class.getName());
+
+    /**
+     * 还不知道collector列表时不分组
+     */
+    @Test
+    public void testRouteBeforeSelect() {
+        List<Span> spans = spans(10);
+        Map<String, List<Span>> groups = new TraceIdLoadBalance().route(spans);
+        Assert.assertEquals(1, groups.size());
+        Assert.assertSame(spans, groups.get(null));
+        //通过dubbo扩展名加载
+        Assert.assertTrue(ExtensionLoader.getExtensionLoader(LoadBalance.class)
+                .getExtension(TraceIdLoadBalance.NAME) instanceof TraceIdLoadBalance);
+    }
+
+    /**
+     * 同一trace总是分到同一个collector，不同实例(不同agent)的结果相同，带地址的调用选中对应的collector
+     */
+    @Test
+    public void testRouteByTraceId() {
+        List<Invoker<HydraService>> invokers = invokers("10.0.0.1:20880", "10.0.0.2:20880", "10.0.0.3:20880");
+        TraceIdLoadBalance a = new TraceIdLoadBalance();
+        TraceIdLoadBalance b = new TraceIdLoadBalance();
+        a.select(invokers, SERVICE_URL, new RpcInvocation());
+        //另一个agent看到的顺序不同
+        List<Invoker<HydraService>> reversed = new ArrayList<Invoker<HydraService>>(invokers);
+        Collections.reverse(reversed);
+        b.select(reversed, SERVICE_URL, new RpcInvocation());
+
+        List<Span> spans = spans(3000);
+        Map<String, List<Span>> groups = a.route(spans);
+        Assert.assertEquals(3, groups.size());
+        Map<Long, String> owner = new HashMap<Long, String>();
+        int total = 0;
+        for (Map.Entry<String, List<Span>> group : groups.entrySet()) {
+            //大致均匀
+            Assert.assertTrue(group.getValue().size() > 500);
+            total += group.getValue().size();
+            for (Span span : group.getValue()) {
+                String prev = owner.put(span.getTraceId(), group.getKey());
+                Assert.assertTrue(prev == null || prev.equals(group.getKey()));
+            }
+        }
+        Assert.assertEquals(spans.size(), total);
+        Assert.assertEquals(groups, b.route(spans));
+
+        for (Invoker<HydraService> invoker : invokers) {
+            RpcInvocation invocation = new RpcInvocation();
+            invocation.setAttachment(TraceIdLoadBalance.ROUTE_KEY, invoker.getUrl().getAddress());
+            Assert.assertSame(invoker, a.select(invokers, SERVICE_URL, invocation));
+        }
+    }
+
+    /**
+     * collector下线后只有它的trace改投其他collector
+     */
+    @Test
+    public void testCollectorDown() {
+        List<Invoker<HydraService>> invokers = invokers("10.0.0.1:20880", "10.0.0.2:20880", "10.0.0.3:20880");
+        TraceIdLoadBalance lb = new TraceIdLoadBalance();
+        lb.select(invokers, SERVICE_URL, new RpcInvocation());
+        List<Span> spans = spans(3000);
+        Map<Long, String> before = owners(lb.route(spans));
+
+        lb.select(invokers.subList(0, 2), SERVICE_URL, new RpcInvocation());
+        Map<Long, String> after = owners(lb.route(spans));
+        for (Map.Entry<Long, String> e : before.entrySet()) {
+            if (!"10.0.0.3:20880".equals(e.getValue())) {
+                Assert.assertEquals(e.getValue(), after.get(e.getKey()));
+            }
+        }
+        Assert.assertFalse(after.containsValue("10.0.0.3:20880"));
+    }
+
+    private static Map<Long, String> owners(Map<String, List<Span>> groups) {
+        Map<Long, String> owners = new HashMap<Long, String>();
+        for (Map.Entry<String, List<Span>> group : groups.entrySet()) {
+            for (Span span : group.getValue()) {
+                owners.put(span.getTraceId(), group.getKey());
+            }
+        }
+        return owners;
+    }
+
+    private static List<Span> spans(int n) {
+        List<Span> spans = new ArrayList<Span>();
+        for (int i = 0; i < n; i++) {
+            Span span = new Span();
+            span.setTraceId((long) (i / 3));
+            span.setId((long) i);
+            spans.add(span);
+        }
+        return spans;
+    }
+
+    static List<Invoker<HydraService>> invokers(String... addresses) {
+        List<Invoker<HydraService>> invokers = new ArrayList<Invoker<HydraService>>();
+        for (String address : Arrays.asList(addresses)) {
+            final URL url = URL.valueOf("dubbo://" + address + "/" + HydraService.class.getName());
+            invokers.add(new Invoker<HydraService>() {
+                @Override
+                public Class<HydraService> getInterface() {
+                    return HydraService.class;
+                }
+
+                @Override
+                public Result invoke(Invocation invocation) throws RpcException {
+                    throw new UnsupportedOperationException();
+                }
+
+                @Override
+                public URL getUrl() {
+                    return url;
+                }
+
+                @Override
+                public boolean isAvailable() {
+                    return true;
+                }
+
+                @Override
+                public void destroy() {
+                }
+            });
+        }
+        return invokers;
+    }
+}
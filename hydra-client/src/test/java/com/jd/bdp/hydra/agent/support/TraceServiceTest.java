@@ -0,0 +1,382 @@
+package com.jd.bdp.hydra.agent.support;
+
+import com.alibaba.com.caucho.hessian.io.Hessian2Input;
+import com.alibaba.com.caucho.hessian.io.Hessian2Output;
+import com.alibaba.dubbo.common.URL;
+import com.alibaba.dubbo.rpc.RpcContext;
+import com.alibaba.dubbo.rpc.RpcInvocation;
+import com.jd.bdp.hydra.Annotation;
+import com.jd.bdp.hydra.Endpoint;
+import com.jd.bdp.hydra.Span;
+import com.jd.bdp.hydra.agent.metrics.AgentMetrics;
+import com.jd.bdp.hydra.codec.SpanCodec;
+import com.jd.bdp.hydra.codec.SpanCompressor;
+import com.jd.bdp.hydra.codec.SpanDictionary;
+import com.jd.bdp.hydra.dubbomonitor.HydraService;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Date: 26-10-17
+ */
+public class TraceServiceTest {
+
+    /**
+     * 发送成功，在途名额归还
+     */
+    @Test
+    public void testSendSpan_Success() {
+        final AtomicInteger calls = new AtomicInteger();
+        TraceService traceService = newTraceService(new PushService() {
+            @Override
+            public boolean push(List<Span> span) throws IOException {
+                calls.incrementAndGet();
+                return true;
+            }
+        });
+        for (int i = 0; i < 10; i++) {
+            traceService.sendSpan(newBatch(3));
+        }
+        Assert.assertEquals(10, calls.get());
+        Assert.assertEquals(30, traceService.getSentCount());
+        Assert.assertEquals(0, traceService.getInFlightCount());
+    }
+
+    /**
+     * 返回false或抛异常时重试，重试用尽后丢弃
+     */
+    @Test
+    public void testSendSpan_RetryThenDrop() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        TraceService traceService = newTraceService(new PushService() {
+            @Override
+            public boolean push(List<Span> span) throws IOException {
+                if (calls.incrementAndGet() % 2 == 0) {
+                    throw new IOException("collector down");
+                }
+                return false;
+            }
+        });
+        traceService.sendSpan(newBatch(5));
+        Assert.assertEquals(1, traceService.getInFlightCount());
+        Thread.sleep(500);
+        Assert.assertEquals(3, calls.get());
+        Assert.assertEquals(2, traceService.getRetryCount());
+        Assert.assertEquals(5, traceService.getDropCount());
+        Assert.assertEquals(0, traceService.getInFlightCount());
+    }
+
+    /**
+     * 重试成功后不计入丢弃
+     */
+    @Test
+    public void testSendSpan_RetrySuccess() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        TraceService traceService = newTraceService(new PushService() {
+            @Override
+            public boolean push(List<Span> span) throws IOException {
+                return calls.incrementAndGet() > 1;
+            }
+        });
+        traceService.sendSpan(newBatch(4));
+        Thread.sleep(300);
+        Assert.assertEquals(2, calls.get());
+        Assert.assertEquals(4, traceService.getSentCount());
+        Assert.assertEquals(0, traceService.getDropCount());
+        Assert.assertEquals(0, traceService.getInFlightCount());
+    }
+
+    /**
+     * collector不可用时落盘，恢复后按顺序回放
+     */
+    @Test
+    public void testSendSpan_SpillThenReplay() throws Exception {
+        final AtomicBoolean up = new AtomicBoolean(false);
+        final List<Long> received = new CopyOnWriteArrayList<Long>();
+        TraceService traceService = newTraceService(new PushService() {
+            @Override
+            public boolean push(List<Span> span) throws IOException {
+                if (!up.get()) {
+                    return false;
+                }
+                received.add(span.get(0).getTraceId());
+                return true;
+            }
+        });
+        traceService.setRetryTimes(0);
+        File dir = new File(System.getProperty("java.io.tmpdir"), "hydra-journal-" + System.nanoTime());
+        SpanJournal journal = new SpanJournal(dir.getPath(), 64 * 1024, 1024 * 1024);
+        traceService.setJournal(journal);
+        try {
+            for (long i = 0; i < 5; i++) {
+                traceService.sendSpan(newBatch(i, 2));
+            }
+            Assert.assertEquals(10, traceService.getSpillCount());
+            Assert.assertEquals(0, traceService.getDropCount());
+            up.set(true);
+            traceService.sendSpan(newBatch(5, 2));//恢复后的第一批触发回放
+            Thread.sleep(300);
+            Assert.assertEquals(Arrays.asList(5L, 0L, 1L, 2L, 3L, 4L), new ArrayList<Long>(received));
+            Assert.assertTrue(journal.isEmpty());
+            Assert.assertEquals(0, traceService.getInFlightCount());
+        } finally {
+            journal.close();
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            dir.delete();
+        }
+    }
+
+    /**
+     * 延迟记录的cs/cr在发送前生成，hessian序列化(不调用writeObject)后不丢失
+     */
+    @Test
+    public void testSendSpan_Materialize() {
+        final List<Span> received = new ArrayList<Span>();
+        TraceService traceService = newTraceService(new PushService() {
+            @Override
+            public boolean push(List<Span> span) throws IOException {
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                Hessian2Output out = new Hessian2Output(bos);
+                out.writeObject(new ArrayList<Span>(span));
+                out.flush();
+                for (Object o : (List<?>) new Hessian2Input(new ByteArrayInputStream(bos.toByteArray())).readObject()) {
+                    received.add((Span) o);
+                }
+                return true;
+            }
+        });
+        Span span = newBatch(1).get(0);
+        span.recordStart(true, 1000L, new Endpoint());
+        span.recordEnd(1005L);
+        traceService.sendSpan(Arrays.asList(span));
+        Assert.assertEquals(1, received.size());
+        List<Annotation> annotations = received.get(0).getAnnotations();
+        Assert.assertEquals(2, annotations.size());
+        Assert.assertEquals(Annotation.CLIENT_SEND, annotations.get(0).getValue());
+        Assert.assertEquals(Annotation.CLIENT_RECEIVE, annotations.get(1).getValue());
+        Assert.assertEquals(1005000L, annotations.get(1).getTimestampUs().longValue());
+    }
+
+    /**
+     * 以紧凑格式发送，collector端解码后内容一致
+     */
+    @Test
+    public void testSendSpan_Encoded() {
+        final List<Span> received = new ArrayList<Span>();
+        TraceService traceService = newTraceService(new PushService() {
+            @Override
+            public boolean push(List<Span> span) throws IOException {
+                received.addAll(span);
+                return true;
+            }
+        });
+        traceService.setEncoded(true);
+        traceService.sendSpan(newBatch(7L, 3));
+        Assert.assertEquals(3, received.size());
+        Assert.assertEquals(7L, received.get(2).getTraceId().longValue());
+        Assert.assertEquals(2L, received.get(2).getId().longValue());
+        Assert.assertEquals(3, traceService.getSentCount());
+    }
+
+    /**
+     * 按traceId路由时一批拆成每个collector一组，每组带上目标collector地址
+     */
+    @Test
+    public void testSendSpan_RouteByTraceId() {
+        final Map<String, List<Long>> received = new HashMap<String, List<Long>>();
+        TraceService traceService = newTraceService(new PushService() {
+            @Override
+            public boolean push(List<Span> span) throws IOException {
+                String collector = RpcContext.getContext().getAttachment(TraceIdLoadBalance.ROUTE_KEY);
+                Assert.assertFalse(received.containsKey(collector));
+                List<Long> traceIds = new ArrayList<Long>();
+                for (Span s : span) {
+                    traceIds.add(s.getTraceId());
+                }
+                received.put(collector, traceIds);
+                return true;
+            }
+        });
+        TraceIdLoadBalance router = new TraceIdLoadBalance();
+        router.select(TraceIdLoadBalanceTest.invokers("10.0.0.1:20880", "10.0.0.2:20880"),
+                URL.valueOf("dubbo://127.0.0.1:20880/" + HydraService.class.getName()), new RpcInvocation());
+        traceService.setRouter(router);
+        List<Span> spans = new ArrayList<Span>();
+        for (long traceId = 0; traceId < 50; traceId++) {
+            spans.addAll(newBatch(traceId, 2));
+        }
+        traceService.sendSpan(spans);
+        Assert.assertEquals(new HashSet<String>(Arrays.asList("10.0.0.1:20880", "10.0.0.2:20880")), received.keySet());
+        Assert.assertTrue(Collections.disjoint(received.get("10.0.0.1:20880"), received.get("10.0.0.2:20880")));
+        Assert.assertEquals(100, traceService.getSentCount());
+        Assert.assertEquals(0, traceService.getInFlightCount());
+    }
+
+    /**
+     * 协商在后台进行，完成前不压缩；训练字典后重新协商。
+     * collector重启丢失字典时拒收，agent在帧里带上字典重发，不用重新协商
+     */
+    @Test
+    public void testSendSpan_Compressed() throws Exception {
+        final List<Span> received = new CopyOnWriteArrayList<Span>();
+        final List<byte[]> frames = new CopyOnWriteArrayList<byte[]>();
+        PushService pushService = new PushService() {
+            @Override
+            public boolean push(List<Span> span) throws IOException {
+                received.addAll(span);
+                return true;
+            }
+
+            @Override
+            public boolean pushEncoded(byte[] spans) throws IOException {
+                frames.add(spans);
+                return super.pushEncoded(spans);
+            }
+        };
+        TraceService traceService = newTraceService(pushService);
+        traceService.setEncoded(true);
+        traceService.setCompression("lz4, deflate");
+        traceService.setDictionarySamples(2);
+        traceService.sendSpan(newBatch(0L, 3));
+        traceService.sendSpan(newBatch(1L, 3));
+        Assert.assertFalse(SpanCompressor.isCompressed(frames.get(0)));
+        awaitNegotiated(traceService, pushService, true);
+        Assert.assertEquals("deflate", traceService.getNegotiatedCompression());
+        int negotiations = pushService.negotiations;
+        traceService.sendSpan(newBatch(2L, 3));
+        Assert.assertTrue(SpanCompressor.isCompressed(frames.get(2)));
+
+        pushService.dictionaries = new SpanDictionary.Registry();//collector重启
+        traceService.sendSpan(newBatch(3L, 3));
+        Thread.sleep(300);
+        Assert.assertEquals(negotiations, pushService.negotiations);
+        Assert.assertEquals(5, frames.size());
+        Assert.assertTrue(frames.get(4).length > frames.get(3).length + pushService.dictionary.length);
+        Assert.assertEquals(1, pushService.dictionaries.size());
+        Assert.assertEquals(12, received.size());
+        Assert.assertEquals(3L, received.get(11).getTraceId().longValue());
+        Assert.assertEquals(12, traceService.getSentCount());
+        Assert.assertEquals(0, traceService.getRetryCount());
+        Assert.assertEquals(0, traceService.getDropCount());
+    }
+
+    /**
+     * 协商不在发送线程上进行：collector协商很慢时发送不受影响
+     */
+    @Test
+    public void testSendSpan_NegotiateAsync() throws Exception {
+        final CountDownLatch negotiate = new CountDownLatch(1);
+        final AtomicInteger calls = new AtomicInteger();
+        PushService pushService = new PushService() {
+            @Override
+            public boolean push(List<Span> span) throws IOException {
+                calls.incrementAndGet();
+                return true;
+            }
+
+            @Override
+            public String negotiate(List<String> codecs, byte[] dictionary) {
+                try {
+                    negotiate.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.negotiate(codecs, dictionary);
+            }
+        };
+        TraceService traceService = newTraceService(pushService);
+        traceService.setEncoded(true);
+        traceService.setCompression("snappy");
+        for (long i = 0; i < 5; i++) {
+            traceService.sendSpan(newBatch(i, 3));
+        }
+        Assert.assertEquals(5, calls.get());
+        Assert.assertNull(traceService.getNegotiatedCompression());
+        negotiate.countDown();
+        awaitNegotiated(traceService, pushService, false);
+        Assert.assertEquals("snappy", traceService.getNegotiatedCompression());
+    }
+
+    private static void awaitNegotiated(TraceService traceService, PushService pushService, boolean dictionary)
+            throws InterruptedException {
+        for (int i = 0; i < 200; i++) {
+            if (!traceService.isNegotiating() && traceService.getNegotiatedCompression() != null
+                    && (!dictionary || pushService.dictionary != null)) {
+                return;
+            }
+            Thread.sleep(10);
+        }
+        Assert.fail("negotiate timeout");
+    }
+
+    //pushEncoded解压、解码后交给push
+    private abstract static class PushService implements HydraService {
+        volatile SpanDictionary.Registry dictionaries = new SpanDictionary.Registry();
+        volatile byte[] dictionary;
+        volatile int negotiations;
+
+        @Override
+        public boolean pushEncoded(byte[] spans) throws IOException {
+            if (SpanCompressor.isCompressed(spans)) {
+                spans = SpanCompressor.decompress(spans, dictionaries);
+            }
+            return push(SpanCodec.decode(spans));
+        }
+
+        @Override
+        public String negotiate(List<String> codecs, byte[] dictionary) {
+            negotiations++;
+            if (dictionary != null) {
+                this.dictionary = dictionary;
+                dictionaries.register(dictionary);
+            }
+            return SpanCompressor.negotiate(codecs);
+        }
+    }
+
+    private TraceService newTraceService(HydraService hydraService) {
+        TraceService traceService = new TraceService();
+        traceService.setMetrics(new AgentMetrics());
+        traceService.setHydraService(hydraService);
+        traceService.setMaxInFlight(2);
+        traceService.setRetryTimes(2);
+        traceService.setRetryDelay(50);
+        return traceService;
+    }
+
+    private List<Span> newBatch(int size) {
+        return newBatch(1L, size);
+    }
+
+    private List<Span> newBatch(long traceId, int size) {
+        List<Span> list = new ArrayList<Span>();
+        for (int i = 0; i < size; i++) {
+            Span span = new Span();
+            span.setTraceId(traceId);
+            span.setId((long) i);
+            list.add(span);
+        }
+        return list;
+    }
+}
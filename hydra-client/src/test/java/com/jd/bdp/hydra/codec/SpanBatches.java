@@ -0,0 +1,53 @@
+package com.jd.bdp.hydra.codec;
+
+import com.jd.bdp.hydra.BinaryAnnotation;
+import com.jd.bdp.hydra.Endpoint;
+import com.jd.bdp.hydra.Span;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Date: 26-10-17
+ * 接近线上的span批次：少量服务和机器，每个调用一对客户端/服务端span，少数带异常
+ */
+class SpanBatches {
+
+    private static final String[] METHODS = {"functionA", "functionB", "getUserInfo", "queryOrderList"};
+    private static final Endpoint[] HOSTS = {new Endpoint("192.168.200.110", 20880, null),
+            new Endpoint("192.168.200.111", 20880, null), new Endpoint("192.168.200.112", 20881, null)};
+
+    static List<Span> newBatch(int size) {
+        List<Span> list = new ArrayList<Span>(size);
+        long traceId = (1000L << 22) | (37L << 12);
+        long spanId = (1000L << 22) | (37L << 12);
+        for (int i = 0; i < size; i++) {
+            if (i % 4 == 0) {
+                traceId += 3;
+            }
+            Span span = new Span();
+            span.setTraceId(traceId);
+            span.setId(spanId++);
+            if (i % 4 != 0) {
+                span.setParentId(spanId - 2);
+            }
+            span.setServiceId(String.valueOf(10100 + i % 3));
+            span.setSpanName(METHODS[i % METHODS.length]);
+            span.setSample(true);
+            Endpoint host = HOSTS[i % HOSTS.length];
+            span.recordStart(i % 2 == 0, host);
+            span.recordEnd();
+            if (i % 10 == 3) {
+                BinaryAnnotation ex = new BinaryAnnotation();
+                ex.setKey("dubbo.exception");
+                ex.setValue("com.alibaba.dubbo.rpc.RpcException: Invoke remote method timeout. method: "
+                        + METHODS[i % METHODS.length] + ", provider: dubbo://" + host.getIp() + ":" + host.getPort());
+                ex.setType("exTimeout");
+                ex.setHost(host);
+                span.addBinaryAnnotation(ex);
+            }
+            list.add(span);
+        }
+        return list;
+    }
+}
@@ -0,0 +1,130 @@
+package com.jd.bdp.hydra.codec;
+
+import com.alibaba.com.caucho.hessian.io.Hessian2Input;
+import com.alibaba.com.caucho.hessian.io.Hessian2Output;
+import com.jd.bdp.hydra.Span;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Date: 26-10-17
+ * 100个span的批次在java序列化、hessian2(dubbo默认)、SpanCodec下的大小和编解码耗时
+ * 仓库里没有glowworm(PB)的依赖，metaq路径的格式没有参与比较
+ */
+public class SpanCodecPerfTest {
+
+    private final List<Span> batch = SpanBatches.newBatch(100);
+    private long sink;
+
+    @Test
+    public void testCodec_Performance() throws Exception {
+        Format[] formats = {new JavaFormat(), new HessianFormat(), new CodecFormat(), new ReaderFormat()};
+        int times = 3000;
+        System.out.println("格式\tbyte/批\t编码us/批\t解码us/批");
+        for (int round = 0; round < 3; round++) {//前几轮用于预热
+            for (Format format : formats) {
+                byte[] bytes = null;
+                long start = System.nanoTime();
+                for (int i = 0; i < times; i++) {
+                    bytes = format.encode(batch);
+                }
+                long encodeCost = System.nanoTime() - start;
+                start = System.nanoTime();
+                for (int i = 0; i < times; i++) {
+                    sink += format.decode(bytes);
+                }
+                long decodeCost = System.nanoTime() - start;
+                System.out.printf("%s\t%d\t%.1f\t%.1f\n", format.name(), bytes.length,
+                        encodeCost / 1000.0 / times, decodeCost / 1000.0 / times);
+            }
+        }
+        System.out.println("------------------------" + (sink == 0 ? "" : " "));
+    }
+
+    private interface Format {
+        String name();
+
+        byte[] encode(List<Span> spans) throws IOException;
+
+        //返回值只用于防止被优化掉
+        int decode(byte[] bytes) throws Exception;
+    }
+
+    private static class JavaFormat implements Format {
+        public String name() {
+            return "java";
+        }
+
+        public byte[] encode(List<Span> spans) throws IOException {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(4096);
+            ObjectOutputStream out = new ObjectOutputStream(bos);
+            out.writeObject(new ArrayList<Span>(spans));
+            out.close();
+            return bos.toByteArray();
+        }
+
+        public int decode(byte[] bytes) throws Exception {
+            ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+            return ((List<?>) in.readObject()).size();
+        }
+    }
+
+    private static class HessianFormat implements Format {
+        public String name() {
+            return "hessian2";
+        }
+
+        public byte[] encode(List<Span> spans) throws IOException {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(4096);
+            Hessian2Output out = new Hessian2Output(bos);
+            out.writeObject(spans);
+            out.flush();
+            return bos.toByteArray();
+        }
+
+        public int decode(byte[] bytes) throws Exception {
+            Hessian2Input in = new Hessian2Input(new ByteArrayInputStream(bytes));
+            return ((List<?>) in.readObject()).size();
+        }
+    }
+
+    private static class CodecFormat implements Format {
+        public String name() {
+            return "codec";
+        }
+
+        public byte[] encode(List<Span> spans) {
+            return SpanCodec.encode(spans);
+        }
+
+        public int decode(byte[] bytes) throws Exception {
+            return SpanCodec.decode(bytes).size();
+        }
+    }
+
+    //collector直接按游标读取，不生成Span对象
+    private static class ReaderFormat extends CodecFormat {
+        public String name() {
+            return "reader";
+        }
+
+        public int decode(byte[] bytes) throws Exception {
+            SpanBatchReader reader = new SpanBatchReader(bytes);
+            int n = 0;
+            while (reader.nextSpan()) {
+                n += (int) reader.traceId() + reader.serviceId().length();
+                while (reader.nextAnnotation()) {
+                    n += (int) reader.timestampUs() + reader.hostPort();
+                }
+            }
+            return n;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.jd.bdp.hydra.codec;
+
+import com.jd.bdp.hydra.Annotation;
+import com.jd.bdp.hydra.BinaryAnnotation;
+import com.jd.bdp.hydra.Endpoint;
+import com.jd.bdp.hydra.Span;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Date: 26-10-17
+ */
+public class SpanCodecTest {
+
+    /**
+     * 编码再解码，内容不变
+     */
+    @Test
+    public void testEncode_RoundTrip() throws Exception {
+        List<Span> spans = SpanBatches.newBatch(50);
+        List<Span> decoded = SpanCodec.decode(SpanCodec.encode(spans));
+        Assert.assertEquals(spans.size(), decoded.size());
+        for (int i = 0; i < spans.size(); i++) {
+            assertSpan(spans.get(i), decoded.get(i));
+        }
+    }
+
+    /**
+     * null字段、非标准annotation、负的差值
+     */
+    @Test
+    public void testEncode_Nullable() throws Exception {
+        Span a = new Span();
+        Span b = new Span();
+        b.setTraceId(-5L);
+        b.setId(3L);
+        b.setParentId(Long.MAX_VALUE);
+        b.setSample(true);
+        Annotation custom = new Annotation(100L, "cache_miss", new Endpoint(null, null, null));
+        custom.setDuration(-7);
+        b.addAnnotation(custom);
+        b.addAnnotation(new Annotation(null, null, null));
+        b.addAnnotation(new Annotation(99L, Annotation.SERVER_SEND, new Endpoint("中文", 1, null)));
+        BinaryAnnotation empty = new BinaryAnnotation();
+        b.addBinaryAnnotation(empty);
+
+        List<Span> decoded = SpanCodec.decode(SpanCodec.encode(Arrays.asList(a, b)));
+        Assert.assertNull(decoded.get(0).getTraceId());
+        Assert.assertNull(decoded.get(0).getParentId());
+        Assert.assertTrue(decoded.get(0).getAnnotations().isEmpty());
+        assertSpan(b, decoded.get(1));
+        Assert.assertNull(decoded.get(1).getAnnotations().get(0).getHost().getPort());
+    }
+
+    /**
+     * 按游标读取时跳过未读的annotation
+     */
+    @Test
+    public void testReader_Skip() throws Exception {
+        List<Span> spans = SpanBatches.newBatch(20);
+        SpanBatchReader reader = new SpanBatchReader(SpanCodec.encode(spans));
+        Assert.assertEquals(20, reader.spanCount());
+        int i = 0;
+        while (reader.nextSpan()) {
+            Span span = spans.get(i++);
+            Assert.assertEquals(span.getTraceId().longValue(), reader.traceId());
+            if (i % 3 == 0) {//只读binaryAnnotation
+                int count = 0;
+                while (reader.nextBinaryAnnotation()) {
+                    Assert.assertEquals(span.getBinaryAnnotations().get(count++).getValue(), reader.value());
+                }
+                Assert.assertEquals(span.getBinaryAnnotations().size(), count);
+            } else if (i % 3 == 1 && reader.nextAnnotation()) {//只读第一个annotation
+                Assert.assertEquals(span.getAnnotations().get(0).getValue(), reader.annotationValue());
+                Assert.assertEquals(span.getAnnotations().get(0).getTimestampUs().longValue(), reader.timestampUs());
+            }
+        }
+        Assert.assertEquals(20, i);
+    }
+
+    @Test
+    public void testDecode_Broken() throws Exception {
+        byte[] bytes = SpanCodec.encode(SpanBatches.newBatch(5));
+        try {
+            SpanCodec.decode(Arrays.copyOf(bytes, bytes.length - 3));
+            Assert.fail();
+        } catch (IOException e) {
+        }
+        bytes[2] = 9;
+        try {
+            SpanCodec.decode(bytes);
+            Assert.fail();
+        } catch (IOException e) {
+            Assert.assertTrue(e.getMessage().contains("version"));
+        }
+    }
+
+    /**
+     * 伪造的个数(字符串、span)超过剩余字节数时不分配数组，直接报错
+     */
+    @Test
+    public void testReader_ForgedCount() throws Exception {
+        byte[][] forged = {
+                {SpanCodec.MAGIC_0, SpanCodec.MAGIC_1, SpanCodec.VERSION, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x07},
+                {SpanCodec.MAGIC_0, SpanCodec.MAGIC_1, SpanCodec.VERSION, 0, 0, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x07}};
+        for (byte[] bytes : forged) {
+            try {
+                new SpanBatchReader(bytes);
+                Assert.fail();
+            } catch (IOException e) {
+                Assert.assertTrue(e.getMessage().contains("broken"));
+            }
+        }
+    }
+
+    private void assertSpan(Span expected, Span actual) {
+        Assert.assertEquals(expected.getTraceId(), actual.getTraceId());
+        Assert.assertEquals(expected.getId(), actual.getId());
+        Assert.assertEquals(expected.getParentId(), actual.getParentId());
+        Assert.assertEquals(expected.getSpanName(), actual.getSpanName());
+        Assert.assertEquals(expected.getServiceId(), actual.getServiceId());
+        Assert.assertEquals(expected.isSample(), actual.isSample());
+        List<Annotation> annotations = expected.getAnnotations();
+        Assert.assertEquals(annotations.size(), actual.getAnnotations().size());
+        for (int i = 0; i < annotations.size(); i++) {
+            Annotation e = annotations.get(i);
+            Annotation a = actual.getAnnotations().get(i);
+            Assert.assertEquals(e.getValue(), a.getValue());
+            Assert.assertEquals(e.getTimestamp(), a.getTimestamp());
+            Assert.assertEquals(e.getTimestampUs(), a.getTimestampUs());
+            Assert.assertEquals(e.getDuration(), a.getDuration());
+            assertEndpoint(e.getHost(), a.getHost());
+        }
+        List<BinaryAnnotation> binaryAnnotations = expected.getBinaryAnnotations();
+        Assert.assertEquals(binaryAnnotations.size(), actual.getBinaryAnnotations().size());
+        for (int i = 0; i < binaryAnnotations.size(); i++) {
+            BinaryAnnotation e = binaryAnnotations.get(i);
+            BinaryAnnotation a = actual.getBinaryAnnotations().get(i);
+            Assert.assertEquals(e.getKey(), a.getKey());
+            Assert.assertEquals(e.getValue(), a.getValue());
+            Assert.assertEquals(e.getType(), a.getType());
+            Assert.assertEquals(e.getDuration(), a.getDuration());
+            assertEndpoint(e.getHost(), a.getHost());
+        }
+    }
+
+    private void assertEndpoint(Endpoint e, Endpoint a) {
+        if (e == null) {
+            Assert.assertNull(a);
+            return;
+        }
+        Assert.assertEquals(e.getIp(), a.getIp());
+        Assert.assertEquals(e.getPort(), a.getPort());
+    }
+}
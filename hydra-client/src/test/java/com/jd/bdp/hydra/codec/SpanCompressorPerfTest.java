@@ -0,0 +1,59 @@
+package com.jd.bdp.hydra.codec;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * Date: 26-10-17
+ * SpanCodec编码后的批次在不同压缩方式下的大小和压缩/解压耗时，字典用另外的批次训练
+ */
+public class SpanCompressorPerfTest {
+
+    private long sink;
+
+    @Test
+    public void testCompress_Performance() throws Exception {
+        List<byte[]> samples = new ArrayList<byte[]>();
+        for (int i = 0; i < 16; i++) {
+            samples.add(SpanCodec.encode(SpanBatches.newBatch(10)));
+        }
+        byte[] dictionary = SpanDictionary.train(samples, SpanDictionary.MAX_SIZE);
+        SpanDictionary.Registry registry = new SpanDictionary.Registry();
+        registry.register(dictionary);
+        System.out.println("字典: " + dictionary.length + " byte");
+
+        String[] names = {"none", "snappy", "deflate", "deflate+dict"};
+        SpanCompressor[] compressors = {new SpanCompressor(SpanCompressor.NONE), new SpanCompressor(SpanCompressor.SNAPPY),
+                new SpanCompressor(SpanCompressor.DEFLATE),
+                new SpanCompressor(SpanCompressor.DEFLATE, dictionary, Deflater.BEST_SPEED)};
+        int times = 3000;
+        System.out.println("span/批\t方式\tbyte/批\t压缩us/批\t解压us/批");
+        for (int round = 0; round < 3; round++) {//前几轮用于预热
+            for (int size : new int[]{10, 100}) {
+                byte[] raw = SpanCodec.encode(SpanBatches.newBatch(size));
+                for (int c = 0; c < compressors.length; c++) {
+                    byte[] frame = null;
+                    long start = System.nanoTime();
+                    for (int i = 0; i < times; i++) {
+                        frame = compressors[c].compress(raw);
+                    }
+                    long compressCost = System.nanoTime() - start;
+                    start = System.nanoTime();
+                    for (int i = 0; i < times; i++) {
+                        sink += SpanCompressor.decompress(frame, registry).length;
+                    }
+                    long decompressCost = System.nanoTime() - start;
+                    System.out.printf("%d\t%s\t%d\t%.1f\t%.1f\n", size, names[c], frame.length,
+                            compressCost / 1000.0 / times, decompressCost / 1000.0 / times);
+                }
+            }
+        }
+        for (SpanCompressor compressor : compressors) {
+            compressor.close();
+        }
+        System.out.println("------------------------" + (sink == 0 ? "" : " "));
+    }
+}
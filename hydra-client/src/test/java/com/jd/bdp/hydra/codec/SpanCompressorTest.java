@@ -0,0 +1,199 @@
+package com.jd.bdp.hydra.codec;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * Date: 26-10-17
+ */
+public class SpanCompressorTest {
+
+    /**
+     * 各codec压缩再解压，内容不变
+     */
+    @Test
+    public void testCompress_RoundTrip() throws Exception {
+        byte[] raw = SpanCodec.encode(SpanBatches.newBatch(100));
+        for (String codec : Arrays.asList(SpanCompressor.NONE, SpanCompressor.SNAPPY, SpanCompressor.DEFLATE)) {
+            byte[] frame = new SpanCompressor(codec).compress(raw);
+            Assert.assertTrue(SpanCompressor.isCompressed(frame));
+            Assert.assertArrayEquals(codec, raw, SpanCompressor.decompress(frame, null));
+            if (!SpanCompressor.NONE.equals(codec)) {
+                Assert.assertTrue(codec, frame.length < raw.length);
+            }
+        }
+        Assert.assertFalse(SpanCompressor.isCompressed(raw));
+        Assert.assertArrayEquals(new byte[0],
+                SpanCompressor.decompress(new SpanCompressor(SpanCompressor.SNAPPY).compress(new byte[0]), null));
+    }
+
+    /**
+     * 带字典的deflate：小批次明显变小，collector没有字典时抛UnknownDictionaryException
+     */
+    @Test
+    public void testCompress_Dictionary() throws Exception {
+        List<byte[]> samples = new ArrayList<byte[]>();
+        for (int i = 0; i < 8; i++) {
+            samples.add(SpanCodec.encode(SpanBatches.newBatch(10)));
+        }
+        byte[] dictionary = SpanDictionary.train(samples, 4096);
+        Assert.assertTrue(dictionary.length > 0 && dictionary.length <= 4096);
+
+        byte[] raw = SpanCodec.encode(SpanBatches.newBatch(10));
+        byte[] plain = new SpanCompressor(SpanCompressor.DEFLATE).compress(raw);
+        byte[] frame = new SpanCompressor(SpanCompressor.DEFLATE, dictionary, Deflater.BEST_SPEED).compress(raw);
+        Assert.assertTrue(frame.length < plain.length);
+        try {
+            SpanCompressor.decompress(frame, new SpanDictionary.Registry());
+            Assert.fail();
+        } catch (SpanCompressor.UnknownDictionaryException e) {
+            Assert.assertEquals(SpanDictionary.id(dictionary), e.getId());
+        }
+        SpanDictionary.Registry registry = new SpanDictionary.Registry();
+        registry.register(dictionary);
+        Assert.assertArrayEquals(raw, SpanCompressor.decompress(frame, registry));
+    }
+
+    /**
+     * 只读帧头检查字典；字典随帧发送时没有协商过的collector也能解压，并登记该字典
+     */
+    @Test
+    public void testCompress_EmbeddedDictionary() throws Exception {
+        List<byte[]> samples = new ArrayList<byte[]>();
+        for (int i = 0; i < 8; i++) {
+            samples.add(SpanCodec.encode(SpanBatches.newBatch(10)));
+        }
+        byte[] dictionary = SpanDictionary.train(samples, 4096);
+        byte[] raw = SpanCodec.encode(SpanBatches.newBatch(10));
+        SpanCompressor compressor = new SpanCompressor(SpanCompressor.DEFLATE, dictionary, Deflater.BEST_SPEED);
+        byte[] frame = compressor.compress(raw);
+        byte[] embedded = compressor.compress(raw, true);
+        Assert.assertTrue(embedded.length > frame.length + dictionary.length);
+
+        SpanDictionary.Registry registry = new SpanDictionary.Registry();
+        try {
+            SpanCompressor.check(frame, registry);
+            Assert.fail();
+        } catch (SpanCompressor.UnknownDictionaryException e) {
+            //agent带上字典重发
+        }
+        SpanCompressor.check(embedded, registry);
+        Assert.assertNotNull(registry.get(SpanDictionary.id(dictionary)));
+        SpanCompressor.check(frame, registry);
+        Assert.assertArrayEquals(raw, SpanCompressor.decompress(frame, registry));
+        Assert.assertArrayEquals(raw, SpanCompressor.decompress(embedded, new SpanDictionary.Registry()));
+        Assert.assertArrayEquals(raw, SpanCompressor.decompress(embedded, null));
+
+        //没有字典时不带
+        byte[] plain = new SpanCompressor(SpanCompressor.DEFLATE).compress(raw, true);
+        SpanCompressor.check(plain, null);
+        Assert.assertArrayEquals(raw, SpanCompressor.decompress(plain, null));
+        //字典内容与zlib头里的id不符
+        int rawLengthSize = raw.length < 128 ? 1 : (raw.length < 16384 ? 2 : 3);
+        embedded[embedded.length - (frame.length - 3 - rawLengthSize) - 1] ^= 1;
+        try {
+            SpanCompressor.check(embedded, registry);
+            Assert.fail();
+        } catch (IOException e) {
+            //ig
+        }
+    }
+
+    /**
+     * 按总字节数淘汰最久未用的字典，内容相同的只存一份
+     */
+    @Test
+    public void testRegistry_Evict() {
+        SpanDictionary.Registry registry = new SpanDictionary.Registry(300);
+        byte[][] dictionaries = new byte[4][];
+        for (int i = 0; i < dictionaries.length; i++) {
+            dictionaries[i] = new byte[100];
+            Arrays.fill(dictionaries[i], (byte) i);
+            registry.register(dictionaries[i]);
+            registry.register(dictionaries[i].clone());
+            registry.get(SpanDictionary.id(dictionaries[0]));//0一直在用
+        }
+        Assert.assertEquals(3, registry.size());
+        Assert.assertEquals(300, registry.getBytes());
+        Assert.assertEquals(1, registry.getEvictCount());
+        Assert.assertNotNull(registry.get(SpanDictionary.id(dictionaries[0])));
+        Assert.assertNull(registry.get(SpanDictionary.id(dictionaries[1])));
+    }
+
+    /**
+     * 截断或未知codec的数据
+     */
+    @Test
+    public void testDecompress_Broken() throws Exception {
+        byte[] raw = SpanCodec.encode(SpanBatches.newBatch(10));
+        for (String codec : Arrays.asList(SpanCompressor.NONE, SpanCompressor.SNAPPY, SpanCompressor.DEFLATE)) {
+            byte[] frame = new SpanCompressor(codec).compress(raw);
+            try {
+                SpanCompressor.decompress(Arrays.copyOf(frame, frame.length - 5), null);
+                Assert.fail(codec);
+            } catch (IOException e) {
+                //ig
+            }
+        }
+        try {
+            SpanCompressor.decompress(new byte[]{'H', 'Z', 9, 0}, null);
+            Assert.fail();
+        } catch (IOException e) {
+            //ig
+        }
+    }
+
+    /**
+     * 帧头里伪造的原始长度(几个字节声称2GB)，check和decompress都在分配内存前拒绝
+     */
+    @Test
+    public void testDecompress_RawLengthBound() throws Exception {
+        for (byte code = 0; code <= 3; code++) {
+            //原始长度Integer.MAX_VALUE的varint，后面几个字节的数据
+            byte[] frame = {'H', 'Z', code, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x07, 0x78, 0x01, 0, 0};
+            try {
+                SpanCompressor.check(frame, new SpanDictionary.Registry());
+                Assert.fail("check " + code);
+            } catch (IOException e) {
+                //ig
+            }
+            try {
+                SpanCompressor.decompress(frame, null);
+                Assert.fail("decompress " + code);
+            } catch (IOException e) {
+                //ig
+            }
+        }
+        //超过配置的上限
+        byte[] raw = SpanCodec.encode(SpanBatches.newBatch(100));
+        for (String codec : Arrays.asList(SpanCompressor.NONE, SpanCompressor.SNAPPY, SpanCompressor.DEFLATE)) {
+            byte[] frame = new SpanCompressor(codec).compress(raw);
+            SpanCompressor.check(frame, null, raw.length);
+            try {
+                SpanCompressor.check(frame, null, raw.length - 1);
+                Assert.fail(codec);
+            } catch (IOException e) {
+                Assert.assertTrue(e.getMessage().startsWith("span batch too large"));
+            }
+            try {
+                SpanCompressor.decompress(frame, null, raw.length - 1);
+                Assert.fail(codec);
+            } catch (IOException e) {
+                //ig
+            }
+        }
+    }
+
+    @Test
+    public void testNegotiate() {
+        Assert.assertEquals(SpanCompressor.DEFLATE, SpanCompressor.negotiate(Arrays.asList("lz4", "deflate", "snappy")));
+        Assert.assertEquals(SpanCompressor.NONE, SpanCompressor.negotiate(Arrays.asList("lz4", "zstd")));
+        Assert.assertEquals(SpanCompressor.NONE, SpanCompressor.negotiate(null));
+    }
+}
@@ -0,0 +1,44 @@
+package com.jd.bdp.hydra.http;
+
+import com.jd.bdp.hydra.Span;
+import com.jd.bdp.hydra.agent.support.TracerUtils;
+import org.junit.Test;
+
+/**
+ * Date: 26-10-17
+ * 传递trace的头：dubbo attachment的三个十进制字符串 vs HTTP_HEADER的一个十六进制字符串，生成+解析一次的耗时
+ */
+public class HttpHeaderPerfTest {
+
+    private long sink;
+
+    @Test
+    public void testHeader_Performance() {
+        Span span = new Span();
+        span.setTraceId(4611686018427387904L + 12345);
+        span.setId(4611686018427388904L);
+        span.setParentId(4611686018427389904L);
+        int times = 5000000;
+        System.out.println("格式\tns/次");
+        for (int round = 0; round < 3; round++) {//前几轮用于预热
+            long start = System.nanoTime();
+            for (int i = 0; i < times; i++) {
+                String tid = Long.toString(span.getTraceId());
+                String sid = Long.toString(span.getId());
+                String pid = Long.toString(span.getParentId());
+                sink += TracerUtils.getAttachmentLong(tid) + TracerUtils.getAttachmentLong(sid)
+                        + TracerUtils.getAttachmentLong(pid);
+            }
+            long decimal = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < times; i++) {
+                long[] ids = TracerUtils.parseHexHeader(TracerUtils.toHexHeader(span));
+                sink += ids[0] + ids[1] + ids[2];
+            }
+            long hex = System.nanoTime() - start;
+            System.out.printf("decimal\t%.1f\n", decimal * 1.0 / times);
+            System.out.printf("hex\t%.1f\n", hex * 1.0 / times);
+        }
+        System.out.println("------------------------" + (sink == 0 ? "" : " "));
+    }
+}
@@ -0,0 +1,237 @@
+package com.jd.bdp.hydra.http;
+
+import com.jd.bdp.hydra.Annotation;
+import com.jd.bdp.hydra.Span;
+import com.jd.bdp.hydra.agent.Sampler;
+import com.jd.bdp.hydra.agent.SyncTransfer;
+import com.jd.bdp.hydra.agent.Tracer;
+import com.jd.bdp.hydra.agent.support.TraceService;
+import com.jd.bdp.hydra.agent.support.TracerUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Date: 26-10-17
+ */
+public class HydraServletFilterTest {
+
+    private final Tracer tracer = Tracer.getTracer();
+    private final List<Span> sent = new ArrayList<Span>();
+    private final AtomicLong ids = new AtomicLong(100);
+    private final HydraServletFilter filter = new HydraServletFilter();
+    private Sampler oldSampler;
+    private boolean sample;
+    //filter链中看到的当前span
+    private Span current;
+
+    @Before
+    public void setUp() {
+        oldSampler = tracer.getSampler();
+        tracer.setSampler(new Sampler() {
+            public boolean isSample() {
+                return sample;
+            }
+
+            public boolean isSample(String serviceId, String method) {
+                return sample;
+            }
+        });
+        tracer.setTransfer(new TestSyncTransfer());
+        filter.setServiceName("order-web");
+    }
+
+    @After
+    public void tearDown() {
+        tracer.setSampler(oldSampler);
+        tracer.setTransfer(null);
+    }
+
+    @Test
+    public void testHexHeader() {
+        Span span = tracer.genSpan(-1L, 0x1234L, Long.MAX_VALUE, "a", true, null);
+        String header = TracerUtils.toHexHeader(span);
+        Assert.assertEquals(48, header.length());
+        long[] parsed = TracerUtils.parseHexHeader(header);
+        Assert.assertArrayEquals(new long[]{-1L, Long.MAX_VALUE, 0x1234L}, parsed);
+        span.setParentId(null);
+        Assert.assertArrayEquals(new long[]{-1L, Long.MAX_VALUE},
+                TracerUtils.parseHexHeader(TracerUtils.toHexHeader(span).toUpperCase()));
+        Assert.assertNull(TracerUtils.parseHexHeader(TracerUtils.SAMPLE_FALSE));
+        Assert.assertNull(TracerUtils.parseHexHeader(header.substring(1) + "g"));
+        Assert.assertNull(TracerUtils.parseHexHeader(null));
+    }
+
+    /**
+     * 带头的请求接着上游记录服务端span，处理期间span在当前线程上
+     */
+    @Test
+    public void testDoFilter_Propagated() throws Exception {
+        MockHttpServletRequest request = request();
+        request.addHeader(TracerUtils.HTTP_HEADER, TracerUtils.toHexHeader(tracer.genSpan(7L, 8L, 9L, "a", true, null)));
+        filter.doFilter(request, new MockHttpServletResponse(), chain());
+
+        Assert.assertEquals(1, sent.size());
+        Span span = sent.get(0);
+        Assert.assertSame(span, current);
+        Assert.assertEquals(Long.valueOf(7), span.getTraceId());
+        Assert.assertEquals(Long.valueOf(9), span.getId());
+        Assert.assertEquals(Long.valueOf(8), span.getParentId());
+        Assert.assertEquals("/order/get", span.getSpanName());
+        Assert.assertEquals("10101", span.getServiceId());
+        Assert.assertEquals(Annotation.SERVER_RECEIVE, span.getAnnotations().get(0).getValue());
+        Assert.assertEquals(Annotation.SERVER_SEND, span.getAnnotations().get(1).getValue());
+        Assert.assertEquals("127.0.0.1:8080", span.getAnnotations().get(0).getHost().getIp());
+        Assert.assertNull(tracer.getParentSpan());
+    }
+
+    /**
+     * 没有上游时按采样率决定是否作为root开始trace，不采样时线程上放未采样标志
+     */
+    @Test
+    public void testDoFilter_Root() throws Exception {
+        sample = false;
+        filter.doFilter(request(), new MockHttpServletResponse(), chain());
+        Assert.assertSame(Tracer.NOT_SAMPLED, current);
+        Assert.assertTrue(sent.isEmpty());
+
+        sample = true;
+        filter.doFilter(request(), new MockHttpServletResponse(), chain());
+        Assert.assertEquals(1, sent.size());
+        Assert.assertNull(sent.get(0).getParentId());
+        Assert.assertNotNull(sent.get(0).getTraceId());
+
+        MockHttpServletRequest request = request();
+        request.addHeader(TracerUtils.HTTP_HEADER, TracerUtils.SAMPLE_FALSE);
+        filter.doFilter(request, new MockHttpServletResponse(), chain());
+        Assert.assertSame(Tracer.NOT_SAMPLED, current);
+        Assert.assertEquals(1, sent.size());
+    }
+
+    /**
+     * 处理中抛出的异常记录到服务端span上
+     */
+    @Test
+    public void testDoFilter_Exception() throws Exception {
+        sample = true;
+        try {
+            filter.doFilter(request(), new MockHttpServletResponse(), new FilterChain() {
+                public void doFilter(ServletRequest request, ServletResponse response) throws IOException, ServletException {
+                    throw new ServletException("boom");
+                }
+            });
+            Assert.fail();
+        } catch (ServletException e) {
+            Assert.assertEquals("boom", e.getMessage());
+        }
+        Assert.assertEquals(1, sent.size());
+        Assert.assertEquals(TracerUtils.EXCEPTION, sent.get(0).getBinaryAnnotations().get(0).getKey());
+        Assert.assertEquals("boom", sent.get(0).getBinaryAnnotations().get(0).getValue());
+    }
+
+    /**
+     * 客户端设置的头被服务端解析为子span
+     */
+    @Test
+    public void testClientToServer() throws Exception {
+        Span parent = tracer.genSpan(7L, null, 8L, "a", true, "10101");
+        tracer.setParentSpan(parent);
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:1/order/get").openConnection();
+        Span client = TraceHttpURLConnection.clientSend(connection);
+        tracer.removeParentSpan();
+        String header = connection.getRequestProperty(TracerUtils.HTTP_HEADER);
+        Assert.assertNotNull(header);
+
+        MockHttpServletRequest request = request();
+        request.addHeader(TracerUtils.HTTP_HEADER, header);
+        filter.doFilter(request, new MockHttpServletResponse(), chain());
+        TraceHttpURLConnection.clientReceive(client, null);
+
+        Assert.assertEquals(2, sent.size());
+        Span server = sent.get(0);
+        Assert.assertSame(client, sent.get(1));
+        Assert.assertEquals(Long.valueOf(7), server.getTraceId());
+        Assert.assertEquals(client.getId(), server.getId());
+        Assert.assertEquals(Long.valueOf(8), server.getParentId());
+        Assert.assertEquals("/order/get", client.getSpanName());
+        Assert.assertEquals(Annotation.CLIENT_SEND, client.getAnnotations().get(0).getValue());
+        Assert.assertEquals(Annotation.CLIENT_RECEIVE, client.getAnnotations().get(1).getValue());
+
+        //上游未采样时只传递标志
+        tracer.setParentSpan(Tracer.NOT_SAMPLED);
+        connection = (HttpURLConnection) new URL("http://127.0.0.1:1/order/get").openConnection();
+        Assert.assertNull(TraceHttpURLConnection.clientSend(connection));
+        tracer.removeParentSpan();
+        Assert.assertEquals(TracerUtils.SAMPLE_FALSE, connection.getRequestProperty(TracerUtils.HTTP_HEADER));
+    }
+
+    private MockHttpServletRequest request() {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/web/order/get");
+        request.setContextPath("/web");
+        request.setServletPath("/order/get");
+        request.setLocalAddr("127.0.0.1");
+        request.setLocalPort(8080);
+        return request;
+    }
+
+    private FilterChain chain() {
+        return new FilterChain() {
+            public void doFilter(ServletRequest request, ServletResponse response) {
+                current = tracer.getParentSpan();
+            }
+        };
+    }
+
+    private class TestSyncTransfer implements SyncTransfer {
+        public Long getTraceId() {
+            return ids.incrementAndGet();
+        }
+
+        public Long getSpanId() {
+            return ids.incrementAndGet();
+        }
+
+        public boolean isReady() {
+            return true;
+        }
+
+        public boolean isServiceReady(String serviceName) {
+            return true;
+        }
+
+        public void start() throws Exception {
+        }
+
+        public String getServiceId(String service) {
+            return "10101";
+        }
+
+        public void cancel() {
+        }
+
+        public void syncSend(Span span) {
+            sent.add(span);
+        }
+
+        public void setTraceService(TraceService traceService) {
+        }
+
+        public String appName() {
+            return "test";
+        }
+    }
+}
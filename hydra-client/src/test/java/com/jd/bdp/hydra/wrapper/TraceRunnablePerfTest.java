@@ -0,0 +1,50 @@
+package com.jd.bdp.hydra.wrapper;
+
+import com.jd.bdp.hydra.Span;
+import com.jd.bdp.hydra.agent.Tracer;
+import org.junit.Test;
+
+/**
+ * Date: 26-10-17
+ * 包装一个任务(创建时记录span、执行时换上再恢复)相对直接执行增加的耗时
+ */
+public class TraceRunnablePerfTest {
+
+    private long sink;
+
+    @Test
+    public void testWrap_Performance() {
+        Tracer tracer = Tracer.getTracer();
+        Span span = new Span();
+        span.setSample(true);
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                sink++;
+            }
+        };
+        int times = 10000000;
+        System.out.println("方式\tns/任务");
+        try {
+            for (int round = 0; round < 3; round++) {//前几轮用于预热
+                long start = System.nanoTime();
+                for (int i = 0; i < times; i++) {
+                    task.run();
+                }
+                long direct = System.nanoTime() - start;
+                tracer.setParentSpan(span);
+                start = System.nanoTime();
+                for (int i = 0; i < times; i++) {
+                    new TraceRunnable(task).run();
+                }
+                long wrapped = System.nanoTime() - start;
+                tracer.removeParentSpan();
+                System.out.printf("direct\t%.1f\n", direct * 1.0 / times);
+                System.out.printf("wrapped\t%.1f\n", wrapped * 1.0 / times);
+            }
+        } finally {
+            tracer.removeParentSpan();
+        }
+        System.out.println("------------------------" + (sink == 0 ? "" : " "));
+    }
+}
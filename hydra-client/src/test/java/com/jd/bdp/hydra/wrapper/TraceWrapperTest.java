@@ -0,0 +1,235 @@
+package com.jd.bdp.hydra.wrapper;
+
+import com.jd.bdp.hydra.Span;
+import com.jd.bdp.hydra.agent.Tracer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Date: 26-10-17
+ */
+public class TraceWrapperTest {
+
+    private final Tracer tracer = Tracer.getTracer();
+
+    @After
+    public void tearDown() {
+        tracer.removeParentSpan();
+    }
+
+    /**
+     * 执行完恢复线程原来的parentSpan，线程池的线程里不残留
+     */
+    @Test
+    public void testRunnable_Restore() throws Exception {
+        Span parent = newSpan(1L);
+        Span own = newSpan(2L);
+        final List<Span> seen = new CopyOnWriteArrayList<Span>();
+        Runnable record = new Runnable() {
+            @Override
+            public void run() {
+                seen.add(tracer.getParentSpan() == null ? Tracer.NOT_SAMPLED : tracer.getParentSpan());
+            }
+        };
+
+        tracer.setParentSpan(own);
+        new TraceRunnable(record, parent).run();
+        Assert.assertSame(parent, seen.get(0));
+        Assert.assertSame(own, tracer.getParentSpan());
+
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            tracer.setParentSpan(parent);
+            ExecutorService traced = TraceExecutors.wrap(pool);
+            traced.submit(record).get();
+            pool.submit(record).get();//没有包装的任务看不到上一个任务的span
+            tracer.removeParentSpan();
+            traced.submit(record).get();//提交时没有span，执行时也没有
+            Assert.assertSame(parent, seen.get(1));
+            Assert.assertSame(Tracer.NOT_SAMPLED, seen.get(2));
+            Assert.assertSame(Tracer.NOT_SAMPLED, seen.get(3));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testCallable_Restore() throws Exception {
+        Span parent = newSpan(1L);
+        Callable<Span> callable = new TraceCallable<Span>(parent, new Callable<Span>() {
+            @Override
+            public Span call() {
+                return tracer.getParentSpan();
+            }
+        });
+        Assert.assertSame(parent, callable.call());
+        Assert.assertNull(tracer.getParentSpan());
+        Assert.assertSame(callable, TraceCallable.wrap(callable));
+    }
+
+    /**
+     * 周期任务每次执行都使用提交时的span
+     */
+    @Test
+    public void testScheduled() throws Exception {
+        Span parent = newSpan(3L);
+        final List<Span> seen = new CopyOnWriteArrayList<Span>();
+        final CountDownLatch latch = new CountDownLatch(3);
+        ScheduledExecutorService pool = TraceExecutors.wrap(Executors.newSingleThreadScheduledExecutor());
+        try {
+            tracer.setParentSpan(parent);
+            ScheduledFuture<?> future = pool.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    seen.add(tracer.getParentSpan());
+                    latch.countDown();
+                }
+            }, 0, 5, TimeUnit.MILLISECONDS);
+            Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+            future.cancel(false);
+            for (Span span : seen) {
+                Assert.assertSame(parent, span);
+            }
+            Assert.assertSame(parent, pool.schedule(new Callable<Span>() {
+                @Override
+                public Span call() {
+                    return tracer.getParentSpan();
+                }
+            }, 1, TimeUnit.MILLISECONDS).get());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * 外部提交的任务以及fork出的TraceRecursiveTask都在提交时的span下执行
+     */
+    @Test
+    public void testForkJoin() throws Exception {
+        Span parent = newSpan(4L);
+        ForkJoinPool pool = TraceExecutors.newForkJoinPool(4);
+        try {
+            tracer.setParentSpan(parent);
+            Assert.assertEquals(64, pool.invoke(new CountTask(parent, 0, 64)).intValue());
+            Assert.assertSame(parent, pool.invoke(new RecursiveTask<Span>() {
+                @Override
+                protected Span compute() {
+                    return tracer.getParentSpan();
+                }
+            }));
+            Assert.assertSame(parent, pool.submit(new Callable<Span>() {
+                @Override
+                public Span call() {
+                    return tracer.getParentSpan();
+                }
+            }).get());
+            Callable<Span> current = new Callable<Span>() {
+                @Override
+                public Span call() {
+                    return tracer.getParentSpan();
+                }
+            };
+            Assert.assertSame(parent, pool.invokeAny(Arrays.asList(current, current)));
+            Assert.assertSame(parent, pool.invokeAny(Arrays.asList(current), 1, TimeUnit.SECONDS));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * supplyAsync/runAsync在提交时的span下执行，异常通过返回的future抛出
+     */
+    @Test
+    public void testAsync() throws Exception {
+        Span parent = newSpan(5L);
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            tracer.setParentSpan(parent);
+            Future<Span> future = TraceExecutors.supplyAsync(new Callable<Span>() {
+                @Override
+                public Span call() {
+                    return tracer.getParentSpan();
+                }
+            }, pool);
+            Assert.assertSame(parent, future.get());
+            Assert.assertEquals("java.util.concurrent.CompletableFuture", future.getClass().getName());
+
+            final List<Span> seen = new CopyOnWriteArrayList<Span>();
+            Assert.assertNull(TraceExecutors.runAsync(new Runnable() {
+                @Override
+                public void run() {
+                    seen.add(tracer.getParentSpan());
+                }
+            }, pool).get());
+            Assert.assertSame(parent, seen.get(0));
+
+            try {
+                TraceExecutors.supplyAsync(new Callable<Object>() {
+                    @Override
+                    public Object call() {
+                        throw new IllegalStateException("fail");
+                    }
+                }, pool).get();
+                Assert.fail();
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+            tracer.removeParentSpan();
+            Assert.assertNull(pool.submit(new Callable<Span>() {
+                @Override
+                public Span call() {
+                    return tracer.getParentSpan();
+                }
+            }).get());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    //统计看到期望span的叶子数
+    private static class CountTask extends TraceRecursiveTask<Integer> {
+        private final Span expected;
+        private final int from;
+        private final int to;
+
+        CountTask(Span expected, int from, int to) {
+            this.expected = expected;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Integer doCompute() {
+            if (to - from == 1) {
+                return Tracer.getTracer().getParentSpan() == expected ? 1 : 0;
+            }
+            int mid = (from + to) >>> 1;
+            CountTask left = new CountTask(expected, from, mid);
+            left.fork();
+            return new CountTask(expected, mid, to).compute() + left.join();
+        }
+    }
+
+    private Span newSpan(long traceId) {
+        Span span = new Span();
+        span.setTraceId(traceId);
+        span.setSample(true);
+        return span;
+    }
+}
@@ -1,7 +1,10 @@
 package com.jd.bdp.hydra.collector.service;
 
 import com.jd.bdp.hydra.Span;
+import com.jd.bdp.hydra.codec.SpanCompressor;
 import com.jd.bdp.hydra.store.inter.InsertService;
+import com.jd.bdp.hydra.store.metrics.SpanMetricsAggregator;
+import com.jd.bdp.hydra.store.pipeline.SpanPipeline;
 import com.jd.dd.glowworm.PB;
 import com.taobao.metamorphosis.Message;
 import com.taobao.metamorphosis.client.consumer.MessageConsumer;
@@ -9,7 +12,6 @@ import com.taobao.metamorphosis.client.consumer.MessageListener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
@@ -24,7 +26,26 @@ public class CollectorSerService {
     private String topic;
     private MessageConsumer consumer;
     private InsertService insertService;
+    private SpanMetricsAggregator metricsAggregator;
     private ExecutorService executorService = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    //消息的解码、按traceId分片攒批、写入在流水线中进行，处理不过来时阻塞消费线程
+    private final SpanPipeline pipeline = new SpanPipeline(new SpanPipeline.Decoder() {
+        @Override
+        public List<Span> decode(byte[] data) throws Exception {
+            if (SpanCompressor.isCompressed(data)) {//collector端配置了metaq.compression
+                data = SpanCompressor.decompress(data, null);
+            }
+            return (List) PB.parsePBBytes(data);
+        }
+    }, new SpanPipeline.Writer() {
+        @Override
+        public void write(List<Span> spans) throws Exception {
+            if (metricsAggregator != null) {
+                metricsAggregator.add(spans);
+            }
+            insertService.addSpans(spans);
+        }
+    });
 
     public void setConsumer(MessageConsumer consumer) {
         this.consumer = consumer;
@@ -34,6 +55,10 @@ public class CollectorSerService {
         this.insertService = insertService;
     }
 
+    public void setMetricsAggregator(SpanMetricsAggregator metricsAggregator) {
+        this.metricsAggregator = metricsAggregator;
+    }
+
     public void setTopic(String topic) {
         this.topic = topic;
     }
@@ -52,28 +77,24 @@ public class CollectorSerService {
 
 
     public void subscribe() throws Exception {
+        pipeline.start();
         consumer.subscribe(topic, 1024 * 1024, new HbaseConsumer()).completeSubscribe();
     }
 
     public void persistent(Message message) {
-        List<Span> spanList;
         try {
-            spanList = (List) PB.parsePBBytes(message.getData());
-        } catch (Exception e) {
-            log.error(e.getMessage());
-            return;
-        }
-        try {
-            if (spanList != null) {
-                for (Span s : spanList) {
-                    insertService.addSpan(s);
-                    insertService.addAnnotation(s);
-                    insertService.addTrace(s);
-                }
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
-            log.error(e.getMessage());
+            pipeline.put(message.getData());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.error("Interrupted, message " + message.getId() + " is not persisted");
         }
     }
+
+    public void stop() {
+        pipeline.stop();
+    }
+
+    public SpanPipeline getPipeline() {
+        return pipeline;
+    }
 }
@@ -1,80 +1,120 @@
 package com.jd.bdp.hydra.dubbomonitor.provider.impl;
 
 import com.jd.bdp.hydra.Span;
+import com.jd.bdp.hydra.codec.SpanCodec;
+import com.jd.bdp.hydra.codec.SpanCompressor;
+import com.jd.bdp.hydra.codec.SpanDictionary;
 import com.jd.bdp.hydra.dubbomonitor.HydraService;
 import com.jd.bdp.hydra.dubbomonitor.provider.impl.support.Configuration;
+import com.jd.bdp.hydra.dubbomonitor.provider.impl.support.TailSampler;
 import com.jd.bdp.hydra.store.inter.InsertService;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import com.jd.bdp.hydra.store.metrics.SpanMetricsAggregator;
+import com.jd.bdp.hydra.store.pipeline.SpanPipeline;
 
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 public class HydraMysqlServiceImpl implements HydraService {
 
-    private static final Logger log = LoggerFactory.getLogger(HydraServiceImpl.class);
-
-    private ArrayBlockingQueue<List<Span>> queue;
-    private int taskCount=3;
-    private ExecutorService executors = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-
+    //各agent协商时或随帧送来的deflate字典，按总字节数淘汰
+    private final SpanDictionary.Registry dictionaries = new SpanDictionary.Registry();
+    //解码、校验、按traceId分片攒批、写入，队列满时push返回false
+    private final SpanPipeline pipeline = new SpanPipeline(new SpanPipeline.Decoder() {
+        @Override
+        public List<Span> decode(byte[] spans) throws Exception {
+            if (SpanCompressor.isCompressed(spans)) {
+                spans = SpanCompressor.decompress(spans, dictionaries);
+            }
+            return SpanCodec.decode(spans);
+        }
+    }, new SpanPipeline.Writer() {
+        @Override
+        public void write(List<Span> spans) throws Exception {
+            if (metricsAggregator != null) {//采样前汇总，指标不受尾部采样影响
+                metricsAggregator.add(spans);
+            }
+            if (tailSampler != null) {//先经过尾部采样
+                tailSampler.add(spans);
+            } else {//一批一起写入
+                insertService.addSpans(spans);
+            }
+        }
+    });
 
     public HydraMysqlServiceImpl() {
-        queue = new ArrayBlockingQueue<List<Span>>(2048);
-        this.taskCount=3;
-        for (int i = 0; i < taskCount; i++) {
-            executors.execute(new InsertTask());
-        }
+        pipeline.start();
     }
 
     public HydraMysqlServiceImpl(Configuration c) {
-        int queueSize= c.getTaskCount() == null ? 2048 : c.getQueueSize();
-        this.taskCount = c.getTaskCount() == null ? 3 : c.getTaskCount();
-        queue = new ArrayBlockingQueue<List<Span>>(queueSize);
-        for (int i = 0; i < taskCount; i++) {
-            executors.execute(new InsertTask());
+        if (c.getQueueSize() != null) {
+            pipeline.setQueueSize(c.getQueueSize());
+        }
+        if (c.getDecodeThreads() != null) {
+            pipeline.setDecodeThreads(c.getDecodeThreads());
+        }
+        if (c.getShardCount() != null) {
+            pipeline.setShardCount(c.getShardCount());
+        } else if (c.getTaskCount() != null) {//每个分片一个写入线程，旧配置的写入线程数作为分片数
+            pipeline.setShardCount(c.getTaskCount());
         }
+        if (c.getBatchSize() != null) {
+            pipeline.setBatchSize(c.getBatchSize());
+        }
+        if (c.getBatchDelay() != null) {
+            pipeline.setBatchDelay(c.getBatchDelay());
+        }
+        pipeline.start();
     }
 
-    class InsertTask implements Runnable {
-        @Override
-        public void run() {
-            while (true) {
-                try {
-                    List<Span> span = queue.take();
-                    if (span != null) {
-                        for (Span s : span) {
-                            insertService.addSpan(s);
-                            insertService.addTrace(s);
-                            insertService.addAnnotation(s);
-                        }
-                    }
-                } catch (InterruptedException e) {
-                    log.error("插入失败",e);
-                    //ig
-                } catch (Exception e) {
-                    log.error("插入失败",e);
-                    e.printStackTrace();
-                }
-            }
+    //处理完已接收的span后停止
+    public void stop() {
+        pipeline.stop();
+    }
+
+    //collector处理不过来时返回false，agent稍后重试
+    @Override
+    public boolean push(List<Span> span) throws IOException {
+        return span == null || pipeline.offer(span);
+    }
 
+    //解码在流水线中进行，不占用dubbo的线程；接收时只检查帧头，字典未知、格式错误的帧直接返回给agent，不进入队列
+    @Override
+    public boolean pushEncoded(byte[] spans) throws IOException {
+        if (SpanCompressor.isCompressed(spans)) {
+            SpanCompressor.check(spans, dictionaries);
+        } else if (!SpanCodec.isEncoded(spans)) {
+            throw new IOException("unsupported span batch format");
         }
+        return pipeline.offer(spans);
     }
 
     @Override
-    public boolean push(List<Span> span) throws IOException {
-        return queue.add(span);
+    public String negotiate(List<String> codecs, byte[] dictionary) throws IOException {
+        if (dictionary != null) {
+            dictionaries.register(dictionary);
+        }
+        return SpanCompressor.negotiate(codecs);
     }
 
     private InsertService insertService;
+    private TailSampler tailSampler;
+    private SpanMetricsAggregator metricsAggregator;
 
     public void setInsertService(InsertService insertService) {
         this.insertService = insertService;
     }
 
+    public void setTailSampler(TailSampler tailSampler) {
+        this.tailSampler = tailSampler;
+    }
+
+    public void setMetricsAggregator(SpanMetricsAggregator metricsAggregator) {
+        this.metricsAggregator = metricsAggregator;
+    }
+
+    public SpanPipeline getPipeline() {
+        return pipeline;
+    }
+
 
 }
\ No newline at end of file
@@ -1,6 +1,9 @@
 package com.jd.bdp.hydra.dubbomonitor.provider.impl;
 
 import com.jd.bdp.hydra.Span;
+import com.jd.bdp.hydra.codec.SpanCodec;
+import com.jd.bdp.hydra.codec.SpanCompressor;
+import com.jd.bdp.hydra.codec.SpanDictionary;
 import com.jd.bdp.hydra.dubbomonitor.HydraDubbeConfig;
 import com.jd.bdp.hydra.dubbomonitor.HydraService;
 import com.jd.dd.glowworm.PB;
@@ -15,6 +18,7 @@ import com.taobao.metamorphosis.utils.ZkUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.util.List;
 import java.util.Properties;
 import java.util.concurrent.atomic.AtomicLong;
@@ -25,6 +29,10 @@ public class HydraServiceImpl implements HydraService {
     private String topic;
     private final int bufferSize = 1024;
     private Properties config = loadConfig();
+    //各agent协商时或随帧送来的deflate字典，按总字节数淘汰
+    private final SpanDictionary.Registry dictionaries = new SpanDictionary.Registry();
+    //写入metaq前的压缩，消费端按magic识别，默认不压缩
+    private final SpanCompressor compressor = new SpanCompressor(config.getProperty("metaq.compression", SpanCompressor.NONE));
 
     private void createMessageProducer() throws Exception {
         final MetaClientConfig metaClientConfig = new MetaClientConfig();
@@ -57,6 +65,9 @@ public class HydraServiceImpl implements HydraService {
         boolean rs = false;
         if(span != null){
             byte[] b = PB.toPBBytes(span);
+            if (!SpanCompressor.NONE.equals(compressor.getCodec())) {
+                b = compressor.compress(b);
+            }
             try {
                 SendResult sendResult = messageProducer.sendMessage(new Message(topic,b));
                 if (sendResult.isSuccess()){
@@ -72,4 +83,21 @@ public class HydraServiceImpl implements HydraService {
         }
         return rs;
     }
+
+    //metaq上的消息仍为PB格式(可以整体压缩)，消费端按PB解析
+    @Override
+    public boolean pushEncoded(byte[] spans) throws IOException {
+        if (SpanCompressor.isCompressed(spans)) {
+            spans = SpanCompressor.decompress(spans, dictionaries);
+        }
+        return push(SpanCodec.decode(spans));
+    }
+
+    @Override
+    public String negotiate(List<String> codecs, byte[] dictionary) throws IOException {
+        if (dictionary != null) {
+            dictionaries.register(dictionary);
+        }
+        return SpanCompressor.negotiate(codecs);
+    }
 }
\ No newline at end of file
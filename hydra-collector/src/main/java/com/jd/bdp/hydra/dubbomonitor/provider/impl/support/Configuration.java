@@ -11,6 +11,10 @@ import java.util.List;
 public class Configuration {
     private Integer queueSize;
     private Integer taskCount;
+    private Integer decodeThreads;
+    private Integer shardCount;
+    private Integer batchSize;
+    private Long batchDelay;
 
     public Integer getQueueSize() {
         return queueSize;
@@ -27,4 +31,36 @@ public class Configuration {
     public void setTaskCount(Integer taskCount) {
         this.taskCount = taskCount;
     }
+
+    public Integer getDecodeThreads() {
+        return decodeThreads;
+    }
+
+    public void setDecodeThreads(Integer decodeThreads) {
+        this.decodeThreads = decodeThreads;
+    }
+
+    public Integer getShardCount() {
+        return shardCount;
+    }
+
+    public void setShardCount(Integer shardCount) {
+        this.shardCount = shardCount;
+    }
+
+    public Integer getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(Integer batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public Long getBatchDelay() {
+        return batchDelay;
+    }
+
+    public void setBatchDelay(Long batchDelay) {
+        this.batchDelay = batchDelay;
+    }
 }
@@ -0,0 +1,239 @@
+package com.jd.bdp.hydra.dubbomonitor.provider.impl.support;
+
+import com.jd.bdp.hydra.Annotation;
+import com.jd.bdp.hydra.BinaryAnnotation;
+import com.jd.bdp.hydra.Span;
+import com.jd.bdp.hydra.store.inter.InsertService;
+import com.jd.bdp.hydra.store.pipeline.TraceWindow;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Date: 26-10-17
+ * collector端的尾部采样：按traceId缓存span，trace结束后再决定是否落库
+ * 保留条件：耗时超过阈值、含有dubbo.exception、或命中服务的基础采样率
+ * trace结束的判断见TraceWindow，超过maxSpans时提前对最老的trace做决定
+ * 多个collector时，agent需按traceId路由(hydraService配置loadbalance="traceid"并打开routeByTraceId)，
+ * 否则一个trace的span分散到多个collector，各自按不完整的trace做决定。
+ * 只用于mysql的dubbo collector，默认不开启(dubbo-hydra-provider-mysql.xml中的tailSampler)；
+ * 经metaq写hbase的路径不做尾部采样，全部落库
+ */
+public class TailSampler {
+
+    private static final Logger log = LoggerFactory.getLogger(TailSampler.class);
+
+    public static final String EXCEPTION = "dubbo.exception";
+
+    private InsertService insertService;
+    //耗时阈值(ms)
+    private long durationThreshold = 500;
+    //默认基础采样率，0~1
+    private double baseRate = 0.01;
+    //按serviceId配置的基础采样率
+    private Map<String, Double> serviceRates = Collections.emptyMap();
+    //已保留的trace，迟到的span不再缓存
+    private int keptCacheSize = 10000;
+
+    private final TraceWindow window = new TraceWindow("HydraTailSampler", new TraceWindow.Listener() {
+        @Override
+        public void onTrace(Long traceId, List<Span> spans, boolean evicted) {
+            decide(traceId, spans);
+        }
+
+        @Override
+        public void afterSweep() {
+            flushWrites();
+        }
+    });
+    //保留的span和已保留trace的迟到span攒够batchSize再写入，其余的每次sweep后写出
+    private int batchSize = 500;
+    private final List<Span> pendingWrites = new ArrayList<Span>();
+    private final Map<Long, Boolean> keptTraces = Collections.synchronizedMap(new LinkedHashMap<Long, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+            return size() > keptCacheSize;
+        }
+    });
+
+    private final AtomicLong keptCount = new AtomicLong();
+    private final AtomicLong discardCount = new AtomicLong();
+    private final AtomicLong writeFailedCount = new AtomicLong();
+
+    public void start() {
+        window.start();
+    }
+
+    //剩余的trace全部做决定
+    public void stop() {
+        window.stop();
+    }
+
+    public void add(List<Span> spans) {
+        long now = System.currentTimeMillis();
+        for (Span span : spans) {
+            Long traceId = span.getTraceId();
+            if (traceId != null && keptTraces.containsKey(traceId)) {//已保留trace的迟到span
+                write(Collections.singletonList(span));
+                continue;
+            }
+            window.add(span, now);
+        }
+    }
+
+    void sweep(long now) {
+        window.sweep(now);
+    }
+
+    private void decide(Long traceId, List<Span> spans) {
+        if (isKeep(traceId, spans)) {
+            keptTraces.put(traceId, Boolean.TRUE);
+            keptCount.incrementAndGet();
+            write(spans);
+        } else {
+            discardCount.incrementAndGet();
+        }
+    }
+
+    boolean isKeep(Long traceId, List<Span> spans) {
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        String serviceId = null;
+        for (Span span : spans) {
+            if (span.getParentId() == null && span.getServiceId() != null) {
+                serviceId = span.getServiceId();
+            }
+            if (span.getBinaryAnnotations() != null) {
+                for (BinaryAnnotation b : span.getBinaryAnnotations()) {
+                    if (EXCEPTION.equals(b.getKey())) {
+                        return true;
+                    }
+                }
+            }
+            if (span.getAnnotations() != null) {
+                for (Annotation a : span.getAnnotations()) {
+                    Long t = a.getTimestamp();
+                    if (t != null) {
+                        min = Math.min(min, t);
+                        max = Math.max(max, t);
+                    }
+                }
+            }
+        }
+        if (max >= min && max - min >= durationThreshold) {
+            return true;
+        }
+        Double rate = serviceId == null ? null : serviceRates.get(serviceId);
+        return hit(traceId, rate == null ? baseRate : rate);
+    }
+
+    //按traceId哈希决定，多个collector对同一trace的决定一致
+    static boolean hit(long traceId, double rate) {
+        long h = traceId * 0x9E3779B97F4A7C15L;
+        h ^= (h >>> 32);
+        return (h & 0xffff) < rate * 0x10000;
+    }
+
+    private void write(List<Span> spans) {
+        List<Span> batch = null;
+        synchronized (pendingWrites) {
+            pendingWrites.addAll(spans);
+            if (pendingWrites.size() >= batchSize) {
+                batch = new ArrayList<Span>(pendingWrites);
+                pendingWrites.clear();
+            }
+        }
+        if (batch != null) {
+            insert(batch);
+        }
+    }
+
+    private void flushWrites() {
+        List<Span> batch;
+        synchronized (pendingWrites) {
+            if (pendingWrites.isEmpty()) {
+                return;
+            }
+            batch = new ArrayList<Span>(pendingWrites);
+            pendingWrites.clear();
+        }
+        insert(batch);
+    }
+
+    //大trace按batchSize拆开写
+    private void insert(List<Span> spans) {
+        for (int i = 0; i < spans.size(); i += batchSize) {
+            List<Span> batch = spans.subList(i, Math.min(spans.size(), i + batchSize));
+            try {
+                insertService.addSpans(batch);
+            } catch (Exception e) {
+                writeFailedCount.addAndGet(batch.size());
+                log.error("插入失败", e);
+            }
+        }
+    }
+
+    public long getKeptCount() {
+        return keptCount.get();
+    }
+
+    public long getDiscardCount() {
+        return discardCount.get();
+    }
+
+    //写入失败的span数
+    public long getWriteFailedCount() {
+        return writeFailedCount.get();
+    }
+
+    public int getBufferedSpans() {
+        return window.getBufferedSpans();
+    }
+
+    public void setInsertService(InsertService insertService) {
+        this.insertService = insertService;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public void setDurationThreshold(long durationThreshold) {
+        this.durationThreshold = durationThreshold;
+    }
+
+    public void setBaseRate(double baseRate) {
+        this.baseRate = baseRate;
+    }
+
+    public void setServiceRates(Map<String, Double> serviceRates) {
+        this.serviceRates = new HashMap<String, Double>(serviceRates);
+    }
+
+    public void setQuietTime(long quietTime) {
+        window.setQuietTime(quietTime);
+    }
+
+    public void setMaxWait(long maxWait) {
+        window.setMaxWait(maxWait);
+    }
+
+    public void setMaxSpans(int maxSpans) {
+        window.setMaxSpans(maxSpans);
+    }
+
+    public void setSweepInterval(long sweepInterval) {
+        window.setSweepInterval(sweepInterval);
+    }
+
+    public void setKeptCacheSize(int keptCacheSize) {
+        this.keptCacheSize = keptCacheSize;
+    }
+}
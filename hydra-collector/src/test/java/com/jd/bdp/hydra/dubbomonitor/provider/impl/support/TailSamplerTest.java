@@ -0,0 +1,188 @@
+package com.jd.bdp.hydra.dubbomonitor.provider.impl.support;
+
+import com.jd.bdp.hydra.Annotation;
+import com.jd.bdp.hydra.BinaryAnnotation;
+import com.jd.bdp.hydra.Span;
+import com.jd.bdp.hydra.store.inter.InsertService;
+import com.jd.bdp.hydra.store.metrics.SpanMetrics;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Date: 26-10-17
+ */
+public class TailSamplerTest {
+
+    private final List<Long> written = new ArrayList<Long>();
+    private final List<Integer> batches = new ArrayList<Integer>();
+
+    private TailSampler newSampler() {
+        TailSampler sampler = new TailSampler();
+        sampler.setInsertService(new InsertService() {
+            @Override
+            public void addSpan(Span span) {
+                written.add(span.getTraceId());
+            }
+
+            @Override
+            public void addAnnotation(Span span) {
+            }
+
+            @Override
+            public void addTrace(Span span) {
+            }
+
+            @Override
+            public void addSpans(List<Span> spans) {
+                batches.add(spans.size());
+                for (Span span : spans) {
+                    addSpan(span);
+                }
+            }
+
+            @Override
+            public void addMetrics(List<SpanMetrics> metrics) {
+            }
+        });
+        sampler.setDurationThreshold(500);
+        sampler.setBaseRate(0);
+        sampler.setQuietTime(100);
+        sampler.setMaxWait(1000);
+        return sampler;
+    }
+
+    /**
+     * 慢trace和异常trace保留，其他丢弃
+     */
+    @Test
+    public void testKeepSlowAndException() {
+        TailSampler sampler = newSampler();
+        long now = System.currentTimeMillis();
+        sampler.add(Arrays.asList(newSpan(1L, null, 0, 800), newSpan(1L, 10L, 100, 200)));
+        sampler.add(Arrays.asList(newSpan(2L, null, 0, 50)));
+        Span error = newSpan(3L, 10L, 0, 10);
+        BinaryAnnotation b = new BinaryAnnotation();
+        b.setKey(TailSampler.EXCEPTION);
+        b.setValue("java.lang.NullPointerException");
+        error.addBinaryAnnotation(b);
+        sampler.add(Arrays.asList(newSpan(3L, null, 0, 20), error));
+        Assert.assertEquals(5, sampler.getBufferedSpans());
+
+        sampler.sweep(now + 50);//还在静默期内
+        Assert.assertTrue(written.isEmpty());
+        sampler.sweep(now + 200);
+        Assert.assertEquals(Arrays.asList(1L, 1L), sorted(written).subList(0, 2));
+        Assert.assertEquals(4, written.size());
+        Assert.assertEquals(2, sampler.getKeptCount());
+        Assert.assertEquals(1, sampler.getDiscardCount());
+        Assert.assertEquals(0, sampler.getBufferedSpans());
+
+        //已保留trace的迟到span攒到下次sweep写入
+        sampler.add(Arrays.asList(newSpan(1L, 11L, 300, 310)));
+        Assert.assertEquals(4, written.size());
+        sampler.sweep(now + 300);
+        Assert.assertEquals(5, written.size());
+        Assert.assertEquals(0, sampler.getBufferedSpans());
+    }
+
+    /**
+     * 保留的trace合并成batchSize大小写入，大trace拆开
+     */
+    @Test
+    public void testBatchWrite() {
+        TailSampler sampler = newSampler();
+        sampler.setBatchSize(4);
+        long now = System.currentTimeMillis();
+        for (long i = 0; i < 3; i++) {
+            sampler.add(Arrays.asList(newSpan(i, null, 0, 800)));
+        }
+        List<Span> big = new ArrayList<Span>();
+        big.add(newSpan(10L, null, 0, 800));
+        for (long i = 0; i < 8; i++) {
+            big.add(newSpan(10L, 10L + i, 100, 200));
+        }
+        sampler.add(big);
+        sampler.sweep(now + 200);
+        Assert.assertEquals(12, written.size());
+        for (Integer size : batches) {
+            Assert.assertTrue("batch " + size, size <= 4);
+        }
+        Assert.assertEquals(3, batches.size());
+
+        //迟到的span攒够batchSize时由调用线程直接写入
+        for (long i = 0; i < 4; i++) {
+            sampler.add(Arrays.asList(newSpan(1L, 20L + i, 300, 310)));
+        }
+        Assert.assertEquals(16, written.size());
+        Assert.assertEquals(Integer.valueOf(4), batches.get(3));
+    }
+
+    /**
+     * 没有root span时等到maxWait
+     */
+    @Test
+    public void testMaxWait() {
+        TailSampler sampler = newSampler();
+        long now = System.currentTimeMillis();
+        sampler.add(Arrays.asList(newSpan(1L, 10L, 0, 900)));
+        sampler.sweep(now + 500);
+        Assert.assertTrue(written.isEmpty());
+        sampler.sweep(now + 1100);
+        Assert.assertEquals(1, written.size());
+    }
+
+    /**
+     * 超过缓存上限时从最老的trace开始决定
+     */
+    @Test
+    public void testMaxSpans() {
+        TailSampler sampler = newSampler();
+        sampler.setMaxSpans(10);
+        long now = System.currentTimeMillis();
+        for (long i = 0; i < 20; i++) {
+            sampler.add(Arrays.asList(newSpan(i, 10L, 0, 10)));
+        }
+        sampler.sweep(now);
+        Assert.assertEquals(10, sampler.getBufferedSpans());
+        Assert.assertEquals(10, sampler.getDiscardCount());
+    }
+
+    /**
+     * 基础采样率按traceId哈希命中
+     */
+    @Test
+    public void testBaseRate() {
+        int n = 0;
+        for (long i = 0; i < 100000; i++) {
+            if (TailSampler.hit(i, 0.1)) {
+                n++;
+            }
+        }
+        Assert.assertTrue("hit " + n, n > 9000 && n < 11000);
+        Assert.assertFalse(TailSampler.hit(1L, 0));
+        Assert.assertTrue(TailSampler.hit(1L, 1));
+    }
+
+    private List<Long> sorted(List<Long> list) {
+        List<Long> l = new ArrayList<Long>(list);
+        Collections.sort(l);
+        return l;
+    }
+
+    private Span newSpan(Long traceId, Long parentId, long start, long end) {
+        Span span = new Span();
+        span.setTraceId(traceId);
+        span.setId(parentId == null ? 1L : parentId + 1);
+        span.setParentId(parentId);
+        span.setServiceId("10101");
+        span.setSpanName("sayHello");
+        span.addAnnotation(new Annotation(1000000L + start, Annotation.CLIENT_SEND, null));
+        span.addAnnotation(new Annotation(1000000L + end, Annotation.CLIENT_RECEIVE, null));
+        return span;
+    }
+}
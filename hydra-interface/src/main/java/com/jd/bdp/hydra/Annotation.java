@@ -11,7 +11,8 @@ public class Annotation implements Serializable {
     public static final String CLIENT_RECEIVE = "client_receive";
     public static final String SERVER_SEND = "server_send";
     public static final String SERVER_RECEIVE = "server_receive";
-    private Long timestamp;// 时间戳
+    private Long timestamp;// 时间戳(ms)
+    private Long timestampUs;// 时间戳(us)，老版本agent上报的annotation没有该字段
     private String value;  //值
     private Endpoint host;//端点
     private Integer duration;//持续时间
@@ -33,6 +34,17 @@ public class Annotation implements Serializable {
         this.timestamp = timestamp;
     }
 
+    public Long getTimestampUs() {
+        if (timestampUs == null && timestamp != null) {
+            return timestamp * 1000;
+        }
+        return timestampUs;
+    }
+
+    public void setTimestampUs(Long timestampUs) {
+        this.timestampUs = timestampUs;
+    }
+
     public String getValue() {
         return value;
     }
@@ -61,6 +73,7 @@ public class Annotation implements Serializable {
     public String toString() {
         return "Annotation{" +
                 "timestamp=" + timestamp +
+                ", timestampUs=" + timestampUs +
                 ", value='" + value + '\'' +
                 ", host=" + host +
                 ", duration=" + duration +
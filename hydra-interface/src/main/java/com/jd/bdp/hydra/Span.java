@@ -1,5 +1,7 @@
 package com.jd.bdp.hydra;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
@@ -9,6 +11,9 @@ import java.util.List;
  * Time: 下午3:29
  */
 public class Span implements Serializable {
+    private static final byte START = 1;
+    private static final byte END = 2;
+
     private Long traceId;
     private Long id;
     private Long parentId; //optional
@@ -18,6 +23,17 @@ public class Span implements Serializable {
     private List<BinaryAnnotation> binaryAnnotations;
     private boolean isSample;
 
+    //记录cs/cr或sr/ss时只保存时间戳(us)，读取annotations或序列化时再生成Annotation
+    private transient byte pending;
+    private transient boolean clientSide;
+    private transient long startUs;
+    private transient long endUs;
+    //开始时的nanoTime，结束时间由开始时间加上nanoTime的差值得到
+    private transient long startNanos;
+    private transient Endpoint host;
+    //agent跟踪未结束span用的句柄
+    private transient Object timeoutHandle;
+
     public boolean isSample() {
         return isSample;
     }
@@ -27,16 +43,117 @@ public class Span implements Serializable {
     }
 
     public Span(){
-        annotations = new ArrayList<Annotation>();
-        binaryAnnotations = new ArrayList<BinaryAnnotation>();
+        annotations = new ArrayList<Annotation>(2);
+        binaryAnnotations = new ArrayList<BinaryAnnotation>(0);
+    }
+
+    //记录cs(客户端)或sr(服务端)，每个span只取一次墙上时间作为基准
+    public void recordStart(boolean clientSide, Endpoint host) {
+        this.startNanos = System.nanoTime();
+        this.startUs = System.currentTimeMillis() * 1000;
+        this.clientSide = clientSide;
+        this.host = host;
+        this.pending |= START;
+    }
+
+    //记录cs(客户端)或sr(服务端)，timestamp为ms
+    public void recordStart(boolean clientSide, long timestamp, Endpoint host) {
+        this.startNanos = 0;
+        this.startUs = timestamp * 1000;
+        this.clientSide = clientSide;
+        this.host = host;
+        this.pending |= START;
+    }
+
+    //记录cr(客户端)或ss(服务端)，由单调时钟推算，精确到us且不会小于开始时间
+    public void recordEnd() {
+        if (startNanos != 0) {
+            this.endUs = startUs + (System.nanoTime() - startNanos) / 1000;
+        } else {
+            this.endUs = System.currentTimeMillis() * 1000;
+        }
+        this.pending |= END;
     }
 
+    //记录cr(客户端)或ss(服务端)，timestamp为ms
+    public void recordEnd(long timestamp) {
+        this.endUs = timestamp * 1000;
+        this.pending |= END;
+    }
+
+    //把开始之后取得的nanoTime换算成与本span一致的墙上时间(us)，开始时没有记录nanoTime时返回-1
+    public long toTimestampUs(long nanoTime) {
+        return startNanos == 0 ? -1 : startUs + (nanoTime - startNanos) / 1000;
+    }
+
+    //recordStart记录的端点
+    public Endpoint getRecordHost() {
+        return host;
+    }
+
+    /**
+     * 复制目前已记录的内容(未结束的span只有cs或sr)，不修改本span，
+     * 用于span超时未结束时先发送一份。
+     * 业务线程可能还在添加注解，复制和添加注解都在span的锁内进行
+     */
+    public synchronized Span snapshot() {
+        Span copy = new Span();
+        copy.traceId = traceId;
+        copy.id = id;
+        copy.parentId = parentId;
+        copy.spanName = spanName;
+        copy.serviceId = serviceId;
+        copy.isSample = isSample;
+        copy.annotations = new ArrayList<Annotation>(annotations);
+        if ((pending & START) != 0) {
+            copy.annotations.add(newAnnotation(startUs, clientSide ? Annotation.CLIENT_SEND : Annotation.SERVER_RECEIVE));
+        }
+        copy.binaryAnnotations = new ArrayList<BinaryAnnotation>(binaryAnnotations);
+        return copy;
+    }
+
+    public Object getTimeoutHandle() {
+        return timeoutHandle;
+    }
+
+    public void setTimeoutHandle(Object timeoutHandle) {
+        this.timeoutHandle = timeoutHandle;
+    }
+
+    /**
+     * 把recordStart/recordEnd延迟记录的时间生成cs/sr、cr/ss注解。
+     * hessian序列化不调用writeObject，发送前需显式调用
+     */
+    public synchronized void materialize() {
+        if (pending == 0) {
+            return;
+        }
+        if ((pending & START) != 0) {
+            annotations.add(newAnnotation(startUs, clientSide ? Annotation.CLIENT_SEND : Annotation.SERVER_RECEIVE));
+        }
+        if ((pending & END) != 0) {
+            annotations.add(newAnnotation(endUs, clientSide ? Annotation.CLIENT_RECEIVE : Annotation.SERVER_SEND));
+        }
+        pending = 0;
+    }
+
+    private Annotation newAnnotation(long us, String value) {
+        Annotation annotation = new Annotation(us / 1000, value, host);
+        annotation.setTimestampUs(us);
+        return annotation;
+    }
 
-    public void addAnnotation(Annotation a){
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        materialize();
+        out.defaultWriteObject();
+    }
+
+    public synchronized void addAnnotation(Annotation a){
+        materialize();
         annotations.add(a);
     }
 
-    public void addBinaryAnnotation(BinaryAnnotation a){
+    public synchronized void addBinaryAnnotation(BinaryAnnotation a){
         binaryAnnotations.add(a);
     }
 
@@ -74,10 +191,12 @@ public class Span implements Serializable {
     }
 
     public List<Annotation> getAnnotations() {
+        materialize();
         return annotations;
     }
 
     public void setAnnotations(List<Annotation> annotations) {
+        this.pending = 0;
         this.annotations = annotations;
     }
 
@@ -97,7 +216,7 @@ public class Span implements Serializable {
                 ", parentId=" + parentId +
                 ", serviceId=" + serviceId +
                 ", spanName='" + spanName + '\'' +
-                ", annotations=" + annotations +
+                ", annotations=" + getAnnotations() +
                 ", binaryAnnotations=" + binaryAnnotations +
                 ", isSample=" + isSample +
                 '}';
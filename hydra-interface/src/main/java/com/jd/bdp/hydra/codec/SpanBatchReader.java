@@ -0,0 +1,358 @@
+package com.jd.bdp.hydra.codec;
+
+import java.io.IOException;
+
+/**
+ * Date: 26-10-17
+ * 直接在字节数组上按游标读取SpanCodec编码的批次，不生成Span、Annotation等中间对象
+ * 字典里的字符串在第一次读取时解码并缓存，批次内每个字符串只解码一次
+ * <pre>
+ * SpanBatchReader reader = new SpanBatchReader(bytes);
+ * while (reader.nextSpan()) {
+ *     reader.traceId() ...
+ *     while (reader.nextAnnotation()) { reader.annotationValue(); reader.timestampUs() ... }
+ *     while (reader.nextBinaryAnnotation()) { reader.key(); reader.value() ... }
+ * }
+ * </pre>
+ * 非线程安全
+ */
+public class SpanBatchReader {
+
+    private final byte[] bytes;
+    private final int limit;
+    private int pos;
+
+    //字典
+    private final int[] stringOffsets;
+    private final int[] stringLengths;
+    private final String[] strings;
+    //端点表
+    private final int[] endpointIps;
+    private final int[] endpointPorts;
+
+    private final int spanCount;
+    private int spanIndex;
+    private int annotationsLeft;
+    private int binaryAnnotationsLeft;
+    private long prevTraceId;
+    private long prevId;
+    private long prevTimestamp;
+
+    //当前span
+    private int flags;
+    private long traceId;
+    private long id;
+    private long parentId;
+    private int spanName;
+    private int serviceId;
+    private int annotationCount;
+    private int binaryAnnotationCount;
+
+    //当前annotation或binaryAnnotation
+    private int head;
+    private int value;
+    private int type;
+    private int valueOffset;
+    private int valueLength;
+    private boolean hasValue;
+    private long timestamp;
+    private int host;
+    private boolean hasDuration;
+    private int duration;
+
+    public SpanBatchReader(byte[] bytes) throws IOException {
+        this(bytes, 0, bytes.length);
+    }
+
+    public SpanBatchReader(byte[] bytes, int offset, int length) throws IOException {
+        this.bytes = bytes;
+        this.pos = offset;
+        this.limit = offset + length;
+        if (length < 3 || bytes[offset] != SpanCodec.MAGIC_0 || bytes[offset + 1] != SpanCodec.MAGIC_1) {
+            throw new IOException("not a span batch");
+        }
+        if (bytes[offset + 2] != SpanCodec.VERSION) {
+            throw new IOException("unsupported span batch version : " + bytes[offset + 2]);
+        }
+        pos += 3;
+        try {
+            int count = readElementCount();
+            stringOffsets = new int[count];
+            stringLengths = new int[count];
+            strings = new String[count];
+            for (int i = 0; i < count; i++) {
+                int len = readCount();
+                if (pos + len > limit) {
+                    throw new IOException("broken span batch");
+                }
+                stringOffsets[i] = pos;
+                stringLengths[i] = len;
+                pos += len;
+            }
+            count = readElementCount();
+            endpointIps = new int[count];
+            endpointPorts = new int[count];
+            for (int i = 0; i < count; i++) {
+                endpointIps[i] = readCount();
+                endpointPorts[i] = readCount() - 1;
+            }
+            spanCount = readElementCount();
+        } catch (RuntimeException e) {
+            throw new IOException("broken span batch", e);
+        }
+    }
+
+    public int spanCount() {
+        return spanCount;
+    }
+
+    public int endpointCount() {
+        return endpointIps.length;
+    }
+
+    /**
+     * 移到下一个span，当前span未读完的annotation直接跳过
+     */
+    public boolean nextSpan() {
+        while (nextBinaryAnnotation()) {
+        }
+        if (spanIndex >= spanCount) {
+            return false;
+        }
+        spanIndex++;
+        flags = readByte();
+        if ((flags & SpanCodec.HAS_TRACE_ID) != 0) {
+            traceId = prevTraceId + SpanCodec.unzigzag(readVarLong());
+            prevTraceId = traceId;
+        }
+        if ((flags & SpanCodec.HAS_ID) != 0) {
+            id = prevId + SpanCodec.unzigzag(readVarLong());
+            prevId = id;
+        }
+        if ((flags & SpanCodec.HAS_PARENT_ID) != 0) {
+            parentId = prevId + SpanCodec.unzigzag(readVarLong());
+        }
+        spanName = readCount();
+        serviceId = readCount();
+        annotationCount = readElementCount();
+        annotationsLeft = annotationCount;
+        binaryAnnotationCount = -1;
+        binaryAnnotationsLeft = 0;
+        return true;
+    }
+
+    public boolean nextAnnotation() {
+        if (annotationsLeft == 0) {
+            return false;
+        }
+        annotationsLeft--;
+        head = readByte();
+        if ((head & SpanCodec.CODE_MASK) == SpanCodec.CODE_CUSTOM) {
+            value = readCount();
+        }
+        if ((head & SpanCodec.HAS_TIMESTAMP) != 0) {
+            timestamp = prevTimestamp + SpanCodec.unzigzag(readVarLong());
+            prevTimestamp = timestamp;
+        }
+        host = readCount();
+        hasDuration = (head & SpanCodec.HAS_DURATION) != 0;
+        if (hasDuration) {
+            duration = (int) SpanCodec.unzigzag(readVarLong());
+        }
+        return true;
+    }
+
+    /**
+     * 移到下一个binaryAnnotation，当前span未读完的annotation直接跳过
+     */
+    public boolean nextBinaryAnnotation() {
+        readBinaryAnnotationCount();
+        if (binaryAnnotationsLeft <= 0) {
+            return false;
+        }
+        binaryAnnotationsLeft--;
+        head = readByte();
+        value = readCount();
+        type = readCount();
+        hasValue = (head & SpanCodec.HAS_VALUE) != 0;
+        if (hasValue) {
+            valueLength = readCount();
+            valueOffset = pos;
+            if (pos + valueLength > limit) {
+                throw new IllegalStateException("broken span batch");
+            }
+            pos += valueLength;
+        }
+        host = readCount();
+        hasDuration = (head & SpanCodec.HAS_BINARY_DURATION) != 0;
+        if (hasDuration) {
+            duration = (int) SpanCodec.unzigzag(readVarLong());
+        }
+        return true;
+    }
+
+    //------------------ span
+    public boolean hasTraceId() {
+        return (flags & SpanCodec.HAS_TRACE_ID) != 0;
+    }
+
+    public long traceId() {
+        return traceId;
+    }
+
+    public boolean hasSpanId() {
+        return (flags & SpanCodec.HAS_ID) != 0;
+    }
+
+    public long spanId() {
+        return id;
+    }
+
+    public boolean hasParentId() {
+        return (flags & SpanCodec.HAS_PARENT_ID) != 0;
+    }
+
+    public long parentId() {
+        return parentId;
+    }
+
+    public boolean isSample() {
+        return (flags & SpanCodec.SAMPLE) != 0;
+    }
+
+    public String spanName() {
+        return string(spanName);
+    }
+
+    public String serviceId() {
+        return string(serviceId);
+    }
+
+    public int annotationCount() {
+        return annotationCount;
+    }
+
+    //未读完的annotation会被跳过
+    public int binaryAnnotationCount() {
+        readBinaryAnnotationCount();
+        return binaryAnnotationCount;
+    }
+
+    //------------------ annotation
+    //0~3为cs/cr/sr/ss，4为其他值，5为null
+    public int annotationCode() {
+        return head & SpanCodec.CODE_MASK;
+    }
+
+    public String annotationValue() {
+        int code = head & SpanCodec.CODE_MASK;
+        if (code < SpanCodec.CODES.length) {
+            return SpanCodec.CODES[code];
+        }
+        return code == SpanCodec.CODE_CUSTOM ? string(value) : null;
+    }
+
+    public boolean hasTimestamp() {
+        return (head & SpanCodec.HAS_TIMESTAMP) != 0;
+    }
+
+    public long timestampUs() {
+        return timestamp;
+    }
+
+    //------------------ binaryAnnotation
+    public String key() {
+        return string(value);
+    }
+
+    public String type() {
+        return string(type);
+    }
+
+    public String value() {
+        return hasValue ? new String(bytes, valueOffset, valueLength, SpanCodec.UTF8) : null;
+    }
+
+    //------------------ 共用
+    //端点下标，没有端点时为-1
+    public int hostIndex() {
+        return host - 1;
+    }
+
+    public String hostIp() {
+        return host == 0 ? null : string(endpointIps[host - 1]);
+    }
+
+    //没有端点或端口时为-1
+    public int hostPort() {
+        return host == 0 ? -1 : endpointPorts[host - 1];
+    }
+
+    public boolean hasDuration() {
+        return hasDuration;
+    }
+
+    public int duration() {
+        return duration;
+    }
+
+    private void readBinaryAnnotationCount() {
+        if (binaryAnnotationCount < 0 && spanIndex > 0) {
+            while (nextAnnotation()) {
+            }
+            binaryAnnotationCount = readElementCount();
+            binaryAnnotationsLeft = binaryAnnotationCount;
+        }
+    }
+
+    private String string(int index) {
+        if (index == 0) {
+            return null;
+        }
+        String s = strings[index - 1];
+        if (s == null) {
+            s = new String(bytes, stringOffsets[index - 1], stringLengths[index - 1], SpanCodec.UTF8);
+            strings[index - 1] = s;
+        }
+        return s;
+    }
+
+    private int readByte() {
+        if (pos >= limit) {
+            throw new IllegalStateException("broken span batch");
+        }
+        return bytes[pos++];
+    }
+
+    private int readCount() {
+        long v = readVarLong();
+        if (v < 0 || v > Integer.MAX_VALUE) {
+            throw new IllegalStateException("broken span batch");
+        }
+        return (int) v;
+    }
+
+    //每个元素至少占1字节，个数不能超过剩余字节数，避免伪造的个数导致分配过大的数组
+    private int readElementCount() {
+        int count = readCount();
+        if (count > limit - pos) {
+            throw new IllegalStateException("broken span batch");
+        }
+        return count;
+    }
+
+    private long readVarLong() {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (pos >= limit) {
+                throw new IllegalStateException("broken span batch");
+            }
+            byte b = bytes[pos++];
+            v |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+        throw new IllegalStateException("broken span batch");
+    }
+}
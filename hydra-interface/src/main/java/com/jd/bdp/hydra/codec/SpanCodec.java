@@ -0,0 +1,359 @@
+package com.jd.bdp.hydra.codec;
+
+import com.jd.bdp.hydra.Annotation;
+import com.jd.bdp.hydra.BinaryAnnotation;
+import com.jd.bdp.hydra.Endpoint;
+import com.jd.bdp.hydra.Span;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Date: 26-10-17
+ * span批次的紧凑二进制格式
+ * <pre>
+ * 批次：magic(2) version(1) 字典 端点表 span个数 span...
+ * 字典：个数 {len utf8}...，批次内重复的spanName、serviceId、ip、annotation的key等只写一次
+ * 端点表：个数 {ip的字典下标 port+1}...
+ * span：flags traceId(与上一个span的差) id(与上一个span的差) parentId(与id的差)
+ *       spanName serviceId annotation个数 annotation... binaryAnnotation个数 binaryAnnotation...
+ * annotation：head(低3位为cs/cr/sr/ss编码) 时间戳(us，与上一个annotation的差) 端点 duration
+ * </pre>
+ * 整数均为varint，有符号的差值先做zigzag。字符串、端点下标加1，0表示null
+ */
+public class SpanCodec {
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+    static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+    public static final byte MAGIC_0 = 'H';
+    public static final byte MAGIC_1 = 'S';
+    public static final byte VERSION = 1;
+
+    //span flags
+    static final int HAS_TRACE_ID = 1;
+    static final int HAS_ID = 1 << 1;
+    static final int HAS_PARENT_ID = 1 << 2;
+    static final int SAMPLE = 1 << 3;
+
+    //annotation head，低3位为value编码
+    static final int CODE_MASK = 7;
+    static final int CODE_CUSTOM = 4;
+    static final int CODE_NULL = 5;
+    static final int HAS_TIMESTAMP = 1 << 3;
+    static final int HAS_DURATION = 1 << 4;
+
+    //binaryAnnotation head
+    static final int HAS_VALUE = 1;
+    static final int HAS_BINARY_DURATION = 1 << 1;
+
+    static final String[] CODES = {Annotation.CLIENT_SEND, Annotation.CLIENT_RECEIVE,
+            Annotation.SERVER_RECEIVE, Annotation.SERVER_SEND};
+
+    //是否为本格式(只检查魔数和版本)
+    public static boolean isEncoded(byte[] bytes) {
+        return bytes != null && bytes.length >= 3 && bytes[0] == MAGIC_0 && bytes[1] == MAGIC_1 && bytes[2] == VERSION;
+    }
+
+    public static byte[] encode(List<Span> spanList) {
+        return new Encoder().encode(spanList);
+    }
+
+    public static List<Span> decode(byte[] bytes) throws IOException {
+        return decode(bytes, 0, bytes.length);
+    }
+
+    public static List<Span> decode(byte[] bytes, int offset, int length) throws IOException {
+        SpanBatchReader reader = new SpanBatchReader(bytes, offset, length);
+        try {
+            List<Span> list = new ArrayList<Span>(reader.spanCount());
+            Endpoint[] endpoints = new Endpoint[reader.endpointCount()];
+            while (reader.nextSpan()) {
+                Span span = new Span();
+                if (reader.hasTraceId()) {
+                    span.setTraceId(reader.traceId());
+                }
+                if (reader.hasSpanId()) {
+                    span.setId(reader.spanId());
+                }
+                if (reader.hasParentId()) {
+                    span.setParentId(reader.parentId());
+                }
+                span.setSample(reader.isSample());
+                span.setSpanName(reader.spanName());
+                span.setServiceId(reader.serviceId());
+                List<Annotation> annotations = new ArrayList<Annotation>(reader.annotationCount());
+                while (reader.nextAnnotation()) {
+                    Annotation a = new Annotation();
+                    a.setValue(reader.annotationValue());
+                    if (reader.hasTimestamp()) {
+                        long us = reader.timestampUs();
+                        a.setTimestamp(us / 1000);
+                        a.setTimestampUs(us);
+                    }
+                    a.setHost(endpoint(reader, endpoints));
+                    if (reader.hasDuration()) {
+                        a.setDuration(reader.duration());
+                    }
+                    annotations.add(a);
+                }
+                span.setAnnotations(annotations);
+                List<BinaryAnnotation> binaryAnnotations = new ArrayList<BinaryAnnotation>(reader.binaryAnnotationCount());
+                while (reader.nextBinaryAnnotation()) {
+                    BinaryAnnotation b = new BinaryAnnotation();
+                    b.setKey(reader.key());
+                    b.setValue(reader.value());
+                    b.setType(reader.type());
+                    b.setHost(endpoint(reader, endpoints));
+                    if (reader.hasDuration()) {
+                        b.setDuration(reader.duration());
+                    }
+                    binaryAnnotations.add(b);
+                }
+                span.setBinaryAnnotations(binaryAnnotations);
+                list.add(span);
+            }
+            return list;
+        } catch (RuntimeException e) {
+            throw new IOException("broken span batch", e);
+        }
+    }
+
+    //同一批次内相同的端点共用一个对象
+    private static Endpoint endpoint(SpanBatchReader reader, Endpoint[] endpoints) {
+        int index = reader.hostIndex();
+        if (index < 0) {
+            return null;
+        }
+        Endpoint endpoint = endpoints[index];
+        if (endpoint == null) {
+            endpoint = new Endpoint();
+            endpoint.setIp(reader.hostIp());
+            if (reader.hostPort() >= 0) {
+                endpoint.setPort(reader.hostPort());
+            }
+            endpoints[index] = endpoint;
+        }
+        return endpoint;
+    }
+
+    static int code(String value) {
+        if (value == null) {
+            return CODE_NULL;
+        }
+        for (int i = 0; i < CODES.length; i++) {
+            if (CODES[i].equals(value)) {
+                return i;
+            }
+        }
+        return CODE_CUSTOM;
+    }
+
+    static long zigzag(long n) {
+        return (n << 1) ^ (n >> 63);
+    }
+
+    static long unzigzag(long n) {
+        return (n >>> 1) ^ -(n & 1);
+    }
+
+    private static class Encoder {
+        private final Map<String, Integer> strings = new HashMap<String, Integer>();
+        private final List<String> stringList = new ArrayList<String>();
+        //(ip下标 << 32 | port+1) -> 端点下标
+        private final Map<Long, Integer> endpoints = new HashMap<Long, Integer>();
+        private final List<Long> endpointList = new ArrayList<Long>();
+        private final Buffer body = new Buffer(256);
+        private long prevTraceId;
+        private long prevId;
+        private long prevTimestamp;
+
+        byte[] encode(List<Span> spanList) {
+            body.writeVarLong(spanList.size());
+            for (Span span : spanList) {
+                writeSpan(span);
+            }
+            Buffer out = new Buffer(body.size + 16 + stringList.size() * 16);
+            out.write(MAGIC_0);
+            out.write(MAGIC_1);
+            out.write(VERSION);
+            out.writeVarLong(stringList.size());
+            for (String s : stringList) {
+                byte[] bytes = s.getBytes(UTF8);
+                out.writeVarLong(bytes.length);
+                out.write(bytes, 0, bytes.length);
+            }
+            out.writeVarLong(endpointList.size());
+            for (Long endpoint : endpointList) {
+                out.writeVarLong(endpoint >>> 32);
+                out.writeVarLong(endpoint & 0xffffffffL);
+            }
+            out.write(body.bytes, 0, body.size);
+            return out.toByteArray();
+        }
+
+        private void writeSpan(Span span) {
+            Long traceId = span.getTraceId();
+            Long id = span.getId();
+            Long parentId = span.getParentId();
+            int flags = 0;
+            if (traceId != null) {
+                flags |= HAS_TRACE_ID;
+            }
+            if (id != null) {
+                flags |= HAS_ID;
+            }
+            if (parentId != null) {
+                flags |= HAS_PARENT_ID;
+            }
+            if (span.isSample()) {
+                flags |= SAMPLE;
+            }
+            body.write(flags);
+            if (traceId != null) {
+                body.writeVarLong(zigzag(traceId - prevTraceId));
+                prevTraceId = traceId;
+            }
+            if (id != null) {
+                body.writeVarLong(zigzag(id - prevId));
+                prevId = id;
+            }
+            if (parentId != null) {
+                body.writeVarLong(zigzag(parentId - prevId));
+            }
+            body.writeVarLong(string(span.getSpanName()));
+            body.writeVarLong(string(span.getServiceId()));
+
+            List<Annotation> annotations = span.getAnnotations();
+            int size = annotations == null ? 0 : annotations.size();
+            body.writeVarLong(size);
+            for (int i = 0; i < size; i++) {
+                writeAnnotation(annotations.get(i));
+            }
+            List<BinaryAnnotation> binaryAnnotations = span.getBinaryAnnotations();
+            size = binaryAnnotations == null ? 0 : binaryAnnotations.size();
+            body.writeVarLong(size);
+            for (int i = 0; i < size; i++) {
+                writeBinaryAnnotation(binaryAnnotations.get(i));
+            }
+        }
+
+        private void writeAnnotation(Annotation a) {
+            int code = code(a.getValue());
+            Long timestamp = a.getTimestampUs();
+            int head = code;
+            if (timestamp != null) {
+                head |= HAS_TIMESTAMP;
+            }
+            if (a.getDuration() != null) {
+                head |= HAS_DURATION;
+            }
+            body.write(head);
+            if (code == CODE_CUSTOM) {
+                body.writeVarLong(string(a.getValue()));
+            }
+            if (timestamp != null) {
+                body.writeVarLong(zigzag(timestamp - prevTimestamp));
+                prevTimestamp = timestamp;
+            }
+            body.writeVarLong(endpoint(a.getHost()));
+            if (a.getDuration() != null) {
+                body.writeVarLong(zigzag(a.getDuration()));
+            }
+        }
+
+        private void writeBinaryAnnotation(BinaryAnnotation b) {
+            int head = 0;
+            if (b.getValue() != null) {
+                head |= HAS_VALUE;
+            }
+            if (b.getDuration() != null) {
+                head |= HAS_BINARY_DURATION;
+            }
+            body.write(head);
+            body.writeVarLong(string(b.getKey()));
+            body.writeVarLong(string(b.getType()));
+            if (b.getValue() != null) {//异常信息等基本不重复，不进字典
+                byte[] bytes = b.getValue().getBytes(UTF8);
+                body.writeVarLong(bytes.length);
+                body.write(bytes, 0, bytes.length);
+            }
+            body.writeVarLong(endpoint(b.getHost()));
+            if (b.getDuration() != null) {
+                body.writeVarLong(zigzag(b.getDuration()));
+            }
+        }
+
+        private int string(String s) {
+            if (s == null) {
+                return 0;
+            }
+            Integer index = strings.get(s);
+            if (index == null) {
+                stringList.add(s);
+                index = stringList.size();
+                strings.put(s, index);
+            }
+            return index;
+        }
+
+        private int endpoint(Endpoint endpoint) {
+            if (endpoint == null) {
+                return 0;
+            }
+            Integer port = endpoint.getPort();
+            Long key = ((long) string(endpoint.getIp()) << 32) | (port == null ? 0 : port + 1L);
+            Integer index = endpoints.get(key);
+            if (index == null) {
+                endpointList.add(key);
+                index = endpointList.size();
+                endpoints.put(key, index);
+            }
+            return index;
+        }
+    }
+
+    static class Buffer {
+        byte[] bytes;
+        int size;
+
+        Buffer(int capacity) {
+            bytes = new byte[capacity];
+        }
+
+        void write(int b) {
+            ensure(1);
+            bytes[size++] = (byte) b;
+        }
+
+        void write(byte[] b, int off, int len) {
+            ensure(len);
+            System.arraycopy(b, off, bytes, size, len);
+            size += len;
+        }
+
+        void writeVarLong(long v) {
+            ensure(10);
+            while ((v & ~0x7fL) != 0) {
+                bytes[size++] = (byte) ((v & 0x7f) | 0x80);
+                v >>>= 7;
+            }
+            bytes[size++] = (byte) v;
+        }
+
+        private void ensure(int n) {
+            if (size + n > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length << 1, size + n));
+            }
+        }
+
+        byte[] toByteArray() {
+            return size == bytes.length ? bytes : Arrays.copyOf(bytes, size);
+        }
+    }
+}
@@ -0,0 +1,378 @@
+package com.jd.bdp.hydra.codec;
+
+import org.iq80.snappy.Snappy;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Date: 26-10-17
+ * span批次的块压缩，agent->collector以及collector->metaq两段使用
+ * 帧格式：magic(2) codec(1) 原始长度(varint) 压缩数据
+ * deflate可以带预置字典(SpanDictionary训练得到)，字典的id(adler32)记录在zlib头里，解压时按id查找；
+ * 对方可能没有该字典时(如负载均衡到别的collector)，字典随帧发送：
+ * magic(2) codec(1)=3 原始长度(varint) 字典长度(varint) 字典 压缩数据，对方解压时登记该字典
+ */
+public class SpanCompressor {
+
+    public static final String NONE = "none";
+    public static final String SNAPPY = "snappy";
+    public static final String DEFLATE = "deflate";
+
+    public static final byte MAGIC_0 = 'H';
+    public static final byte MAGIC_1 = 'Z';
+
+    static final byte CODE_NONE = 0;
+    static final byte CODE_SNAPPY = 1;
+    static final byte CODE_DEFLATE = 2;
+    static final byte CODE_DEFLATE_DICT = 3;
+
+    //解压后批次大小的默认上限，帧头里的原始长度超过时不解压
+    public static final int DEFAULT_MAX_RAW_LENGTH = 64 * 1024 * 1024;
+    //压缩数据能还原的最大倍数：deflate理论上限约1032，snappy一次复制2~3字节最多还原64字节
+    private static final int DEFLATE_MAX_RATIO = 1032;
+    private static final int SNAPPY_MAX_RATIO = 32;
+
+    //按优先顺序
+    private static final List<String> SUPPORTED = Arrays.asList(SNAPPY, DEFLATE, NONE);
+
+    private final String codec;
+    private final byte code;
+    private final byte[] dictionary;
+    private final Deflater deflater;
+
+    public SpanCompressor(String codec) {
+        this(codec, null, Deflater.BEST_SPEED);
+    }
+
+    public SpanCompressor(String codec, byte[] dictionary, int level) {
+        this.codec = codec;
+        this.dictionary = dictionary;
+        if (SNAPPY.equals(codec)) {
+            code = CODE_SNAPPY;
+            deflater = null;
+        } else if (DEFLATE.equals(codec)) {
+            code = CODE_DEFLATE;
+            deflater = new Deflater(level);
+        } else if (NONE.equals(codec)) {
+            code = CODE_NONE;
+            deflater = null;
+        } else {
+            throw new IllegalArgumentException("unsupported codec : " + codec);
+        }
+    }
+
+    public String getCodec() {
+        return codec;
+    }
+
+    public byte[] getDictionary() {
+        return dictionary;
+    }
+
+    public byte[] compress(byte[] raw) {
+        return compress(raw, false);
+    }
+
+    /**
+     * @param embedDictionary 使用字典时把字典放进帧里，对方没有该字典也能解压
+     */
+    public byte[] compress(byte[] raw, boolean embedDictionary) {
+        boolean embed = embedDictionary && code == CODE_DEFLATE && dictionary != null;
+        SpanCodec.Buffer out = new SpanCodec.Buffer(code == CODE_NONE ? raw.length + 8
+                : raw.length / 2 + 16 + (embed ? dictionary.length : 0));
+        out.write(MAGIC_0);
+        out.write(MAGIC_1);
+        out.write(embed ? CODE_DEFLATE_DICT : code);
+        out.writeVarLong(raw.length);
+        if (embed) {
+            out.writeVarLong(dictionary.length);
+            out.write(dictionary, 0, dictionary.length);
+        }
+        if (code == CODE_SNAPPY) {
+            int max = Snappy.maxCompressedLength(raw.length);
+            byte[] buf = new byte[out.size + max];
+            System.arraycopy(out.bytes, 0, buf, 0, out.size);
+            int len = Snappy.compress(raw, 0, raw.length, buf, out.size);
+            return Arrays.copyOf(buf, out.size + len);
+        } else if (code == CODE_DEFLATE) {
+            deflate(raw, out);
+        } else {
+            out.write(raw, 0, raw.length);
+        }
+        return out.toByteArray();
+    }
+
+    //agent的发送线程和重试线程都会调用
+    private synchronized void deflate(byte[] raw, SpanCodec.Buffer out) {
+        deflater.reset();
+        if (dictionary != null) {
+            deflater.setDictionary(dictionary);
+        }
+        deflater.setInput(raw);
+        deflater.finish();
+        byte[] buf = new byte[Math.max(64, raw.length / 2)];
+        while (!deflater.finished()) {
+            int n = deflater.deflate(buf);
+            out.write(buf, 0, n);
+        }
+    }
+
+    public void close() {
+        if (deflater != null) {
+            deflater.end();
+        }
+    }
+
+    //是否使用了字典(不论是否随帧发送)
+    public boolean hasDictionary() {
+        return code == CODE_DEFLATE && dictionary != null;
+    }
+
+    public static boolean isCompressed(byte[] bytes) {
+        return bytes != null && bytes.length >= 3 && bytes[0] == MAGIC_0 && bytes[1] == MAGIC_1;
+    }
+
+    public static void check(byte[] frame, SpanDictionary.Registry dictionaries) throws IOException {
+        check(frame, dictionaries, DEFAULT_MAX_RAW_LENGTH);
+    }
+
+    /**
+     * 只读帧头，不解压：检查格式和原始长度，deflate帧检查zlib头里的字典id本端是否已有，随帧发送的字典在这里登记。
+     * collector在接收时同步调用，不能解压的帧直接返回给agent
+     *
+     * @param maxRawLength 解压后的最大字节数
+     * @throws UnknownDictionaryException 没有对应的字典
+     * @throws IOException                帧格式错误或原始长度超过上限
+     */
+    public static void check(byte[] frame, SpanDictionary.Registry dictionaries, int maxRawLength) throws IOException {
+        if (!isCompressed(frame)) {
+            throw new IOException("not a compressed span batch");
+        }
+        int[] pos = {3};
+        int rawLength = readRawLength(frame, pos, maxRawLength);
+        switch (frame[2]) {
+            case CODE_NONE:
+                if (frame.length - pos[0] != rawLength) {
+                    throw new IOException("broken compressed span batch");
+                }
+                return;
+            case CODE_SNAPPY:
+                checkSnappyLength(frame, pos[0], rawLength);
+                return;
+            case CODE_DEFLATE:
+                long id = dictionaryId(frame, pos[0]);
+                if (id >= 0 && (dictionaries == null || dictionaries.get(id) == null)) {
+                    throw new UnknownDictionaryException(id);
+                }
+                return;
+            case CODE_DEFLATE_DICT:
+                byte[] dictionary = readDictionary(frame, pos);
+                if (dictionaryId(frame, pos[0]) != SpanDictionary.id(dictionary)) {
+                    throw new IOException("broken compressed span batch");
+                }
+                if (dictionaries != null) {
+                    dictionaries.register(dictionary);
+                }
+                return;
+            default:
+                throw new IOException("unsupported codec : " + frame[2]);
+        }
+    }
+
+    //zlib头(RFC1950)：CMF FLG [DICTID(4)]，FLG的FDICT位表示使用预置字典，不使用时返回-1
+    private static long dictionaryId(byte[] frame, int offset) throws IOException {
+        if (frame.length - offset < 2 || (((frame[offset] & 0xff) << 8) | (frame[offset + 1] & 0xff)) % 31 != 0) {
+            throw new IOException("broken compressed span batch");
+        }
+        if ((frame[offset + 1] & 0x20) == 0) {
+            return -1;
+        }
+        if (frame.length - offset < 6) {
+            throw new IOException("broken compressed span batch");
+        }
+        return ((long) (frame[offset + 2] & 0xff) << 24) | ((frame[offset + 3] & 0xff) << 16)
+                | ((frame[offset + 4] & 0xff) << 8) | (frame[offset + 5] & 0xff);
+    }
+
+    private static byte[] readDictionary(byte[] frame, int[] pos) throws IOException {
+        long length = readVarLong(frame, pos);
+        if (length <= 0 || length > SpanDictionary.MAX_SIZE || length > frame.length - pos[0]) {
+            throw new IOException("broken compressed span batch");
+        }
+        byte[] dictionary = Arrays.copyOfRange(frame, pos[0], pos[0] + (int) length);
+        pos[0] += (int) length;
+        return dictionary;
+    }
+
+    /**
+     * @param dictionaries 解压deflate字典压缩的数据时使用，可以为null
+     */
+    public static byte[] decompress(byte[] frame, SpanDictionary.Registry dictionaries) throws IOException {
+        return decompress(frame, dictionaries, DEFAULT_MAX_RAW_LENGTH);
+    }
+
+    /**
+     * @param dictionaries 解压deflate字典压缩的数据时使用，可以为null
+     * @param maxRawLength 解压后的最大字节数，帧头里的原始长度超过时不分配内存、直接抛异常
+     */
+    public static byte[] decompress(byte[] frame, SpanDictionary.Registry dictionaries, int maxRawLength) throws IOException {
+        if (!isCompressed(frame)) {
+            throw new IOException("not a compressed span batch");
+        }
+        int[] pos = {3};
+        byte[] raw = new byte[readRawLength(frame, pos, maxRawLength)];
+        int offset = pos[0];
+        byte[] dictionary = null;
+        switch (frame[2]) {
+            case CODE_NONE:
+                if (frame.length - offset != raw.length) {
+                    throw new IOException("broken compressed span batch");
+                }
+                System.arraycopy(frame, offset, raw, 0, raw.length);
+                return raw;
+            case CODE_SNAPPY:
+                try {
+                    checkSnappyLength(frame, offset, raw.length);
+                    Snappy.uncompress(frame, offset, frame.length - offset, raw, 0);
+                } catch (RuntimeException e) {
+                    throw new IOException("broken compressed span batch", e);
+                }
+                return raw;
+            case CODE_DEFLATE_DICT:
+                dictionary = readDictionary(frame, pos);
+                offset = pos[0];
+                if (dictionaries != null) {
+                    dictionaries.register(dictionary);
+                }
+                //fall through
+            case CODE_DEFLATE:
+                inflate(frame, offset, raw, dictionaries, dictionary);
+                return raw;
+            default:
+                throw new IOException("unsupported codec : " + frame[2]);
+        }
+    }
+
+    private static void inflate(byte[] frame, int offset, byte[] raw, SpanDictionary.Registry dictionaries,
+                                byte[] embedded) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(frame, offset, frame.length - offset);
+            int n = 0;
+            while (n < raw.length) {
+                int r = inflater.inflate(raw, n, raw.length - n);
+                if (r == 0) {
+                    if (inflater.needsDictionary()) {
+                        long id = inflater.getAdler() & 0xffffffffL;
+                        byte[] dictionary = embedded != null && SpanDictionary.id(embedded) == id ? embedded
+                                : (dictionaries == null ? null : dictionaries.get(id));
+                        if (dictionary == null) {
+                            throw new UnknownDictionaryException(id);
+                        }
+                        inflater.setDictionary(dictionary);
+                    } else if (inflater.finished() || inflater.needsInput()) {
+                        throw new IOException("broken compressed span batch");
+                    }
+                }
+                n += r;
+            }
+            //读完zlib尾部的校验和，数据被截断时在这里发现
+            if (!inflater.finished() && (inflater.inflate(new byte[1]) != 0 || !inflater.finished())) {
+                throw new IOException("broken compressed span batch");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("broken compressed span batch", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * 从对方提供的codec中按优先顺序选出本端支持的一种，都不支持时返回none
+     */
+    public static String negotiate(List<String> offered) {
+        if (offered != null) {
+            for (String codec : offered) {
+                if (SUPPORTED.contains(codec)) {
+                    return codec;
+                }
+            }
+        }
+        return NONE;
+    }
+
+    //原始长度不能超过上限，也不能超过压缩数据按该codec能还原的最大长度，避免伪造的帧头导致分配过大的数组
+    private static int readRawLength(byte[] frame, int[] pos, int maxRawLength) throws IOException {
+        long rawLength = readVarLong(frame, pos);
+        if (rawLength < 0) {
+            throw new IOException("broken compressed span batch");
+        }
+        long compressed = frame.length - pos[0];
+        long bound;
+        switch (frame[2]) {
+            case CODE_SNAPPY:
+                bound = compressed * SNAPPY_MAX_RATIO;
+                break;
+            case CODE_DEFLATE:
+            case CODE_DEFLATE_DICT:
+                bound = compressed * DEFLATE_MAX_RATIO;
+                break;
+            default:
+                bound = compressed;
+        }
+        if (rawLength > maxRawLength) {
+            throw new IOException("span batch too large : " + rawLength + " > " + maxRawLength);
+        }
+        if (rawLength > bound) {
+            throw new IOException("broken compressed span batch");
+        }
+        return (int) rawLength;
+    }
+
+    //snappy数据开头也记录了原始长度，与帧头一致
+    private static void checkSnappyLength(byte[] frame, int offset, int rawLength) throws IOException {
+        try {
+            if (Snappy.getUncompressedLength(frame, offset) != rawLength) {
+                throw new IOException("broken compressed span batch");
+            }
+        } catch (RuntimeException e) {
+            throw new IOException("broken compressed span batch", e);
+        }
+    }
+
+    private static long readVarLong(byte[] bytes, int[] pos) throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (pos[0] >= bytes.length) {
+                throw new IOException("broken compressed span batch");
+            }
+            byte b = bytes[pos[0]++];
+            v |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+        throw new IOException("broken compressed span batch");
+    }
+
+    /**
+     * collector没有对应的字典(没有协商过或已被淘汰)，agent需要在帧里带上字典重发
+     */
+    public static class UnknownDictionaryException extends IOException {
+        private final long id;
+
+        public UnknownDictionaryException(long id) {
+            super("unknown span dictionary : " + id);
+            this.id = id;
+        }
+
+        public long getId() {
+            return id;
+        }
+    }
+}
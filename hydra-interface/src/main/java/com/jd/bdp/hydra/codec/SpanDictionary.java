@@ -0,0 +1,217 @@
+package com.jd.bdp.hydra.codec;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Adler32;
+
+/**
+ * Date: 26-10-17
+ * deflate预置字典：从样本批次中找出大部分批次都出现的片段(服务名、ip、方法名等)拼成字典，
+ * 小批次也能直接引用字典里的内容，不用在每批里重复一遍
+ */
+public class SpanDictionary {
+
+    //deflate的窗口大小，超出部分没有用
+    public static final int MAX_SIZE = 32 * 1024;
+    //片段按K字节切分统计
+    private static final int K = 8;
+
+    /**
+     * @param samples 样本批次(SpanCodec编码后，压缩前)
+     * @param maxSize 字典最大字节数
+     */
+    public static byte[] train(List<byte[]> samples, int maxSize) {
+        maxSize = Math.min(maxSize, MAX_SIZE);
+        //每个K字节片段出现在多少个样本里
+        Map<Gram, int[]> counts = new HashMap<Gram, int[]>();
+        for (byte[] sample : samples) {
+            Set<Gram> seen = new HashSet<Gram>();
+            for (int i = 0; i + K <= sample.length; i++) {
+                Gram gram = new Gram(sample, i);
+                if (seen.add(gram)) {
+                    int[] c = counts.get(gram);
+                    if (c == null) {
+                        counts.put(gram, new int[]{1});
+                    } else {
+                        c[0]++;
+                    }
+                }
+            }
+        }
+        int threshold = Math.max(2, samples.size() / 2);
+        //把连续的高频片段合并成段
+        final Map<String, int[]> segments = new LinkedHashMap<String, int[]>();
+        Set<Gram> used = new HashSet<Gram>();
+        for (byte[] sample : samples) {
+            int start = -1;
+            int score = 0;
+            for (int i = 0; i + K <= sample.length + 1; i++) {
+                int[] c = i + K <= sample.length ? counts.get(new Gram(sample, i)) : null;
+                boolean hot = c != null && c[0] >= threshold;
+                if (hot && start < 0) {
+                    start = i;
+                    score = 0;
+                }
+                if (hot) {
+                    score += c[0];
+                } else if (start >= 0) {
+                    addSegment(segments, used, sample, start, i - 1 + K, score);
+                    start = -1;
+                }
+            }
+        }
+        List<String> keys = new ArrayList<String>(segments.keySet());
+        //出现次数少的在前，deflate引用距离近的更省
+        Collections.sort(keys, new Comparator<String>() {
+            @Override
+            public int compare(String o1, String o2) {
+                int d = segments.get(o1)[0] - segments.get(o2)[0];
+                return d < 0 ? -1 : (d > 0 ? 1 : 0);
+            }
+        });
+        SpanCodec.Buffer out = new SpanCodec.Buffer(maxSize);
+        List<byte[]> picked = new ArrayList<byte[]>();
+        int size = 0;
+        for (int i = keys.size() - 1; i >= 0; i--) {//从高分开始挑，放不下为止
+            byte[] bytes = latin1(keys.get(i));
+            if (size + bytes.length > maxSize) {
+                continue;
+            }
+            picked.add(bytes);
+            size += bytes.length;
+        }
+        for (int i = picked.size() - 1; i >= 0; i--) {
+            out.write(picked.get(i), 0, picked.get(i).length);
+        }
+        return out.toByteArray();
+    }
+
+    private static void addSegment(Map<String, int[]> segments, Set<Gram> used, byte[] sample, int start, int end, int score) {
+        boolean fresh = false;
+        for (int i = start; i + K <= end; i++) {
+            if (used.add(new Gram(sample, i))) {
+                fresh = true;
+            }
+        }
+        if (!fresh) {//已经包含在别的段里
+            return;
+        }
+        String key = new String(sample, start, end - start, SpanCodec.LATIN1);
+        int[] s = segments.get(key);
+        if (s == null) {
+            segments.put(key, new int[]{score});
+        } else {
+            s[0] += score;
+        }
+    }
+
+    private static byte[] latin1(String s) {
+        return s.getBytes(SpanCodec.LATIN1);
+    }
+
+    //字典id，与zlib头里的一致
+    public static long id(byte[] dictionary) {
+        Adler32 adler = new Adler32();
+        adler.update(dictionary);
+        return adler.getValue();
+    }
+
+    private static class Gram {
+        final byte[] bytes;
+        final int offset;
+        final int hash;
+
+        Gram(byte[] bytes, int offset) {
+            this.bytes = bytes;
+            this.offset = offset;
+            int h = 1;
+            for (int i = 0; i < K; i++) {
+                h = 31 * h + bytes[offset + i];
+            }
+            this.hash = h;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Gram)) {
+                return false;
+            }
+            Gram g = (Gram) o;
+            for (int i = 0; i < K; i++) {
+                if (bytes[offset + i] != g.bytes[g.offset + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * collector端按内容id(adler32)保存agent协商时或随帧送来的字典，内容相同的字典只存一份。
+     * 按总字节数限制，超过时淘汰最久未用的；被淘汰的字典解压时报UnknownDictionaryException，
+     * agent收到后在帧里带上字典重发
+     */
+    public static class Registry {
+        //默认64M，可以保存约2000个32K的字典
+        public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+        private final long maxBytes;
+        private final LinkedHashMap<Long, byte[]> dictionaries = new LinkedHashMap<Long, byte[]>(16, 0.75f, true);
+        private long bytes;
+        private long evictCount;
+
+        public Registry() {
+            this(DEFAULT_MAX_BYTES);
+        }
+
+        public Registry(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        public synchronized long register(byte[] dictionary) {
+            long id = id(dictionary);
+            byte[] old = dictionaries.put(id, dictionary);
+            bytes += dictionary.length - (old == null ? 0 : old.length);
+            //至少保留刚登记的一个
+            Iterator<byte[]> it = dictionaries.values().iterator();
+            while (bytes > maxBytes && dictionaries.size() > 1) {
+                byte[] eldest = it.next();
+                it.remove();
+                bytes -= eldest.length;
+                evictCount++;
+            }
+            return id;
+        }
+
+        public synchronized byte[] get(long id) {
+            return dictionaries.get(id);
+        }
+
+        public synchronized int size() {
+            return dictionaries.size();
+        }
+
+        //已占用的字节数
+        public synchronized long getBytes() {
+            return bytes;
+        }
+
+        //因超过字节上限被淘汰的字典数
+        public synchronized long getEvictCount() {
+            return evictCount;
+        }
+    }
+}
@@ -8,4 +8,10 @@ import java.util.List;
 
 public interface HydraService {
     boolean push(List<Span> span) throws IOException;
+
+    //spans为SpanCodec编码后的批次，可以再经SpanCompressor压缩
+    boolean pushEncoded(byte[] spans) throws IOException;
+
+    //协商pushEncoded的压缩方式：codecs按agent的优先顺序，dictionary为deflate的预置字典(可以为null)，返回collector选中的codec
+    String negotiate(List<String> codecs, byte[] dictionary) throws IOException;
 }
\ No newline at end of file
@@ -18,11 +18,14 @@ package com.jd.bdp.hydra.hbase.service.impl;
 
 import com.jd.bdp.hydra.Annotation;
 import com.jd.bdp.hydra.Span;
+import com.jd.bdp.hydra.store.metrics.SpanMetrics;
 import org.apache.commons.lang.StringUtils;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.HBaseConfiguration;
 import org.apache.hadoop.hbase.client.HTablePool;
+import org.apache.hadoop.hbase.util.Bytes;
 
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -34,14 +37,18 @@ public class HbaseUtils {
     public static HTablePool POOL;
     public static Configuration conf = HBaseConfiguration.create(new Configuration());
 
-    //这三个表名由spring注入方便测试
+    //表名由spring注入方便测试
     protected String duration_index;
     protected String ann_index;
     protected String TR_T;
+    protected String metrics_t;
     public static final String duration_index_family_column = "trace";
     public static final String ann_index_family_column = "trace";
     public static final String trace_family_column = "span";
+    public static final String metrics_family_column = "metrics";
     public static final String DUBBO_EXCEPTION = "dubbo.exception";
+    //组装后的trace列名前缀
+    public static final String ASSEMBLED_PREFIX = "T";
 
     public HbaseUtils() {
         POOL = new HTablePool(conf, 2);
@@ -97,6 +104,23 @@ public class HbaseUtils {
         return b;
     }
 
+    //指标列的值：count、errorCount、durationSumUs、durationMaxUs各8字节，其后为耗时分布
+    byte[] encodeMetrics(SpanMetrics m) {
+        byte[] histogram = m.getHistogram() == null ? new byte[0] : m.getHistogram();
+        return Bytes.add(Bytes.add(Bytes.toBytes(m.getCount()), Bytes.toBytes(m.getErrorCount())),
+                Bytes.add(Bytes.toBytes(m.getDurationSumUs()), Bytes.toBytes(m.getDurationMaxUs())), histogram);
+    }
+
+    SpanMetrics decodeMetrics(byte[] value) {
+        SpanMetrics m = new SpanMetrics();
+        m.setCount(Bytes.toLong(value, 0));
+        m.setErrorCount(Bytes.toLong(value, 8));
+        m.setDurationSumUs(Bytes.toLong(value, 16));
+        m.setDurationMaxUs(Bytes.toLong(value, 24));
+        m.setHistogram(Arrays.copyOfRange(value, 32, value.length));
+        return m;
+    }
+
     boolean isTopAnntation(Span span) {
         List<Annotation> alist = span.getAnnotations();
         boolean isfirst = false;
@@ -138,6 +162,10 @@ public class HbaseUtils {
         this.TR_T = TR_T;
     }
 
+    public void setMetrics_t(String metrics_t) {
+        this.metrics_t = metrics_t;
+    }
+
     public String getDuration_index() {
         return duration_index;
     }
@@ -149,4 +177,8 @@ public class HbaseUtils {
     public String getTR_T() {
         return TR_T;
     }
+
+    public String getMetrics_t() {
+        return metrics_t;
+    }
 }
@@ -20,14 +20,18 @@ import com.alibaba.fastjson.JSON;
 import com.jd.bdp.hydra.Annotation;
 import com.jd.bdp.hydra.BinaryAnnotation;
 import com.jd.bdp.hydra.Span;
+import com.jd.bdp.hydra.codec.SpanCodec;
 import com.jd.bdp.hydra.store.inter.InsertService;
-import org.apache.hadoop.hbase.client.HTableInterface;
+import com.jd.bdp.hydra.store.metrics.SpanMetrics;
+import com.jd.bdp.hydra.store.pipeline.TraceAssembler;
 import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.util.Bytes;
 
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
 
 /*
 trace:
@@ -39,6 +43,10 @@ Qualifier:{
 	spanId3+0:
 	spanId4+1:
 }
+配置traceAssembler时每个trace写一列，值为合并后的span(SpanCodec编码)，迟到的部分写另一列：
+Qualifier:{
+	T+首个spanId+写入方id+序号:
+}
 
 durationIndex
 rowkey:serviceId+duration
@@ -53,9 +61,25 @@ familColume:trace
 Qualifier:{
 	traceId
 }
+
+spanMetrics
+rowkey:serviceId+分钟起始时间
+familColume:metrics
+Qualifier:{
+	spanName+写入方id+序号:count,errorCount,durationSumUs,durationMaxUs,histogram
+}
  */
 public class InsertServiceImpl extends HbaseUtils implements InsertService {
 
+    //各表共享的写缓冲，所有collector线程共用
+    private SpanWriteBuffer writeBuffer = new SpanWriteBuffer();
+    //可选：组装后整个trace写一列，索引仍随span到达写入
+    private TraceAssembler traceAssembler;
+    //区分多个collector写入同一行的列：同一分钟的指标、同一trace先后组装的记录
+    private final String writerId = Long.toHexString(new Random().nextLong());
+    private final AtomicLong metricsSeq = new AtomicLong();
+    private final AtomicLong assembledSeq = new AtomicLong();
+
 //    public void createTable() {
 //        try {
 //            HBaseAdmin hBaseAdmin = new HBaseAdmin(conf);
@@ -91,21 +115,11 @@ public class InsertServiceImpl extends HbaseUtils implements InsertService {
         } else {
             spanId = spanId + "S";
         }
-        HTableInterface htable = null;
         try {
             put.add(trace_family_column.getBytes(), spanId.getBytes(), jsonValue.getBytes());
-            htable = POOL.getTable(TR_T);
-            htable.put(put);
+            writeBuffer.mutate(TR_T, put);
         } catch (IOException e) {
             e.printStackTrace();
-        } finally {
-            if (htable != null) {
-                try {
-                    htable.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
         }
     }
 
@@ -121,20 +135,10 @@ public class InsertServiceImpl extends HbaseUtils implements InsertService {
                 put.add(ann_index_family_column.getBytes(), long2ByteArray(span.getTraceId()), Bytes.toBytes(b.getValue()));
                 putlist.add(put);
             }
-            HTableInterface htable = null;
             try {
-                htable = POOL.getTable(ann_index);
-                htable.put(putlist);
+                writeBuffer.mutate(ann_index, putlist);
             } catch (IOException e) {
                 e.printStackTrace();
-            } finally {
-                if (htable != null) {
-                    try {
-                        htable.close();
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                }
             }
         }
     }
@@ -161,33 +165,90 @@ public class InsertServiceImpl extends HbaseUtils implements InsertService {
             Annotation cr = getCrAnnotation(alist);
             if (cs != null) {
                 long duration = cr.getTimestamp() - cs.getTimestamp();
+                long durationUs = cr.getTimestampUs() - cs.getTimestampUs();
                 String rowkey = span.getServiceId() + ":" + cs.getTimestamp();
                 Put put = new Put(rowkey.getBytes());
                 //rowkey:serviceId:csTime
                 //每列的timestamp为duration
-                //每列列名为traceId，值为1（用来区分1ms内的跟踪）
-                put.add(duration_index_family_column.getBytes(), long2ByteArray(span.getTraceId()), duration, "1".getBytes());
-                HTableInterface htable = null;
+                //每列列名为traceId（用来区分1ms内的跟踪），值为us精度的duration
+                put.add(duration_index_family_column.getBytes(), long2ByteArray(span.getTraceId()), duration, String.valueOf(durationUs).getBytes());
                 try {
-                    htable = POOL.getTable(duration_index);
-                    htable.put(put);
+                    writeBuffer.mutate(duration_index, put);
                 } catch (IOException e) {
                     e.printStackTrace();
                 } catch (Exception e) {
                     e.printStackTrace();
-                } finally {
-                    if (htable != null) {
-                        try {
-                            htable.close();
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                    }
                 }
             }
         }
     }
 
+    //写入共享的缓冲，由缓冲按大小或时间批量发出
+    @Override
+    public void addSpans(List<Span> spans) {
+        for (Span span : spans) {
+            if (traceAssembler == null) {
+                addSpan(span);
+            }
+            addTrace(span);
+            addAnnotation(span);
+        }
+        if (traceAssembler != null) {
+            traceAssembler.add(spans);
+        }
+    }
+
+    //组装好的trace，同一trace迟到的部分写入另一列；迟到部分的首个span可能与之前相同(如root的server端)，列名带上写入方id和序号
+    public void addAssembledTrace(Long traceId, List<Span> spans) {
+        if (spans.isEmpty()) {
+            return;
+        }
+        Put put = new Put(String.valueOf(traceId).getBytes());
+        String qualifier = ASSEMBLED_PREFIX + spans.get(0).getId() + ":" + writerId + ":" + assembledSeq.incrementAndGet();
+        put.add(trace_family_column.getBytes(), qualifier.getBytes(), SpanCodec.encode(spans));
+        try {
+            writeBuffer.mutate(TR_T, put);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    //同一分钟的多行各写一列，查询时合并
+    @Override
+    public void addMetrics(List<SpanMetrics> metrics) {
+        List<Put> putlist = new ArrayList<Put>(metrics.size());
+        for (SpanMetrics m : metrics) {
+            Put put = new Put((m.getServiceId() + ":" + m.getTime()).getBytes());
+            String qualifier = m.getSpanName() + ":" + writerId + ":" + metricsSeq.incrementAndGet();
+            put.add(metrics_family_column.getBytes(), Bytes.toBytes(qualifier), encodeMetrics(m));
+            putlist.add(put);
+        }
+        try {
+            writeBuffer.mutate(metrics_t, putlist);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    //发出缓冲中还未写入的数据
+    public void flush() {
+        writeBuffer.flush();
+    }
+
+    public void setWriteBuffer(SpanWriteBuffer writeBuffer) {
+        this.writeBuffer = writeBuffer;
+    }
+
+    public void setTraceAssembler(TraceAssembler traceAssembler) {
+        this.traceAssembler = traceAssembler;
+        traceAssembler.setListener(new TraceAssembler.Listener() {
+            @Override
+            public void onTrace(Long traceId, List<Span> spans) {
+                addAssembledTrace(traceId, spans);
+            }
+        });
+    }
+
     private boolean isRootSpan(Span span) {
         return span.getParentId() == null;
     }
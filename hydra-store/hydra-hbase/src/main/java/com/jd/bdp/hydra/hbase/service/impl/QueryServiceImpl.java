@@ -20,7 +20,12 @@ import com.alibaba.fastjson.JSON;
 import com.alibaba.fastjson.JSONArray;
 import com.alibaba.fastjson.JSONObject;
 import com.jd.bdp.hydra.Annotation;
+import com.jd.bdp.hydra.BinaryAnnotation;
+import com.jd.bdp.hydra.Span;
+import com.jd.bdp.hydra.codec.SpanCodec;
 import com.jd.bdp.hydra.store.inter.QueryService;
+import com.jd.bdp.hydra.store.metrics.SpanMetrics;
+import com.jd.bdp.hydra.store.pipeline.TraceAssembler;
 import org.apache.commons.lang.StringUtils;
 import org.apache.hadoop.hbase.KeyValue;
 import org.apache.hadoop.hbase.client.*;
@@ -29,6 +34,7 @@ import org.apache.hadoop.hbase.filter.PageFilter;
 import org.apache.hadoop.hbase.util.Bytes;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -90,6 +96,7 @@ public class QueryServiceImpl extends HbaseUtils implements QueryService {
                     obj.put("serviceId", key[0]);
                     obj.put("timestamp", Long.parseLong(key[1]));
                     obj.put("duration", kv.getTimestamp());
+                    obj.put("durationUs", getDurationUs(kv));
                     obj.put("traceId", byteArray2Long(kv.getQualifier()));
                     array.add(obj);
                     resultSum++;
@@ -153,7 +160,53 @@ public class QueryServiceImpl extends HbaseUtils implements QueryService {
         }
     }
 
-    private JSONObject assembleTrace(List<KeyValue> list) {
+    //rowkey为serviceId:分钟起始时间，列名为spanName:写入方id:序号
+    @Override
+    public JSONArray getServiceMetrics(String serviceId, Long startTime, Long endTime) {
+        Scan scan = new Scan();
+        scan.setStartRow((serviceId + ":" + startTime).getBytes());
+        scan.setStopRow((serviceId + ":" + endTime).getBytes());
+        scan.addFamily(metrics_family_column.getBytes());
+        HTableInterface table = null;
+        ResultScanner rs = null;
+        try {
+            table = POOL.getTable(metrics_t);
+            rs = table.getScanner(scan);
+            List<SpanMetrics> rows = new ArrayList<SpanMetrics>();
+            for (Result res : rs) {
+                for (KeyValue kv : res.list()) {
+                    String row = new String(kv.getRow());
+                    String qualifier = Bytes.toString(kv.getQualifier());
+                    String spanName = qualifier.substring(0, qualifier.lastIndexOf(':', qualifier.lastIndexOf(':') - 1));
+                    SpanMetrics m = decodeMetrics(kv.getValue());
+                    m.setServiceId(serviceId);
+                    m.setSpanName(spanName);
+                    m.setTime(Long.parseLong(row.substring(row.lastIndexOf(':') + 1)));
+                    rows.add(m);
+                }
+            }
+            return SpanMetrics.toJSON(rows);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            try {
+                if (rs != null) {
+                    rs.close();
+                }
+                if (table != null) {
+                    table.close();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    JSONObject assembleTrace(List<KeyValue> list) {
+        if (list != null && isAssembled(list)) {
+            return assembleFromRecords(list);
+        }
         JSONObject trace = new JSONObject();
         Map<String, JSONObject> map = new HashMap<String, JSONObject>();
         if (list != null){
@@ -166,17 +219,21 @@ public class QueryServiceImpl extends HbaseUtils implements QueryService {
                         spanAleadyExist.put("serviceId", content.get("serviceId"));
                     }
                     if (isClientSpan(kv)) {
-                        spanAleadyExist.put("durationClient", getDurationClient(content));
+                        spanAleadyExist.put("durationClient", getDuration(content, Annotation.CLIENT_SEND, Annotation.CLIENT_RECEIVE, "timestamp"));
+                        spanAleadyExist.put("durationClientUs", getDuration(content, Annotation.CLIENT_SEND, Annotation.CLIENT_RECEIVE, "timestampUs"));
                     } else {
-                        spanAleadyExist.put("durationServer", getDurationServer(content));
+                        spanAleadyExist.put("durationServer", getDuration(content, Annotation.SERVER_RECEIVE, Annotation.SERVER_SEND, "timestamp"));
+                        spanAleadyExist.put("durationServerUs", getDuration(content, Annotation.SERVER_RECEIVE, Annotation.SERVER_SEND, "timestampUs"));
                     }
                     ((JSONArray) spanAleadyExist.get("annotations")).addAll((JSONArray) content.get("annotations"));
                 } else {
                     spanAleadyExist = content;
                     if (isClientSpan(kv)) {
-                        spanAleadyExist.put("durationClient", getDurationClient(content));
+                        spanAleadyExist.put("durationClient", getDuration(content, Annotation.CLIENT_SEND, Annotation.CLIENT_RECEIVE, "timestamp"));
+                        spanAleadyExist.put("durationClientUs", getDuration(content, Annotation.CLIENT_SEND, Annotation.CLIENT_RECEIVE, "timestampUs"));
                     } else {
-                        spanAleadyExist.put("durationServer", getDurationServer(content));
+                        spanAleadyExist.put("durationServer", getDuration(content, Annotation.SERVER_RECEIVE, Annotation.SERVER_SEND, "timestamp"));
+                        spanAleadyExist.put("durationServerUs", getDuration(content, Annotation.SERVER_RECEIVE, Annotation.SERVER_SEND, "timestampUs"));
                     }
                     map.put(content.get("id").toString(), spanAleadyExist);
                 }
@@ -184,29 +241,100 @@ public class QueryServiceImpl extends HbaseUtils implements QueryService {
                     handleException(spanAleadyExist, content);
                 }
             }
-            boolean isAvailable = true;
-            for (Map.Entry<String, JSONObject> entry : map.entrySet()) {
-                JSONObject mySpan = entry.getValue();
-                if (!mySpan.containsKey("parentId")) {
-                    trace.put("rootSpan", mySpan);
-                    trace.put("traceId", mySpan.get("traceId"));
-                } else {
-                    JSONObject myFather = map.get(mySpan.get("parentId").toString());
-                    if (myFather.containsKey("children")) {
-                        ((JSONArray) myFather.get("children")).add(mySpan);
-                    } else {
-                        JSONArray children = new JSONArray();
-                        children.add(mySpan);
-                        myFather.put("children", children);
-                    }
+            buildTree(trace, map);
+        }
+        return trace;
+    }
+
+    //collector组装过的trace：一般只有一列，解码后直接使用记录的耗时，迟到的部分再合并一次
+    private JSONObject assembleFromRecords(List<KeyValue> list) {
+        List<Span> spans = new ArrayList<Span>();
+        int records = 0;
+        for (KeyValue kv : list) {
+            if (!new String(kv.getQualifier()).startsWith(ASSEMBLED_PREFIX)) {
+                continue;
+            }
+            try {
+                spans.addAll(SpanCodec.decode(kv.getValue()));
+                records++;
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        if (records > 1) {
+            spans = TraceAssembler.merge(spans);
+        }
+        Map<String, JSONObject> map = new HashMap<String, JSONObject>();
+        for (Span span : spans) {
+            JSONObject content = (JSONObject) JSON.toJSON(span);
+            if (span.getParentId() == null) {//与写入时的json一致，root没有parentId
+                content.remove("parentId");
+            }
+            putDuration(content, span.getAnnotations(), Annotation.CLIENT_SEND, Annotation.CLIENT_RECEIVE, "durationClient");
+            putDuration(content, span.getAnnotations(), Annotation.SERVER_RECEIVE, Annotation.SERVER_SEND, "durationServer");
+            for (BinaryAnnotation b : span.getBinaryAnnotations()) {
+                if (DUBBO_EXCEPTION.equalsIgnoreCase(b.getKey())) {
+                    content.put("exception", JSON.toJSON(b));
+                    break;
                 }
-                isAvailable = isAvailable && isSpanAvailable(mySpan);
             }
-            trace.put("available", isAvailable);
+            map.put(String.valueOf(span.getId()), content);
         }
+        JSONObject trace = new JSONObject();
+        buildTree(trace, map);
         return trace;
     }
 
+    private void buildTree(JSONObject trace, Map<String, JSONObject> map) {
+        boolean isAvailable = true;
+        for (Map.Entry<String, JSONObject> entry : map.entrySet()) {
+            JSONObject mySpan = entry.getValue();
+            if (!mySpan.containsKey("parentId")) {
+                trace.put("rootSpan", mySpan);
+                trace.put("traceId", mySpan.get("traceId"));
+            } else {
+                JSONObject myFather = map.get(mySpan.get("parentId").toString());
+                if (myFather.containsKey("children")) {
+                    ((JSONArray) myFather.get("children")).add(mySpan);
+                } else {
+                    JSONArray children = new JSONArray();
+                    children.add(mySpan);
+                    myFather.put("children", children);
+                }
+            }
+            isAvailable = isAvailable && isSpanAvailable(mySpan);
+        }
+        trace.put("available", isAvailable);
+    }
+
+    private boolean isAssembled(List<KeyValue> list) {
+        for (KeyValue kv : list) {
+            if (new String(kv.getQualifier()).startsWith(ASSEMBLED_PREFIX)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    //组装时已在结束的annotation上记下us耗时
+    private void putDuration(JSONObject content, List<Annotation> annotations, String startValue, String endValue, String field) {
+        Annotation start = null;
+        Annotation end = null;
+        for (Annotation a : annotations) {
+            if (startValue.equals(a.getValue())) {
+                start = a;
+            } else if (endValue.equals(a.getValue())) {
+                end = a;
+            }
+        }
+        if (start == null || end == null) {
+            return;
+        }
+        content.put(field, end.getTimestamp() - start.getTimestamp());
+        content.put(field + "Us", end.getDuration() != null ? (long) end.getDuration()
+                : end.getTimestampUs() - start.getTimestampUs());
+    }
+
     //这里判断如果某个span没有收集全4个annotation，则判定为不可用，页面不展示图
     private boolean isSpanAvailable(JSONObject span) {
         return span.getJSONArray("annotations").size() == 4;
@@ -225,39 +353,40 @@ public class QueryServiceImpl extends HbaseUtils implements QueryService {
         }
     }
 
-    private Long getDurationServer(JSONObject content) {
-        JSONArray serverAnns = ((JSONArray) content.get("annotations"));
-        Long sr = null;
-        Long ss = null;
-        for (int i = 0; i < serverAnns.size(); i++) {
-            if (((JSONObject) serverAnns.get(i)).get("value").equals(Annotation.SERVER_RECEIVE)) {
-                sr = Long.valueOf(((JSONObject) serverAnns.get(i)).get("timestamp").toString());
+    //field为timestamp(ms)或timestampUs(us)，老数据没有timestampUs时由ms换算
+    private Long getDuration(JSONObject content, String startValue, String endValue, String field) {
+        JSONArray anns = ((JSONArray) content.get("annotations"));
+        Long start = null;
+        Long end = null;
+        for (int i = 0; i < anns.size(); i++) {
+            JSONObject ann = (JSONObject) anns.get(i);
+            Long time = ann.getLong(field);
+            if (time == null) {
+                time = ann.getLong("timestamp") * 1000;
+            }
+            if (ann.get("value").equals(startValue)) {
+                start = time;
             }
-            if (((JSONObject) serverAnns.get(i)).get("value").equals(Annotation.SERVER_SEND)) {
-                ss = Long.valueOf(((JSONObject) serverAnns.get(i)).get("timestamp").toString());
+            if (ann.get("value").equals(endValue)) {
+                end = time;
             }
         }
-        return ss - sr;
+        return end - start;
+    }
+
+    //duration索引的值，老数据为"1"，新数据为us精度的duration
+    private Long getDurationUs(KeyValue kv) {
+        String value = new String(kv.getValue());
+        if ("1".equals(value)) {
+            return kv.getTimestamp() * 1000;
+        }
+        return Long.parseLong(value);
     }
 
     private boolean isClientSpan(KeyValue kv) {
         return StringUtils.endsWithIgnoreCase(new String(kv.getQualifier()), "c");
     }
 
-    private Long getDurationClient(JSONObject content) {
-        JSONArray clientAnns = ((JSONArray) content.get("annotations"));
-        Long cr = null;
-        Long cs = null;
-        for (int i = 0; i < clientAnns.size(); i++) {
-            if (((JSONObject) clientAnns.get(i)).get("value").equals(Annotation.CLIENT_RECEIVE)) {
-                cr = Long.valueOf(((JSONObject) clientAnns.get(i)).get("timestamp").toString());
-            }
-            if (((JSONObject) clientAnns.get(i)).get("value").equals(Annotation.CLIENT_SEND)) {
-                cs = Long.valueOf(((JSONObject) clientAnns.get(i)).get("timestamp").toString());
-            }
-        }
-        return cr - cs;
-    }
 
 
 //    public void setOneItem(String tableName, String familyColumnName, String rowkey, String columnName, byte[] valueParm) {
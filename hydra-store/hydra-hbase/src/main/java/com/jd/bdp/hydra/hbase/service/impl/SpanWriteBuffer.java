@@ -0,0 +1,168 @@
+package com.jd.bdp.hydra.hbase.service.impl;
+
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.BufferedMutator;
+import org.apache.hadoop.hbase.client.BufferedMutatorParams;
+import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.client.ConnectionFactory;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.RetriesExhaustedWithDetailsException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Date: 26-10-17
+ * 按表共享的客户端写缓冲：每个表一个BufferedMutator，所有collector线程的Put写入同一个缓冲，
+ * 缓冲超过writeBufferSize时由写入线程发出，否则由后台线程每flushInterval(ms)发出一次，
+ * 一次RPC带多行，代替每行借一次HTable、autoflush写一行。
+ * 后台发送失败时回调ExceptionListener，默认记日志并计数，失败的行不再重试
+ */
+public class SpanWriteBuffer {
+
+    private static final Logger log = LoggerFactory.getLogger(SpanWriteBuffer.class);
+
+    private long writeBufferSize = 2L * 1024 * 1024;
+    private long flushInterval = 1000L;
+    private BufferedMutator.ExceptionListener listener = new BufferedMutator.ExceptionListener() {
+        @Override
+        public void onException(RetriesExhaustedWithDetailsException e, BufferedMutator mutator) {
+            failedCount.addAndGet(e.getNumExceptions());
+            log.error("[Hydra] hbase write failure, table " + mutator.getName() + ", "
+                    + e.getNumExceptions() + " rows dropped", e);
+        }
+    };
+
+    private final ConcurrentHashMap<String, BufferedMutator> mutators = new ConcurrentHashMap<String, BufferedMutator>();
+    private final AtomicBoolean started = new AtomicBoolean(false);
+    private final AtomicLong failedCount = new AtomicLong();
+    private Connection connection;
+    private ScheduledExecutorService flusher;
+
+    public void mutate(String table, Put put) throws IOException {
+        getMutator(table).mutate(put);
+    }
+
+    public void mutate(String table, List<Put> puts) throws IOException {
+        getMutator(table).mutate(puts);
+    }
+
+    //发出所有表缓冲中的数据，用于测试或关闭前
+    public void flush() {
+        for (BufferedMutator mutator : mutators.values()) {
+            try {
+                mutator.flush();
+            } catch (IOException e) {//失败的行已经交给listener
+                log.warn("[Hydra] hbase flush failure, table " + mutator.getName(), e);
+            }
+        }
+    }
+
+    public synchronized void close() {
+        if (flusher != null) {
+            flusher.shutdown();
+            flusher = null;
+        }
+        for (BufferedMutator mutator : mutators.values()) {
+            try {
+                mutator.close();
+            } catch (IOException e) {
+                log.warn("[Hydra] hbase close failure, table " + mutator.getName(), e);
+            }
+        }
+        mutators.clear();
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (IOException e) {
+                log.warn("[Hydra] hbase connection close failure", e);
+            }
+            connection = null;
+        }
+    }
+
+    private BufferedMutator getMutator(String table) throws IOException {
+        BufferedMutator mutator = mutators.get(table);
+        if (mutator == null) {
+            mutator = createMutator(table);
+        }
+        return mutator;
+    }
+
+    private synchronized BufferedMutator createMutator(String table) throws IOException {
+        BufferedMutator mutator = mutators.get(table);
+        if (mutator == null) {
+            BufferedMutatorParams params = new BufferedMutatorParams(TableName.valueOf(table))
+                    .writeBufferSize(writeBufferSize)
+                    .listener(listener);
+            mutator = newMutator(params);
+            mutators.put(table, mutator);
+            start();
+        }
+        return mutator;
+    }
+
+    //测试时可以换成本地实现
+    protected BufferedMutator newMutator(BufferedMutatorParams params) throws IOException {
+        if (connection == null) {
+            connection = ConnectionFactory.createConnection(HbaseUtils.conf);
+        }
+        return connection.getBufferedMutator(params);
+    }
+
+    private void start() {
+        if (flushInterval <= 0 || !started.compareAndSet(false, true)) {
+            return;
+        }
+        flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "HbaseSpanFlusher");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        flusher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+    }
+
+    //后台发送失败、被丢弃的行数
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    public long getWriteBufferSize() {
+        return writeBufferSize;
+    }
+
+    //每个表的缓冲字节数，超过后由写入线程发出，在第一次写入前设置
+    public void setWriteBufferSize(long writeBufferSize) {
+        this.writeBufferSize = writeBufferSize;
+    }
+
+    public long getFlushInterval() {
+        return flushInterval;
+    }
+
+    //定时发出的间隔(ms)，0表示只按大小发出，在第一次写入前设置
+    public void setFlushInterval(long flushInterval) {
+        this.flushInterval = flushInterval;
+    }
+
+    public void setListener(BufferedMutator.ExceptionListener listener) {
+        this.listener = listener;
+    }
+}
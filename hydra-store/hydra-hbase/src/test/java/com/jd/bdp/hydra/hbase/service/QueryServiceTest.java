@@ -23,6 +23,7 @@ import com.jd.bdp.hydra.BinaryAnnotation;
 import com.jd.bdp.hydra.Endpoint;
 import com.jd.bdp.hydra.Span;
 import com.jd.bdp.hydra.hbase.service.impl.HbaseUtils;
+import com.jd.bdp.hydra.hbase.service.impl.InsertServiceImpl;
 import com.jd.bdp.hydra.store.inter.InsertService;
 import com.jd.bdp.hydra.store.inter.QueryService;
 import org.apache.hadoop.hbase.HColumnDescriptor;
@@ -390,6 +391,8 @@ public class QueryServiceTest extends AbstractDependencyInjectionSpringContextTe
         insertService.addAnnotation(spanAs);
         insertService.addTrace(spanAc);
         insertService.addTrace(spanAs);
+        //写入是缓冲的，查询前先发出
+        ((InsertServiceImpl) insertService).flush();
     }
 
     private void truncateAllTables() throws IOException {
@@ -0,0 +1,325 @@
+package com.jd.bdp.hydra.hbase.service;
+
+import com.jd.bdp.hydra.Annotation;
+import com.jd.bdp.hydra.BinaryAnnotation;
+import com.jd.bdp.hydra.Endpoint;
+import com.jd.bdp.hydra.Span;
+import com.jd.bdp.hydra.hbase.service.impl.InsertServiceImpl;
+import com.jd.bdp.hydra.hbase.service.impl.SpanWriteBuffer;
+import com.jd.bdp.hydra.store.metrics.SpanMetrics;
+import com.jd.bdp.hydra.store.pipeline.TraceAssembler;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.BufferedMutator;
+import org.apache.hadoop.hbase.client.BufferedMutatorParams;
+import org.apache.hadoop.hbase.client.Mutation;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.RetriesExhaustedWithDetailsException;
+import org.apache.hadoop.hbase.client.Row;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Date: 26-10-17
+ * 用本地的BufferedMutator代替hbase，验证缓冲、按大小和时间发出、失败回调
+ */
+public class SpanWriteBufferTest {
+
+    //表名 -> 已发出的行
+    private final Map<String, List<Row>> written = new ConcurrentHashMap<String, List<Row>>();
+    private final List<Integer> flushSizes = Collections.synchronizedList(new ArrayList<Integer>());
+    private volatile boolean fail;
+    private int mutatorCount;
+    private SpanWriteBuffer buffer;
+
+    @After
+    public void tearDown() {
+        if (buffer != null) {
+            buffer.close();
+        }
+    }
+
+    private SpanWriteBuffer newBuffer(long writeBufferSize, long flushInterval) {
+        buffer = new SpanWriteBuffer() {
+            @Override
+            protected BufferedMutator newMutator(BufferedMutatorParams params) {
+                mutatorCount++;
+                return new LocalMutator(params);
+            }
+        };
+        buffer.setWriteBufferSize(writeBufferSize);
+        buffer.setFlushInterval(flushInterval);
+        return buffer;
+    }
+
+    @Test
+    public void testFlushBySizeAndTime() throws Exception {
+        newBuffer(2048, 100);
+        for (int i = 0; i < 10; i++) {
+            buffer.mutate("trace", put(i));
+        }
+        //超过缓冲大小的部分由写入线程发出
+        Assert.assertTrue(rows("trace") > 0 && rows("trace") < 10);
+        Assert.assertTrue(flushSizes.get(0) > 1);
+        long deadline = System.currentTimeMillis() + 2000;
+        while (rows("trace") < 10 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(10, rows("trace"));
+    }
+
+    @Test
+    public void testSharedAcrossThreads() throws Exception {
+        newBuffer(1024 * 1024, 0);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int base = t * 1000;
+            threads[t] = new Thread(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < 100; i++) {
+                        try {
+                            buffer.mutate("trace", put(base + i));
+                        } catch (IOException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertEquals(0, rows("trace"));
+        buffer.flush();
+        Assert.assertEquals(400, rows("trace"));
+        Assert.assertEquals(1, mutatorCount);
+        Assert.assertEquals(Arrays.asList(400), flushSizes);
+    }
+
+    @Test
+    public void testFailureListener() throws Exception {
+        newBuffer(1024 * 1024, 0);
+        fail = true;
+        buffer.mutate("trace", put(1));
+        buffer.mutate("trace", put(2));
+        buffer.flush();
+        Assert.assertEquals(2, buffer.getFailedCount());
+    }
+
+    @Test
+    public void testInsertSpans() throws Exception {
+        InsertServiceImpl insertService = new InsertServiceImpl();
+        insertService.setTR_T("trace");
+        insertService.setDuration_index("duration_index");
+        insertService.setAnn_index("annotation_index");
+        insertService.setWriteBuffer(newBuffer(1024 * 1024, 0));
+        List<Span> spans = new ArrayList<Span>();
+        for (long i = 1; i <= 3; i++) {
+            spans.add(span(i));
+        }
+        insertService.addSpans(spans);
+        Assert.assertEquals(0, rows("trace"));
+        insertService.flush();
+        Assert.assertEquals(3, rows("trace"));
+        Assert.assertEquals(3, rows("duration_index"));
+        Assert.assertEquals(3, rows("annotation_index"));
+        Assert.assertEquals(3, flushSizes.size());
+    }
+
+    /**
+     * 配置traceAssembler时trace表每个trace一列，索引仍随span写入
+     */
+    @Test
+    public void testInsertAssembledTraces() throws Exception {
+        InsertServiceImpl insertService = new InsertServiceImpl();
+        insertService.setTR_T("trace");
+        insertService.setDuration_index("duration_index");
+        insertService.setAnn_index("annotation_index");
+        insertService.setWriteBuffer(newBuffer(1024 * 1024, 0));
+        TraceAssembler assembler = new TraceAssembler();
+        insertService.setTraceAssembler(assembler);
+        List<Span> spans = new ArrayList<Span>();
+        for (long i = 1; i <= 3; i++) {
+            spans.add(span(i));
+            spans.add(span(i));
+        }
+        insertService.addSpans(spans);
+        insertService.flush();
+        Assert.assertEquals(0, rows("trace"));
+        Assert.assertEquals(6, rows("duration_index"));
+        assembler.stop();
+        insertService.flush();
+        Assert.assertEquals(3, rows("trace"));
+        Assert.assertEquals(3, assembler.getAssembledCount());
+    }
+
+    /**
+     * 同一trace先后两次组装、首个span相同(如root的server端迟到)，写在不同的列，不互相覆盖
+     */
+    @Test
+    public void testAssembledSameLeadingSpan() throws Exception {
+        InsertServiceImpl insertService = new InsertServiceImpl();
+        insertService.setTR_T("trace");
+        insertService.setWriteBuffer(newBuffer(1024 * 1024, 0));
+        insertService.addAssembledTrace(1L, Arrays.asList(span(1)));
+        insertService.addAssembledTrace(1L, Arrays.asList(span(1)));
+        insertService.flush();
+        Assert.assertEquals(2, rows("trace"));
+        Put first = (Put) written.get("trace").get(0);
+        Put second = (Put) written.get("trace").get(1);
+        Assert.assertArrayEquals(first.getRow(), second.getRow());
+        byte[] q1 = first.getFamilyMap().get("span".getBytes()).get(0).getQualifier();
+        byte[] q2 = second.getFamilyMap().get("span".getBytes()).get(0).getQualifier();
+        Assert.assertTrue(Bytes.toString(q1).startsWith("T1:"));
+        Assert.assertTrue(Bytes.toString(q2).startsWith("T1:"));
+        Assert.assertFalse(Bytes.equals(q1, q2));
+    }
+
+    /**
+     * 同一分钟的多行指标写在同一行的不同列
+     */
+    @Test
+    public void testInsertMetrics() throws Exception {
+        InsertServiceImpl insertService = new InsertServiceImpl();
+        insertService.setMetrics_t("span_metrics");
+        insertService.setWriteBuffer(newBuffer(1024 * 1024, 0));
+        insertService.addMetrics(Arrays.asList(metrics(), metrics()));
+        insertService.flush();
+        Assert.assertEquals(2, rows("span_metrics"));
+        Put first = (Put) written.get("span_metrics").get(0);
+        Put second = (Put) written.get("span_metrics").get(1);
+        Assert.assertEquals("10101:6000000", Bytes.toString(first.getRow()));
+        Assert.assertArrayEquals(first.getRow(), second.getRow());
+        byte[] q1 = first.getFamilyMap().get("metrics".getBytes()).get(0).getQualifier();
+        byte[] q2 = second.getFamilyMap().get("metrics".getBytes()).get(0).getQualifier();
+        Assert.assertTrue(Bytes.toString(q1).startsWith("get:"));
+        Assert.assertFalse(Bytes.equals(q1, q2));
+        byte[] value = first.getFamilyMap().get("metrics".getBytes()).get(0).getValue();
+        Assert.assertEquals(3, Bytes.toLong(value, 0));
+        Assert.assertEquals(900, Bytes.toLong(value, 24));
+        Assert.assertEquals(32 + 2, value.length);
+    }
+
+    private static SpanMetrics metrics() {
+        SpanMetrics m = new SpanMetrics();
+        m.setServiceId("10101");
+        m.setSpanName("get");
+        m.setTime(6000000L);
+        m.setCount(3L);
+        m.setErrorCount(1L);
+        m.setDurationSumUs(1500L);
+        m.setDurationMaxUs(900L);
+        m.setHistogram(new byte[2]);
+        return m;
+    }
+
+    private int rows(String table) {
+        List<Row> rows = written.get(table);
+        return rows == null ? 0 : rows.size();
+    }
+
+    private static Put put(int i) {
+        Put put = new Put(("row" + i).getBytes());
+        put.add("span".getBytes(), "q".getBytes(), new byte[100]);
+        return put;
+    }
+
+    private static Span span(long id) {
+        Endpoint endpoint = new Endpoint();
+        endpoint.setIp("127.0.0.1");
+        endpoint.setPort(20880);
+        Span span = new Span();
+        span.setTraceId(id);
+        span.setId(id);
+        span.setServiceId("10101");
+        span.setSpanName("get");
+        span.addAnnotation(new Annotation(1000L, "cs", endpoint));
+        span.addAnnotation(new Annotation(1005L, "cr", endpoint));
+        BinaryAnnotation b = new BinaryAnnotation();
+        b.setKey("dubbo.exception");
+        b.setValue("none");
+        b.setType("string");
+        b.setHost(endpoint);
+        span.addBinaryAnnotation(b);
+        return span;
+    }
+
+    //按heapSize累计，超过缓冲大小时发出，与hbase的BufferedMutatorImpl一致
+    private class LocalMutator implements BufferedMutator {
+        private final BufferedMutatorParams params;
+        private final List<Mutation> pending = new ArrayList<Mutation>();
+        private long size;
+
+        LocalMutator(BufferedMutatorParams params) {
+            this.params = params;
+        }
+
+        public TableName getName() {
+            return params.getTableName();
+        }
+
+        public Configuration getConfiguration() {
+            return null;
+        }
+
+        public synchronized void mutate(Mutation mutation) throws IOException {
+            mutate(Collections.singletonList(mutation));
+        }
+
+        public synchronized void mutate(List<? extends Mutation> mutations) throws IOException {
+            for (Mutation m : mutations) {
+                pending.add(m);
+                size += m.heapSize();
+            }
+            if (size > params.getWriteBufferSize()) {
+                flush();
+            }
+        }
+
+        public void close() throws IOException {
+            flush();
+        }
+
+        public synchronized void flush() throws IOException {
+            if (pending.isEmpty()) {
+                return;
+            }
+            List<Row> rows = new ArrayList<Row>(pending);
+            pending.clear();
+            size = 0;
+            if (fail) {
+                List<Throwable> causes = new ArrayList<Throwable>();
+                List<String> hosts = new ArrayList<String>();
+                for (Row ignored : rows) {
+                    causes.add(new IOException("region server down"));
+                    hosts.add("localhost:16020");
+                }
+                params.getListener().onException(new RetriesExhaustedWithDetailsException(causes, rows, hosts), this);
+                return;
+            }
+            flushSizes.add(rows.size());
+            String table = getName().getNameAsString();
+            List<Row> list = written.get(table);
+            if (list == null) {
+                list = Collections.synchronizedList(new ArrayList<Row>());
+                written.put(table, list);
+            }
+            list.addAll(rows);
+        }
+
+        public long getWriteBufferSize() {
+            return params.getWriteBufferSize();
+        }
+    }
+}
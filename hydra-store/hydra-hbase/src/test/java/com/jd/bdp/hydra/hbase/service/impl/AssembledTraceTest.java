@@ -0,0 +1,116 @@
+package com.jd.bdp.hydra.hbase.service.impl;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONObject;
+import com.jd.bdp.hydra.Annotation;
+import com.jd.bdp.hydra.BinaryAnnotation;
+import com.jd.bdp.hydra.Endpoint;
+import com.jd.bdp.hydra.Span;
+import com.jd.bdp.hydra.codec.SpanCodec;
+import com.jd.bdp.hydra.store.pipeline.TraceAssembler;
+import org.apache.hadoop.hbase.KeyValue;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Date: 26-10-17
+ * 组装后的trace与按半个span存储的trace，查询结果一致
+ */
+public class AssembledTraceTest {
+
+    private final QueryServiceImpl queryService = new QueryServiceImpl();
+
+    @Test
+    public void testSameAsHalfSpans() {
+        List<KeyValue> halves = new ArrayList<KeyValue>();
+        for (Span span : newTrace()) {
+            String qualifier = span.getId() + (span.getAnnotations().get(0).getValue().equals(Annotation.CLIENT_SEND) ? "C" : "S");
+            halves.add(new KeyValue("1".getBytes(), "span".getBytes(), qualifier.getBytes(), JSON.toJSONString(span).getBytes()));
+        }
+        JSONObject expected = queryService.assembleTrace(halves);
+
+        List<KeyValue> records = new ArrayList<KeyValue>();
+        records.add(record(TraceAssembler.merge(newTrace())));
+        JSONObject actual = queryService.assembleTrace(records);
+
+        assertSameTrace(expected, actual);
+        Assert.assertTrue(actual.getBoolean("available"));
+        Assert.assertEquals(900L, actual.getJSONObject("rootSpan").getLongValue("durationClientUs"));
+    }
+
+    /**
+     * 提前组装后迟到的部分写在另一列，查询时合并
+     */
+    @Test
+    public void testLateRecord() {
+        List<Span> spans = newTrace();
+        List<KeyValue> records = new ArrayList<KeyValue>();
+        records.add(record(TraceAssembler.merge(new ArrayList<Span>(spans.subList(0, 3)))));
+        records.add(record(TraceAssembler.merge(new ArrayList<Span>(spans.subList(3, spans.size())))));
+        JSONObject actual = queryService.assembleTrace(records);
+
+        records.clear();
+        records.add(record(TraceAssembler.merge(newTrace())));
+        assertSameTrace(queryService.assembleTrace(records), actual);
+    }
+
+    private static void assertSameTrace(JSONObject expected, JSONObject actual) {
+        Assert.assertEquals(expected.getLong("traceId"), actual.getLong("traceId"));
+        Assert.assertEquals(expected.get("available"), actual.get("available"));
+        JSONObject root = expected.getJSONObject("rootSpan");
+        JSONObject actualRoot = actual.getJSONObject("rootSpan");
+        for (String key : new String[]{"durationClient", "durationClientUs", "durationServer", "durationServerUs"}) {
+            Assert.assertEquals(key, root.getLong(key), actualRoot.getLong(key));
+        }
+        JSONObject child = root.getJSONArray("children").getJSONObject(0);
+        JSONObject actualChild = actualRoot.getJSONArray("children").getJSONObject(0);
+        Assert.assertEquals(child.getLong("durationServerUs"), actualChild.getLong("durationServerUs"));
+        Assert.assertEquals(child.getJSONObject("exception").get("value"), actualChild.getJSONObject("exception").get("value"));
+        Assert.assertEquals(4, actualChild.getJSONArray("annotations").size());
+    }
+
+    private static KeyValue record(List<Span> spans) {
+        String qualifier = HbaseUtils.ASSEMBLED_PREFIX + spans.get(0).getId();
+        return new KeyValue("1".getBytes(), "span".getBytes(), qualifier.getBytes(), SpanCodec.encode(spans));
+    }
+
+    //root(1)调用2，2的server端抛出异常，client、server各半个span
+    private static List<Span> newTrace() {
+        List<Span> spans = new ArrayList<Span>();
+        spans.add(half(1L, null, true, 1000, 1900));
+        spans.add(half(1L, null, false, 1100, 1800));
+        spans.add(half(2L, 1L, true, 1200, 1700));
+        Span server = half(2L, 1L, false, 1300, 1600);
+        BinaryAnnotation b = new BinaryAnnotation();
+        b.setKey(HbaseUtils.DUBBO_EXCEPTION);
+        b.setValue("java.lang.NullPointerException");
+        b.setType("ex");
+        server.addBinaryAnnotation(b);
+        spans.add(server);
+        return spans;
+    }
+
+    private static Span half(Long id, Long parentId, boolean client, long startUs, long endUs) {
+        Endpoint endpoint = new Endpoint();
+        endpoint.setIp("127.0.0.1");
+        endpoint.setPort(client ? 0 : 20880);
+        Span span = new Span();
+        span.setTraceId(1L);
+        span.setId(id);
+        span.setParentId(parentId);
+        span.setSpanName("get");
+        span.setServiceId("10101");
+        span.addAnnotation(annotation(startUs, client ? Annotation.CLIENT_SEND : Annotation.SERVER_RECEIVE, endpoint));
+        span.addAnnotation(annotation(endUs, client ? Annotation.CLIENT_RECEIVE : Annotation.SERVER_SEND, endpoint));
+        return span;
+    }
+
+    private static Annotation annotation(long us, String value, Endpoint endpoint) {
+        Annotation a = new Annotation(us / 1000, value, endpoint);
+        a.setTimestampUs(us);
+        return a;
+    }
+}
@@ -28,6 +28,8 @@ import java.util.List;
  */
 public interface AnnotationMapper {
     public void addAnnotation(Absannotation absannotation);
+    //一条多行insert写入
+    void addAnnotations(List<Absannotation> annotations);
     List<Absannotation> getAnnotations(List<Span> list);
 
     //测试用
@@ -27,6 +27,8 @@ import java.util.List;
  */
 public interface SpanMapper {
     public void addSpan(Span span);
+    //一条多行insert写入
+    void addSpans(List<Span> spans);
     List<Span> findSpanByTraceId(Long traceId);
 
     //测试用
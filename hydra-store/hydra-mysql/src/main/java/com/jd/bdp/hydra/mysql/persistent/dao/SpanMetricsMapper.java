@@ -0,0 +1,17 @@
+package com.jd.bdp.hydra.mysql.persistent.dao;
+
+import com.jd.bdp.hydra.store.metrics.SpanMetrics;
+
+import java.util.List;
+
+/**
+ * Date: 26-10-17
+ * 按分钟的服务指标
+ */
+public interface SpanMetricsMapper {
+
+    //一条多行insert写入
+    void addMetrics(List<SpanMetrics> metrics);
+
+    List<SpanMetrics> findMetrics(String serviceId, Long startTime, Long endTime);
+}
@@ -33,6 +33,8 @@ public interface TraceMapper {
     List<Trace> findTracesEx(String serviceId, Long startTime, int num);
 
     public void addTrace(Trace t);
+    //一条多行insert写入
+    void addTraces(List<Trace> traces);
     void deleteAllTraces();//只用于测试
 
 }
@@ -37,6 +37,11 @@ public class AnnotationMapperImpl implements AnnotationMapper {
         sqlSession.insert("addAnnotation", absannotation);
     }
 
+    @Override
+    public void addAnnotations(List<Absannotation> annotations) {
+        sqlSession.insert("addAnnotations", annotations);
+    }
+
     @Override
     public List<Absannotation> getAnnotations(List<Span> list) {
         Map<String, Object> map = new HashMap<String, Object>();
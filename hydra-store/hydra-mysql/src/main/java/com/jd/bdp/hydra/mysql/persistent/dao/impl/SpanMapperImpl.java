@@ -36,6 +36,11 @@ public class SpanMapperImpl implements SpanMapper{
         sqlSession.insert("addSpan",span);
     }
 
+    @Override
+    public void addSpans(List<Span> spans) {
+        sqlSession.insert("addSpans", spans);
+    }
+
     @Override
     public List<Span> findSpanByTraceId(Long traceId) {
         return (List<Span>)sqlSession.selectList("findSpanByTraceId", traceId);
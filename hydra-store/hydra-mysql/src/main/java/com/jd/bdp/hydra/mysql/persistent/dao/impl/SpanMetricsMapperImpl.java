@@ -0,0 +1,35 @@
+package com.jd.bdp.hydra.mysql.persistent.dao.impl;
+
+import com.jd.bdp.hydra.mysql.persistent.dao.SpanMetricsMapper;
+import com.jd.bdp.hydra.store.metrics.SpanMetrics;
+import org.mybatis.spring.SqlSessionTemplate;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Date: 26-10-17
+ */
+public class SpanMetricsMapperImpl implements SpanMetricsMapper {
+
+    @Override
+    public void addMetrics(List<SpanMetrics> metrics) {
+        sqlSession.insert("addMetrics", metrics);
+    }
+
+    @Override
+    public List<SpanMetrics> findMetrics(String serviceId, Long startTime, Long endTime) {
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put("serviceId", serviceId);
+        map.put("startTime", startTime);
+        map.put("endTime", endTime);
+        return (List<SpanMetrics>) sqlSession.selectList("findMetrics", map);
+    }
+
+    private SqlSessionTemplate sqlSession;
+
+    public void setSqlSession(SqlSessionTemplate sqlSession) {
+        this.sqlSession = sqlSession;
+    }
+}
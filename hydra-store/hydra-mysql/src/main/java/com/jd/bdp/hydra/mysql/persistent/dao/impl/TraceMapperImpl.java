@@ -67,6 +67,11 @@ public class TraceMapperImpl implements TraceMapper{
         sqlSession.insert("addTrace",t);
     }
 
+    @Override
+    public void addTraces(List<Trace> traces) {
+        sqlSession.insert("addTraces", traces);
+    }
+
     @Override
     public void deleteAllTraces(){
         sqlSession.delete("deleteAllTraces");
@@ -16,6 +16,7 @@ public class Absannotation {
     private Integer port;
     private String service;
     private Long timestamp;
+    private Long timestampUs;
     private Integer duration;
     private Long spanId;
     private Long traceId;
@@ -39,6 +40,7 @@ public class Absannotation {
         this.traceId = span.getTraceId();
         this.key = annotation.getValue();
         this.timestamp = annotation.getTimestamp();
+        this.timestampUs = annotation.getTimestampUs();
         this.duration = annotation.getDuration();
         this.ip = annotation.getHost().getIp();
         this.port = annotation.getHost().getPort();
@@ -54,6 +56,7 @@ public class Absannotation {
                 ", port=" + port +
                 ", service='" + service + '\'' +
                 ", timestamp='" + timestamp + '\'' +
+                ", timestampUs=" + timestampUs +
                 ", duration=" + duration +
                 ", spanId='" + spanId + '\'' +
                 ", traceId='" + traceId + '\'' +
@@ -116,6 +119,14 @@ public class Absannotation {
         this.timestamp = timestamp;
     }
 
+    public Long getTimestampUs() {
+        return timestampUs;
+    }
+
+    public void setTimestampUs(Long timestampUs) {
+        this.timestampUs = timestampUs;
+    }
+
     public Integer getDuration() {
         return duration;
     }
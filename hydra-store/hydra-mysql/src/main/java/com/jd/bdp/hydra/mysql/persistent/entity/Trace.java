@@ -27,6 +27,8 @@ public class Trace {
     private Long time;
     private Long traceId;
     private Integer duration;
+    //耗时(us)
+    private Long durationUs;
     private String service;
 
     //查询用
@@ -64,6 +66,14 @@ public class Trace {
         this.duration = duration;
     }
 
+    public Long getDurationUs() {
+        return durationUs;
+    }
+
+    public void setDurationUs(Long durationUs) {
+        this.durationUs = durationUs;
+    }
+
     public String getService() {
         return service;
     }
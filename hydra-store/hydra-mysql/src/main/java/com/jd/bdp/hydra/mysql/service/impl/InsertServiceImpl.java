@@ -5,10 +5,22 @@ import com.jd.bdp.hydra.BinaryAnnotation;
 import com.jd.bdp.hydra.Span;
 import com.jd.bdp.hydra.mysql.persistent.dao.AnnotationMapper;
 import com.jd.bdp.hydra.mysql.persistent.dao.SpanMapper;
+import com.jd.bdp.hydra.mysql.persistent.dao.SpanMetricsMapper;
 import com.jd.bdp.hydra.mysql.persistent.dao.TraceMapper;
 import com.jd.bdp.hydra.mysql.persistent.entity.Absannotation;
 import com.jd.bdp.hydra.mysql.persistent.entity.Trace;
 import com.jd.bdp.hydra.store.inter.InsertService;
+import com.jd.bdp.hydra.store.metrics.SpanMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * User: biandi
@@ -17,46 +29,155 @@ import com.jd.bdp.hydra.store.inter.InsertService;
  */
 public class InsertServiceImpl implements InsertService {
 
+    private static final Logger logger = LoggerFactory.getLogger(InsertServiceImpl.class);
+
+    //一条多行insert最多的行数，避免超过max_allowed_packet
+    private static final int MAX_ROWS = 500;
+
     private AnnotationMapper annotationMapper;
     private SpanMapper spanMapper;
     private TraceMapper traceMapper;
+    private SpanMetricsMapper spanMetricsMapper;
+    //配置后一批span在一个事务里写入，否则各条insert各自提交
+    private TransactionTemplate transactionTemplate;
+    //写入失败丢弃的span数
+    private final AtomicLong droppedCount = new AtomicLong();
 
     @Override
     public void addSpan(Span span) {
-        if (span.getServiceId() != null) {
-            if (!Utils.isRoot(span) || Utils.isRoot(span) && Utils.isTopAnntation(span)) {
-                spanMapper.addSpan(span);
-            }
+        if (isSpanRow(span)) {
+            spanMapper.addSpan(span);
         }
     }
 
     @Override
     public void addAnnotation(Span span) {
-        for (Annotation a : span.getAnnotations()) {
-            Absannotation aa = new Absannotation(a, span);
-            annotationMapper.addAnnotation(aa);
-        }
-
-        for (BinaryAnnotation b : span.getBinaryAnnotations()) {
-            Absannotation bb = new Absannotation(b, span);
-            annotationMapper.addAnnotation(bb);
+        List<Absannotation> list = new ArrayList<Absannotation>();
+        toAnnotations(span, list);
+        for (Absannotation a : list) {
+            annotationMapper.addAnnotation(a);
         }
     }
 
     @Override
     public void addTrace(Span span) {
-        if (Utils.isTopAnntation(span) && Utils.isRoot(span)) {
-            Annotation annotation = Utils.getCrAnnotation(span.getAnnotations());
-            Annotation annotation1 = Utils.getCsAnnotation(span.getAnnotations());
-            Trace t = new Trace();
-            t.setTraceId(span.getTraceId());
-            t.setDuration((int) (annotation.getTimestamp() - annotation1.getTimestamp()));
-            t.setService(span.getServiceId());
-            t.setTime(annotation1.getTimestamp());
+        Trace t = toTrace(span);
+        if (t != null) {
             traceMapper.addTrace(t);
         }
     }
 
+    /**
+     * span、trace、annotation各自合并为多行insert，每条最多MAX_ROWS行，
+     * 一批span从每个span约7次提交变为几条语句、一次提交。
+     * 整批失败回滚后逐个span各自一个事务重写，只丢弃写不进去的span；
+     * 没有配置事务时已写入的部分无法回滚，重写会产生重复行，整批记为丢弃
+     */
+    @Override
+    public void addSpans(List<Span> spans) {
+        try {
+            insert(spans);
+        } catch (RuntimeException e) {
+            if (transactionTemplate == null || spans.size() == 1) {
+                droppedCount.addAndGet(spans.size());
+                logger.error("[Hydra] insert " + spans.size() + " spans failure, dropped", e);
+                return;
+            }
+            logger.warn("[Hydra] insert " + spans.size() + " spans failure, retry one by one", e);
+            for (Span span : spans) {
+                try {
+                    insert(Collections.singletonList(span));
+                } catch (RuntimeException e1) {
+                    droppedCount.incrementAndGet();
+                    logger.error("[Hydra] insert span failure, dropped, traceId " + span.getTraceId()
+                            + " spanId " + span.getId(), e1);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void addMetrics(List<SpanMetrics> metrics) {
+        for (int i = 0; i < metrics.size(); i += MAX_ROWS) {
+            spanMetricsMapper.addMetrics(metrics.subList(i, Math.min(i + MAX_ROWS, metrics.size())));
+        }
+    }
+
+    private void insert(List<Span> spans) {
+        final List<Span> spanRows = new ArrayList<Span>(spans.size());
+        final List<Trace> traceRows = new ArrayList<Trace>();
+        final List<Absannotation> annotationRows = new ArrayList<Absannotation>(spans.size() * 4);
+        for (Span span : spans) {
+            if (isSpanRow(span)) {
+                spanRows.add(span);
+            }
+            Trace t = toTrace(span);
+            if (t != null) {
+                traceRows.add(t);
+            }
+            toAnnotations(span, annotationRows);
+        }
+        if (transactionTemplate == null) {
+            insert(spanRows, traceRows, annotationRows);
+        } else {
+            transactionTemplate.execute(new TransactionCallbackWithoutResult() {
+                @Override
+                protected void doInTransactionWithoutResult(TransactionStatus status) {
+                    insert(spanRows, traceRows, annotationRows);
+                }
+            });
+        }
+    }
+
+    private void insert(List<Span> spanRows, List<Trace> traceRows, List<Absannotation> annotationRows) {
+        for (int i = 0; i < spanRows.size(); i += MAX_ROWS) {
+            spanMapper.addSpans(spanRows.subList(i, Math.min(i + MAX_ROWS, spanRows.size())));
+        }
+        for (int i = 0; i < traceRows.size(); i += MAX_ROWS) {
+            traceMapper.addTraces(traceRows.subList(i, Math.min(i + MAX_ROWS, traceRows.size())));
+        }
+        for (int i = 0; i < annotationRows.size(); i += MAX_ROWS) {
+            annotationMapper.addAnnotations(annotationRows.subList(i, Math.min(i + MAX_ROWS, annotationRows.size())));
+        }
+    }
+
+    private boolean isSpanRow(Span span) {
+        return span.getServiceId() != null
+                && (!Utils.isRoot(span) || Utils.isRoot(span) && Utils.isTopAnntation(span));
+    }
+
+    //只有客户端记录的root span生成trace
+    private Trace toTrace(Span span) {
+        if (!(Utils.isTopAnntation(span) && Utils.isRoot(span))) {
+            return null;
+        }
+        Annotation annotation = Utils.getCrAnnotation(span.getAnnotations());
+        Annotation annotation1 = Utils.getCsAnnotation(span.getAnnotations());
+        if (annotation == null) {//未完成的span(超时先行发送)，没有耗时
+            return null;
+        }
+        Trace t = new Trace();
+        t.setTraceId(span.getTraceId());
+        t.setDuration((int) (annotation.getTimestamp() - annotation1.getTimestamp()));
+        t.setDurationUs(annotation.getTimestampUs() - annotation1.getTimestampUs());
+        t.setService(span.getServiceId());
+        t.setTime(annotation1.getTimestamp());
+        return t;
+    }
+
+    private void toAnnotations(Span span, List<Absannotation> list) {
+        for (Annotation a : span.getAnnotations()) {
+            list.add(new Absannotation(a, span));
+        }
+        for (BinaryAnnotation b : span.getBinaryAnnotations()) {
+            list.add(new Absannotation(b, span));
+        }
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
     public void setAnnotationMapper(AnnotationMapper annotationMapper) {
         this.annotationMapper = annotationMapper;
     }
@@ -68,4 +189,12 @@ public class InsertServiceImpl implements InsertService {
     public void setTraceMapper(TraceMapper traceMapper) {
         this.traceMapper = traceMapper;
     }
+
+    public void setSpanMetricsMapper(SpanMetricsMapper spanMetricsMapper) {
+        this.spanMetricsMapper = spanMetricsMapper;
+    }
+
+    public void setTransactionTemplate(TransactionTemplate transactionTemplate) {
+        this.transactionTemplate = transactionTemplate;
+    }
 }
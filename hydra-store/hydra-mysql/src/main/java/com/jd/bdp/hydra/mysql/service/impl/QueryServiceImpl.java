@@ -8,10 +8,12 @@ import com.jd.bdp.hydra.Annotation;
 import com.jd.bdp.hydra.Span;
 import com.jd.bdp.hydra.mysql.persistent.dao.AnnotationMapper;
 import com.jd.bdp.hydra.mysql.persistent.dao.SpanMapper;
+import com.jd.bdp.hydra.mysql.persistent.dao.SpanMetricsMapper;
 import com.jd.bdp.hydra.mysql.persistent.dao.TraceMapper;
 import com.jd.bdp.hydra.mysql.persistent.entity.Absannotation;
 import com.jd.bdp.hydra.mysql.persistent.entity.Trace;
 import com.jd.bdp.hydra.store.inter.QueryService;
+import com.jd.bdp.hydra.store.metrics.SpanMetrics;
 
 import java.util.HashMap;
 import java.util.List;
@@ -26,6 +28,7 @@ public class QueryServiceImpl implements QueryService {
     private TraceMapper traceMapper;
     private SpanMapper spanMapper;
     private AnnotationMapper annotationMapper;
+    private SpanMetricsMapper spanMetricsMapper;
 
     public QueryServiceImpl() {
         //System.out.println("traceMapper = " + traceMapper);
@@ -40,6 +43,7 @@ public class QueryServiceImpl implements QueryService {
             obj.put("serviceId", trace.getService());
             obj.put("timestamp", trace.getTime());
             obj.put("duration", trace.getDuration());
+            obj.put("durationUs", trace.getDurationUs() != null || trace.getDuration() == null ? trace.getDurationUs() : Long.valueOf(trace.getDuration() * 1000L));
             obj.put("traceId", trace.getTraceId());
             array.add(obj);
         }
@@ -73,6 +77,11 @@ public class QueryServiceImpl implements QueryService {
         }
     }
 
+    @Override
+    public JSONArray getServiceMetrics(String serviceId, Long startTime, Long endTime) {
+        return SpanMetrics.toJSON(spanMetricsMapper.findMetrics(serviceId, startTime, endTime));
+    }
+
     private JSONObject assembleTrace(List<Span> spans, List<Absannotation> annotations) {
         JSONObject trace = new JSONObject();
         Map<Long, JSONObject> spanMap = new HashMap<Long, JSONObject>();
@@ -135,6 +144,8 @@ public class QueryServiceImpl implements QueryService {
         JSONObject obj = new JSONObject();
         obj.put("value", annotation.getKey());
         obj.put("timestamp", annotation.getTimestamp());
+        //老数据没有us时间戳，由ms换算
+        obj.put("timestampUs", annotation.getTimestampUs() != null || annotation.getTimestamp() == null ? annotation.getTimestampUs() : Long.valueOf(annotation.getTimestamp() * 1000));
         JSONObject host = new JSONObject();
         host.put("ip", annotation.getIp());
         host.put("port", annotation.getPort());
@@ -144,29 +155,32 @@ public class QueryServiceImpl implements QueryService {
 
     public void setSpanDuration(JSONObject spanDuration) {
         JSONArray serverAnns = spanDuration.getJSONArray("annotations");
-        Long sr = null;
-        Long ss = null;
-        Long cr = null;
-        Long cs = null;
+        JSONObject sr = null;
+        JSONObject ss = null;
+        JSONObject cr = null;
+        JSONObject cs = null;
         for (int i = 0; i < serverAnns.size(); i++) {
-            if (((JSONObject) serverAnns.get(i)).get("value").equals(Annotation.SERVER_RECEIVE)) {
-                sr = Long.valueOf(((JSONObject) serverAnns.get(i)).get("timestamp").toString());
+            JSONObject ann = (JSONObject) serverAnns.get(i);
+            if (ann.get("value").equals(Annotation.SERVER_RECEIVE)) {
+                sr = ann;
             }
-            if (((JSONObject) serverAnns.get(i)).get("value").equals(Annotation.SERVER_SEND)) {
-                ss = Long.valueOf(((JSONObject) serverAnns.get(i)).get("timestamp").toString());
+            if (ann.get("value").equals(Annotation.SERVER_SEND)) {
+                ss = ann;
             }
-            if (((JSONObject) serverAnns.get(i)).get("value").equals(Annotation.CLIENT_RECEIVE)) {
-                cr = Long.valueOf(((JSONObject) serverAnns.get(i)).get("timestamp").toString());
+            if (ann.get("value").equals(Annotation.CLIENT_RECEIVE)) {
+                cr = ann;
             }
-            if (((JSONObject) serverAnns.get(i)).get("value").equals(Annotation.CLIENT_SEND)) {
-                cs = Long.valueOf(((JSONObject) serverAnns.get(i)).get("timestamp").toString());
+            if (ann.get("value").equals(Annotation.CLIENT_SEND)) {
+                cs = ann;
             }
         }
         if (sr != null && ss != null) {
-            spanDuration.put("durationServer", ss - sr);
+            spanDuration.put("durationServer", ss.getLong("timestamp") - sr.getLong("timestamp"));
+            spanDuration.put("durationServerUs", ss.getLong("timestampUs") - sr.getLong("timestampUs"));
         }
         if (cr != null && cs != null) {
-            spanDuration.put("durationClient", cr - cs);
+            spanDuration.put("durationClient", cr.getLong("timestamp") - cs.getLong("timestamp"));
+            spanDuration.put("durationClientUs", cr.getLong("timestampUs") - cs.getLong("timestampUs"));
         }
     }
 
@@ -187,5 +201,9 @@ public class QueryServiceImpl implements QueryService {
         this.annotationMapper = annotationMapper;
     }
 
+    public void setSpanMetricsMapper(SpanMetricsMapper spanMetricsMapper) {
+        this.spanMetricsMapper = spanMetricsMapper;
+    }
+
 
 }
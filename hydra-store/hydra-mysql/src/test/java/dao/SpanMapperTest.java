@@ -21,6 +21,7 @@ import com.jd.bdp.hydra.mysql.persistent.dao.SpanMapper;
 import org.junit.Test;
 import org.springframework.test.AbstractDependencyInjectionSpringContextTests;
 
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -71,6 +72,26 @@ public class SpanMapperTest extends AbstractDependencyInjectionSpringContextTest
         }
     }
 
+    @Test
+    public void testAddSpans(){
+        try {
+            spanMapper.deleteAllSpans();
+            List<Span> spans = new ArrayList<Span>();
+            for (int i = 0; i < 3; i++) {
+                Span s = new Span();
+                s.setSpanName("span" + i);
+                s.setServiceId("10001");
+                s.setTraceId(1368002575496L);
+                s.setId(1368002575700L + i);
+                spans.add(s);
+            }
+            spanMapper.addSpans(spans);
+            assertEquals(3, spanMapper.findSpanByTraceId(1368002575496L).size());
+        }finally {
+            spanMapper.deleteAllSpans();
+        }
+    }
+
     private void prepareTestSpans() {
         Span s1 = new Span();
         s1.setSpanName("span1");
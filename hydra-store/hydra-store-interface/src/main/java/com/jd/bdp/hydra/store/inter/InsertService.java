@@ -18,8 +18,10 @@ package com.jd.bdp.hydra.store.inter;
 
 
 import com.jd.bdp.hydra.Span;
+import com.jd.bdp.hydra.store.metrics.SpanMetrics;
 
 import java.io.IOException;
+import java.util.List;
 
 /**
   * User: yfliuyu
@@ -32,4 +34,15 @@ public interface InsertService {
     void addAnnotation(Span span);
 
     void addTrace(Span span);
+
+    /**
+     * 写入一批span，效果等同于对每个span依次调用addSpan、addTrace、addAnnotation，
+     * 实现可以把整批合并为批量写入
+     */
+    void addSpans(List<Span> spans);
+
+    /**
+     * 写入collector汇总的按分钟的服务指标，同一(serviceId, spanName, 分钟)可以有多行
+     */
+    void addMetrics(List<SpanMetrics> metrics);
 }
@@ -31,4 +31,9 @@ public interface QueryService {
     JSONArray getTracesByEx(String serviceId, Long startTime, int sum);
 
     JSONObject getTraceInfo(Long traceId);
+
+    /**
+     * 按分钟的调用数、异常数、耗时分位数(us)，见SpanMetrics.toJSON
+     */
+    JSONArray getServiceMetrics(String serviceId, Long startTime, Long endTime);
 }
@@ -0,0 +1,140 @@
+package com.jd.bdp.hydra.store.metrics;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/**
+ * Date: 26-10-17
+ * 可合并的耗时分布，分桶与agent的Histogram相同：小于64的值每个值一个桶，
+ * 更大的值按2的幂分段、每段再均分为32个桶，相对误差不超过1/32。
+ * 桶数组按用到的最大桶扩展，多个collector、多分钟的分布直接按桶相加。
+ * 编码为(桶号差, 次数)的变长整数序列，只写非空的桶。非线程安全
+ */
+public class LatencySketch {
+
+    private static final int SUB_BITS = 6;
+    private static final int SUB = 1 << SUB_BITS;//64
+    private static final int HALF = SUB >> 1;//32
+
+    private long[] counts = new long[SUB];
+    private long count;
+
+    public void record(long value) {
+        record(value, 1);
+    }
+
+    public void record(long value, long times) {
+        if (value < 0) {
+            value = 0;
+        }
+        int index = index(value);
+        ensure(index);
+        counts[index] += times;
+        count += times;
+    }
+
+    public void merge(LatencySketch other) {
+        ensure(other.counts.length - 1);
+        for (int i = 0; i < other.counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @param percentile 0-100
+     * @return 不小于该百分位真实值的桶上界
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= target) {
+                return highestEquivalentValue(i);
+            }
+        }
+        return highestEquivalentValue(counts.length - 1);
+    }
+
+    public byte[] encode() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+        int last = 0;
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] != 0) {
+                writeVarLong(out, i - last);
+                writeVarLong(out, counts[i]);
+                last = i;
+            }
+        }
+        return out.toByteArray();
+    }
+
+    public static LatencySketch decode(byte[] bytes) {
+        LatencySketch sketch = new LatencySketch();
+        if (bytes == null) {
+            return sketch;
+        }
+        int[] pos = {0};
+        int index = 0;
+        while (pos[0] < bytes.length) {
+            index += (int) readVarLong(bytes, pos);
+            long c = readVarLong(bytes, pos);
+            sketch.ensure(index);
+            sketch.counts[index] += c;
+            sketch.count += c;
+        }
+        return sketch;
+    }
+
+    private void ensure(int index) {
+        if (index >= counts.length) {
+            counts = Arrays.copyOf(counts, Math.max(index + 1, counts.length + HALF));
+        }
+    }
+
+    static int index(long value) {
+        if (value < SUB) {
+            return (int) value;
+        }
+        int msb = 63 - Long.numberOfLeadingZeros(value);
+        int shift = msb - SUB_BITS + 1;
+        return shift * HALF + (int) (value >>> shift);
+    }
+
+    static long highestEquivalentValue(int index) {
+        if (index < SUB) {
+            return index;
+        }
+        int shift = index / HALF - 1;
+        long sub = index % HALF + HALF;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    private static void writeVarLong(ByteArrayOutputStream out, long v) {
+        while ((v & ~0x7FL) != 0) {
+            out.write((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.write((int) v);
+    }
+
+    private static long readVarLong(byte[] bytes, int[] pos) {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = bytes[pos[0]++];
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+        throw new IllegalArgumentException("broken latency sketch");
+    }
+}
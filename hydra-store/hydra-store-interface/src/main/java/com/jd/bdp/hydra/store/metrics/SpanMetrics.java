@@ -0,0 +1,144 @@
+package com.jd.bdp.hydra.store.metrics;
+
+import com.alibaba.fastjson.JSONArray;
+import com.alibaba.fastjson.JSONObject;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Date: 26-10-17
+ * 一个服务的一个方法在一分钟内的汇总(服务端耗时)：调用数、异常数、耗时和、最大耗时及耗时分布。
+ * 同一分钟可能有多行(多个collector、迟到的span)，查询时合并
+ */
+public class SpanMetrics {
+
+    private String serviceId;
+    private String spanName;
+    //分钟的起始时间(ms)
+    private Long time;
+    private Long count;
+    private Long errorCount;
+    private Long durationSumUs;
+    private Long durationMaxUs;
+    //LatencySketch编码后的耗时(us)分布
+    private byte[] histogram;
+
+    /**
+     * 按(spanName, 分钟)合并后输出，每项含调用数、异常数、平均/最大耗时和p50、p90、p99(us)
+     */
+    public static JSONArray toJSON(List<SpanMetrics> rows) {
+        Map<String, SpanMetrics> merged = new LinkedHashMap<String, SpanMetrics>();
+        Map<String, LatencySketch> sketches = new LinkedHashMap<String, LatencySketch>();
+        for (SpanMetrics row : rows) {
+            String key = row.getSpanName() + ":" + row.getTime();
+            SpanMetrics m = merged.get(key);
+            LatencySketch sketch = LatencySketch.decode(row.getHistogram());
+            if (m == null) {
+                m = new SpanMetrics();
+                m.setServiceId(row.getServiceId());
+                m.setSpanName(row.getSpanName());
+                m.setTime(row.getTime());
+                m.setCount(0L);
+                m.setErrorCount(0L);
+                m.setDurationSumUs(0L);
+                m.setDurationMaxUs(0L);
+                merged.put(key, m);
+                sketches.put(key, sketch);
+            } else {
+                sketches.get(key).merge(sketch);
+            }
+            m.setCount(m.getCount() + value(row.getCount()));
+            m.setErrorCount(m.getErrorCount() + value(row.getErrorCount()));
+            m.setDurationSumUs(m.getDurationSumUs() + value(row.getDurationSumUs()));
+            m.setDurationMaxUs(Math.max(m.getDurationMaxUs(), value(row.getDurationMaxUs())));
+        }
+        JSONArray array = new JSONArray();
+        for (Map.Entry<String, SpanMetrics> entry : merged.entrySet()) {
+            SpanMetrics m = entry.getValue();
+            LatencySketch sketch = sketches.get(entry.getKey());
+            JSONObject obj = new JSONObject();
+            obj.put("serviceId", m.getServiceId());
+            obj.put("spanName", m.getSpanName());
+            obj.put("timestamp", m.getTime());
+            obj.put("count", m.getCount());
+            obj.put("errorCount", m.getErrorCount());
+            obj.put("avgUs", m.getCount() == 0 ? 0 : m.getDurationSumUs() / m.getCount());
+            obj.put("maxUs", m.getDurationMaxUs());
+            obj.put("p50Us", Math.min(sketch.getValueAtPercentile(50), m.getDurationMaxUs()));
+            obj.put("p90Us", Math.min(sketch.getValueAtPercentile(90), m.getDurationMaxUs()));
+            obj.put("p99Us", Math.min(sketch.getValueAtPercentile(99), m.getDurationMaxUs()));
+            array.add(obj);
+        }
+        return array;
+    }
+
+    private static long value(Long v) {
+        return v == null ? 0 : v;
+    }
+
+    public String getServiceId() {
+        return serviceId;
+    }
+
+    public void setServiceId(String serviceId) {
+        this.serviceId = serviceId;
+    }
+
+    public String getSpanName() {
+        return spanName;
+    }
+
+    public void setSpanName(String spanName) {
+        this.spanName = spanName;
+    }
+
+    public Long getTime() {
+        return time;
+    }
+
+    public void setTime(Long time) {
+        this.time = time;
+    }
+
+    public Long getCount() {
+        return count;
+    }
+
+    public void setCount(Long count) {
+        this.count = count;
+    }
+
+    public Long getErrorCount() {
+        return errorCount;
+    }
+
+    public void setErrorCount(Long errorCount) {
+        this.errorCount = errorCount;
+    }
+
+    public Long getDurationSumUs() {
+        return durationSumUs;
+    }
+
+    public void setDurationSumUs(Long durationSumUs) {
+        this.durationSumUs = durationSumUs;
+    }
+
+    public Long getDurationMaxUs() {
+        return durationMaxUs;
+    }
+
+    public void setDurationMaxUs(Long durationMaxUs) {
+        this.durationMaxUs = durationMaxUs;
+    }
+
+    public byte[] getHistogram() {
+        return histogram;
+    }
+
+    public void setHistogram(byte[] histogram) {
+        this.histogram = histogram;
+    }
+}
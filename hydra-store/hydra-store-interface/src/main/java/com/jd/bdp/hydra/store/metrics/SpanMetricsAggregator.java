@@ -0,0 +1,225 @@
+package com.jd.bdp.hydra.store.metrics;
+
+import com.jd.bdp.hydra.Annotation;
+import com.jd.bdp.hydra.BinaryAnnotation;
+import com.jd.bdp.hydra.Span;
+import com.jd.bdp.hydra.store.inter.InsertService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Date: 26-10-17
+ * collector端按(serviceId, spanName, 分钟)汇总服务端span：调用数、含dubbo.exception的异常数、耗时分布，
+ * 分钟结束lateness(ms)后由后台线程写入InsertService.addMetrics。
+ * 在尾部采样之前汇总，被尾部采样丢弃的trace也计入；之后迟到的span另写一行，查询时合并
+ */
+public class SpanMetricsAggregator {
+
+    private static final Logger log = LoggerFactory.getLogger(SpanMetricsAggregator.class);
+
+    public static final String EXCEPTION = "dubbo.exception";
+    private static final long MINUTE = 60000L;
+
+    private InsertService insertService;
+    private long flushInterval = 10000;
+    private long lateness = 5000;
+
+    private final ConcurrentHashMap<Key, Rollup> rollups = new ConcurrentHashMap<Key, Rollup>();
+    private ScheduledExecutorService flusher;
+    private final AtomicLong writtenCount = new AtomicLong();
+
+    public void start() {
+        flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "HydraMetricsFlusher");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        flusher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flush(System.currentTimeMillis());
+                } catch (Exception e) {
+                    log.error("指标写入失败", e);
+                }
+            }
+        }, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        if (flusher != null) {
+            flusher.shutdown();
+        }
+        flush(Long.MAX_VALUE);
+    }
+
+    //只统计带sr、ss的服务端span
+    public void add(List<Span> spans) {
+        for (Span span : spans) {
+            if (span.getServiceId() == null || span.getAnnotations() == null) {
+                continue;
+            }
+            Annotation sr = null;
+            Annotation ss = null;
+            for (Annotation a : span.getAnnotations()) {
+                if (Annotation.SERVER_RECEIVE.equals(a.getValue())) {
+                    sr = a;
+                } else if (Annotation.SERVER_SEND.equals(a.getValue())) {
+                    ss = a;
+                }
+            }
+            if (sr == null || ss == null || sr.getTimestamp() == null || ss.getTimestamp() == null) {
+                continue;
+            }
+            long durationUs = sr.getTimestampUs() != null && ss.getTimestampUs() != null
+                    ? ss.getTimestampUs() - sr.getTimestampUs() : (ss.getTimestamp() - sr.getTimestamp()) * 1000;
+            boolean error = isError(span);
+            Key key = new Key(span.getServiceId(), span.getSpanName(), sr.getTimestamp() / MINUTE * MINUTE);
+            for (; ; ) {
+                Rollup rollup = rollups.get(key);
+                if (rollup == null) {
+                    rollup = new Rollup();
+                    Rollup old = rollups.putIfAbsent(key, rollup);
+                    if (old != null) {
+                        rollup = old;
+                    }
+                }
+                if (rollup.add(durationUs, error)) {
+                    break;
+                }
+                //该分钟刚写出，重新建立
+                rollups.remove(key, rollup);
+            }
+        }
+    }
+
+    private static boolean isError(Span span) {
+        if (span.getBinaryAnnotations() != null) {
+            for (BinaryAnnotation b : span.getBinaryAnnotations()) {
+                if (EXCEPTION.equals(b.getKey())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 写出结束超过lateness的分钟
+     */
+    void flush(long now) {
+        List<SpanMetrics> metrics = new ArrayList<SpanMetrics>();
+        for (Map.Entry<Key, Rollup> entry : rollups.entrySet()) {
+            Key key = entry.getKey();
+            if (now != Long.MAX_VALUE && key.time + MINUTE + lateness > now) {
+                continue;
+            }
+            if (rollups.remove(key, entry.getValue())) {
+                SpanMetrics m = entry.getValue().close(key);
+                if (m != null) {
+                    metrics.add(m);
+                }
+            }
+        }
+        if (metrics.isEmpty()) {
+            return;
+        }
+        insertService.addMetrics(metrics);
+        writtenCount.addAndGet(metrics.size());
+    }
+
+    private static class Key {
+        final String serviceId;
+        final String spanName;
+        final long time;
+
+        Key(String serviceId, String spanName, long time) {
+            this.serviceId = serviceId;
+            this.spanName = spanName;
+            this.time = time;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return time == k.time && serviceId.equals(k.serviceId)
+                    && (spanName == null ? k.spanName == null : spanName.equals(k.spanName));
+        }
+
+        @Override
+        public int hashCode() {
+            int h = serviceId.hashCode() * 31 + (spanName == null ? 0 : spanName.hashCode());
+            return h * 31 + (int) (time ^ (time >>> 32));
+        }
+    }
+
+    private static class Rollup {
+        private LatencySketch sketch = new LatencySketch();
+        private long errorCount;
+        private long sumUs;
+        private long maxUs;
+
+        synchronized boolean add(long durationUs, boolean error) {
+            if (sketch == null) {
+                return false;
+            }
+            sketch.record(durationUs);
+            sumUs += durationUs;
+            maxUs = Math.max(maxUs, durationUs);
+            if (error) {
+                errorCount++;
+            }
+            return true;
+        }
+
+        synchronized SpanMetrics close(Key key) {
+            if (sketch == null || sketch.getCount() == 0) {
+                return null;
+            }
+            SpanMetrics m = new SpanMetrics();
+            m.setServiceId(key.serviceId);
+            m.setSpanName(key.spanName);
+            m.setTime(key.time);
+            m.setCount(sketch.getCount());
+            m.setErrorCount(errorCount);
+            m.setDurationSumUs(sumUs);
+            m.setDurationMaxUs(maxUs);
+            m.setHistogram(sketch.encode());
+            sketch = null;
+            return m;
+        }
+    }
+
+    //已写出的汇总行数
+    public long getWrittenCount() {
+        return writtenCount.get();
+    }
+
+    public void setInsertService(InsertService insertService) {
+        this.insertService = insertService;
+    }
+
+    public void setFlushInterval(long flushInterval) {
+        this.flushInterval = flushInterval;
+    }
+
+    public void setLateness(long lateness) {
+        this.lateness = lateness;
+    }
+}
@@ -0,0 +1,392 @@
+package com.jd.bdp.hydra.store.pipeline;
+
+import com.jd.bdp.hydra.Annotation;
+import com.jd.bdp.hydra.BinaryAnnotation;
+import com.jd.bdp.hydra.Span;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Date: 26-10-17
+ * collector端的分段写入流水线：解码 -> 校验规整 -> 按traceId哈希分到N个分片，各分片攒批并写入。
+ * 每段有各自的有界队列和线程数，下游满时上游阻塞，最终入口队列满，
+ * offer返回false，由dubbo的push返回给agent(agent按失败稍后重试)，不再向调用方抛异常；
+ * metaq消费端用put阻塞，拉取随之变慢。
+ * 每个分片一个线程，攒批和写入都在该线程上，同一trace的span落在同一分片内，按进入分片的顺序写入；
+ * 写入并发数即分片数
+ */
+public class SpanPipeline {
+
+    private static final Logger log = LoggerFactory.getLogger(SpanPipeline.class);
+
+    //字节形式的批次解码为span，如SpanCodec、PB
+    public interface Decoder {
+        List<Span> decode(byte[] data) throws Exception;
+    }
+
+    //写入一批span，如InsertService.addSpans、尾部采样
+    public interface Writer {
+        void write(List<Span> spans) throws Exception;
+    }
+
+    private static final int CORES = Runtime.getRuntime().availableProcessors();
+
+    private final Decoder decoder;
+    private final Writer writer;
+
+    //每段队列的容量(批次数)
+    private int queueSize = 2048;
+    private int decodeThreads = CORES;
+    private int validateThreads = 1;
+    //分片数，也是写入线程数
+    private int shardCount = CORES;
+    //一次写入的span数
+    private int batchSize = 500;
+    //分片攒批最长等待(ms)
+    private long batchDelay = 200;
+
+    private Stage<byte[]> decodeStage;
+    private Stage<List<Span>> validateStage;
+    private ShardStage[] shards;
+    private boolean started;
+
+    private final AtomicLong acceptedCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong decodeFailedCount = new AtomicLong();
+    private final AtomicLong invalidCount = new AtomicLong();
+    private final AtomicLong writtenCount = new AtomicLong();
+    private final AtomicLong writeFailedCount = new AtomicLong();
+
+    public SpanPipeline(Decoder decoder, Writer writer) {
+        this.decoder = decoder;
+        this.writer = writer;
+    }
+
+    public synchronized void start() {
+        if (started) {
+            return;
+        }
+        shards = new ShardStage[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new ShardStage(i);
+        }
+        validateStage = new Stage<List<Span>>("validate", validateThreads) {
+            @Override
+            void handle(List<Span> spans) throws InterruptedException {
+                route(spans);
+            }
+        };
+        decodeStage = new Stage<byte[]>("decode", decodeThreads) {
+            @Override
+            void handle(byte[] data) throws InterruptedException {
+                List<Span> spans;
+                try {
+                    spans = decoder.decode(data);
+                } catch (Exception e) {
+                    decodeFailedCount.incrementAndGet();
+                    log.error("解码失败", e);
+                    return;
+                }
+                if (spans != null) {
+                    validateStage.queue.put(spans);
+                }
+            }
+        };
+        for (ShardStage shard : shards) {
+            shard.start();
+        }
+        validateStage.start();
+        decodeStage.start();
+        started = true;
+    }
+
+    /**
+     * 从上游到下游依次停止，每段处理完队列中剩余的数据后退出
+     */
+    public synchronized void stop() {
+        if (!started) {
+            return;
+        }
+        started = false;
+        try {
+            decodeStage.stop();
+            validateStage.stop();
+            for (ShardStage shard : shards) {
+                shard.stop();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 提交待解码的批次，入口队列满时立即返回false
+     */
+    public boolean offer(byte[] data) {
+        return accept(decodeStage.queue.offer(data));
+    }
+
+    /**
+     * 提交已解码的批次(如dubbo反序列化后的List)，跳过解码段
+     */
+    public boolean offer(List<Span> spans) {
+        return accept(validateStage.queue.offer(spans));
+    }
+
+    /**
+     * 提交待解码的批次，队列满时等待
+     */
+    public void put(byte[] data) throws InterruptedException {
+        decodeStage.queue.put(data);
+        acceptedCount.incrementAndGet();
+    }
+
+    private boolean accept(boolean accepted) {
+        if (accepted) {
+            acceptedCount.incrementAndGet();
+        } else {
+            rejectedCount.incrementAndGet();
+        }
+        return accepted;
+    }
+
+    //丢弃没有traceId、id的span，按traceId分到各分片
+    private void route(List<Span> spans) throws InterruptedException {
+        List<Span>[] routed = null;
+        for (Span span : spans) {
+            if (span == null || span.getTraceId() == null || span.getId() == null) {
+                invalidCount.incrementAndGet();
+                continue;
+            }
+            normalize(span);
+            if (routed == null) {
+                routed = newLists(shardCount);
+            }
+            int shard = shardOf(span.getTraceId(), shardCount);
+            if (routed[shard] == null) {
+                routed[shard] = new ArrayList<Span>();
+            }
+            routed[shard].add(span);
+        }
+        if (routed == null) {
+            return;
+        }
+        for (int i = 0; i < routed.length; i++) {
+            if (routed[i] != null) {
+                shards[i].queue.put(routed[i]);
+            }
+        }
+    }
+
+    //存储端遍历annotation时不再判断null
+    private static void normalize(Span span) {
+        if (span.getAnnotations() == null) {
+            span.setAnnotations(new ArrayList<Annotation>(0));
+        }
+        if (span.getBinaryAnnotations() == null) {
+            span.setBinaryAnnotations(new ArrayList<BinaryAnnotation>(0));
+        }
+    }
+
+    static int shardOf(long traceId, int shardCount) {
+        long h = traceId * 0x9E3779B97F4A7C15L;
+        return (int) ((h >>> 33) % shardCount);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Span>[] newLists(int size) {
+        return new List[size];
+    }
+
+    /**
+     * 一段：有界队列和固定数量的线程，stop时处理完队列中剩余的数据
+     */
+    private abstract class Stage<T> {
+        final String name;
+        final BlockingQueue<T> queue;
+        final Thread[] threads;
+        volatile boolean running = true;
+
+        Stage(String name, int threadCount) {
+            this.name = name;
+            this.queue = new ArrayBlockingQueue<T>(queueSize);
+            this.threads = new Thread[Math.max(1, threadCount)];
+        }
+
+        void start() {
+            for (int i = 0; i < threads.length; i++) {
+                threads[i] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        loop();
+                    }
+                }, "HydraPipeline-" + name + "-" + i);
+                threads[i].setDaemon(true);
+                threads[i].start();
+            }
+        }
+
+        private void loop() {
+            long wait = Math.max(1, Math.min(100, batchDelay));
+            try {
+                while (running || !queue.isEmpty()) {
+                    T item = queue.poll(wait, TimeUnit.MILLISECONDS);
+                    try {
+                        if (item != null) {
+                            handle(item);
+                        }
+                        idle();
+                    } catch (InterruptedException e) {
+                        throw e;
+                    } catch (Throwable e) {//线程退出后该段不再消费，上游会一直阻塞
+                        log.error("[Hydra] pipeline stage " + name + " failure", e);
+                    }
+                }
+                drained();
+            } catch (InterruptedException e) {
+                log.warn("[Hydra] pipeline stage " + name + " interrupted");
+            }
+        }
+
+        abstract void handle(T item) throws InterruptedException;
+
+        void idle() throws InterruptedException {
+        }
+
+        void drained() throws InterruptedException {
+        }
+
+        void stop() throws InterruptedException {
+            running = false;
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+
+        int size() {
+            return queue.size();
+        }
+    }
+
+    /**
+     * 一个分片：单线程攒批，够batchSize或等待超过batchDelay后在本线程写入
+     */
+    private class ShardStage extends Stage<List<Span>> {
+        private List<Span> pending = new ArrayList<Span>();
+        private long firstTime;
+
+        ShardStage(int index) {
+            super("shard-" + index, 1);
+        }
+
+        @Override
+        void handle(List<Span> spans) throws InterruptedException {
+            if (pending.isEmpty()) {
+                firstTime = System.currentTimeMillis();
+            }
+            pending.addAll(spans);
+            while (pending.size() >= batchSize) {
+                List<Span> batch = new ArrayList<Span>(pending.subList(0, batchSize));
+                pending = new ArrayList<Span>(pending.subList(batchSize, pending.size()));
+                write(batch);
+                firstTime = System.currentTimeMillis();
+            }
+        }
+
+        @Override
+        void idle() throws InterruptedException {
+            if (!pending.isEmpty() && System.currentTimeMillis() - firstTime >= batchDelay) {
+                flush();
+            }
+        }
+
+        @Override
+        void drained() throws InterruptedException {
+            flush();
+        }
+
+        private void flush() {
+            if (!pending.isEmpty()) {
+                List<Span> batch = pending;
+                pending = new ArrayList<Span>();
+                write(batch);
+            }
+        }
+
+        private void write(List<Span> batch) {
+            try {
+                writer.write(batch);
+                writtenCount.addAndGet(batch.size());
+            } catch (Throwable e) {
+                writeFailedCount.addAndGet(batch.size());
+                log.error("插入失败", e);
+            }
+        }
+    }
+
+    public long getAcceptedCount() {
+        return acceptedCount.get();
+    }
+
+    //入口队列满被拒绝的批次数
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    public long getDecodeFailedCount() {
+        return decodeFailedCount.get();
+    }
+
+    public long getInvalidCount() {
+        return invalidCount.get();
+    }
+
+    public long getWrittenCount() {
+        return writtenCount.get();
+    }
+
+    public long getWriteFailedCount() {
+        return writeFailedCount.get();
+    }
+
+    //各段队列中等待的批次数：decode、validate、各分片之和
+    public int[] getQueueSizes() {
+        int shardSize = 0;
+        for (ShardStage shard : shards) {
+            shardSize += shard.size();
+        }
+        return new int[]{decodeStage.size(), validateStage.size(), shardSize};
+    }
+
+    //以下在start前设置
+    public void setQueueSize(int queueSize) {
+        this.queueSize = queueSize;
+    }
+
+    public void setDecodeThreads(int decodeThreads) {
+        this.decodeThreads = decodeThreads;
+    }
+
+    public void setValidateThreads(int validateThreads) {
+        this.validateThreads = validateThreads;
+    }
+
+    public void setShardCount(int shardCount) {
+        this.shardCount = shardCount;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public void setBatchDelay(long batchDelay) {
+        this.batchDelay = batchDelay;
+    }
+}
@@ -0,0 +1,165 @@
+package com.jd.bdp.hydra.store.pipeline;
+
+import com.jd.bdp.hydra.Annotation;
+import com.jd.bdp.hydra.BinaryAnnotation;
+import com.jd.bdp.hydra.Span;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Date: 26-10-17
+ * collector端的trace组装：按traceId在内存中缓存span，trace结束后把同一span的client、server两半合并，
+ * 在client_receive、server_send上记下耗时(us)，整个trace交给listener一次写入，查询时不用再合并。
+ * trace结束的判断见TraceWindow，与尾部采样相同；超过maxSpans提前组装的trace，之后到达的span作为同一trace的另一条记录
+ */
+public class TraceAssembler {
+
+    public interface Listener {
+        //spans为合并后的span，同一traceId可能多次回调(迟到的span)
+        void onTrace(Long traceId, List<Span> spans);
+    }
+
+    private Listener listener;
+    private final TraceWindow window = new TraceWindow("HydraTraceAssembler", new TraceWindow.Listener() {
+        @Override
+        public void onTrace(Long traceId, List<Span> spans, boolean evicted) {
+            if (evicted) {
+                evictedCount.incrementAndGet();
+            }
+            assembledCount.incrementAndGet();
+            listener.onTrace(traceId, merge(spans));
+        }
+
+        @Override
+        public void afterSweep() {
+        }
+    });
+
+    private final AtomicLong assembledCount = new AtomicLong();
+    private final AtomicLong evictedCount = new AtomicLong();
+
+    public void start() {
+        window.start();
+    }
+
+    //剩余的trace全部组装
+    public void stop() {
+        window.stop();
+    }
+
+    public void add(List<Span> spans) {
+        long now = System.currentTimeMillis();
+        for (Span span : spans) {
+            window.add(span, now);
+        }
+    }
+
+    void sweep(long now) {
+        window.sweep(now);
+    }
+
+    /**
+     * 按span id合并client、server两半，在结束的annotation上记下耗时(us)
+     */
+    public static List<Span> merge(List<Span> spans) {
+        Map<Long, Span> merged = new LinkedHashMap<Long, Span>();
+        List<Span> result = new ArrayList<Span>(spans.size());
+        for (Span span : spans) {
+            Span first = span.getId() == null ? null : merged.get(span.getId());
+            if (first == null) {
+                if (span.getId() != null) {
+                    merged.put(span.getId(), span);
+                }
+                result.add(span);
+                continue;
+            }
+            if (first.getServiceId() == null) {
+                first.setServiceId(span.getServiceId());
+            }
+            if (first.getSpanName() == null) {
+                first.setSpanName(span.getSpanName());
+            }
+            List<Annotation> annotations = new ArrayList<Annotation>();
+            if (first.getAnnotations() != null) {
+                annotations.addAll(first.getAnnotations());
+            }
+            if (span.getAnnotations() != null) {
+                annotations.addAll(span.getAnnotations());
+            }
+            first.setAnnotations(annotations);
+            if (span.getBinaryAnnotations() != null && !span.getBinaryAnnotations().isEmpty()) {
+                List<BinaryAnnotation> binaryAnnotations = new ArrayList<BinaryAnnotation>();
+                if (first.getBinaryAnnotations() != null) {
+                    binaryAnnotations.addAll(first.getBinaryAnnotations());
+                }
+                binaryAnnotations.addAll(span.getBinaryAnnotations());
+                first.setBinaryAnnotations(binaryAnnotations);
+            }
+        }
+        for (Span span : result) {
+            if (span.getAnnotations() == null) {
+                continue;
+            }
+            setDuration(span.getAnnotations(), Annotation.CLIENT_SEND, Annotation.CLIENT_RECEIVE);
+            setDuration(span.getAnnotations(), Annotation.SERVER_RECEIVE, Annotation.SERVER_SEND);
+        }
+        return result;
+    }
+
+    private static void setDuration(List<Annotation> annotations, String startValue, String endValue) {
+        Annotation start = null;
+        Annotation end = null;
+        for (Annotation a : annotations) {
+            if (startValue.equals(a.getValue())) {
+                start = a;
+            } else if (endValue.equals(a.getValue())) {
+                end = a;
+            }
+        }
+        if (start == null || end == null || start.getTimestampUs() == null || end.getTimestampUs() == null) {
+            return;
+        }
+        long us = end.getTimestampUs() - start.getTimestampUs();
+        if (us >= 0 && us <= Integer.MAX_VALUE) {
+            end.setDuration((int) us);
+        }
+    }
+
+    //已组装的trace记录数
+    public long getAssembledCount() {
+        return assembledCount.get();
+    }
+
+    //超过maxSpans提前组装的trace数
+    public long getEvictedCount() {
+        return evictedCount.get();
+    }
+
+    public int getBufferedSpans() {
+        return window.getBufferedSpans();
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public void setQuietTime(long quietTime) {
+        window.setQuietTime(quietTime);
+    }
+
+    public void setMaxWait(long maxWait) {
+        window.setMaxWait(maxWait);
+    }
+
+    public void setMaxSpans(int maxSpans) {
+        window.setMaxSpans(maxSpans);
+    }
+
+    public void setSweepInterval(long sweepInterval) {
+        window.setSweepInterval(sweepInterval);
+    }
+}
@@ -0,0 +1,210 @@
+package com.jd.bdp.hydra.store.pipeline;
+
+import com.jd.bdp.hydra.Span;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Date: 26-10-17
+ * 按traceId在内存中缓存span，trace结束后整个交给listener：
+ * 收到root span后quietTime内没有新span，或缓存超过maxWait；
+ * 缓存的span总数超过maxSpans时提前交出最老的trace，之后到达的span作为同一trace的新一批。
+ * TraceAssembler(组装)和TailSampler(尾部采样)共用
+ */
+public class TraceWindow {
+
+    private static final Logger log = LoggerFactory.getLogger(TraceWindow.class);
+
+    public interface Listener {
+        //evicted为true表示超过maxSpans提前交出
+        void onTrace(Long traceId, List<Span> spans, boolean evicted);
+
+        //每次sweep和stop之后调用，可在此写出攒下的数据
+        void afterSweep();
+    }
+
+    private final String name;
+    private final Listener listener;
+    private long quietTime = 2000;
+    private long maxWait = 30000;
+    private int maxSpans = 200000;
+    private long sweepInterval = 500;
+
+    private final ConcurrentHashMap<Long, TraceBuffer> traces = new ConcurrentHashMap<Long, TraceBuffer>();
+    private final AtomicInteger bufferedSpans = new AtomicInteger();
+    private ScheduledExecutorService sweeper;
+
+    public TraceWindow(String name, Listener listener) {
+        this.name = name;
+        this.listener = listener;
+    }
+
+    public void start() {
+        sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        sweeper.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sweep(System.currentTimeMillis());
+                } catch (Exception e) {
+                    log.error(name + " sweep失败", e);
+                }
+            }
+        }, sweepInterval, sweepInterval, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        if (sweeper != null) {
+            sweeper.shutdown();
+        }
+        //剩余的trace全部交出
+        for (Long traceId : new ArrayList<Long>(traces.keySet())) {
+            TraceBuffer buffer = traces.remove(traceId);
+            if (buffer != null) {
+                close(traceId, buffer, false);
+            }
+        }
+        listener.afterSweep();
+    }
+
+    public void add(Span span, long now) {
+        Long traceId = span.getTraceId();
+        if (traceId == null) {
+            return;
+        }
+        for (; ; ) {
+            TraceBuffer buffer = traces.get(traceId);
+            if (buffer == null) {
+                buffer = new TraceBuffer(now);
+                TraceBuffer old = traces.putIfAbsent(traceId, buffer);
+                if (old != null) {
+                    buffer = old;
+                }
+            }
+            if (buffer.add(span, now)) {
+                break;
+            }
+            //该buffer刚被交出，重新建立
+        }
+        bufferedSpans.incrementAndGet();
+    }
+
+    //sweeper线程定时调用，测试时直接调用
+    public void sweep(long now) {
+        List<Map.Entry<Long, TraceBuffer>> pending = null;
+        for (Map.Entry<Long, TraceBuffer> entry : traces.entrySet()) {
+            TraceBuffer buffer = entry.getValue();
+            if (buffer.isComplete(now)) {
+                if (traces.remove(entry.getKey(), buffer)) {
+                    close(entry.getKey(), buffer, false);
+                }
+            } else if (bufferedSpans.get() > maxSpans) {
+                if (pending == null) {
+                    pending = new ArrayList<Map.Entry<Long, TraceBuffer>>();
+                }
+                pending.add(entry);
+            }
+        }
+        if (pending != null && bufferedSpans.get() > maxSpans) {//超过上限，从最老的开始交出
+            Collections.sort(pending, new Comparator<Map.Entry<Long, TraceBuffer>>() {
+                @Override
+                public int compare(Map.Entry<Long, TraceBuffer> o1, Map.Entry<Long, TraceBuffer> o2) {
+                    long d = o1.getValue().firstTime - o2.getValue().firstTime;
+                    return d < 0 ? -1 : (d > 0 ? 1 : 0);
+                }
+            });
+            for (Map.Entry<Long, TraceBuffer> entry : pending) {
+                if (bufferedSpans.get() <= maxSpans) {
+                    break;
+                }
+                if (traces.remove(entry.getKey(), entry.getValue())) {
+                    close(entry.getKey(), entry.getValue(), true);
+                }
+            }
+        }
+        listener.afterSweep();
+    }
+
+    private void close(Long traceId, TraceBuffer buffer, boolean evicted) {
+        List<Span> spans = buffer.close();
+        bufferedSpans.addAndGet(-spans.size());
+        try {
+            listener.onTrace(traceId, spans, evicted);
+        } catch (Exception e) {
+            log.error(name + "处理trace失败", e);
+        }
+    }
+
+    private class TraceBuffer {
+        final long firstTime;
+        long lastTime;
+        boolean hasRoot;
+        List<Span> spans = new ArrayList<Span>(8);
+
+        TraceBuffer(long now) {
+            this.firstTime = now;
+            this.lastTime = now;
+        }
+
+        synchronized boolean add(Span span, long now) {
+            if (spans == null) {
+                return false;
+            }
+            spans.add(span);
+            lastTime = now;
+            if (span.getParentId() == null) {
+                hasRoot = true;
+            }
+            return true;
+        }
+
+        synchronized boolean isComplete(long now) {
+            return (hasRoot && now - lastTime >= quietTime) || now - firstTime >= maxWait;
+        }
+
+        synchronized List<Span> close() {
+            List<Span> list = spans;
+            spans = null;
+            return list;
+        }
+    }
+
+    public int getBufferedSpans() {
+        return bufferedSpans.get();
+    }
+
+    public void setQuietTime(long quietTime) {
+        this.quietTime = quietTime;
+    }
+
+    public void setMaxWait(long maxWait) {
+        this.maxWait = maxWait;
+    }
+
+    public void setMaxSpans(int maxSpans) {
+        this.maxSpans = maxSpans;
+    }
+
+    public void setSweepInterval(long sweepInterval) {
+        this.sweepInterval = sweepInterval;
+    }
+}
@@ -0,0 +1,54 @@
+package com.jd.bdp.hydra.store.metrics;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Date: 26-10-17
+ */
+public class LatencySketchTest {
+
+    /**
+     * 分位数为桶上界，相对误差不超过1/32
+     */
+    @Test
+    public void testPercentile() {
+        LatencySketch sketch = new LatencySketch();
+        for (long v = 1; v <= 100000; v++) {
+            sketch.record(v);
+        }
+        Assert.assertEquals(100000, sketch.getCount());
+        assertNear(50000, sketch.getValueAtPercentile(50));
+        assertNear(90000, sketch.getValueAtPercentile(90));
+        assertNear(99000, sketch.getValueAtPercentile(99));
+        Assert.assertEquals(0, new LatencySketch().getValueAtPercentile(99));
+    }
+
+    /**
+     * 编码后解码、合并，与直接记录的结果相同
+     */
+    @Test
+    public void testEncodeAndMerge() {
+        LatencySketch a = new LatencySketch();
+        LatencySketch b = new LatencySketch();
+        LatencySketch all = new LatencySketch();
+        for (long v = 0; v < 5000; v++) {
+            long value = v * v;
+            (v % 2 == 0 ? a : b).record(value);
+            all.record(value);
+        }
+        LatencySketch merged = LatencySketch.decode(a.encode());
+        merged.merge(LatencySketch.decode(b.encode()));
+        Assert.assertEquals(all.getCount(), merged.getCount());
+        Assert.assertArrayEquals(all.encode(), merged.encode());
+        for (int p = 1; p <= 100; p++) {
+            Assert.assertEquals(all.getValueAtPercentile(p), merged.getValueAtPercentile(p));
+        }
+        Assert.assertEquals(0, LatencySketch.decode(null).getCount());
+    }
+
+    private static void assertNear(long expected, long actual) {
+        Assert.assertTrue(actual + " < " + expected, actual >= expected);
+        Assert.assertTrue(actual + " > " + expected, actual <= expected + expected / 32);
+    }
+}
@@ -0,0 +1,149 @@
+package com.jd.bdp.hydra.store.metrics;
+
+import com.alibaba.fastjson.JSONArray;
+import com.alibaba.fastjson.JSONObject;
+import com.jd.bdp.hydra.Annotation;
+import com.jd.bdp.hydra.BinaryAnnotation;
+import com.jd.bdp.hydra.Span;
+import com.jd.bdp.hydra.store.inter.InsertService;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Date: 26-10-17
+ */
+public class SpanMetricsAggregatorTest {
+
+    private static final long MINUTE = 60000L;
+
+    private final List<SpanMetrics> written = new ArrayList<SpanMetrics>();
+
+    private SpanMetricsAggregator newAggregator() {
+        SpanMetricsAggregator aggregator = new SpanMetricsAggregator();
+        aggregator.setInsertService(new InsertService() {
+            @Override
+            public void addSpan(Span span) {
+            }
+
+            @Override
+            public void addAnnotation(Span span) {
+            }
+
+            @Override
+            public void addTrace(Span span) {
+            }
+
+            @Override
+            public void addSpans(List<Span> spans) {
+            }
+
+            @Override
+            public void addMetrics(List<SpanMetrics> metrics) {
+                written.addAll(metrics);
+            }
+        });
+        aggregator.setLateness(5000);
+        return aggregator;
+    }
+
+    /**
+     * 只统计服务端span，分钟结束lateness后写出
+     */
+    @Test
+    public void testFlushClosedMinutes() {
+        SpanMetricsAggregator aggregator = newAggregator();
+        long minute = 100 * MINUTE;
+        aggregator.add(Arrays.asList(server(minute + 10, 1000, false), server(minute + 20, 3000, true),
+                client(minute + 30, 5000), server(minute + MINUTE + 10, 2000, false)));
+
+        aggregator.flush(minute + MINUTE + 1000);
+        Assert.assertTrue(written.isEmpty());
+        aggregator.flush(minute + MINUTE + 5000);
+        Assert.assertEquals(1, written.size());
+        SpanMetrics m = written.get(0);
+        Assert.assertEquals("10101", m.getServiceId());
+        Assert.assertEquals("get", m.getSpanName());
+        Assert.assertEquals(Long.valueOf(minute), m.getTime());
+        Assert.assertEquals(Long.valueOf(2), m.getCount());
+        Assert.assertEquals(Long.valueOf(1), m.getErrorCount());
+        Assert.assertEquals(Long.valueOf(4000), m.getDurationSumUs());
+        Assert.assertEquals(Long.valueOf(3000), m.getDurationMaxUs());
+
+        //迟到的span另写一行
+        aggregator.add(Arrays.asList(server(minute + 40, 7000, false)));
+        aggregator.stop();
+        Assert.assertEquals(3, written.size());
+        Assert.assertEquals(3, aggregator.getWrittenCount());
+    }
+
+    /**
+     * 查询时同一分钟的多行合并
+     */
+    @Test
+    public void testToJSON() {
+        SpanMetricsAggregator aggregator = newAggregator();
+        long minute = 100 * MINUTE;
+        List<Span> spans = new ArrayList<Span>();
+        for (int i = 1; i <= 100; i++) {
+            spans.add(server(minute + i, i * 100, i % 10 == 0));
+        }
+        aggregator.add(spans.subList(0, 50));
+        aggregator.flush(Long.MAX_VALUE);
+        aggregator.add(spans.subList(50, 100));
+        aggregator.flush(Long.MAX_VALUE);
+        Assert.assertEquals(2, written.size());
+
+        JSONArray array = SpanMetrics.toJSON(written);
+        Assert.assertEquals(1, array.size());
+        JSONObject obj = array.getJSONObject(0);
+        Assert.assertEquals(minute, obj.getLongValue("timestamp"));
+        Assert.assertEquals(100, obj.getLongValue("count"));
+        Assert.assertEquals(10, obj.getLongValue("errorCount"));
+        Assert.assertEquals(5050, obj.getLongValue("avgUs"));
+        Assert.assertEquals(10000, obj.getLongValue("maxUs"));
+        long p50 = obj.getLongValue("p50Us");
+        Assert.assertTrue(p50 >= 5000 && p50 <= 5000 + 5000 / 32);
+        //不超过最大耗时
+        long p99 = obj.getLongValue("p99Us");
+        Assert.assertTrue(p99 >= 9900 && p99 <= 10000);
+    }
+
+    private static Span server(long startMs, long durationUs, boolean error) {
+        Span span = span();
+        span.addAnnotation(annotation(startMs * 1000, Annotation.SERVER_RECEIVE));
+        span.addAnnotation(annotation(startMs * 1000 + durationUs, Annotation.SERVER_SEND));
+        if (error) {
+            BinaryAnnotation b = new BinaryAnnotation();
+            b.setKey(SpanMetricsAggregator.EXCEPTION);
+            b.setValue("timeout");
+            span.addBinaryAnnotation(b);
+        }
+        return span;
+    }
+
+    private static Span client(long startMs, long durationUs) {
+        Span span = span();
+        span.addAnnotation(annotation(startMs * 1000, Annotation.CLIENT_SEND));
+        span.addAnnotation(annotation(startMs * 1000 + durationUs, Annotation.CLIENT_RECEIVE));
+        return span;
+    }
+
+    private static Span span() {
+        Span span = new Span();
+        span.setTraceId(1L);
+        span.setId(1L);
+        span.setSpanName("get");
+        span.setServiceId("10101");
+        return span;
+    }
+
+    private static Annotation annotation(long us, String value) {
+        Annotation a = new Annotation(us / 1000, value, null);
+        a.setTimestampUs(us);
+        return a;
+    }
+}
@@ -0,0 +1,201 @@
+package com.jd.bdp.hydra.store.pipeline;
+
+import com.jd.bdp.hydra.Span;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Date: 26-10-17
+ */
+public class SpanPipelineTest {
+
+    private final List<List<Span>> batches = Collections.synchronizedList(new ArrayList<List<Span>>());
+
+    //字节批次：每个字节是一个traceId，id从1开始递增，0表示无效的span
+    private final SpanPipeline.Decoder decoder = new SpanPipeline.Decoder() {
+        @Override
+        public List<Span> decode(byte[] data) throws Exception {
+            if (data.length == 0) {
+                throw new IllegalArgumentException("empty");
+            }
+            List<Span> spans = new ArrayList<Span>();
+            for (int i = 0; i < data.length; i++) {
+                spans.add(newSpan(data[i] == 0 ? null : (long) data[i], i + 1L));
+            }
+            return spans;
+        }
+    };
+
+    private final SpanPipeline.Writer writer = new SpanPipeline.Writer() {
+        @Override
+        public void write(List<Span> spans) {
+            batches.add(spans);
+        }
+    };
+
+    /**
+     * 同一trace的span进入同一分片，无效span和解码失败的批次被丢弃
+     */
+    @Test
+    public void testRouteByTrace() {
+        SpanPipeline pipeline = new SpanPipeline(decoder, writer);
+        pipeline.setShardCount(4);
+        pipeline.setBatchSize(3);
+        pipeline.start();
+        for (int i = 0; i < 20; i++) {
+            Assert.assertTrue(pipeline.offer(new byte[]{1, 2, 3, 0, 4, 5}));
+        }
+        Assert.assertTrue(pipeline.offer(new byte[0]));
+        pipeline.stop();
+
+        Assert.assertEquals(21, pipeline.getAcceptedCount());
+        Assert.assertEquals(1, pipeline.getDecodeFailedCount());
+        Assert.assertEquals(20, pipeline.getInvalidCount());
+        Assert.assertEquals(100, pipeline.getWrittenCount());
+        Map<Long, Integer> shardOfTrace = new HashMap<Long, Integer>();
+        for (int b = 0; b < batches.size(); b++) {
+            List<Span> batch = batches.get(b);
+            Assert.assertTrue(batch.size() <= 3);
+            int shard = SpanPipeline.shardOf(batch.get(0).getTraceId(), 4);
+            for (Span span : batch) {
+                Assert.assertEquals(shard, SpanPipeline.shardOf(span.getTraceId(), 4));
+                Assert.assertNotNull(span.getBinaryAnnotations());
+                Integer old = shardOfTrace.put(span.getTraceId(), shard);
+                Assert.assertTrue(old == null || old == shard);
+            }
+        }
+        Assert.assertEquals(5, shardOfTrace.size());
+    }
+
+    /**
+     * 写入阻塞时各段队列依次填满，入口offer返回false而不是抛异常；恢复后已接收的全部写入
+     */
+    @Test
+    public void testBackpressure() throws Exception {
+        final CountDownLatch blocked = new CountDownLatch(1);
+        SpanPipeline pipeline = new SpanPipeline(decoder, new SpanPipeline.Writer() {
+            @Override
+            public void write(List<Span> spans) throws Exception {
+                blocked.await();
+                writer.write(spans);
+            }
+        });
+        pipeline.setQueueSize(2);
+        pipeline.setDecodeThreads(1);
+        pipeline.setShardCount(1);
+        pipeline.setBatchSize(1);
+        pipeline.start();
+
+        int accepted = 0;
+        long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            if (pipeline.offer(new byte[]{7})) {
+                accepted++;
+            } else if (pipeline.getRejectedCount() > 10) {
+                break;
+            }
+            Thread.sleep(1);
+        }
+        Assert.assertTrue(pipeline.getRejectedCount() > 10);
+        //分片、校验、解码各段的队列和正在处理的批次
+        Assert.assertTrue(accepted >= 6 && accepted <= 10);
+        Assert.assertEquals(0, pipeline.getWrittenCount());
+
+        blocked.countDown();
+        pipeline.stop();
+        Assert.assertEquals(accepted, pipeline.getWrittenCount());
+        Assert.assertEquals(accepted, batches.size());
+    }
+
+    /**
+     * 不够batchSize的span在batchDelay后写入
+     */
+    @Test
+    public void testBatchDelay() throws Exception {
+        SpanPipeline pipeline = new SpanPipeline(decoder, writer);
+        pipeline.setShardCount(1);
+        pipeline.setBatchSize(100);
+        pipeline.setBatchDelay(50);
+        pipeline.start();
+        List<Span> spans = new ArrayList<Span>();
+        for (long i = 1; i <= 10; i++) {
+            spans.add(newSpan(i, i));
+        }
+        Assert.assertTrue(pipeline.offer(spans));
+        long deadline = System.currentTimeMillis() + 2000;
+        while (batches.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(1, batches.size());
+        Assert.assertEquals(10, batches.get(0).size());
+        pipeline.stop();
+    }
+
+    /**
+     * 同一trace的span按进入分片的顺序写入
+     */
+    @Test
+    public void testOrderInTrace() {
+        SpanPipeline pipeline = new SpanPipeline(decoder, writer);
+        pipeline.setShardCount(4);
+        pipeline.setBatchSize(7);
+        pipeline.start();
+        for (long i = 1; i <= 200; i++) {
+            List<Span> spans = new ArrayList<Span>();
+            for (long traceId = 1; traceId <= 6; traceId++) {
+                spans.add(newSpan(traceId, i));
+            }
+            Assert.assertTrue(pipeline.offer(spans));
+        }
+        pipeline.stop();
+        Assert.assertEquals(1200, pipeline.getWrittenCount());
+        Map<Long, Long> last = new HashMap<Long, Long>();
+        for (List<Span> batch : batches) {
+            for (Span span : batch) {
+                Long prev = last.put(span.getTraceId(), span.getId());
+                Assert.assertEquals(prev == null ? 1L : prev + 1, (long) span.getId());
+            }
+        }
+        Assert.assertEquals(6, last.size());
+    }
+
+    /**
+     * 写入抛出Error时只丢弃该批，分片线程继续处理
+     */
+    @Test
+    public void testWriterError() {
+        SpanPipeline pipeline = new SpanPipeline(decoder, new SpanPipeline.Writer() {
+            @Override
+            public void write(List<Span> spans) throws Exception {
+                if (spans.get(0).getTraceId() == 9L) {
+                    throw new AssertionError("broken");
+                }
+                writer.write(spans);
+            }
+        });
+        pipeline.setShardCount(1);
+        pipeline.setBatchSize(1);
+        pipeline.start();
+        Assert.assertTrue(pipeline.offer(new byte[]{9}));
+        Assert.assertTrue(pipeline.offer(new byte[]{1, 2}));
+        pipeline.stop();
+        Assert.assertEquals(1, pipeline.getWriteFailedCount());
+        Assert.assertEquals(2, pipeline.getWrittenCount());
+    }
+
+    private static Span newSpan(Long traceId, Long id) {
+        Span span = new Span();
+        span.setTraceId(traceId);
+        span.setId(id);
+        span.setSpanName("get");
+        span.setBinaryAnnotations(null);
+        return span;
+    }
+}
@@ -0,0 +1,135 @@
+package com.jd.bdp.hydra.store.pipeline;
+
+import com.jd.bdp.hydra.Annotation;
+import com.jd.bdp.hydra.BinaryAnnotation;
+import com.jd.bdp.hydra.Span;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Date: 26-10-17
+ */
+public class TraceAssemblerTest {
+
+    private final List<Long> traceIds = new ArrayList<Long>();
+    private final List<List<Span>> records = new ArrayList<List<Span>>();
+
+    private TraceAssembler newAssembler() {
+        TraceAssembler assembler = new TraceAssembler();
+        assembler.setListener(new TraceAssembler.Listener() {
+            @Override
+            public void onTrace(Long traceId, List<Span> spans) {
+                traceIds.add(traceId);
+                records.add(spans);
+            }
+        });
+        assembler.setQuietTime(100);
+        assembler.setMaxWait(1000);
+        return assembler;
+    }
+
+    /**
+     * client、server两半合并为一个span，耗时记在结束的annotation上
+     */
+    @Test
+    public void testMerge() {
+        Span client = half(1L, 2L, 1L, true, 1000, 1900);
+        Span server = half(1L, 2L, 1L, false, 1100, 1800);
+        BinaryAnnotation b = new BinaryAnnotation();
+        b.setKey("dubbo.exception");
+        b.setValue("timeout");
+        server.addBinaryAnnotation(b);
+        server.setServiceId("20202");
+        client.setServiceId(null);
+
+        List<Span> merged = TraceAssembler.merge(Arrays.asList(client, server));
+        Assert.assertEquals(1, merged.size());
+        Span span = merged.get(0);
+        Assert.assertEquals("20202", span.getServiceId());
+        Assert.assertEquals(4, span.getAnnotations().size());
+        Assert.assertEquals(1, span.getBinaryAnnotations().size());
+        Assert.assertEquals(Integer.valueOf(900), find(span, Annotation.CLIENT_RECEIVE).getDuration());
+        Assert.assertEquals(Integer.valueOf(700), find(span, Annotation.SERVER_SEND).getDuration());
+        Assert.assertNull(find(span, Annotation.CLIENT_SEND).getDuration());
+    }
+
+    /**
+     * 收到root后静默quietTime组装，没有root的trace等到maxWait
+     */
+    @Test
+    public void testComplete() {
+        TraceAssembler assembler = newAssembler();
+        long now = System.currentTimeMillis();
+        assembler.add(Arrays.asList(half(1L, 1L, null, false, 0, 100), half(1L, 2L, 1L, true, 10, 90)));
+        assembler.add(Arrays.asList(half(1L, 2L, 1L, false, 20, 80)));
+        assembler.add(Arrays.asList(half(2L, 5L, 4L, false, 0, 10)));
+        Assert.assertEquals(4, assembler.getBufferedSpans());
+
+        assembler.sweep(now + 50);
+        Assert.assertTrue(records.isEmpty());
+        assembler.sweep(now + 200);
+        Assert.assertEquals(Arrays.asList(1L), traceIds);
+        Assert.assertEquals(2, records.get(0).size());
+        Assert.assertEquals(1, assembler.getBufferedSpans());
+
+        assembler.sweep(now + 1100);
+        Assert.assertEquals(Arrays.asList(1L, 2L), traceIds);
+        Assert.assertEquals(0, assembler.getBufferedSpans());
+
+        //迟到的span作为另一条记录
+        assembler.add(Arrays.asList(half(1L, 3L, 1L, true, 30, 40)));
+        assembler.stop();
+        Assert.assertEquals(Arrays.asList(1L, 2L, 1L), traceIds);
+        Assert.assertEquals(3, assembler.getAssembledCount());
+    }
+
+    /**
+     * 超过maxSpans时从最老的trace开始提前组装
+     */
+    @Test
+    public void testMaxSpans() throws Exception {
+        TraceAssembler assembler = newAssembler();
+        assembler.setMaxSpans(2);
+        long now = System.currentTimeMillis();
+        assembler.add(Arrays.asList(half(1L, 2L, 1L, false, 0, 10)));
+        Thread.sleep(5);
+        assembler.add(Arrays.asList(half(2L, 2L, 1L, false, 0, 10)));
+        Thread.sleep(5);
+        assembler.add(Arrays.asList(half(3L, 2L, 1L, false, 0, 10)));
+        assembler.sweep(now + 20);
+        Assert.assertEquals(Arrays.asList(1L), traceIds);
+        Assert.assertEquals(1, assembler.getEvictedCount());
+        Assert.assertEquals(2, assembler.getBufferedSpans());
+    }
+
+    private static Annotation find(Span span, String value) {
+        for (Annotation a : span.getAnnotations()) {
+            if (value.equals(a.getValue())) {
+                return a;
+            }
+        }
+        return null;
+    }
+
+    static Span half(Long traceId, Long id, Long parentId, boolean client, long startUs, long endUs) {
+        Span span = new Span();
+        span.setTraceId(traceId);
+        span.setId(id);
+        span.setParentId(parentId);
+        span.setSpanName("get");
+        span.setServiceId("10101");
+        span.addAnnotation(annotation(startUs, client ? Annotation.CLIENT_SEND : Annotation.SERVER_RECEIVE));
+        span.addAnnotation(annotation(endUs, client ? Annotation.CLIENT_RECEIVE : Annotation.SERVER_SEND));
+        return span;
+    }
+
+    private static Annotation annotation(long us, String value) {
+        Annotation a = new Annotation(us / 1000, value, null);
+        a.setTimestampUs(us);
+        return a;
+    }
+}
@@ -0,0 +1,120 @@
+package com.jd.bdp.hydra.jmetertest.InsertService;
+
+import com.jd.bdp.hydra.Annotation;
+import com.jd.bdp.hydra.BinaryAnnotation;
+import com.jd.bdp.hydra.Endpoint;
+import com.jd.bdp.hydra.Span;
+import com.jd.bdp.hydra.jmetertest.support.AbstractJmeterDBContext;
+import com.jd.bdp.hydra.jmetertest.support.MysqlDBContext;
+import com.jd.bdp.hydra.store.inter.InsertService;
+import org.apache.jmeter.config.Arguments;
+import org.apache.jmeter.protocol.java.sampler.AbstractJavaSamplerClient;
+import org.apache.jmeter.protocol.java.sampler.JavaSamplerContext;
+import org.apache.jmeter.samplers.SampleResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.support.ClassPathXmlApplicationContext;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Date: 26-10-17
+ * span写入吞吐：每次取样写入batchSize个span，batch=true时调用addSpans整批写入，
+ * 否则按原来的方式逐个调用addSpan、addTrace、addAnnotation。
+ * 取样数记为batchSize，聚合报告中的吞吐量即每秒写入的span数，
+ * 分别以batchSize=1、10、100、1000运行对比
+ */
+public class JMeterAddSpans extends AbstractJavaSamplerClient {
+    AbstractJmeterDBContext dbContext;
+    private static Logger logger = LoggerFactory.getLogger(JMeterAddSpans.class);
+    private static final AtomicLong ids = new AtomicLong(System.currentTimeMillis() << 16);
+    private InsertService insertService;
+    //arguments
+    private int batchSize;
+    private boolean batch;
+    private String serviceId;
+
+    public void setupTest(JavaSamplerContext arg) {
+        dbContext = new MysqlDBContext();
+        String[] configs = dbContext.getConfigLocations();
+        ClassPathXmlApplicationContext context = new ClassPathXmlApplicationContext(configs);
+        context.start();
+        insertService = context.getBean("insertService", InsertService.class);
+        if (null == insertService) {
+            logger.error("Didn't get the service [ insertService ]");
+        }
+        batchSize = arg.getIntParameter("batchSize");
+        batch = Boolean.parseBoolean(arg.getParameter("batch"));
+        serviceId = arg.getParameter("serviceId");
+    }
+
+    // 设置传入的参数，可以设置多个，已设置的参数会显示到Jmeter的参数列表中
+    public Arguments getDefaultParameters() {
+        Arguments arguments = new Arguments();
+        arguments.addArgument("batchSize", "100");
+        arguments.addArgument("batch", "true");
+        arguments.addArgument("serviceId", "101");
+        return arguments;
+    }
+
+    @Override
+    public SampleResult runTest(JavaSamplerContext javaSamplerContext) {
+        List<Span> spans = newSpans(batchSize);
+        SampleResult sr = new SampleResult();
+        sr.setSampleLabel("JMeterAddSpans" + (batch ? "Batch" : "Single") + batchSize);
+        sr.sampleStart();
+        try {
+            if (batch) {
+                insertService.addSpans(spans);
+            } else {
+                for (Span s : spans) {
+                    insertService.addSpan(s);
+                    insertService.addTrace(s);
+                    insertService.addAnnotation(s);
+                }
+            }
+            sr.setSampleCount(spans.size());
+            sr.setSuccessful(true);
+        } catch (Exception e) {
+            sr.setSuccessful(false);
+            sr.setResponseMessage(e.getMessage());
+        } finally {
+            sr.sampleEnd();
+            sr.setDataEncoding("UTF-8");
+        }
+        return sr;
+    }
+
+    //客户端记录的root span：cs、cr两个annotation和一个binaryAnnotation
+    private List<Span> newSpans(int n) {
+        List<Span> spans = new ArrayList<Span>(n);
+        long now = System.currentTimeMillis();
+        Endpoint endpoint = new Endpoint();
+        endpoint.setIp("127.0.0.1");
+        endpoint.setPort(20880);
+        for (int i = 0; i < n; i++) {
+            long id = ids.incrementAndGet();
+            Span span = new Span();
+            span.setTraceId(id);
+            span.setId(id);
+            span.setSpanName("sayHello");
+            span.setServiceId(serviceId);
+            span.addAnnotation(new Annotation(now, Annotation.CLIENT_SEND, endpoint));
+            span.addAnnotation(new Annotation(now + 5, Annotation.CLIENT_RECEIVE, endpoint));
+            BinaryAnnotation b = new BinaryAnnotation();
+            b.setKey("dubbo.exception");
+            b.setValue("none");
+            b.setType("string");
+            b.setHost(endpoint);
+            span.addBinaryAnnotation(b);
+            spans.add(span);
+        }
+        return spans;
+    }
+
+    // 结束方法，实际运行时每个线程仅执行一次，在测试方法运行结束后执行，类似于LoadRunner中的end方法
+    public void teardownTest(JavaSamplerContext arg0) {
+    }
+}
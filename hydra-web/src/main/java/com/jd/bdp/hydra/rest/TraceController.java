@@ -53,5 +53,17 @@ public class TraceController {
         }
     }
 
+    //按分钟的调用数、异常数、耗时分位数(us)
+    @RequestMapping("/metrics/{serviceId}/{startTime}/{endTime}")
+    @ResponseBody
+    public JSONArray getMetrics(@PathVariable String serviceId, @PathVariable long startTime, @PathVariable long endTime) {
+        try {
+            return queryService.getServiceMetrics(serviceId, startTime, endTime);
+        }catch (Exception e){
+            e.printStackTrace();
+            return null;
+        }
+    }
+
 
 }
@@ -50,6 +50,9 @@ angular.module('hydra.services.query', [])
                 setting.fnRowCallback = function( nRow, aData, iDisplayIndex ) {
                     $('td:eq(0)', nRow).html(myScope.serviceName);
                     $('td:eq(1)', nRow).html($filter('date')(aData['timestamp'], "yyyy-MM-dd HH:mm:ss"));
+                    if (aData['durationUs'] != null) {//精确到us
+                        $('td:eq(2)', nRow).html((aData['durationUs'] / 1000).toFixed(3));
+                    }
                     var element = $compile('<button type="button" class="btn btn-info" ng-click="linkToDetail('+aData['traceId']+')">查看详细</button>')(myScope);
                     $('td:eq(3)', nRow).html(element);
                 };
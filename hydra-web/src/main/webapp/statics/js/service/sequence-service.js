@@ -72,6 +72,7 @@ angular.module('hydra.services.sequence', [])
                         spanId: span.id,
                         start: parseInt(anMap['client_send']),
                         duration: parseInt(span.durationServer),
+                        durationUs: span.durationServerUs,
                         viewIndex: spanIndex.index,
                         ip: ip,
                         type: 'used',
@@ -90,6 +91,12 @@ angular.module('hydra.services.sequence', [])
                                 return 0;
                             }
                         }(),
+                        durationUs: function(){
+                            if (span.durationServerUs == null || span.durationClientUs == null){
+                                return null;
+                            }
+                            return Math.max(span.durationClientUs - span.durationServerUs, 0);
+                        }(),
                         viewIndex: spanIndex.index,
                         type: 'wasted'
                     }
@@ -326,7 +333,9 @@ angular.module('hydra.services.sequence', [])
                                 }else {
                                     html += '<tr><td style="text-align:center;"><span class="label label-info">网络消耗</span></td>';
                                 }
-                                html += '<td>'+(isUsed?spanModel.used.duration:spanModel.wasted.duration)+'ms</td></tr>';
+                                var time = isUsed?spanModel.used:spanModel.wasted;
+                                //有us精度时显示到小数点后三位
+                                html += '<td>'+(time.durationUs != null?(time.durationUs / 1000).toFixed(3):time.duration)+'ms</td></tr>';
                                 if (isUsed && isEx){
                                     html += '<tr><td style="text-align:center;"><span class="label label-warning">异常情况</span></td>';
                                     html += '<td style="word-break:break-all" title="'+spanModel.exception.value+'">';